@@ -0,0 +1,20 @@
+package com.ontotext.trree.geosparql;
+
+import org.locationtech.jts.geom.Geometry;
+
+import java.io.Closeable;
+
+/**
+ * Hits of a single search for several geometries. The hits are kept without their geometries, which are decoded
+ * only as the iterators returned by {@link #select(Geometry)} are consumed.
+ */
+public interface BatchMatches extends Closeable {
+	/**
+	 * Returns an iterator over the hits that may match one of the searched geometries, i.e. the hits whose
+	 * envelopes intersect its envelope, in the order in which the search returned them.
+	 *
+	 * @param geometry one of the searched geometries
+	 * @return an iterator over entities/geometries
+	 */
+	EntityGeometryIterator select(Geometry geometry);
+}
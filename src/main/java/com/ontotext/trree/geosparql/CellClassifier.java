@@ -0,0 +1,227 @@
+package com.ontotext.trree.geosparql;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+
+/**
+ * Classifies candidate geometries as lying in the interior or the exterior of an areal geometry, or near its
+ * boundary, by their envelope alone.
+ *
+ * The envelope of the areal geometry is split into quad cells like in a quad prefix tree. Each cell is tested
+ * once against the geometry and is either covered by it, disjoint from it or crossed by its boundary. Only crossed
+ * cells are split further. A candidate whose envelope fits strictly inside a covered cell lies in the interior of
+ * the geometry, one that fits inside a disjoint cell lies in its exterior.
+ *
+ * For such a candidate the whole DE-9IM matrix follows from its {@link GeometryKind}, so every topological relation
+ * with the areal geometry has the same outcome as for any other candidate of the same kind in the same place. The
+ * outcome is worked out on a small reference geometry of the kind instead. Only candidates near the boundary need
+ * to be related to the geometry itself.
+ *
+ * The cells are computed lazily and the classifier isn't thread-safe.
+ */
+class CellClassifier {
+	enum Location {
+		INTERIOR, EXTERIOR, BOUNDARY
+	}
+
+	private final static GeometryFactory FACTORY = new GeometryFactory();
+	// Reference areal geometry and envelopes of reference candidates inside and outside of it
+	private final static Geometry REFERENCE_AREA = FACTORY.toGeometry(new Envelope(0, 10, 0, 10));
+	private final static Envelope REFERENCE_INTERIOR = new Envelope(4, 6, 4, 6);
+	private final static Envelope REFERENCE_EXTERIOR = new Envelope(19, 21, 19, 21);
+
+	// Outcomes of the functions for the kinds of candidates in the interior and the exterior, by either argument
+	private final static int KINDS = GeometryKind.values().length;
+	private final static byte UNKNOWN = 0, FALSE = 1, TRUE = 2;
+	private final static byte[] OUTCOMES = new byte[GeoSparqlFunction.values().length * 2 * KINDS * 2];
+
+	// Levels of cells, as many as in a prefix tree of the default precision
+	final static int DEFAULT_MAX_LEVELS = 11;
+	// Upper bound of the cells tested against the geometry
+	final static int DEFAULT_MAX_CELLS = 4096;
+
+	private final PreparedGeometry area;
+	private final int maxLevels;
+	private final int maxCells;
+	private final Cell root;
+	private int cellCount;
+
+	/**
+	 * @param area a prepared areal geometry, see {@link #canClassify(Geometry)}
+	 */
+	CellClassifier(PreparedGeometry area) {
+		this(area, DEFAULT_MAX_LEVELS, DEFAULT_MAX_CELLS);
+	}
+
+	CellClassifier(PreparedGeometry area, int maxLevels, int maxCells) {
+		this.area = area;
+		this.maxLevels = maxLevels;
+		this.maxCells = maxCells;
+		this.root = new Cell(area.getGeometry().getEnvelopeInternal(), Location.BOUNDARY);
+	}
+
+	/**
+	 * @return true if candidates can be classified against the geometry, i.e. it is a non-empty area
+	 */
+	static boolean canClassify(Geometry geometry) {
+		return GeometryKind.of(geometry) == GeometryKind.AREA;
+	}
+
+	/**
+	 * Locates a candidate with respect to the areal geometry.
+	 *
+	 * @return INTERIOR or EXTERIOR if the candidate is known to lie there, BOUNDARY if it must be related to the
+	 * geometry to tell
+	 */
+	Location locate(Geometry candidate) {
+		if (GeometryKind.of(candidate) == null) {
+			return Location.BOUNDARY;
+		}
+		return locate(candidate.getEnvelopeInternal());
+	}
+
+	/**
+	 * Locates any candidate of a {@link GeometryKind} within an envelope, e.g. before the candidate is decoded. A
+	 * proxy of the kind within the envelope is located the same.
+	 *
+	 * @return INTERIOR or EXTERIOR if the candidate is known to lie there, BOUNDARY if it must be related to the
+	 * geometry to tell
+	 */
+	Location locate(Envelope envelope) {
+		if (!root.envelope.intersects(envelope)) {
+			return Location.EXTERIOR;
+		}
+
+		Cell cell = root;
+		for (int level = 1; level <= maxLevels; level++) {
+			cell = cell.childContaining(envelope);
+			if (cell == null) {
+				return Location.BOUNDARY;
+			}
+			if (cell.location == Location.EXTERIOR) {
+				return Location.EXTERIOR;
+			}
+			if (cell.location == Location.INTERIOR) {
+				// A candidate touching the border of the cell may touch the boundary of the geometry too
+				return strictlyContains(cell.envelope, envelope) ? Location.INTERIOR : Location.BOUNDARY;
+			}
+		}
+		return Location.BOUNDARY;
+	}
+
+	/**
+	 * Locates a candidate with respect to a rectangle by their envelopes alone. This decides every point except the
+	 * ones on the edges of the rectangle, e.g. all point hits of a bounding box query.
+	 *
+	 * @param rectangle the envelope of a rectangular areal geometry
+	 * @return INTERIOR or EXTERIOR if the candidate is known to lie there, BOUNDARY if it must be related to the
+	 * rectangle to tell
+	 */
+	static Location locateInRectangle(Envelope rectangle, Geometry candidate) {
+		if (GeometryKind.of(candidate) == null) {
+			return Location.BOUNDARY;
+		}
+		return locateInRectangle(rectangle, candidate.getEnvelopeInternal());
+	}
+
+	/**
+	 * Locates any candidate of a {@link GeometryKind} within an envelope with respect to a rectangle.
+	 */
+	static Location locateInRectangle(Envelope rectangle, Envelope envelope) {
+		if (strictlyContains(rectangle, envelope)) {
+			return Location.INTERIOR;
+		}
+		return rectangle.intersects(envelope) ? Location.BOUNDARY : Location.EXTERIOR;
+	}
+
+	private static boolean strictlyContains(Envelope outer, Envelope inner) {
+		return inner.getMinX() > outer.getMinX() && inner.getMaxX() < outer.getMaxX()
+				&& inner.getMinY() > outer.getMinY() && inner.getMaxY() < outer.getMaxY();
+	}
+
+	/**
+	 * Works out the outcome of a relation for a candidate known to lie in the interior or the exterior of the
+	 * areal geometry.
+	 *
+	 * @param function       the relation
+	 * @param location       INTERIOR or EXTERIOR
+	 * @param candidate      the candidate
+	 * @param candidateFirst whether the candidate is the first argument of the relation
+	 */
+	static boolean evaluate(GeoSparqlFunction function, Location location, Geometry candidate, boolean candidateFirst) {
+		GeometryKind kind = GeometryKind.of(candidate);
+		int idx = ((function.ordinal() * 2 + location.ordinal()) * KINDS + kind.ordinal()) * 2 + (candidateFirst ? 1 : 0);
+		byte outcome = OUTCOMES[idx];
+		if (outcome == UNKNOWN) {
+			Geometry reference = kind.proxy(
+					location == Location.INTERIOR ? REFERENCE_INTERIOR : REFERENCE_EXTERIOR, FACTORY);
+			boolean result = candidateFirst ?
+					function.evaluate(reference, REFERENCE_AREA) :
+					function.evaluate(REFERENCE_AREA, reference);
+			// Worked out the same by any thread, a race only computes it twice
+			OUTCOMES[idx] = outcome = result ? TRUE : FALSE;
+		}
+		return outcome == TRUE;
+	}
+
+	/**
+	 * A quad cell of the envelope of the geometry and its lazily created children.
+	 */
+	private class Cell {
+		private final Envelope envelope;
+		private final Location location;
+		private Cell[] children;
+
+		Cell(Envelope envelope, Location location) {
+			this.envelope = envelope;
+			this.location = location;
+		}
+
+		/**
+		 * @return the child that contains the envelope or null if there is none or the cell limit was reached
+		 */
+		Cell childContaining(Envelope candidate) {
+			double midX = (envelope.getMinX() + envelope.getMaxX()) / 2;
+			double midY = (envelope.getMinY() + envelope.getMaxY()) / 2;
+			int quadrant;
+			if (candidate.getMaxX() <= midX) {
+				quadrant = 0;
+			} else if (candidate.getMinX() >= midX) {
+				quadrant = 1;
+			} else {
+				return null;
+			}
+			if (candidate.getMinY() >= midY) {
+				quadrant += 2;
+			} else if (candidate.getMaxY() > midY) {
+				return null;
+			}
+
+			if (children == null) {
+				children = new Cell[4];
+			}
+			if (children[quadrant] == null) {
+				if (cellCount >= maxCells) {
+					return null;
+				}
+				Envelope childEnvelope = new Envelope(
+						quadrant % 2 == 0 ? envelope.getMinX() : midX, quadrant % 2 == 0 ? midX : envelope.getMaxX(),
+						quadrant < 2 ? envelope.getMinY() : midY, quadrant < 2 ? midY : envelope.getMaxY());
+				children[quadrant] = new Cell(childEnvelope, relate(childEnvelope));
+				cellCount++;
+			}
+			return children[quadrant];
+		}
+	}
+
+	private Location relate(Envelope cell) {
+		Geometry rectangle = FACTORY.toGeometry(cell);
+		if (area.covers(rectangle)) {
+			return Location.INTERIOR;
+		}
+		if (!area.intersects(rectangle)) {
+			return Location.EXTERIOR;
+		}
+		return Location.BOUNDARY;
+	}
+}
@@ -1,8 +1,10 @@
 package com.ontotext.trree.geosparql;
 
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 
 import java.io.Closeable;
+import java.util.function.Predicate;
 
 /**
  * Iterator over entities and geometries. Each entity may have multiple geometries associated with it.
@@ -41,4 +43,13 @@ public interface EntityGeometryIterator extends Closeable {
 	 * the next available entity, if any.
 	 */
 	void advanceToNextEntity();
+
+	/**
+	 * Lets the iterator return a proxy of the same {@link GeometryKind} within the envelope of a geometry instead of
+	 * decoding the geometry, when the filter accepts the envelope. Iterators that hold the geometries ignore it.
+	 *
+	 * @param proxyFilter accepts the envelopes of geometries whose relation a proxy decides as well, or null
+	 */
+	default void setProxyFilter(Predicate<Envelope> proxyFilter) {
+	}
 }
@@ -16,7 +16,11 @@ import java.util.Properties;
 public class GeoSparqlConfig {
     public enum PrefixTree {
         GEOHASH(SimpleValueFactory.getInstance().createLiteral("geohash")),
-        QUAD(SimpleValueFactory.getInstance().createLiteral("quad"));
+        QUAD(SimpleValueFactory.getInstance().createLiteral("quad")),
+        // Not a prefix tree, shapes are indexed as triangles and the precision doesn't apply
+        SHAPE(SimpleValueFactory.getInstance().createLiteral("shape")),
+        // Not a prefix tree, geometries are kept in an in-memory R-tree and the precision doesn't apply
+        MEMORY(SimpleValueFactory.getInstance().createLiteral("memory"));
 
         private Literal literal;
 
@@ -33,6 +37,10 @@ public class GeoSparqlConfig {
     private final static String LEGACY_VERSION = "2";
     private final static String PLUGIN_CONFIG_FILENAME = "config.properties";
     private final static String INDEX_DIRECTORY = "index";
+    private final static String REBUILD_INDEX_DIRECTORY = "index.rebuild";
+    private final static String OLD_INDEX_DIRECTORY = "index.old";
+    private final static String REINDEX_CHECKPOINT_FILENAME = "reindex.checkpoint";
+    private final static String WRITE_AHEAD_LOG_FILENAME = "index.wal";
     final static String ENABLED_KEY = "enabled";
     final static String CURRENT_PREFIXTREE_KEY = "prefixtree.current";
     final static String CURRENT_PRECISION = "precision.current";
@@ -44,6 +52,18 @@ public class GeoSparqlConfig {
     final static String MAX_BUFFERED_DOCS_KEY = "maxBufferedDocs";
     final static String RAM_BUFFER_SIZE_MB_KEY = "ramBufferSizeMB";
 
+    // Number of threads used to evaluate GeoSPARQL functions on the candidates returned by Lucene
+    final static String REFINEMENT_PARALLELISM_KEY = "refinementParallelism";
+
+    // Number of threads that parse geometries and build Lucene documents during reindexing
+    final static String REINDEX_THREADS_KEY = "reindexThreads";
+
+    // Milliseconds between durable index commits, 0 commits the index with every transaction
+    final static String GROUP_COMMIT_INTERVAL_KEY = "groupCommitInterval";
+
+    // Maximum number of updated subjects before a durable index commit with group commit
+    final static String GROUP_COMMIT_MAX_SUBJECTS_KEY = "groupCommitMaxSubjects";
+
     final static boolean ENABLED_DEFAULT = false;
     final static PrefixTree PREFIXTREE_DEFAULT = PrefixTree.QUAD;
     final static int PRECISION_DEFAULT = 11;
@@ -52,6 +72,14 @@ public class GeoSparqlConfig {
 
     final static double RAM_BUFFER_SIZE_MB_DEFAULT = 32.0;
 
+    final static int REFINEMENT_PARALLELISM_DEFAULT = 1;
+
+    final static int REINDEX_THREADS_DEFAULT = 1;
+
+    final static int GROUP_COMMIT_INTERVAL_DEFAULT = 0;
+
+    final static int GROUP_COMMIT_MAX_SUBJECTS_DEFAULT = 10000;
+
     // Hardcoded min value. Setting value lower than this will slowdown building,
     // rebuilding of index and writing in it
     private final static double MIN_RAM_BUFFER_SIZE_MB = 16.0;
@@ -60,6 +88,16 @@ public class GeoSparqlConfig {
     private final static int MAX_BUFFERED_DOCS = 5000;
     private final static double MAX_RAM_BUFFER_SIZE_MB = 512.0;
 
+    private final static int MAX_REFINEMENT_PARALLELISM = 256;
+
+    private final static int MAX_REINDEX_THREADS = 256;
+
+    private final static int MIN_GROUP_COMMIT_INTERVAL = 0;
+    private final static int MAX_GROUP_COMMIT_INTERVAL = 600000;
+
+    private final static int MIN_GROUP_COMMIT_MAX_SUBJECTS = 1;
+    private final static int MAX_GROUP_COMMIT_MAX_SUBJECTS = 10000000;
+
     private boolean enabled = ENABLED_DEFAULT;
 
     private PrefixTree currentPrefixTree = PREFIXTREE_DEFAULT;
@@ -70,6 +108,10 @@ public class GeoSparqlConfig {
     private boolean ignoreErrors = IGNORE_ERRORS_DEFAULT;
     private int maxBufferedDocs = MAX_BUFFERED_DOCS_DEFAULT;
     private double ramBufferSizeMb = RAM_BUFFER_SIZE_MB_DEFAULT;
+    private int refinementParallelism = REFINEMENT_PARALLELISM_DEFAULT;
+    private int reindexThreads = REINDEX_THREADS_DEFAULT;
+    private int groupCommitInterval = GROUP_COMMIT_INTERVAL_DEFAULT;
+    private int groupCommitMaxSubjects = GROUP_COMMIT_MAX_SUBJECTS_DEFAULT;
 
     public boolean isEnabled() {
         return enabled;
@@ -119,6 +161,54 @@ public class GeoSparqlConfig {
         }
     }
 
+    public int getRefinementParallelism() {
+        return refinementParallelism;
+    }
+
+    public void setRefinementParallelism(int refinementParallelism) {
+        if (refinementParallelism > 0 && refinementParallelism <= MAX_REFINEMENT_PARALLELISM) {
+            this.refinementParallelism = refinementParallelism;
+        } else {
+            throw new PluginException("RefinementParallelism value should be in range of 1 to " + MAX_REFINEMENT_PARALLELISM);
+        }
+    }
+
+    public int getReindexThreads() {
+        return reindexThreads;
+    }
+
+    public void setReindexThreads(int reindexThreads) {
+        if (reindexThreads > 0 && reindexThreads <= MAX_REINDEX_THREADS) {
+            this.reindexThreads = reindexThreads;
+        } else {
+            throw new PluginException("ReindexThreads value should be in range of 1 to " + MAX_REINDEX_THREADS);
+        }
+    }
+
+    public int getGroupCommitInterval() {
+        return groupCommitInterval;
+    }
+
+    public void setGroupCommitInterval(int groupCommitInterval) {
+        if (groupCommitInterval >= MIN_GROUP_COMMIT_INTERVAL && groupCommitInterval <= MAX_GROUP_COMMIT_INTERVAL) {
+            this.groupCommitInterval = groupCommitInterval;
+        } else {
+            throw new PluginException("GroupCommitInterval value should be in range of " + MIN_GROUP_COMMIT_INTERVAL + " to " + MAX_GROUP_COMMIT_INTERVAL);
+        }
+    }
+
+    public int getGroupCommitMaxSubjects() {
+        return groupCommitMaxSubjects;
+    }
+
+    public void setGroupCommitMaxSubjects(int groupCommitMaxSubjects) {
+        if (groupCommitMaxSubjects >= MIN_GROUP_COMMIT_MAX_SUBJECTS && groupCommitMaxSubjects <= MAX_GROUP_COMMIT_MAX_SUBJECTS) {
+            this.groupCommitMaxSubjects = groupCommitMaxSubjects;
+        } else {
+            throw new PluginException("GroupCommitMaxSubjects value should be in range of " + MIN_GROUP_COMMIT_MAX_SUBJECTS + " to " + MAX_GROUP_COMMIT_MAX_SUBJECTS);
+        }
+    }
+
     public PrefixTree getCurrentPrefixTree() {
         return currentPrefixTree;
     }
@@ -175,6 +265,30 @@ public class GeoSparqlConfig {
             ramBufferSizeMb = RAM_BUFFER_SIZE_MB_DEFAULT;
         }
 
+        try {
+            refinementParallelism = Integer.parseInt(properties.getProperty(REFINEMENT_PARALLELISM_KEY, Integer.toString(REFINEMENT_PARALLELISM_DEFAULT)));
+        } catch (NumberFormatException e) {
+            refinementParallelism = REFINEMENT_PARALLELISM_DEFAULT;
+        }
+
+        try {
+            reindexThreads = Integer.parseInt(properties.getProperty(REINDEX_THREADS_KEY, Integer.toString(REINDEX_THREADS_DEFAULT)));
+        } catch (NumberFormatException e) {
+            reindexThreads = REINDEX_THREADS_DEFAULT;
+        }
+
+        try {
+            groupCommitInterval = Integer.parseInt(properties.getProperty(GROUP_COMMIT_INTERVAL_KEY, Integer.toString(GROUP_COMMIT_INTERVAL_DEFAULT)));
+        } catch (NumberFormatException e) {
+            groupCommitInterval = GROUP_COMMIT_INTERVAL_DEFAULT;
+        }
+
+        try {
+            groupCommitMaxSubjects = Integer.parseInt(properties.getProperty(GROUP_COMMIT_MAX_SUBJECTS_KEY, Integer.toString(GROUP_COMMIT_MAX_SUBJECTS_DEFAULT)));
+        } catch (NumberFormatException e) {
+            groupCommitMaxSubjects = GROUP_COMMIT_MAX_SUBJECTS_DEFAULT;
+        }
+
     }
 
     public Properties getAsProperties() {
@@ -187,6 +301,10 @@ public class GeoSparqlConfig {
         properties.setProperty(IGNORE_ERRORS_KEY, Boolean.toString(ignoreErrors));
         properties.setProperty(MAX_BUFFERED_DOCS_KEY, Integer.toString(maxBufferedDocs));
         properties.setProperty(RAM_BUFFER_SIZE_MB_KEY, Double.toString(ramBufferSizeMb));
+        properties.setProperty(REFINEMENT_PARALLELISM_KEY, Integer.toString(refinementParallelism));
+        properties.setProperty(REINDEX_THREADS_KEY, Integer.toString(reindexThreads));
+        properties.setProperty(GROUP_COMMIT_INTERVAL_KEY, Integer.toString(groupCommitInterval));
+        properties.setProperty(GROUP_COMMIT_MAX_SUBJECTS_KEY, Integer.toString(groupCommitMaxSubjects));
 
         return properties;
     }
@@ -196,6 +314,11 @@ public class GeoSparqlConfig {
         currentPrefixTree = prefixTree;
     }
 
+    void setCurrentSettings(PrefixTree currentPrefixTree, int currentPrecision) {
+        this.currentPrefixTree = currentPrefixTree;
+        this.currentPrecision = currentPrecision;
+    }
+
     public static Path resolveLegacyConfigPath(Path pluginDataDir) {
         return pluginDataDir.resolve("v" + GeoSparqlConfig.LEGACY_VERSION).resolve(PLUGIN_CONFIG_FILENAME);
     }
@@ -207,4 +330,20 @@ public class GeoSparqlConfig {
     public static Path resolveIndexPath(Path pluginDataDir) {
         return pluginDataDir.resolve("v" + GeoSparqlConfig.VERSION).resolve(INDEX_DIRECTORY);
     }
+
+    public static Path resolveRebuildIndexPath(Path pluginDataDir) {
+        return pluginDataDir.resolve("v" + GeoSparqlConfig.VERSION).resolve(REBUILD_INDEX_DIRECTORY);
+    }
+
+    public static Path resolveOldIndexPath(Path pluginDataDir) {
+        return pluginDataDir.resolve("v" + GeoSparqlConfig.VERSION).resolve(OLD_INDEX_DIRECTORY);
+    }
+
+    public static Path resolveReindexCheckpointPath(Path pluginDataDir) {
+        return pluginDataDir.resolve("v" + GeoSparqlConfig.VERSION).resolve(REINDEX_CHECKPOINT_FILENAME);
+    }
+
+    public static Path resolveWriteAheadLogPath(Path pluginDataDir) {
+        return pluginDataDir.resolve("v" + GeoSparqlConfig.VERSION).resolve(WRITE_AHEAD_LOG_FILENAME);
+    }
 }
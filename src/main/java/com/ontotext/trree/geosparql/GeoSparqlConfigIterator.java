@@ -29,7 +29,12 @@ class GeoSparqlConfigIterator extends StatementIterator {
                 predicates = new long[]{plugin.enabledPredicateId, plugin.prefixTreePredicateId,
                         plugin.precisionPredicateId, plugin.currentPrefixTreePredicateId,
                         plugin.currentPrecisionPredicateId, plugin.maxBufferedDocsPredicateId,
-                        plugin.ramBufferSizePredicateId, plugin.ignoreErrorsPredicateId};
+                        plugin.ramBufferSizePredicateId, plugin.ignoreErrorsPredicateId,
+                        plugin.refinementParallelismPredicateId, plugin.reindexThreadsPredicateId,
+                        plugin.groupCommitIntervalPredicateId, plugin.groupCommitMaxSubjectsPredicateId,
+                        plugin.geometryCacheHitsPredicateId,
+                        plugin.geometryCacheMissesPredicateId, plugin.indexedCellsPredicateId,
+                        plugin.coarsenedGeometriesPredicateId};
             } else {
                 predicates = getPredicateFromObjectValue(entities.get(object));
             }
@@ -69,6 +74,32 @@ class GeoSparqlConfigIterator extends StatementIterator {
             } else if (predicate == plugin.ignoreErrorsPredicateId) {
                 object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(plugin.getConfig().isIgnoreErrors()),
                         Entities.Scope.REQUEST);
+            } else if (predicate == plugin.refinementParallelismPredicateId) {
+                object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(plugin.getConfig().getRefinementParallelism()),
+                        Entities.Scope.REQUEST);
+            } else if (predicate == plugin.reindexThreadsPredicateId) {
+                object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(plugin.getConfig().getReindexThreads()),
+                        Entities.Scope.REQUEST);
+            } else if (predicate == plugin.groupCommitIntervalPredicateId) {
+                object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(plugin.getConfig().getGroupCommitInterval()),
+                        Entities.Scope.REQUEST);
+            } else if (predicate == plugin.groupCommitMaxSubjectsPredicateId) {
+                object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(plugin.getConfig().getGroupCommitMaxSubjects()),
+                        Entities.Scope.REQUEST);
+            } else if (predicate == plugin.geometryCacheHitsPredicateId) {
+                object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(plugin.geometryCache.getHits()),
+                        Entities.Scope.REQUEST);
+            } else if (predicate == plugin.geometryCacheMissesPredicateId) {
+                object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(plugin.geometryCache.getMisses()),
+                        Entities.Scope.REQUEST);
+            } else if (predicate == plugin.indexedCellsPredicateId) {
+                GeoSparqlIndexer indexer = plugin.indexer;
+                object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(
+                        indexer != null ? indexer.getIndexedCellCount() : 0L), Entities.Scope.REQUEST);
+            } else if (predicate == plugin.coarsenedGeometriesPredicateId) {
+                GeoSparqlIndexer indexer = plugin.indexer;
+                object = entities.put(GeoSparqlPlugin.VALUE_FACTORY.createLiteral(
+                        indexer != null ? indexer.getCoarsenedGeometryCount() : 0L), Entities.Scope.REQUEST);
             }
 
             index++;
@@ -104,6 +135,10 @@ class GeoSparqlConfigIterator extends StatementIterator {
         mappedPropertiesKeyToPluginPredicates.put(GeoSparqlConfig.MAX_BUFFERED_DOCS_KEY, plugin.maxBufferedDocsPredicateId);
         mappedPropertiesKeyToPluginPredicates.put(GeoSparqlConfig.RAM_BUFFER_SIZE_MB_KEY, plugin.ramBufferSizePredicateId);
         mappedPropertiesKeyToPluginPredicates.put(GeoSparqlConfig.IGNORE_ERRORS_KEY, plugin.ignoreErrorsPredicateId);
+        mappedPropertiesKeyToPluginPredicates.put(GeoSparqlConfig.REFINEMENT_PARALLELISM_KEY, plugin.refinementParallelismPredicateId);
+        mappedPropertiesKeyToPluginPredicates.put(GeoSparqlConfig.REINDEX_THREADS_KEY, plugin.reindexThreadsPredicateId);
+        mappedPropertiesKeyToPluginPredicates.put(GeoSparqlConfig.GROUP_COMMIT_INTERVAL_KEY, plugin.groupCommitIntervalPredicateId);
+        mappedPropertiesKeyToPluginPredicates.put(GeoSparqlConfig.GROUP_COMMIT_MAX_SUBJECTS_KEY, plugin.groupCommitMaxSubjectsPredicateId);
 
         return mappedPropertiesKeyToPluginPredicates.get(propertyKey);
     }
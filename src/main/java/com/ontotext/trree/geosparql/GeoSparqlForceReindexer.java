@@ -1,91 +1,400 @@
 package com.ontotext.trree.geosparql;
 
+import com.ontotext.trree.sdk.Entities;
 import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.PluginException;
 import com.ontotext.trree.sdk.StatementIterator;
 import org.locationtech.jts.geom.Geometry;
-import org.apache.commons.lang3.tuple.Pair;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Utility class for reindexing all indexable data.
+ *
+ * With more than one reindex thread configured the statements are scanned on the calling thread, which resolves
+ * the literals and feeds them through a bounded queue to worker threads that parse the geometries and add them to
+ * the index concurrently.
+ *
+ * The index is committed in chunks and the position after each chunk is recorded in a {@link ReindexCheckpoint}.
+ * A reindex started with the checkpoint of an interrupted one skips the statements of the committed chunks. This
+ * relies on the statements of a predicate being returned in subject order. If they aren't, checkpoints are no
+ * longer written and an interrupted reindex starts over.
  */
 public class GeoSparqlForceReindexer {
+	// Progress is logged each time that many geometries were indexed
+	private final static int PROGRESS_INTERVAL = 100_000;
+
+	// Capacity of the queue between the statement scanner and the workers, per worker
+	private final static int QUEUE_CAPACITY_PER_WORKER = 1024;
+
+	// The index is committed at the next subject boundary once that many literals were scanned since the last commit
+	private final static int CHUNK_SIZE = 100_000;
+
 	private final GeoSparqlIndexer indexer;
 	private final GeoSparqlPlugin plugin;
+	private final ReindexCheckpoint checkpoint;
+	private final Path checkpointPath;
+
+	private final AtomicLong indexed = new AtomicLong();
+	private long startTime;
+
+	// Position the reindex continues after
+	private ReindexCheckpoint.Phase resumePhase;
+	private long resumeSubject;
+
+	// Position of the scan
+	private ReindexCheckpoint.Phase phase;
+	private long lastSubject = ReindexCheckpoint.NO_SUBJECT;
+	private long scannedSinceCommit;
+	private boolean resumable = true;
 
-	public GeoSparqlForceReindexer(GeoSparqlIndexer indexer, GeoSparqlPlugin plugin) {
+	/**
+	 * @param indexer        the indexer to reindex into, must be initialized
+	 * @param plugin         the plugin
+	 * @param checkpoint     the position to continue after, a new checkpoint starts from the beginning
+	 * @param checkpointPath the file the checkpoint is persisted to
+	 */
+	GeoSparqlForceReindexer(GeoSparqlIndexer indexer, GeoSparqlPlugin plugin, ReindexCheckpoint checkpoint,
+							Path checkpointPath) {
 		this.indexer = indexer;
 		this.plugin = plugin;
+		this.checkpoint = checkpoint;
+		this.checkpointPath = checkpointPath;
 	}
 
+	/**
+	 * Indexes all geometries after the position of the checkpoint and commits the index. The checkpoint is
+	 * complete once this returns.
+	 */
 	public void reindex(PluginConnection pluginConnection) throws Exception {
-		indexer.freshIndex();
-		reindexGeometries(pluginConnection);
-		reindexFeatures(pluginConnection);
+		resumePhase = checkpoint.getPhase();
+		resumeSubject = checkpoint.getSubject();
+
+		indexer.begin();
+		if (resumePhase == ReindexCheckpoint.Phase.AS_WKT && resumeSubject == ReindexCheckpoint.NO_SUBJECT) {
+			indexer.freshIndex();
+		} else {
+			plugin.getLogger().info(">>>>>>>> GeoSPARQL: Resuming reindex with {} geometries after subject {} of {}",
+					indexer.getGeometryCount(), resumeSubject, resumePhase);
+		}
+		checkpoint.save(checkpointPath);
+
+		startTime = System.nanoTime();
+		int threads = plugin.getConfig().getReindexThreads();
+		if (threads > 1) {
+			ParallelSink sink = new ParallelSink(pluginConnection, threads);
+			try {
+				scan(pluginConnection, sink);
+				sink.finish();
+			} finally {
+				sink.shutdown();
+			}
+		} else {
+			scan(pluginConnection, new SerialSink(pluginConnection));
+		}
+		commit(ReindexCheckpoint.Phase.COMPLETE, ReindexCheckpoint.NO_SUBJECT);
+		logProgress("Reindexed");
 	}
 
-	private void reindexGeometries(PluginConnection pluginConnection) {
-		class Processor {
-			String mapSubject(Long subject) {
-				return pluginConnection.getEntities().get(subject).stringValue();
+	/**
+	 * Receives the geometry literals found while scanning the statements.
+	 */
+	private interface Sink {
+		/**
+		 * @param subject   the entity to index the geometry for, a Geometry or a Feature
+		 * @param literalId the WKT/GML literal
+		 * @param predicate the asWKT/asGML predicate that determines the literal type
+		 */
+		void accept(long subject, long literalId, long predicate) throws Exception;
+
+		/**
+		 * Waits until all accepted geometries are added to the index.
+		 */
+		void flush() throws Exception;
+	}
+
+	private void scan(PluginConnection pluginConnection, Sink sink) throws Exception {
+		// Geometries
+		scanGeometries(ReindexCheckpoint.Phase.AS_WKT, plugin.asWKT, pluginConnection, sink);
+		scanGeometries(ReindexCheckpoint.Phase.AS_GML, plugin.asGML, pluginConnection, sink);
+
+		// Features, linked to their default geometries
+		if (!enterPhase(ReindexCheckpoint.Phase.HAS_DEFAULT_GEOMETRY, sink)) {
+			return;
+		}
+		StatementIterator defGeoItty = pluginConnection.getStatements().get(0, plugin.hasDefaultGeometry, 0);
+		try {
+			while (defGeoItty.next()) {
+				if (enterSubject(defGeoItty.subject, sink)) {
+					indexer.indexFeatureGeometry(defGeoItty.subject, defGeoItty.object);
+					scannedSinceCommit++;
+				}
 			}
+		} finally {
+			defGeoItty.close();
+		}
+	}
 
-			void process(long predicate) {
-				StatementIterator geoSerItty = pluginConnection.getStatements().get(0, predicate, 0);
-				try {
-					while (geoSerItty.next()) {
-						Geometry g = plugin.getGeometryFromLiteralId(geoSerItty.object, predicate,
-								pluginConnection.getEntities());
-						if (g != null) {
-							indexer.indexGeometry(geoSerItty.subject, this::mapSubject, g);
-						}
-					}
-				} finally {
-					geoSerItty.close();
+	private void scanGeometries(ReindexCheckpoint.Phase geometryPhase, long predicate,
+								PluginConnection pluginConnection, Sink sink) throws Exception {
+		if (!enterPhase(geometryPhase, sink)) {
+			return;
+		}
+		StatementIterator geoSerItty = pluginConnection.getStatements().get(0, predicate, 0);
+		try {
+			while (geoSerItty.next()) {
+				if (enterSubject(geoSerItty.subject, sink)) {
+					sink.accept(geoSerItty.subject, geoSerItty.object, predicate);
+					scannedSinceCommit++;
 				}
 			}
+		} finally {
+			geoSerItty.close();
+		}
+	}
+
+	/**
+	 * Starts scanning the statements of the next phase.
+	 *
+	 * @return false if the phase was completed before the checkpoint and must be skipped
+	 */
+	private boolean enterPhase(ReindexCheckpoint.Phase nextPhase, Sink sink) throws Exception {
+		if (nextPhase.compareTo(resumePhase) < 0) {
+			return false;
+		}
+		if (phase != null) {
+			maybeCommitChunk(sink);
+		}
+		phase = nextPhase;
+		lastSubject = ReindexCheckpoint.NO_SUBJECT;
+		return true;
+	}
+
+	/**
+	 * Called for each statement before its literals are accepted. Commits a chunk when the subject changes.
+	 *
+	 * @return false if the subject was committed before the checkpoint and must be skipped
+	 */
+	private boolean enterSubject(long subject, Sink sink) throws Exception {
+		if (phase == resumePhase && subject <= resumeSubject) {
+			return false;
+		}
+		if (subject != lastSubject) {
+			if (subject < lastSubject && resumable) {
+				plugin.getLogger().warn(">>>>>>>> GeoSPARQL: Statements of {} aren't ordered by subject, " +
+						"an interrupted reindex will start over", phase);
+				resumable = false;
+				ReindexCheckpoint.delete(checkpointPath);
+			}
+			if (lastSubject != ReindexCheckpoint.NO_SUBJECT) {
+				maybeCommitChunk(sink);
+			}
+			lastSubject = subject;
+		}
+		return true;
+	}
+
+	private void maybeCommitChunk(Sink sink) throws Exception {
+		if (resumable && scannedSinceCommit >= CHUNK_SIZE) {
+			sink.flush();
+			commit(phase, lastSubject);
+			indexer.begin();
+		}
+	}
+
+	/**
+	 * Commits the index and moves the checkpoint to the given position. The position is recorded as pending
+	 * before the commit, see {@link ReindexCheckpoint}.
+	 */
+	private void commit(ReindexCheckpoint.Phase position, long subject) throws Exception {
+		checkpoint.setPending(position, subject, indexer.getGeometryCount());
+		checkpoint.save(checkpointPath);
+		indexer.commit();
+		checkpoint.committed();
+		checkpoint.save(checkpointPath);
+		scannedSinceCommit = 0;
+	}
+
+	private void countIndexed() {
+		if (indexed.incrementAndGet() % PROGRESS_INTERVAL == 0) {
+			logProgress("Indexed");
+		}
+	}
+
+	private void logProgress(String action) {
+		long count = indexed.get();
+		double seconds = Math.max(1e-3, (System.nanoTime() - startTime) / 1e9);
+		plugin.getLogger().info(String.format(">>>>>>>> GeoSPARQL: %s %d geometries in %.1f s (%.0f geometries/s)",
+				action, count, seconds, count / seconds));
+	}
+
+	/**
+	 * Parses and indexes each geometry on the scanning thread.
+	 */
+	private class SerialSink implements Sink {
+		private final PluginConnection pluginConnection;
+
+		SerialSink(PluginConnection pluginConnection) {
+			this.pluginConnection = pluginConnection;
 		}
 
-		Processor p = new Processor();
+		String mapSubject(Long subject) {
+			return pluginConnection.getEntities().get(subject).stringValue();
+		}
+
+		@Override
+		public void accept(long subject, long literalId, long predicate) {
+			Geometry g = plugin.getGeometryFromLiteralId(literalId, predicate, pluginConnection.getEntities());
+			if (g != null) {
+				indexer.indexGeometry(subject, this::mapSubject, g);
+				countIndexed();
+			}
+		}
 
-		p.process(plugin.asWKT);
-		p.process(plugin.asGML);
+		@Override
+		public void flush() {
+			// geometries are indexed as they are accepted
+		}
 	}
 
-	private void reindexFeatures(PluginConnection pluginConnection) {
-		class Processor {
-			String mapSubject(Long subject) {
-				return pluginConnection.getEntities().get(subject).stringValue();
+	/**
+	 * Hands the literals over to worker threads that parse and index them.
+	 *
+	 * Entities are only accessed under a lock since the plugin connection isn't meant to be used from several
+	 * threads. The workers need them only to report the subject of a geometry that can't be indexed. The first
+	 * worker failure stops the scan and is rethrown on the scanning thread.
+	 */
+	private class ParallelSink implements Sink {
+		private final Entities entities;
+		private final Object entitiesLock = new Object();
+
+		private final BlockingQueue<Task> queue;
+		private final ExecutorService workers;
+		private final int threads;
+		private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		// Tasks handed to the workers and tasks they finished
+		private long submitted;
+		private final AtomicLong completed = new AtomicLong();
+
+		ParallelSink(PluginConnection pluginConnection, int threads) {
+			this.entities = pluginConnection.getEntities();
+			this.threads = threads;
+			this.queue = new ArrayBlockingQueue<>(threads * QUEUE_CAPACITY_PER_WORKER);
+
+			AtomicInteger threadCount = new AtomicInteger();
+			this.workers = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "geosparql-reindex-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+			for (int i = 0; i < threads; i++) {
+				workers.execute(this::work);
+			}
+			plugin.getLogger().info(">>>>>>>> GeoSPARQL: Reindexing with {} threads", threads);
+		}
+
+		@Override
+		public void accept(long subject, long literalId, long predicate) throws InterruptedException {
+			String literal;
+			synchronized (entitiesLock) {
+				literal = entities.get(literalId).stringValue();
+			}
+			put(new Task(subject, predicate, literal));
+			submitted++;
+		}
+
+		@Override
+		public void flush() {
+			while (completed.get() < submitted) {
+				checkFailure();
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+			checkFailure();
+		}
+
+		/**
+		 * Waits for the workers to index all queued geometries.
+		 */
+		void finish() throws InterruptedException {
+			for (int i = 0; i < threads; i++) {
+				put(Task.END);
+			}
+			workers.shutdown();
+			while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+				checkFailure();
+			}
+			checkFailure();
+		}
+
+		void shutdown() {
+			workers.shutdownNow();
+		}
+
+		private void put(Task task) throws InterruptedException {
+			while (!queue.offer(task, 100, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+			checkFailure();
+		}
+
+		private void checkFailure() {
+			Throwable t = failure.get();
+			if (t instanceof PluginException) {
+				throw (PluginException) t;
+			} else if (t != null) {
+				throw new PluginException("Unable to reindex GeoSPARQL geometries.", t);
 			}
+		}
 
-			void process(long feature, long subject, long predicate) {
-				StatementIterator geoSerItty = pluginConnection.getStatements().get(subject, predicate, 0);
-				try {
-					while (geoSerItty.next()) {
-						Geometry g = plugin.getGeometryFromLiteralId(geoSerItty.object, predicate,
-								pluginConnection.getEntities());
-						if (g != null) {
-							indexer.indexGeometry(feature, this::mapSubject, g);
-						}
+		private String mapSubject(Long subject) {
+			synchronized (entitiesLock) {
+				return entities.get(subject).stringValue();
+			}
+		}
+
+		private void work() {
+			try {
+				while (true) {
+					Task task = queue.take();
+					if (task == Task.END) {
+						break;
+					}
+					Geometry g = plugin.getGeometryFromString(task.literal, task.predicate);
+					if (g != null) {
+						indexer.indexGeometry(task.subject, this::mapSubject, g);
+						countIndexed();
 					}
-				} finally {
-					geoSerItty.close();
+					completed.incrementAndGet();
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable t) {
+				failure.compareAndSet(null, t);
 			}
 		}
+	}
 
-		Processor p = new Processor();
+	private static class Task {
+		static final Task END = new Task(0, 0, null);
 
-		StatementIterator defGeoItty = pluginConnection.getStatements().get(0, plugin.hasDefaultGeometry, 0);
-		try {
-			while (defGeoItty.next()) {
-				p.process(defGeoItty.subject, defGeoItty.object, plugin.asWKT);
-				p.process(defGeoItty.subject, defGeoItty.object, plugin.asGML);
-			}
-		} finally {
-			defGeoItty.close();
+		final long subject;
+		final long predicate;
+		final String literal;
+
+		Task(long subject, long predicate, String literal) {
+			this.subject = subject;
+			this.predicate = predicate;
+			this.literal = literal;
 		}
 	}
 }
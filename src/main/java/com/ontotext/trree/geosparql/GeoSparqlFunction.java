@@ -1,13 +1,17 @@
 package com.ontotext.trree.geosparql;
 
+import com.ontotext.trree.geosparql.lucene.DirectionalOperation;
 import com.useekm.geosparql.*;
 
 import org.apache.lucene.spatial.query.SpatialOperation;
 import org.eclipse.rdf4j.model.IRI;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
 
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import static com.useekm.indexing.GeoConstants.*;
 
@@ -66,10 +70,14 @@ public enum GeoSparqlFunction {
 	SF_CROSSES(Crosses.class, GEO_SF_CROSSES, SpatialOperation.Intersects),
 
 
-	STRDF_ABOVE(Above.class, ST_RDF_ABOVE, SpatialOperation.IsDisjointTo),
-    STRDF_BELOW(Below.class, ST_RDF_BELOW, SpatialOperation.IsDisjointTo),
-    STRDF_RIGHT(Below.class, ST_RDF_RIGHT, SpatialOperation.IsDisjointTo),
-    STRDF_LEFT(Below.class, ST_RDF_LEFT, SpatialOperation.IsDisjointTo),
+    //////////////////////////////////////////////////////////////////////////////////////
+    ///////////////////////////// stSPARQL Directional Relations ////////////////////////
+    //////////////////////////////////////////////////////////////////////////////////////
+    // Compare the envelopes only, the Lucene operations match exactly
+	STRDF_ABOVE(Above.class, ST_RDF_ABOVE, DirectionalOperation.IsAbove),
+    STRDF_BELOW(Below.class, ST_RDF_BELOW, DirectionalOperation.IsBelow),
+    STRDF_RIGHT(Right.class, ST_RDF_RIGHT, DirectionalOperation.IsRightOf),
+    STRDF_LEFT(Left.class, ST_RDF_LEFT, DirectionalOperation.IsLeftOf),
 
     //////////////////////////////////////////////////////////////////////////////////////
     //////////////////////////// Egenhofer Topological Relations /////////////////////////
@@ -156,8 +164,16 @@ public enum GeoSparqlFunction {
 		INVERSE_SPATIAL_OPERATIONS.put(SpatialOperation.IsWithin, SpatialOperation.Contains);
 		INVERSE_SPATIAL_OPERATIONS.put(SpatialOperation.Contains, SpatialOperation.IsWithin);
 		INVERSE_SPATIAL_OPERATIONS.put(SpatialOperation.Overlaps, SpatialOperation.Overlaps);
+		INVERSE_SPATIAL_OPERATIONS.put(DirectionalOperation.IsAbove, DirectionalOperation.IsBelow);
+		INVERSE_SPATIAL_OPERATIONS.put(DirectionalOperation.IsBelow, DirectionalOperation.IsAbove);
+		INVERSE_SPATIAL_OPERATIONS.put(DirectionalOperation.IsLeftOf, DirectionalOperation.IsRightOf);
+		INVERSE_SPATIAL_OPERATIONS.put(DirectionalOperation.IsRightOf, DirectionalOperation.IsLeftOf);
 	}
 
+	// Relations that compare positions rather than the DE-9IM matrix
+	private final static Set<GeoSparqlFunction> DIRECTIONAL_FUNCTIONS = EnumSet.of(STRDF_ABOVE, STRDF_BELOW,
+			STRDF_RIGHT, STRDF_LEFT);
+
 	private final AbstractBooleanBinaryFunction functionImplementation;
 	private final IRI predicateUri;
 	private SpatialOperation spatialOperation;
@@ -184,8 +200,23 @@ public enum GeoSparqlFunction {
 		return INVERSE_SPATIAL_OPERATIONS.get(spatialOperation);
 	}
 
+	/**
+	 * @return true if the relation is determined by the DE-9IM matrix and the dimensions of its arguments
+	 */
+	public boolean isTopological() {
+		return !DIRECTIONAL_FUNCTIONS.contains(this);
+	}
+
 	public boolean evaluate(Geometry argument1, Geometry argument2) {
 		return functionImplementation.evaluate(argument1, argument2);
 	}
 
+	public boolean evaluate(PreparedGeometry argument1, Geometry argument2) {
+		return functionImplementation.evaluate(argument1, argument2);
+	}
+
+	public boolean evaluate(Geometry argument1, PreparedGeometry argument2) {
+		return functionImplementation.evaluate(argument1, argument2);
+	}
+
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.ontotext.trree.geosparql;
 import org.apache.lucene.spatial.query.SpatialOperation;
 import org.locationtech.jts.geom.Geometry;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.function.Function;
 
@@ -16,23 +17,56 @@ public interface GeoSparqlIndexer {
 	void initialize() throws Exception;
 
 	/**
-	 * Indexes an entity (Geometry) with the predicate asWKT/asGML.
+	 * Indexes an entity (Geometry) with the predicate asWKT/asGML, replacing any geometries indexed for it before.
 	 *
 	 * @param subject  id of the subject
 	 * @param geometries geometries that corresponds to asWKT/asGML's object
+	 * @return false if the same geometries were already indexed for the subject and nothing was written
 	 */
-	void indexGeometryList(long subject, Function<Long, String> subjectMapper, List<Geometry> geometries);
+	boolean indexGeometryList(long subject, Function<Long, String> subjectMapper, List<Geometry> geometries);
+
+	/**
+	 * Links a feature to the geometries it has with hasDefaultGeometry, replacing any links indexed for it before.
+	 * The feature is returned with the geometries of the linked entities.
+	 *
+	 * @param feature    id of the feature
+	 * @param geometries ids of the geometry entities, without duplicates
+	 * @return false if the feature was already linked to the same geometries and nothing was written
+	 */
+	boolean indexFeatureGeometryList(long feature, long[] geometries);
 
 	/**
 	 * Returns an iterator over entities/geometries that matches the provided geometry
 	 * using the provided spatial operation.
 	 *
+	 * BBoxIntersects returns exactly the geometries whose envelopes intersect the envelope of the provided geometry.
+	 *
 	 * @param geometry a geometry
 	 * @param spatialOperation the spatial operation to filter by
 	 * @return an iterator over entities/geometries
 	 */
 	EntityGeometryIterator getMatchingObjects(Geometry geometry, SpatialOperation spatialOperation);
 
+	/**
+	 * Searches for the entities/geometries that match any of the provided geometries using the provided spatial
+	 * operation, with a single search. The spatial operation must require the geometries to intersect.
+	 *
+	 * @param geometries the geometries
+	 * @param spatialOperation the spatial operation to filter by
+	 * @return the hits of the search, to be closed when they are no longer needed
+	 */
+	BatchMatches getBatchMatches(List<Geometry> geometries, SpatialOperation spatialOperation);
+
+	/**
+	 * Estimates the number of entities/geometries returned by getMatchingObjects() from statistics of the indexed
+	 * geometries, without searching the index.
+	 *
+	 * @param geometry a geometry
+	 * @param spatialOperation the spatial operation to filter by
+	 * @return the estimated number of entities/geometries
+	 */
+	double estimateMatchingObjects(Geometry geometry, SpatialOperation spatialOperation);
+
 	/**
 	 * Returns an iterator over all geometries for the provided entity
 	 *
@@ -41,15 +75,94 @@ public interface GeoSparqlIndexer {
 	 */
 	EntityGeometryIterator getGeometriesFor(long subject);
 
+	/**
+	 * Returns the number of indexed geometries and feature links as seen by the most recent commit.
+	 *
+	 * @return number of indexed geometries and feature links
+	 */
+	long getGeometryCount();
+
+	/**
+	 * @return the number of prefix tree cells indexed for geometries since the indexer was initialized
+	 */
+	long getIndexedCellCount();
+
+	/**
+	 * Returns the number of geometries indexed at a coarser level than their size calls for, so that they don't
+	 * exceed the maximum number of cells per geometry.
+	 *
+	 * @return the number of coarsened geometries since the indexer was initialized
+	 */
+	long getCoarsenedGeometryCount();
+
 	void initSettings();
 
 	void begin() throws Exception;
 
+	/**
+	 * Makes the changes durable and visible to queries.
+	 */
 	void commit() throws Exception;
 
+	/**
+	 * Makes the changes visible to queries without making them durable. A later rollback() discards them.
+	 */
+	void refresh() throws Exception;
+
+	/**
+	 * Discards all changes since the last commit(), including the ones made visible by refresh().
+	 */
 	void rollback() throws Exception;
 
+	/**
+	 * Returns the number of the last index log frame whose changes are in the last commit.
+	 *
+	 * @return frame number or 0 if the index doesn't know of any
+	 */
+	long getCommittedLogSequence();
+
+	/**
+	 * Sets the number of the index log frame that the next commit() makes durable.
+	 *
+	 * @param sequence frame number
+	 */
+	void setLogSequence(long sequence);
+
 	void indexGeometry(long subject, Function<Long, String> subjectMapper, Geometry geometry);
 
+	/**
+	 * Adds a single link of a feature to a geometry entity, used when reindexing.
+	 */
+	void indexFeatureGeometry(long feature, long geometry);
+
 	void freshIndex() throws Exception;
+
+	/**
+	 * Returns whether the index was written in an older format that can't be migrated. Such an index must be
+	 * replaced by reindexing all data.
+	 */
+	boolean needsReindex();
+
+	/**
+	 * Returns whether the index was migrated from a format that indexed copies of the geometries of the features
+	 * instead of linking them. The copies are indexed as geometries of the features until all features are indexed
+	 * again from their statements and {@link #clearFeatureCopies()} is committed.
+	 */
+	boolean hasFeatureCopies();
+
+	/**
+	 * Records with the next commit that all features were indexed again and have no copies of geometries left.
+	 */
+	void clearFeatureCopies();
+
+	/**
+	 * Discards any uncommitted changes and stops writing to the index, so that its files can be replaced and opened
+	 * by another indexer. Queries that already run keep what they see until close().
+	 */
+	void closeWriter() throws IOException;
+
+	/**
+	 * Releases all resources held by the indexer. Any uncommitted changes are discarded.
+	 */
+	void close() throws IOException;
 }
@@ -0,0 +1,85 @@
+package com.ontotext.trree.geosparql;
+
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.StatementIterator;
+import gnu.trove.TLongHashSet;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Spatial join over all indexed entities for the relations that {@link GeoSparqlSpatialJoinIterator} can't
+ * partition, i.e. disjoint and directional relations, whose pairs may be far apart.
+ *
+ * The indexed geometries are streamed and each entity is joined the first time one of its geometries comes up.
+ * Its matches are found with a {@link GeoSparqlRelationIterator} for the entity as a bound subject, which looks
+ * up its geometries in the index and refines the candidates. Only the ids of the entities already joined and of
+ * the objects returned for the current one are kept, nothing is loaded from the index up front.
+ *
+ * Each matching (subject, object) pair is returned exactly once, grouped by subject.
+ */
+class GeoSparqlNestedLoopJoinIterator extends StatementIterator {
+	private final GeoSparqlPlugin parent;
+	private final GeoSparqlFunction function;
+	private final Entities entities;
+	private final Logger logger;
+
+	private final EntityGeometryIterator allGeometries;
+	// Entities already joined, an entity with several geometries comes up once for each of them
+	private final TLongHashSet joinedSubjects = new TLongHashSet();
+
+	// Matches of the current subject and the objects returned for it
+	private GeoSparqlRelationIterator subjectMatches;
+	private final TLongHashSet subjectObjects = new TLongHashSet();
+
+	GeoSparqlNestedLoopJoinIterator(GeoSparqlPlugin parent, GeoSparqlFunction function, long predicate,
+									 Entities entities) {
+		this.parent = parent;
+		this.function = function;
+		this.predicate = predicate;
+		this.entities = entities;
+		this.logger = parent.getLogger();
+		this.allGeometries = parent.indexer.getGeometriesFor(0);
+	}
+
+	@Override
+	public boolean next() {
+		while (true) {
+			if (subjectMatches != null) {
+				while (subjectMatches.next()) {
+					// A pair may match through several geometries of either entity
+					if (subjectObjects.add(subjectMatches.object)) {
+						subject = subjectMatches.subject;
+						object = subjectMatches.object;
+						return true;
+					}
+				}
+				subjectMatches.close();
+				subjectMatches = null;
+			}
+
+			if (!allGeometries.hasNextGeometry()) {
+				return false;
+			}
+			allGeometries.nextGeometry();
+			long entityId = allGeometries.getEntityForLastGeometry();
+			if (entityId != 0 && joinedSubjects.add(entityId)) {
+				subjectObjects.clear();
+				subjectMatches = new GeoSparqlRelationIterator(parent, function, entityId, predicate, 0, entities);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (subjectMatches != null) {
+			subjectMatches.close();
+			subjectMatches = null;
+		}
+		try {
+			allGeometries.close();
+		} catch (IOException e) {
+			logger.warn("Unable to close entity-geometry iterator.", e);
+		}
+	}
+}
@@ -2,20 +2,30 @@ package com.ontotext.trree.geosparql;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.ontotext.trree.geosparql.gml.GmlConverter;
+import com.ontotext.trree.geosparql.lucene.GeometryCodec;
 import com.ontotext.trree.geosparql.lucene.LuceneGeoIndexer;
+import com.ontotext.trree.geosparql.memory.MemoryGeoIndexer;
 import com.ontotext.trree.geosparql.util.GeoSparqlUtils;
 import com.ontotext.trree.sdk.*;
 import com.useekm.indexing.GeoConstants;
 import com.useekm.types.GeoConvert;
 import com.useekm.types.exception.InvalidGeometryException;
 import org.locationtech.jts.geom.Geometry;
+import gnu.trove.TLongHashSet;
 import gnu.trove.TLongObjectHashMap;
+import org.apache.lucene.spatial.query.SpatialOperation;
 import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.datatypes.XMLDatatypeUtil;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 
 import javax.xml.bind.JAXBException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * GeoSPARQL index/query plugin.
@@ -46,6 +56,22 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
 
     static final IRI RAM_BUFFER_SIZE_MB_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "ramBufferSizeMB");
 
+    static final IRI REFINEMENT_PARALLELISM_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "refinementParallelism");
+
+    static final IRI REINDEX_THREADS_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "reindexThreads");
+
+    static final IRI GROUP_COMMIT_INTERVAL_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "groupCommitInterval");
+
+    static final IRI GROUP_COMMIT_MAX_SUBJECTS_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "groupCommitMaxSubjects");
+
+    static final IRI GEOMETRY_CACHE_HITS_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "geometryCacheHits");
+
+    static final IRI GEOMETRY_CACHE_MISSES_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "geometryCacheMisses");
+
+    static final IRI INDEXED_CELLS_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "indexedCells");
+
+    static final IRI COARSENED_GEOMETRIES_PREDICATE_IRI = VALUE_FACTORY.createIRI(NS, "coarsenedGeometries");
+
     private GeoSparqlConfig config;
 
     // Custom SPARQL config predicate ids
@@ -59,15 +85,28 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
     long ignoreErrorsPredicateId;
     long maxBufferedDocsPredicateId;
     long ramBufferSizePredicateId;
+    long refinementParallelismPredicateId;
+    long reindexThreadsPredicateId;
+    long groupCommitIntervalPredicateId;
+    long groupCommitMaxSubjectsPredicateId;
+    long geometryCacheHitsPredicateId;
+    long geometryCacheMissesPredicateId;
+    long indexedCellsPredicateId;
+    long coarsenedGeometriesPredicateId;
 
 	long asWKT;
 	long asGML;
 	long hasDefaultGeometry;
 
-	GeoSparqlIndexer indexer;
+	// Replaced when a rebuilt index is swapped in, queries that started before keep using the previous one
+	volatile GeoSparqlIndexer indexer;
+	final GeometryCache geometryCache = new GeometryCache(GeometryCache.DEFAULT_MAX_BYTES);
+	final PreparedGeometryCache preparedGeometryCache = new PreparedGeometryCache(PreparedGeometryCache.DEFAULT_MAX_ENTITIES);
 	GeoSparqlConfig.PrefixTree tmpPrefixTree;
     int tmpPrecision;
 
+    private ForkJoinPool refinementPool;
+
     private TLongObjectHashMap<GeoSparqlFunction> predicateIds2Function =
 			new TLongObjectHashMap<>(GeoSparqlFunction.values().length);
 
@@ -75,6 +114,8 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
 
 	private GeoSparqlUpdateListener updateListener;
 
+	IndexWriteAheadLog writeAheadLog;
+
 	@Override
 	public String getName() {
 		return "GeoSPARQL";
@@ -85,11 +126,107 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
         GeoSparqlUtils.migrateConfig(getDataDir().toPath(), getLogger());
         config = GeoSparqlUtils.readConfig(getDataDir().toPath());
 
+        try {
+            writeAheadLog = new IndexWriteAheadLog(GeoSparqlConfig.resolveWriteAheadLogPath(getDataDir().toPath()));
+        } catch (IOException e) {
+            throw new PluginException("Cannot open GeoSPARQL index log.", e);
+        }
+
         initControlPredicates(pluginConnection.getEntities());
 
         initPluginFeatures(pluginConnection.getEntities());
 
         updateListener = new GeoSparqlUpdateListener(this, asWKT, asGML, hasDefaultGeometry);
+
+        if (indexer != null && indexer.needsReindex()) {
+            // Also empties the log, the rebuilt index has all statements
+            getLogger().info(">>>>>>>> GeoSPARQL: Index format is outdated, reindexing...");
+            indexAllData(true, pluginConnection);
+        }
+
+        if (indexer != null && indexer.hasFeatureCopies()) {
+            try {
+                updateListener.replaceFeatureCopies(pluginConnection);
+            } catch (Exception e) {
+                throw new PluginException("Unable to link GeoSPARQL features to their geometries.", e);
+            }
+        }
+
+        replayWriteAheadLog(pluginConnection);
+    }
+
+    /**
+     * Indexes again the subjects of the transactions whose changes weren't durable in the index when the plugin
+     * stopped. The subjects are indexed as found in the statements, which also undoes the index changes of a
+     * transaction that didn't make it to the repository.
+     */
+    private void replayWriteAheadLog(PluginConnection pluginConnection) {
+        if (indexer == null) {
+            // A disabled plugin reindexes everything when enabled
+            clearWriteAheadLog();
+            return;
+        }
+
+        try {
+            writeAheadLog.setCommittedSequence(indexer.getCommittedLogSequence());
+            if (writeAheadLog.isEmpty()) {
+                return;
+            }
+            TLongHashSet geometries = new TLongHashSet();
+            TLongHashSet features = new TLongHashSet();
+            writeAheadLog.read(geometries, features);
+            getLogger().info(">>>>>>>> GeoSPARQL: Replaying index log of {} subjects...", geometries.size() + features.size());
+            indexer.begin();
+            updateListener.updateIndex(geometries, features, pluginConnection);
+            indexer.setLogSequence(writeAheadLog.getLastSequence());
+            indexer.commit();
+            writeAheadLog.committed(writeAheadLog.getLastSequence());
+        } catch (Exception e) {
+            throw new PluginException("Unable to replay GeoSPARQL index log.", e);
+        }
+    }
+
+    private void clearWriteAheadLog() {
+        try {
+            writeAheadLog.clear();
+        } catch (IOException e) {
+            throw new PluginException("Unable to clear GeoSPARQL index log.", e);
+        }
+    }
+
+    @Override
+    public void shutdown(ShutdownReason reason) {
+        shutdownRefinementPool();
+        if (updateListener != null) {
+            updateListener.close();
+        }
+        if (indexer != null && !writeAheadLog.isEmpty()) {
+            // Make the changes kept back by group commit durable
+            try {
+                indexer.commit();
+                // Frames discarded by a rollback stay pending and are replayed on startup
+                writeAheadLog.committed(indexer.getCommittedLogSequence());
+            } catch (Exception e) {
+                getLogger().warn("Unable to commit GeoSPARQL index, it will be updated from the log on startup.", e);
+            }
+        }
+        closeIndexer();
+        try {
+            writeAheadLog.close();
+        } catch (IOException e) {
+            getLogger().warn("Unable to close GeoSPARQL index log.", e);
+        }
+    }
+
+    private void closeIndexer() {
+        if (indexer != null) {
+            try {
+                indexer.close();
+            } catch (IOException e) {
+                getLogger().warn("Unable to close GeoSPARQL indexer.", e);
+            }
+            indexer = null;
+        }
     }
 
     @Override
@@ -97,11 +234,15 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
                            RequestContext requestContext) {
 		if ((subject != 0 || object != 0) && predicateIds2Function.contains(predicate)) {
             // GeoSPARQL query
-            return 0.1;
-        } else if (subject == contextId || predicate == enabledPredicateId || predicate == prefixTreePredicateId
-                        || predicate == precisionPredicateId || predicate == currentPrefixTreePredicateId
-                        || predicate == currentPrecisionPredicateId || predicate == maxBufferedDocsPredicateId
-                        || predicate == ramBufferSizePredicateId) {
+            if (subject != 0 && object != 0 || !config.isEnabled() || indexer == null) {
+                return 0.1;
+            }
+            return estimateRelation(predicateIds2Function.get(predicate), subject, object,
+                    pluginConnection.getEntities());
+        } else if (predicateIds2Function.contains(predicate) && config.isEnabled() && indexer != null) {
+            // GeoSPARQL spatial join, both subject and object are unbound
+            return estimateJoin(predicateIds2Function.get(predicate));
+        } else if (subject == contextId || isStatusPredicate(predicate)) {
             // status query
             return 0.1;
         } else {
@@ -109,15 +250,48 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
 		}
 	}
 
+	/**
+	 * Estimates the cost of a spatial join. Each entity is looked up in the index once. The disjoint and the
+	 * directional relations hold for most pairs, their lookups return most of the index.
+	 */
+	private double estimateJoin(GeoSparqlFunction function) {
+		double count = Math.max(1, indexer.getGeometryCount());
+		if (function.getSpatialOperation() == SpatialOperation.IsDisjointTo || !function.isTopological()) {
+			return count * count;
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates the matches of a relation with one bound argument from the statistics of the index. Each geometry
+	 * of the bound argument is searched for separately, the estimates add up.
+	 */
+	private double estimateRelation(GeoSparqlFunction function, long subject, long object, Entities entities) {
+		// The same operations the relation iterator searches with
+		SpatialOperation operation = subject != 0 ?
+				function.getInverseSpatialOperation() :
+				function.getSpatialOperation();
+		double estimate = 0;
+		try (EntityGeometryIterator known = getGeometriesForEntity(subject != 0 ? subject : object, entities)) {
+			while (known.hasNextGeometry()) {
+				Geometry geometry = known.nextGeometry();
+				if (geometry != null) {
+					estimate += indexer.estimateMatchingObjects(geometry, operation);
+				}
+			}
+		} catch (IOException e) {
+			getLogger().warn("Unable to close entity-geometry iterator.", e);
+		}
+		// Cheap either way if next to nothing matches
+		return Math.max(0.1, estimate);
+	}
+
 	@Override
 	public StatementIterator interpret(long subject, long predicate, long object, long context,
                                        PluginConnection pluginConnection, RequestContext requestContext) {
         if (subject == contextId) {
             return new GeoSparqlConfigIterator(this, predicate, object, pluginConnection.getEntities());
-        } else if (predicate == enabledPredicateId || predicate == prefixTreePredicateId
-                || predicate == precisionPredicateId || predicate == currentPrefixTreePredicateId
-                || predicate == currentPrecisionPredicateId || predicate == maxBufferedDocsPredicateId
-                || predicate == ramBufferSizePredicateId) {
+        } else if (isStatusPredicate(predicate)) {
             return new GeoSparqlConfigIterator(this, predicate, pluginConnection.getEntities());
         }
 
@@ -127,7 +301,8 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
 
         if (predicateIds2Function.contains(predicate)) {
             if (subject == 0 && object == 0) {
-                return StatementIterator.EMPTY;
+                return GeoSparqlSpatialJoinIterator.create(this, predicateIds2Function.get(predicate), predicate,
+                        pluginConnection.getEntities());
             }
 
             return new GeoSparqlRelationIterator(this, predicateIds2Function.get(predicate), subject, predicate,
@@ -137,10 +312,23 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
 		return null;
 	}
 
+    private boolean isStatusPredicate(long predicate) {
+        return predicate == enabledPredicateId || predicate == prefixTreePredicateId
+                || predicate == precisionPredicateId || predicate == currentPrefixTreePredicateId
+                || predicate == currentPrecisionPredicateId || predicate == maxBufferedDocsPredicateId
+                || predicate == ramBufferSizePredicateId || predicate == refinementParallelismPredicateId
+                || predicate == reindexThreadsPredicateId || predicate == groupCommitIntervalPredicateId
+                || predicate == groupCommitMaxSubjectsPredicateId
+                || predicate == geometryCacheHitsPredicateId || predicate == geometryCacheMissesPredicateId
+                || predicate == indexedCellsPredicateId || predicate == coarsenedGeometriesPredicateId;
+    }
+
     @Override
     public long[] getPredicatesToListenFor() {
         return new long[]{ forceReindexPredicateId, enabledPredicateId, prefixTreePredicateId,
-                precisionPredicateId, ignoreErrorsPredicateId, maxBufferedDocsPredicateId, ramBufferSizePredicateId };
+                precisionPredicateId, ignoreErrorsPredicateId, maxBufferedDocsPredicateId, ramBufferSizePredicateId,
+                refinementParallelismPredicateId, reindexThreadsPredicateId, groupCommitIntervalPredicateId,
+                groupCommitMaxSubjectsPredicateId };
     }
 
     @Override
@@ -171,7 +359,7 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
                 tmpPrefixTree = GeoSparqlConfig.PrefixTree.valueOf(prefixTreeString.toUpperCase());
             } catch (IllegalArgumentException e) {
                 throw new PluginException(
-                        String.format("Unknown prefix tree: %s. The supported types are 'quad' and 'geohash'.",
+                        String.format("Unknown prefix tree: %s. The supported types are 'quad', 'geohash', 'shape' and 'memory'.",
                                 prefixTreeString));
             }
         } else if (predicate == precisionPredicateId) {
@@ -204,6 +392,43 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
             } catch (NumberFormatException e) {
                 throw new PluginException("Ram buffer size must be a double number.");
             }
+        } else if (predicate == refinementParallelismPredicateId) {
+            String refinementParallelismString = pluginConnection.getEntities().get(object).stringValue();
+            try {
+                int refinementParallelism = Integer.parseInt(refinementParallelismString);
+                config.setRefinementParallelism(refinementParallelism);
+                GeoSparqlUtils.saveConfig(config, getDataDir().toPath());
+                shutdownRefinementPool();
+            } catch (NumberFormatException e) {
+                throw new PluginException("Refinement parallelism must be an integer number.");
+            }
+        } else if (predicate == reindexThreadsPredicateId) {
+            String reindexThreadsString = pluginConnection.getEntities().get(object).stringValue();
+            try {
+                int reindexThreads = Integer.parseInt(reindexThreadsString);
+                config.setReindexThreads(reindexThreads);
+                GeoSparqlUtils.saveConfig(config, getDataDir().toPath());
+            } catch (NumberFormatException e) {
+                throw new PluginException("Reindex threads must be an integer number.");
+            }
+        } else if (predicate == groupCommitIntervalPredicateId) {
+            String groupCommitIntervalString = pluginConnection.getEntities().get(object).stringValue();
+            try {
+                int groupCommitInterval = Integer.parseInt(groupCommitIntervalString);
+                config.setGroupCommitInterval(groupCommitInterval);
+                GeoSparqlUtils.saveConfig(config, getDataDir().toPath());
+            } catch (NumberFormatException e) {
+                throw new PluginException("Group commit interval must be an integer number.");
+            }
+        } else if (predicate == groupCommitMaxSubjectsPredicateId) {
+            String groupCommitMaxSubjectsString = pluginConnection.getEntities().get(object).stringValue();
+            try {
+                int groupCommitMaxSubjects = Integer.parseInt(groupCommitMaxSubjectsString);
+                config.setGroupCommitMaxSubjects(groupCommitMaxSubjects);
+                GeoSparqlUtils.saveConfig(config, getDataDir().toPath());
+            } catch (NumberFormatException e) {
+                throw new PluginException("Group commit maximum subjects must be an integer number.");
+            }
         }
 
         return true;
@@ -213,13 +438,75 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
         return config;
     }
 
+    /**
+     * Returns the pool used to evaluate GeoSPARQL functions on batches of candidates in parallel.
+     *
+     * @return a fork-join pool or null if refinement is configured to run on the query thread
+     */
+    synchronized ForkJoinPool getRefinementPool() {
+        if (config.getRefinementParallelism() <= 1) {
+            return null;
+        }
+        if (refinementPool == null) {
+            refinementPool = new ForkJoinPool(config.getRefinementParallelism());
+        }
+        return refinementPool;
+    }
+
+    private synchronized void shutdownRefinementPool() {
+        if (refinementPool != null) {
+            // Iterators that already hold the pool finish their current batch
+            refinementPool.shutdown();
+            refinementPool = null;
+        }
+    }
+
     @VisibleForTesting
     public void setConfig(GeoSparqlConfig config) {
         this.config = config;
     }
 
+    /**
+     * Makes an EntityGeometryIterator from a GraphDB entity id.
+     * The id may refer to either a Geometry literal (WKT/GML) or an IRI that describes
+     * a Geometry or Feature object.
+     *
+     * @param entityId an entity id
+     * @return an EntityGeometryIterator
+     */
+    EntityGeometryIterator getGeometriesForEntity(long entityId, Entities entities) {
+        EntityGeometryIterator iterator;
+        Value value = entities.get(entityId);
+        if (value instanceof Literal) {
+            // the id refers to a literal, we need to parse the geometry
+            IRI subjType = ((Literal)value).getDatatype();
+            Geometry g;
+            if (GeoConstants.GEO_GML_LITERAL.equals(subjType)) {
+                // gml
+                g = getGeometryFromLiteralId(entityId, asGML, entities);
+            } else {
+                // wkt
+                g = getGeometryFromLiteralId(entityId, asWKT, entities);
+            }
+            iterator = new SingleEntityGeometryIterator(entityId, g);
+        } else {
+            // the id refers to an IRI referring to a geometry/feature
+            iterator = indexer.getGeometriesFor(entityId);
+        }
+
+        return iterator;
+    }
+
     Geometry getGeometryFromLiteralId(long id, long geometryTypeId, Entities entities) {
-        return getGeometryFromString(entities.get(id).stringValue(), geometryTypeId);
+        String literalValue = entities.get(id).stringValue();
+        Geometry geometry = geometryCache.get(id, geometryTypeId, literalValue);
+        if (geometry == null) {
+            geometry = getGeometryFromString(literalValue, geometryTypeId);
+            if (geometry != null) {
+                geometryCache.put(id, geometryTypeId, literalValue, geometry);
+            }
+        }
+        return geometry;
     }
 
     Geometry getGeometryFromString(String literalValue, long geometryTypeId) {
@@ -270,6 +557,14 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
         ignoreErrorsPredicateId = entities.put(IGNORE_ERRORS_PREDICATE_IRI, Entities.Scope.SYSTEM);
         maxBufferedDocsPredicateId = entities.put(MAX_BUFFERED_DOCS_PREDICATE_IRI, Entities.Scope.SYSTEM);
         ramBufferSizePredicateId = entities.put(RAM_BUFFER_SIZE_MB_PREDICATE_IRI, Entities.Scope.SYSTEM);
+        refinementParallelismPredicateId = entities.put(REFINEMENT_PARALLELISM_PREDICATE_IRI, Entities.Scope.SYSTEM);
+        reindexThreadsPredicateId = entities.put(REINDEX_THREADS_PREDICATE_IRI, Entities.Scope.SYSTEM);
+        groupCommitIntervalPredicateId = entities.put(GROUP_COMMIT_INTERVAL_PREDICATE_IRI, Entities.Scope.SYSTEM);
+        groupCommitMaxSubjectsPredicateId = entities.put(GROUP_COMMIT_MAX_SUBJECTS_PREDICATE_IRI, Entities.Scope.SYSTEM);
+        geometryCacheHitsPredicateId = entities.put(GEOMETRY_CACHE_HITS_PREDICATE_IRI, Entities.Scope.SYSTEM);
+        geometryCacheMissesPredicateId = entities.put(GEOMETRY_CACHE_MISSES_PREDICATE_IRI, Entities.Scope.SYSTEM);
+        indexedCellsPredicateId = entities.put(INDEXED_CELLS_PREDICATE_IRI, Entities.Scope.SYSTEM);
+        coarsenedGeometriesPredicateId = entities.put(COARSENED_GEOMETRIES_PREDICATE_IRI, Entities.Scope.SYSTEM);
     }
 
     /**
@@ -284,36 +579,141 @@ public class GeoSparqlPlugin extends PluginBase implements PatternInterpreter, U
     private void initializeGeoIndexer() {
         if (config.isEnabled() && indexer == null) {
             try {
-                getLogger().info(">>>>>>>> GeoSPARQL: Initializing Lucene indexer...");
-                indexer = new LuceneGeoIndexer(this);
-                indexer.initialize();
-                getLogger().info(">>>>>>>> GeoSPARQL: Lucene indexer initialized!");
+                recoverReindex();
+                getLogger().info(">>>>>>>> GeoSPARQL: Initializing indexer...");
+                GeoSparqlIndexer newIndexer = createIndexer(null, config.getCurrentPrefixTree(), config.getCurrentPrecision());
+                newIndexer.initialize();
+                indexer = newIndexer;
+                getLogger().info(">>>>>>>> GeoSPARQL: Indexer initialized!");
             } catch (Exception e) {
                 throw new PluginException("Cannot initialize GeoSPARQL indexer!");
             }
         }
     }
 
+    /**
+     * Creates an indexer.
+     *
+     * @param indexDir   directory of the index, null for the index used by queries
+     * @param prefixTree prefix tree of the index, or the kind of index if it has none
+     * @param precision  precision of the index
+     */
+    GeoSparqlIndexer createIndexer(Path indexDir, GeoSparqlConfig.PrefixTree prefixTree, int precision) {
+        if (prefixTree == GeoSparqlConfig.PrefixTree.MEMORY) {
+            return new MemoryGeoIndexer(this, indexDir);
+        }
+        return new LuceneGeoIndexer(this, GeometryCodec.DEFAULT, indexDir, prefixTree, precision);
+    }
+
+    /**
+     * Finishes a reindex that was interrupted after the rebuilt index was complete but before it replaced the
+     * index used by queries. An incomplete rebuilt index is kept for the next forced reindex to continue.
+     */
+    private void recoverReindex() throws IOException {
+        Path dataDir = getDataDir().toPath();
+        Path checkpointPath = GeoSparqlConfig.resolveReindexCheckpointPath(dataDir);
+        ReindexCheckpoint checkpoint = ReindexCheckpoint.load(checkpointPath);
+        if (checkpoint != null && checkpoint.isComplete()) {
+            getLogger().info(">>>>>>>> GeoSPARQL: Completing interrupted index swap...");
+            GeoSparqlUtils.swapRebuiltIndex(dataDir);
+            config.setCurrentSettings(checkpoint.getPrefixTree(), checkpoint.getPrecision());
+            GeoSparqlUtils.saveConfig(config, dataDir);
+            ReindexCheckpoint.delete(checkpointPath);
+        } else if (checkpoint != null) {
+            getLogger().info(">>>>>>>> GeoSPARQL: Found interrupted reindex, it will continue on the next forced reindex.");
+        }
+        GeoSparqlUtils.deleteDirectory(GeoSparqlConfig.resolveOldIndexPath(dataDir));
+    }
+
+    /**
+     * Rebuilds the index with the configured prefix tree and precision in a separate directory while queries keep
+     * using the current index, then replaces the current index with the rebuilt one. The rebuild is committed in
+     * chunks and continues from its checkpoint if it was interrupted before. The current prefix tree and precision
+     * change only once the rebuilt index is in place.
+     */
     private void indexAllData(boolean forced, PluginConnection pluginConnection) {
-        config.updateCurrentSettings();
-        indexer.initSettings();
+        GeoSparqlConfig.PrefixTree prefixTree = config.getPrefixTree();
+        int precision = config.getPrecision();
+        Path dataDir = getDataDir().toPath();
+        Path rebuildPath = GeoSparqlConfig.resolveRebuildIndexPath(dataDir);
+        Path checkpointPath = GeoSparqlConfig.resolveReindexCheckpointPath(dataDir);
         try {
             if (forced) {
                 getLogger().info(">>>>>>>> GeoSPARQL: Initializing force reindexing process...");
-                new GeoSparqlForceReindexer(indexer, this).reindex(pluginConnection);
             } else {
                 getLogger().info(">>>>>>>> GeoSPARQL: Initializing indexing process...");
-                indexer.begin();
-                new GeoSparqlForceReindexer(indexer, this).reindex(pluginConnection);
-                indexer.commit();
             }
-            GeoSparqlUtils.saveConfig(config, getDataDir().toPath());
+
+            ReindexCheckpoint checkpoint = ReindexCheckpoint.load(checkpointPath);
+            if (checkpoint == null || checkpoint.isComplete() || !checkpoint.matches(prefixTree, precision)
+                    || !Files.exists(rebuildPath)) {
+                // Nothing to continue, start over
+                GeoSparqlUtils.deleteDirectory(rebuildPath);
+                checkpoint = new ReindexCheckpoint(prefixTree, precision);
+            }
+
+            GeoSparqlIndexer rebuildIndexer = createIndexer(rebuildPath, prefixTree, precision);
+            try {
+                rebuildIndexer.initialize();
+                if (rebuildIndexer.needsReindex()) {
+                    // Left over by a reindex with an older index format
+                    rebuildIndexer.close();
+                    GeoSparqlUtils.deleteDirectory(rebuildPath);
+                    checkpoint = new ReindexCheckpoint(prefixTree, precision);
+                    rebuildIndexer = createIndexer(rebuildPath, prefixTree, precision);
+                    rebuildIndexer.initialize();
+                }
+                checkpoint.resolvePending(rebuildIndexer.getGeometryCount());
+                new GeoSparqlForceReindexer(rebuildIndexer, this, checkpoint, checkpointPath).reindex(pluginConnection);
+            } finally {
+                rebuildIndexer.close();
+            }
+
+            swapIndexer(prefixTree, precision);
+            ReindexCheckpoint.delete(checkpointPath);
             getLogger().info(">>>>>>>> GeoSPARQL: Indexing completed!");
         } catch (Exception e) {
             throw new PluginException("Unable to index GeoSPARQL geometries.", e);
         }
     }
 
+    /**
+     * Moves the rebuilt index in place of the current one and switches queries over to it. Queries that already
+     * started finish on the previous index, its files stay readable until it is closed.
+     */
+    private void swapIndexer(GeoSparqlConfig.PrefixTree prefixTree, int precision) throws Exception {
+        Path dataDir = getDataDir().toPath();
+        GeoSparqlIndexer oldIndexer = indexer;
+        if (oldIndexer != null) {
+            // The writer holds the lock of the index directory the rebuilt index moves to. The rebuilt index has
+            // everything, so the changes of the transaction so far are discarded.
+            oldIndexer.closeWriter();
+        }
+        GeoSparqlUtils.swapRebuiltIndex(dataDir);
+
+        GeoSparqlIndexer newIndexer = createIndexer(null, prefixTree, precision);
+        newIndexer.initialize();
+        // The rest of the transaction is indexed with the new index
+        newIndexer.begin();
+
+        indexer = newIndexer;
+        preparedGeometryCache.clear();
+        if (oldIndexer != null) {
+            try {
+                oldIndexer.close();
+            } catch (IOException e) {
+                getLogger().warn("Unable to close GeoSPARQL indexer.", e);
+            }
+        }
+        GeoSparqlUtils.deleteDirectory(GeoSparqlConfig.resolveOldIndexPath(dataDir));
+
+        config.setCurrentSettings(prefixTree, precision);
+        GeoSparqlUtils.saveConfig(config, dataDir);
+
+        // The rebuilt index has everything the log was keeping
+        clearWriteAheadLog();
+    }
+
     @Override
     public boolean statementAdded(long subject, long predicate, long object, long context, boolean explicit, PluginConnection pluginConnection) {
         return updateListener.statementAdded(subject, predicate, object, context, explicit, pluginConnection);
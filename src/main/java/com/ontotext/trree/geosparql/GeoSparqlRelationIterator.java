@@ -1,40 +1,69 @@
 package com.ontotext.trree.geosparql;
 
-import com.ontotext.trree.geosparql.lucene.LuceneMultiSearchEntityGeometryIterator;
 import com.ontotext.trree.sdk.Entities;
 import com.ontotext.trree.sdk.StatementIterator;
-import com.useekm.indexing.GeoConstants;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
-import org.eclipse.rdf4j.model.IRI;
-import org.eclipse.rdf4j.model.Literal;
-import org.eclipse.rdf4j.model.Value;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.slf4j.Logger;
 
+import gnu.trove.TLongArrayList;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.IntStream;
 
 /**
  * The work horse of the implementation. It will use the indexer to get rough results
  * and then invoke the respective GeoSPARQL function to narrow down the exact matches.
  */
 class GeoSparqlRelationIterator extends StatementIterator {
+	// Number of candidates evaluated together when refinement runs in parallel
+	private final static int REFINEMENT_BATCH_SIZE = 256;
+	// Known geometries with fewer points are cheaper to relate to than to classify candidates against
+	private final static int CLASSIFY_MIN_POINTS = 256;
+	// Number of known geometries looked up in Lucene with a single query
+	private final static int SEARCH_BATCH_SIZE = 64;
+
 	private final GeoSparqlPlugin parent;
 	private final Logger logger;
 	private final GeoSparqlFunction function;
 	private final Entities entities;
 
 	private Geometry knownGeometry;
+	private long knownEntity;
+	private PreparedGeometry preparedKnownGeometry;
+	// Decides candidates in the interior or the exterior of a large areal known geometry without relating them
+	private CellClassifier knownClassifier;
+	// Envelope of a rectangular known geometry, candidates such as points are located against it by their envelope
+	private Envelope knownRectangle;
 	private EntityGeometryIterator iKnownEntities;
 	private EntityGeometryIterator iCandidateEntities;
 
 	private EntityGeometryIterator iSubjectGeometries;
 	private EntityGeometryIterator iObjectGeometries;
 
-	private LuceneMultiSearchEntityGeometryIterator searchIterator;
-
-	private boolean trustLucene;
+	private MultiSearchEntityGeometryIterator searchIterator;
 
 	private boolean inverse;
 
+	// Known geometries fetched ahead and looked up together, when the search iterator can batch them
+	private final List<Geometry> searchBatch;
+	private final TLongArrayList searchBatchEntities;
+	private int searchBatchIdx;
+
+	// Candidates fetched for the current known geometry when refinement runs in parallel
+	private final Geometry[] batchGeometries;
+	private final long[] batchEntities;
+	private final boolean[] batchMatches;
+	// Indexes of the candidates in the batch that must be related to the known geometry
+	private final int[] batchRefined;
+	private int batchSize;
+	private int batchIdx;
+
 	GeoSparqlRelationIterator(GeoSparqlPlugin parent, GeoSparqlFunction function,
 	                                 long subject, long predicate, long object, Entities entities) {
 		this.parent = parent;
@@ -47,12 +76,12 @@ class GeoSparqlRelationIterator extends StatementIterator {
 
 		if (subject != 0) {
 			// Subject is bound and refers to a Geometry literal or a Geometry/Feature object
-			iSubjectGeometries = makeIteratorFromEntityId(subject);
+			iSubjectGeometries = parent.getGeometriesForEntity(subject, entities);
 		}
 
 		if (object != 0) {
 			// Object is bound and refers to a Geometry literal or a Geometry/Feature object
-			iObjectGeometries = makeIteratorFromEntityId(object);
+			iObjectGeometries = parent.getGeometriesForEntity(object, entities);
 		}
 
 		if (iSubjectGeometries != null && iObjectGeometries != null) {
@@ -64,18 +93,43 @@ class GeoSparqlRelationIterator extends StatementIterator {
 		} else if (iSubjectGeometries == null) {
 			// Subject is unknown and candidates will be provided by searching in Lucene with the object
 			iKnownEntities = iObjectGeometries;
-			iCandidateEntities = searchIterator = new LuceneMultiSearchEntityGeometryIterator(parent.indexer,
+			iCandidateEntities = searchIterator = new MultiSearchEntityGeometryIterator(parent.indexer,
 					function.getSpatialOperation());
 
 			inverse = true;
 		} else {
 			// Object is unknown and candidates will be provided by searching in Lucene with the subject
 			iKnownEntities = iSubjectGeometries;
-			iCandidateEntities = searchIterator = new LuceneMultiSearchEntityGeometryIterator(parent.indexer,
+			iCandidateEntities = searchIterator = new MultiSearchEntityGeometryIterator(parent.indexer,
 					function.getInverseSpatialOperation());
 
 			inverse = false;
 		}
+
+		if (searchIterator != null && function.isTopological()) {
+			// Candidates the location decides aren't decoded, the proxies are located and decided the same
+			searchIterator.setProxyFilter(envelope -> locate(envelope) != CellClassifier.Location.BOUNDARY);
+		}
+
+		if (searchIterator != null && searchIterator.canBatch()) {
+			searchBatch = new ArrayList<>(SEARCH_BATCH_SIZE);
+			searchBatchEntities = new TLongArrayList(SEARCH_BATCH_SIZE);
+		} else {
+			searchBatch = null;
+			searchBatchEntities = null;
+		}
+
+		if (parent.getRefinementPool() != null) {
+			batchGeometries = new Geometry[REFINEMENT_BATCH_SIZE];
+			batchEntities = new long[REFINEMENT_BATCH_SIZE];
+			batchMatches = new boolean[REFINEMENT_BATCH_SIZE];
+			batchRefined = new int[REFINEMENT_BATCH_SIZE];
+		} else {
+			batchGeometries = null;
+			batchEntities = null;
+			batchMatches = null;
+			batchRefined = null;
+		}
 	}
 
 	@Override
@@ -83,25 +137,49 @@ class GeoSparqlRelationIterator extends StatementIterator {
 		boolean result = false;
 
 		while (true) {
+			if (batchIdx < batchSize) {
+				// Stream the already refined batch, keeping the order in which the candidates were returned
+				int idx = batchIdx++;
+				if (batchMatches[idx]) {
+					emitMatch(batchGeometries[idx], batchEntities[idx]);
+					result = true;
+					break;
+				}
+				continue;
+			}
+
 			if (knownGeometry == null || !iCandidateEntities.hasNextGeometry()) {
-				if (!iKnownEntities.hasNextGeometry()) {
+				if (!hasNextKnownGeometry()) {
 					// no more known entities, GeoSPARQLRelationIterator ends
 					break;
 				}
 
 				// Fresh known Geometry. It will be reused until a match is found or no more candidate Geometries left
-				knownGeometry = iKnownEntities.nextGeometry();
+				nextKnownGeometry();
+				// The known geometry is tested against all candidates, prepare it once for all of them
+				preparedKnownGeometry = knownGeometry != null ?
+						parent.preparedGeometryCache.prepare(knownEntity, knownGeometry) :
+						null;
+				knownClassifier = knownGeometry != null && function.isTopological()
+						&& knownGeometry.getNumPoints() >= CLASSIFY_MIN_POINTS && CellClassifier.canClassify(knownGeometry) ?
+						new CellClassifier(preparedKnownGeometry) :
+						null;
+				knownRectangle = knownClassifier == null && knownGeometry != null && function.isTopological()
+						&& knownGeometry.isRectangle() ?
+						knownGeometry.getEnvelopeInternal() :
+						null;
 
-				if (searchIterator != null) {
-					// If we have a search iterator (either subject or object is unbound) we have to notify it
-					// about the new known geometry
-					searchIterator.search(knownGeometry);
+				if (logger.isDebugEnabled()) {
+					logger.debug("KNOWN GEOMETRY: {}; {}", entities.get(knownEntity), knownGeometry);
 				}
+			}
 
-				if (logger.isDebugEnabled()) {
-					logger.debug("KNOWN GEOMETRY: {}; {}", entities.get(iKnownEntities.getEntityForLastGeometry()),
-							knownGeometry);
+			if (batchGeometries != null) {
+				if (!refineBatch()) {
+					logger.debug(">>>>>>>> GeoSPARQL: No available candidate geometries matching the query!");
+					break;
 				}
+				continue;
 			}
 
 			Geometry candidateGeometry = iCandidateEntities.nextGeometry();
@@ -112,36 +190,184 @@ class GeoSparqlRelationIterator extends StatementIterator {
 							candidateGeometry);
 				}
 
-				result = trustLucene || (inverse ?
-						function.evaluate(candidateGeometry, knownGeometry) :
-						function.evaluate(knownGeometry, candidateGeometry));
+				result = evaluate(candidateGeometry);
 			} else {
 				logger.debug(">>>>>>>> GeoSPARQL: No available candidate geometries matching the query!");
 				break;
 			}
 
 			if (result) {
-				// NB: Skips the remaining geometries for this lastEntity as we already found a match
-				iKnownEntities.advanceToNextEntity();
+				emitMatch(candidateGeometry, iCandidateEntities.getEntityForLastGeometry());
 
-				if (logger.isDebugEnabled()) {
-					logger.debug("MATCH: {} -> {}", knownGeometry, candidateGeometry);
-				}
+				// found a pair of subject/object that satisfies the condition
+				break;
+			}
+		}
+
+		return result;
+	}
 
-				if (inverse) {
-					subject = iCandidateEntities.getEntityForLastGeometry();
-					object = iKnownEntities.getEntityForLastGeometry();
-				} else {
-					subject = iKnownEntities.getEntityForLastGeometry();
-					object = iCandidateEntities.getEntityForLastGeometry();
+	private boolean hasNextKnownGeometry() {
+		return searchBatch != null && searchBatchIdx < searchBatch.size() || iKnownEntities.hasNextGeometry();
+	}
+
+	/**
+	 * Moves to the next known geometry and, if we have a search iterator (either subject or object is unbound),
+	 * notifies it about the new known geometry.
+	 */
+	private void nextKnownGeometry() {
+		if (searchBatch == null) {
+			knownGeometry = iKnownEntities.nextGeometry();
+			knownEntity = iKnownEntities.getEntityForLastGeometry();
+			if (searchIterator != null) {
+				searchIterator.search(knownGeometry);
+			}
+			return;
+		}
+
+		if (searchBatchIdx == searchBatch.size()) {
+			searchBatch.clear();
+			searchBatchEntities.clear();
+			searchBatchIdx = 0;
+			while (searchBatch.size() < SEARCH_BATCH_SIZE && iKnownEntities.hasNextGeometry()) {
+				Geometry geometry = iKnownEntities.nextGeometry();
+				if (geometry == null) {
+					break;
 				}
+				searchBatch.add(geometry);
+				searchBatchEntities.add(iKnownEntities.getEntityForLastGeometry());
+			}
+			if (searchBatch.isEmpty()) {
+				knownGeometry = null;
+				return;
+			}
+			if (searchBatch.size() > 1) {
+				// One query for the whole batch, the hits are given to each known geometry by its envelope
+				searchIterator.searchBatch(searchBatch);
+			}
+		}
 
-				// found a pair of subject/object that satisfies the condition
+		knownGeometry = searchBatch.get(searchBatchIdx);
+		knownEntity = searchBatchEntities.get(searchBatchIdx);
+		searchBatchIdx++;
+		if (searchBatch.size() > 1) {
+			searchIterator.select(knownGeometry);
+		} else {
+			searchIterator.search(knownGeometry);
+		}
+	}
+
+	private void emitMatch(Geometry candidateGeometry, long candidateEntity) {
+		// NB: Skips the remaining geometries for this lastEntity as we already found a match. The known geometries of
+		// a batch were fetched ahead and each of them is still searched, candidates may match only a later one.
+		if (searchBatch == null) {
+			iKnownEntities.advanceToNextEntity();
+		}
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("MATCH: {} -> {}", knownGeometry, candidateGeometry);
+		}
+
+		if (inverse) {
+			subject = candidateEntity;
+			object = knownEntity;
+		} else {
+			subject = knownEntity;
+			object = candidateEntity;
+		}
+	}
+
+	/**
+	 * Fetches the next batch of candidates for the current known geometry and evaluates the function on all of them
+	 * in the refinement pool. Falls back to the calling thread if the pool was replaced by a settings change.
+	 *
+	 * @return false if no candidates were available
+	 */
+	private boolean refineBatch() {
+		batchSize = 0;
+		batchIdx = 0;
+		while (batchSize < REFINEMENT_BATCH_SIZE && iCandidateEntities.hasNextGeometry()) {
+			Geometry candidateGeometry = iCandidateEntities.nextGeometry();
+			if (candidateGeometry == null) {
 				break;
 			}
+			batchGeometries[batchSize] = candidateGeometry;
+			batchEntities[batchSize] = iCandidateEntities.getEntityForLastGeometry();
+			batchSize++;
+		}
+		if (batchSize == 0) {
+			return false;
 		}
 
-		return result;
+		// Candidates classified by location are decided here, the classifier isn't shared between threads
+		int refinedCount = 0;
+		for (int i = 0; i < batchSize; i++) {
+			CellClassifier.Location location = locate(batchGeometries[i]);
+			if (location == CellClassifier.Location.BOUNDARY) {
+				batchRefined[refinedCount++] = i;
+			} else {
+				batchMatches[i] = CellClassifier.evaluate(function, location, batchGeometries[i], inverse);
+			}
+		}
+		final int refined = refinedCount;
+
+		// Initializes the lazily computed envelope before the known geometry is shared between threads
+		knownGeometry.getEnvelopeInternal();
+
+		ForkJoinPool pool = parent.getRefinementPool();
+		if (pool != null && refined > 1) {
+			try {
+				pool.submit(() -> IntStream.range(0, refined).parallel()
+						.forEach(i -> refineCandidate(batchRefined[i]))).join();
+				return true;
+			} catch (RejectedExecutionException e) {
+				// the pool was shut down, evaluate this batch here
+			}
+		}
+		for (int i = 0; i < refined; i++) {
+			refineCandidate(batchRefined[i]);
+		}
+		return true;
+	}
+
+	private void refineCandidate(int idx) {
+		batchMatches[idx] = relate(batchGeometries[idx]);
+	}
+
+	/**
+	 * Evaluates the function on a candidate and the known geometry, relating them only if the location of the
+	 * candidate doesn't decide it.
+	 */
+	private boolean evaluate(Geometry candidateGeometry) {
+		CellClassifier.Location location = locate(candidateGeometry);
+		return location == CellClassifier.Location.BOUNDARY ?
+				relate(candidateGeometry) :
+				CellClassifier.evaluate(function, location, candidateGeometry, inverse);
+	}
+
+	private CellClassifier.Location locate(Geometry candidateGeometry) {
+		return GeometryKind.of(candidateGeometry) != null ?
+				locate(candidateGeometry.getEnvelopeInternal()) :
+				CellClassifier.Location.BOUNDARY;
+	}
+
+	/**
+	 * Locates a candidate of any {@link GeometryKind} within the envelope.
+	 */
+	private CellClassifier.Location locate(Envelope envelope) {
+		if (knownClassifier != null) {
+			return knownClassifier.locate(envelope);
+		}
+		if (knownRectangle != null) {
+			return CellClassifier.locateInRectangle(knownRectangle, envelope);
+		}
+		return CellClassifier.Location.BOUNDARY;
+	}
+
+	private boolean relate(Geometry candidateGeometry) {
+		return inverse ?
+				function.evaluate(candidateGeometry, preparedKnownGeometry) :
+				function.evaluate(preparedKnownGeometry, candidateGeometry);
 	}
 
 
@@ -159,35 +385,4 @@ class GeoSparqlRelationIterator extends StatementIterator {
 			logger.warn("Unable to close entity-geometry iterator.", e);
 		}
 	}
-
-	/**
-	 * Makes an EntityGeometryIterator from a GraphDB entity id.
-	 * The id may refer to either a Geometry literal (WKT/GML) or an IRI that describes
-	 * a Geometry or Feature object.
-	 *
-	 * @param entityId an entity id
-	 * @return an EntityGeometryIterator
-	 */
-	private EntityGeometryIterator makeIteratorFromEntityId(long entityId) {
-		EntityGeometryIterator iterator;
-		Value value = entities.get(entityId);
-		if (value instanceof Literal) {
-			// the id refers to a literal, we need to parse the geometry
-			IRI subjType = ((Literal)value).getDatatype();
-			Geometry g;
-			if (GeoConstants.GEO_GML_LITERAL.equals(subjType)) {
-				// gml
-				g = parent.getGeometryFromString(value.stringValue(), parent.asGML);
-			} else {
-				// wkt
-				g = parent.getGeometryFromString(value.stringValue(), parent.asWKT);
-			}
-			iterator = new SingleEntityGeometryIterator(entityId, g);
-		} else {
-			// the id refers to an IRI referring to a geometry/feature
-			iterator = parent.indexer.getGeometriesFor(entityId);
-		}
-
-		return iterator;
-	}
 }
@@ -0,0 +1,304 @@
+package com.ontotext.trree.geosparql;
+
+import com.ontotext.trree.geosparql.lucene.DirectionalOperation;
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.StatementIterator;
+import com.useekm.indexing.GeoFactory;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongObjectHashMap;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Spatial join over all indexed entities. Used when both the subject and the object of a GeoSPARQL relation
+ * are unbound, instead of returning nothing.
+ *
+ * The join partitions the space like a partition based spatial merge join. The envelope of all geometries is split
+ * into quadrants until the statistics of the index estimate that few enough geometries overlap each tile. The tiles
+ * are joined one at a time: the geometries whose envelopes overlap the tile are loaded and swept along x to pair
+ * the ones whose envelopes intersect, and the function is evaluated on those pairs. A geometry is loaded with every
+ * tile it overlaps, a pair is evaluated only in the tile that holds the lower left corner of the intersection of
+ * their envelopes.
+ *
+ * Entities with several geometries, including features linked to several geometries, may match through more than
+ * one pair of geometries. The objects returned for them are kept so that each (subject, object) pair is returned
+ * exactly once, the pairs of other entities are returned as they are found, tile by tile.
+ *
+ * Only relations that require the geometries to intersect can be partitioned, see {@link #canPartition}.
+ */
+class GeoSparqlSpatialJoinIterator extends StatementIterator {
+	// Estimated number of geometries in a tile above which it is split
+	private final static int PARTITION_SIZE = 4096;
+	// Many geometries overlapping a tiny tile are joined together rather than split further
+	private final static int MAX_DEPTH = 24;
+
+	private final GeoSparqlPlugin parent;
+	private final GeoSparqlFunction function;
+	private final Logger logger;
+	private final int partitionSize;
+
+	// Entities that have more than one geometry and the objects returned for them as subjects or objects
+	private final TLongHashSet multiGeometryEntities = new TLongHashSet();
+	private final TLongObjectHashMap<TLongHashSet> returnedPairs = new TLongObjectHashMap<>();
+
+	// Tiles still to be joined, the last one is joined next
+	private final List<Tile> tiles = new ArrayList<>();
+
+	// Pairs found in the last tile, each subject followed by its object
+	private final TLongArrayList pairs = new TLongArrayList();
+	private int pairIdx;
+
+	// Geometries of the tile being joined
+	private Geometry[] geometries;
+	private long[] geometryEntities;
+	private int[] numPoints;
+	private PreparedGeometry[] prepared;
+
+	GeoSparqlSpatialJoinIterator(GeoSparqlPlugin parent, GeoSparqlFunction function, long predicate,
+								 int partitionSize) {
+		this.parent = parent;
+		this.function = function;
+		this.predicate = predicate;
+		this.logger = parent.getLogger();
+		this.partitionSize = partitionSize;
+
+		// Finds the extent of the tiles and the entities that may match through several pairs of geometries
+		Envelope bounds = new Envelope();
+		TLongHashSet seen = new TLongHashSet();
+		try (EntityGeometryIterator allGeometries = parent.indexer.getGeometriesFor(0)) {
+			while (allGeometries.hasNextGeometry()) {
+				Geometry geometry = allGeometries.nextGeometry();
+				if (geometry == null || geometry.isEmpty()) {
+					continue;
+				}
+				bounds.expandToInclude(geometry.getEnvelopeInternal());
+				long entityId = allGeometries.getEntityForLastGeometry();
+				if (!seen.add(entityId)) {
+					multiGeometryEntities.add(entityId);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to close entity-geometry iterator.", e);
+		}
+		if (!bounds.isNull()) {
+			tiles.add(new Tile(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(), true, true, 0));
+		}
+	}
+
+	/**
+	 * @return an iterator over all pairs of entities in the relation of the function
+	 */
+	static StatementIterator create(GeoSparqlPlugin parent, GeoSparqlFunction function, long predicate,
+									Entities entities) {
+		if (!canPartition(function)) {
+			return new GeoSparqlNestedLoopJoinIterator(parent, function, predicate, entities);
+		}
+		return new GeoSparqlSpatialJoinIterator(parent, function, predicate, PARTITION_SIZE);
+	}
+
+	/**
+	 * @return true if the relation requires the geometries to intersect, so that each matching pair is in a tile
+	 */
+	static boolean canPartition(GeoSparqlFunction function) {
+		SpatialOperation operation = function.getSpatialOperation();
+		return operation != SpatialOperation.IsDisjointTo && !(operation instanceof DirectionalOperation);
+	}
+
+	@Override
+	public boolean next() {
+		while (pairIdx == pairs.size()) {
+			if (tiles.isEmpty()) {
+				return false;
+			}
+			pairs.resetQuick();
+			pairIdx = 0;
+
+			Tile tile = tiles.remove(tiles.size() - 1);
+			if (tile.depth < MAX_DEPTH && (tile.canSplitX() || tile.canSplitY())
+					&& parent.indexer.estimateMatchingObjects(tile.toGeometry(), SpatialOperation.Intersects)
+					> partitionSize) {
+				tile.split(tiles);
+			} else {
+				join(tile);
+			}
+		}
+		subject = pairs.get(pairIdx++);
+		object = pairs.get(pairIdx++);
+		return true;
+	}
+
+	/**
+	 * Finds the pairs of geometries in the relation whose envelopes intersect within the tile.
+	 */
+	private void join(Tile tile) {
+		List<Geometry> found = new ArrayList<>();
+		TLongArrayList foundEntities = new TLongArrayList();
+		try (EntityGeometryIterator overlapping = parent.indexer.getMatchingObjects(tile.toGeometry(),
+				SpatialOperation.BBoxIntersects)) {
+			while (overlapping.hasNextGeometry()) {
+				Geometry geometry = overlapping.nextGeometry();
+				if (geometry != null && !geometry.isEmpty()) {
+					found.add(geometry);
+					foundEntities.add(overlapping.getEntityForLastGeometry());
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to close entity-geometry iterator.", e);
+		}
+
+		int count = found.size();
+		geometries = found.toArray(new Geometry[0]);
+		geometryEntities = foundEntities.toNativeArray();
+		numPoints = new int[count];
+		prepared = new PreparedGeometry[count];
+		Envelope[] envelopes = new Envelope[count];
+		for (int i = 0; i < count; i++) {
+			numPoints[i] = geometries[i].getNumPoints();
+			envelopes[i] = geometries[i].getEnvelopeInternal();
+		}
+		int[] order = IntStream.range(0, count).boxed()
+				.sorted(Comparator.comparingDouble(i -> envelopes[i].getMinX()))
+				.mapToInt(Integer::intValue)
+				.toArray();
+
+		for (int a = 0; a < count; a++) {
+			int i = order[a];
+			Envelope first = envelopes[i];
+			// Each geometry is paired with itself and with the ones that start within its extent along x
+			for (int b = a; b < count; b++) {
+				int j = order[b];
+				Envelope second = envelopes[j];
+				if (second.getMinX() > first.getMaxX()) {
+					break;
+				}
+				if (second.getMinY() > first.getMaxY() || second.getMaxY() < first.getMinY()) {
+					continue;
+				}
+				// The pair is evaluated only in the tile of the lower left corner of the intersection
+				if (!tile.contains(Math.max(first.getMinX(), second.getMinX()),
+						Math.max(first.getMinY(), second.getMinY()))) {
+					continue;
+				}
+				if (relate(i, j)) {
+					addPair(geometryEntities[i], geometryEntities[j]);
+				}
+				if (i != j && relate(j, i)) {
+					addPair(geometryEntities[j], geometryEntities[i]);
+				}
+			}
+		}
+		geometries = null;
+		geometryEntities = null;
+		numPoints = null;
+		prepared = null;
+	}
+
+	/**
+	 * Evaluates the function on two geometries of the tile, preparing the one with more points.
+	 */
+	private boolean relate(int subjectIdx, int objectIdx) {
+		if (numPoints[subjectIdx] >= numPoints[objectIdx]) {
+			return function.evaluate(prepare(subjectIdx), geometries[objectIdx]);
+		}
+		return function.evaluate(geometries[subjectIdx], prepare(objectIdx));
+	}
+
+	private PreparedGeometry prepare(int idx) {
+		if (prepared[idx] == null) {
+			prepared[idx] = PreparedGeometryFactory.prepare(geometries[idx]);
+		}
+		return prepared[idx];
+	}
+
+	private void addPair(long subjectId, long objectId) {
+		if (multiGeometryEntities.contains(subjectId) || multiGeometryEntities.contains(objectId)) {
+			TLongHashSet objects = returnedPairs.get(subjectId);
+			if (objects == null) {
+				objects = new TLongHashSet();
+				returnedPairs.put(subjectId, objects);
+			}
+			if (!objects.add(objectId)) {
+				return;
+			}
+		}
+		pairs.add(subjectId);
+		pairs.add(objectId);
+	}
+
+	@Override
+	public void close() {
+		tiles.clear();
+		pairs.clear();
+		pairIdx = 0;
+		returnedPairs.clear();
+	}
+
+	/**
+	 * A part of the extent of the geometries. The tiles of a split are disjoint: each holds its lower and left
+	 * edges and only the tiles on the upper and right edges of the extent hold those edges too.
+	 */
+	private static final class Tile {
+		private final double minX, minY, maxX, maxY;
+		private final boolean closedX, closedY;
+		private final int depth;
+
+		private Tile(double minX, double minY, double maxX, double maxY, boolean closedX, boolean closedY,
+					 int depth) {
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.closedX = closedX;
+			this.closedY = closedY;
+			this.depth = depth;
+		}
+
+		private boolean contains(double x, double y) {
+			return x >= minX && (x < maxX || closedX && x == maxX) && y >= minY && (y < maxY || closedY && y == maxY);
+		}
+
+		private Geometry toGeometry() {
+			return GeoFactory.getDefaultGeometryFactory().toGeometry(new Envelope(minX, maxX, minY, maxY));
+		}
+
+		private boolean canSplitX() {
+			double midX = (minX + maxX) / 2;
+			return midX > minX && midX < maxX;
+		}
+
+		private boolean canSplitY() {
+			double midY = (minY + maxY) / 2;
+			return midY > minY && midY < maxY;
+		}
+
+		/**
+		 * Adds the halves of the tile along each side that can be halved to the tiles, the lower left one last.
+		 */
+		private void split(List<Tile> tiles) {
+			boolean splitX = canSplitX();
+			boolean splitY = canSplitY();
+			double midX = (minX + maxX) / 2;
+			double midY = (minY + maxY) / 2;
+			for (int upper = splitY ? 1 : 0; upper >= 0; upper--) {
+				for (int right = splitX ? 1 : 0; right >= 0; right--) {
+					boolean wholeX = right == 1 || !splitX;
+					boolean wholeY = upper == 1 || !splitY;
+					tiles.add(new Tile(right == 1 ? midX : minX, upper == 1 ? midY : minY,
+							wholeX ? maxX : midX, wholeY ? maxY : midY,
+							wholeX && closedX, wholeY && closedY, depth + 1));
+				}
+			}
+		}
+	}
+}
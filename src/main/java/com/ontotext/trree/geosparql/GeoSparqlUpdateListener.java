@@ -6,12 +6,21 @@ import org.locationtech.jts.geom.Geometry;
 import gnu.trove.TLongHashSet;
 import gnu.trove.TLongProcedure;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 /**
  * Listener for incremental indexing of GeoSPARQL data.
+ *
+ * With group commit the changes kept back from the index are made durable by a flush scheduled for the end of the
+ * interval, so that they don't wait for another transaction when the repository goes idle. The flush runs between
+ * transactions only, the index is left to the transaction otherwise.
  */
 class GeoSparqlUpdateListener implements ParallelTransactionListener, StatementListener {
 	private final GeoSparqlPlugin parent;
@@ -19,9 +28,25 @@ class GeoSparqlUpdateListener implements ParallelTransactionListener, StatementL
 	private final long asGML;
 	private final long hasDefaultGeometry;
 
+	// Sets of more subjects than this are replaced after a transaction rather than cleared
+	private final static int RETAINED_SUBJECTS = 1024;
+
 	private TLongHashSet geometriesToUpdate = new TLongHashSet();
 	private TLongHashSet featuresToUpdate = new TLongHashSet();
 
+	// Whether the current transaction wrote to the index
+	private boolean indexUpdated;
+	// Whether the subjects in the write-ahead log must be indexed again with the next transaction, after a rollback
+	// that couldn't index them again itself
+	private boolean replayWriteAheadLog;
+	private long lastDurableCommit = System.nanoTime();
+
+	// Guarded by this: whether a transaction is using the index, the pending flush and whether flushes stopped
+	private boolean inTransaction;
+	private ScheduledExecutorService flushExecutor;
+	private ScheduledFuture<?> pendingFlush;
+	private boolean closed;
+
 	GeoSparqlUpdateListener(GeoSparqlPlugin parent, long asWKT, long asGML, long hasDefaultGeometry) {
 		this.parent = parent;
 		this.asWKT = asWKT;
@@ -47,6 +72,11 @@ class GeoSparqlUpdateListener implements ParallelTransactionListener, StatementL
 	@Override
 	public boolean statementRemoved(long subject, long predicate, long object, long context, boolean explicit,
 									PluginConnection pluginConnection) {
+		if (predicate == asWKT || predicate == asGML) {
+			// The literal may be removed from the entity pool and its id reused
+			parent.geometryCache.invalidate(object);
+		}
+
 		if (! parent.getConfig().isEnabled()) {
 			return false;
 		}
@@ -61,8 +91,13 @@ class GeoSparqlUpdateListener implements ParallelTransactionListener, StatementL
 
 	@Override
 	public void transactionStarted(PluginConnection pluginConnection) {
+		synchronized (this) {
+			// Waits for a running flush
+			inTransaction = true;
+		}
 		parent.tmpPrefixTree = null;
 		parent.tmpPrecision = 0;
+		indexUpdated = false;
 		if (! parent.getConfig().isEnabled()) {
 			return;
 		}
@@ -93,8 +128,147 @@ class GeoSparqlUpdateListener implements ParallelTransactionListener, StatementL
 		    return;
 		}
 
-		final TLongHashSet processedFeatures = new TLongHashSet();
+		long logSequence;
+		try {
+			if (replayWriteAheadLog) {
+				// A failed rollback left the changes of earlier transactions that weren't durable yet discarded
+				parent.writeAheadLog.read(geometriesToUpdate, featuresToUpdate);
+				replayWriteAheadLog = false;
+			}
+			// Logged before the index is touched so that a crash from here on is repaired on startup
+			logSequence = parent.writeAheadLog.append(geometriesToUpdate, featuresToUpdate);
+		} catch (IOException e) {
+			throw new PluginException("Unable to write GeoSPARQL index log.", e);
+		}
+
+		indexUpdated = true;
+		updateIndex(geometriesToUpdate, featuresToUpdate, pluginConnection);
+		parent.indexer.setLogSequence(logSequence);
+
+		cleanupAfterTransaction();
+
+		try {
+			commitIndex(logSequence);
+		} catch (Exception e) {
+			parent.getLogger().warn("Unable to commit indexer transaction.", e);
+		}
+	}
+
+	/**
+	 * Commits the index. With group commit the changes are only made visible to queries and become durable once
+	 * enough time passed or enough subjects were updated since the last commit. Until then the write-ahead log
+	 * keeps them.
+	 */
+	private void commitIndex(long logSequence) throws Exception {
+		GeoSparqlConfig config = parent.getConfig();
+		IndexWriteAheadLog writeAheadLog = parent.writeAheadLog;
+		if (config.getGroupCommitInterval() > 0 && remainingInterval() > 0
+				&& writeAheadLog.size() < config.getGroupCommitMaxSubjects()) {
+			parent.indexer.refresh();
+			return;
+		}
+
+		parent.indexer.commit();
+		lastDurableCommit = System.nanoTime();
+		writeAheadLog.committed(logSequence);
+	}
+
+	/**
+	 * @return the nanoseconds until the group commit interval since the last durable commit passes
+	 */
+	private long remainingInterval() {
+		return lastDurableCommit + TimeUnit.MILLISECONDS.toNanos(parent.getConfig().getGroupCommitInterval())
+				- System.nanoTime();
+	}
+
+	/**
+	 * Schedules a flush for the end of the group commit interval if changes are kept back and none is pending.
+	 */
+	private synchronized void scheduleFlush() {
+		if (closed || pendingFlush != null || parent.writeAheadLog.isEmpty()) {
+			return;
+		}
+		if (flushExecutor == null) {
+			flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "GeoSPARQL index flush");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		pendingFlush = flushExecutor.schedule(this::flush, Math.max(remainingInterval(), 0), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Makes the changes kept back by group commit durable unless a transaction is using the index. That
+	 * transaction commits them itself or schedules another flush.
+	 */
+	private synchronized void flush() {
+		pendingFlush = null;
+		if (closed || inTransaction || parent.indexer == null || parent.writeAheadLog.isEmpty()) {
+			return;
+		}
+		if (remainingInterval() > 0) {
+			// The interval restarted with a durable commit since the flush was scheduled
+			scheduleFlush();
+			return;
+		}
+		try {
+			parent.indexer.commit();
+			lastDurableCommit = System.nanoTime();
+			// Frames discarded by a rollback stay pending and are replayed with the next transaction
+			parent.writeAheadLog.committed(parent.indexer.getCommittedLogSequence());
+		} catch (Exception e) {
+			parent.getLogger().warn("Unable to commit GeoSPARQL index, it will be committed with the next transaction.", e);
+		}
+	}
+
+	/**
+	 * Stops the flushes, the plugin makes the remaining changes durable when it shuts down.
+	 */
+	void close() {
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			// Waits for a running flush
+			closed = true;
+			executor = flushExecutor;
+			flushExecutor = null;
+			pendingFlush = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
 
+	/**
+	 * Replaces the copies of the geometries that an index migrated from an older format has for the features by
+	 * links to the geometries. Only the features are indexed again, as found in the statements.
+	 */
+	void replaceFeatureCopies(PluginConnection pluginConnection) throws Exception {
+		TLongHashSet features = new TLongHashSet();
+		StatementIterator sit = pluginConnection.getStatements().get(0, hasDefaultGeometry, 0);
+		try {
+			while (sit.next()) {
+				features.add(sit.subject);
+			}
+		} finally {
+			sit.close();
+		}
+		parent.getLogger().info(">>>>>>>> GeoSPARQL: Linking {} features to their geometries...", features.size());
+
+		parent.indexer.begin();
+		// Each feature is indexed as a geometry too, which drops the copies unless it has geometries of its own
+		updateIndex(features, features, pluginConnection);
+		parent.indexer.clearFeatureCopies();
+		parent.indexer.commit();
+	}
+
+	/**
+	 * Indexes the geometries of the given subjects as found in the statements.
+	 *
+	 * @param geometriesToUpdate subjects with asWKT/asGML
+	 * @param featuresToUpdate   subjects with hasDefaultGeometry
+	 */
+	void updateIndex(TLongHashSet geometriesToUpdate, TLongHashSet featuresToUpdate, PluginConnection pluginConnection) {
 		final Function<Long, String> subjectMapper = (subject) -> pluginConnection.getEntities().get(subject).stringValue();
 
 		geometriesToUpdate.forEach(new TLongProcedure() {
@@ -116,20 +290,17 @@ class GeoSparqlUpdateListener implements ParallelTransactionListener, StatementL
 
 			@Override
 			public boolean execute(long value) {
-				{
-					// Index the geometry
-					processGeometryWithPredicate(value, asWKT);
-					processGeometryWithPredicate(value, asGML);
-					parent.indexer.indexGeometryList(value, subjectMapper, geometries);
-				}
+				// Index the geometry
+				processGeometryWithPredicate(value, asWKT);
+				processGeometryWithPredicate(value, asGML);
+				if (parent.indexer.indexGeometryList(value, subjectMapper, geometries)) {
+					parent.preparedGeometryCache.invalidate(value);
 
-				{
-					// Add each feature and reuse the geometries we already identified
+					// The features linked to the geometry share its documents but have their own prepared geometries
 					StatementIterator sit = pluginConnection.getStatements().get(0, hasDefaultGeometry, value);
 					try {
 						while (sit.next()) {
-							parent.indexer.indexGeometryList(sit.subject, subjectMapper, geometries);
-							processedFeatures.add(sit.subject);
+							parent.preparedGeometryCache.invalidate(sit.subject);
 						}
 					} finally {
 						sit.close();
@@ -143,40 +314,21 @@ class GeoSparqlUpdateListener implements ParallelTransactionListener, StatementL
 		});
 
 		featuresToUpdate.forEach(new TLongProcedure() {
-			final List<Geometry> geometries = new ArrayList<Geometry>();
+			final TLongHashSet geometries = new TLongHashSet();
 
-			void processGeometryWithPredicate(long value, long predicate) {
-				StatementIterator sit = pluginConnection.getStatements().get(value, predicate, 0);
-				try {
-					while (sit.next()) {
-						Geometry geometry = parent.getGeometryFromLiteralId(sit.object, predicate, pluginConnection.getEntities());
-						if (geometry != null) {
-							geometries.add(geometry);
-						}
-					}
-				} finally {
-					sit.close();
-				}
-			}
-			void processFeatureWithPredicate(long value, long predicate) {
+			@Override
+			public boolean execute(long value) {
+				// Link the feature to its geometries, which are indexed on their own
 				StatementIterator sit = pluginConnection.getStatements().get(value, hasDefaultGeometry, 0);
 				try {
 					while (sit.next()) {
-						processGeometryWithPredicate(sit.object, predicate);
+						geometries.add(sit.object);
 					}
 				} finally {
 					sit.close();
 				}
-			}
-
-			@Override
-			public boolean execute(long value) {
-
-				// unless we already processed that feature as part of the geometries update
-				if (!processedFeatures.contains(value)) {
-					processFeatureWithPredicate(value, asWKT);
-					processFeatureWithPredicate(value, asGML);
-					parent.indexer.indexGeometryList(value, subjectMapper, geometries);
+				if (parent.indexer.indexFeatureGeometryList(value, geometries.toArray())) {
+					parent.preparedGeometryCache.invalidate(value);
 				}
 
 				geometries.clear();
@@ -184,38 +336,71 @@ class GeoSparqlUpdateListener implements ParallelTransactionListener, StatementL
 				return true;
 			}
 		});
+	}
 
-		cleanupAfterTransaction();
-
-		try {
-			parent.indexer.commit();
-		} catch (Exception e) {
-			parent.getLogger().warn("Unable to commit indexer transaction.", e);
+	@Override
+	public void transactionCompleted(PluginConnection pluginConnection) {
+		synchronized (this) {
+			inTransaction = false;
 		}
+		scheduleFlush();
 	}
 
-    @Override
-    public void transactionCompleted(PluginConnection pluginConnection) {
-
-    }
-
     @Override
 	public void transactionAborted(PluginConnection pluginConnection) {
+		try {
+			abortIndex(pluginConnection);
+		} finally {
+			synchronized (this) {
+				inTransaction = false;
+			}
+		}
+		scheduleFlush();
+	}
+
+	private void abortIndex(PluginConnection pluginConnection) {
 		if (! parent.getConfig().isEnabled()) {
 			return;
 		}
 
 		cleanupAfterTransaction();
+		if (!indexUpdated) {
+			// Nothing to discard, earlier transactions that aren't durable yet must not be rolled back
+			return;
+		}
 		try {
 			parent.indexer.rollback();
+			replayWriteAheadLog = !parent.writeAheadLog.isEmpty();
+			if (replayWriteAheadLog) {
+				// The rollback also discarded the changes of earlier transactions that group commit kept back.
+				// Their subjects are indexed again as found in the statements, which leaves out the aborted changes.
+				TLongHashSet geometries = new TLongHashSet();
+				TLongHashSet features = new TLongHashSet();
+				parent.writeAheadLog.read(geometries, features);
+				updateIndex(geometries, features, pluginConnection);
+				parent.indexer.setLogSequence(parent.writeAheadLog.getLastSequence());
+				parent.indexer.refresh();
+				replayWriteAheadLog = false;
+			}
 		} catch (Exception e) {
 			parent.getLogger().warn("Unable to rollback indexer transaction.", e);
 		}
 	}
 
 	private void cleanupAfterTransaction() {
-		// TODO: clear() or new object?
-		geometriesToUpdate.clear();
-		featuresToUpdate.clear();
+		geometriesToUpdate = reset(geometriesToUpdate);
+		featuresToUpdate = reset(featuresToUpdate);
+	}
+
+	/**
+	 * Clearing keeps the capacity of the set and takes time in proportion to it, so a large transaction would
+	 * slow down all later ones. Such sets are dropped instead.
+	 */
+	private static TLongHashSet reset(TLongHashSet set) {
+		if (set.size() > RETAINED_SUBJECTS) {
+			return new TLongHashSet();
+		}
+		set.clear();
+		return set;
 	}
 }
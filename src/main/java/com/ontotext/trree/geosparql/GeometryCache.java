@@ -0,0 +1,129 @@
+package com.ontotext.trree.geosparql;
+
+import org.locationtech.jts.geom.Geometry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of parsed geometries keyed by the entity id of the WKT/GML literal they were parsed from.
+ *
+ * The cache is bounded by the estimated size of the cached geometries and literals rather than by the number of
+ * entries, since a single polygon with many vertices may be larger than thousands of points. Each entry keeps the
+ * literal it was parsed from and is only returned for the same literal and geometry type, so ids of request scoped
+ * entities that are reused between requests never return a wrong geometry.
+ */
+class GeometryCache {
+	static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	// Rough per-object sizes used to estimate the memory held by a cached geometry
+	private final static int ENTRY_OVERHEAD_BYTES = 128;
+	private final static int COORDINATE_BYTES = 40;
+
+	private final long maxBytes;
+	private long bytes;
+
+	private final Map<Long, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static class Entry {
+		final String literal;
+		final long geometryTypeId;
+		final Geometry geometry;
+		final long bytes;
+
+		Entry(String literal, long geometryTypeId, Geometry geometry) {
+			this.literal = literal;
+			this.geometryTypeId = geometryTypeId;
+			this.geometry = geometry;
+			this.bytes = ENTRY_OVERHEAD_BYTES + 2L * literal.length() + (long) COORDINATE_BYTES * geometry.getNumPoints();
+		}
+	}
+
+	GeometryCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cached geometry parsed from a literal.
+	 *
+	 * @param literalId      entity id of the literal
+	 * @param geometryTypeId the asWKT/asGML predicate that determines how the literal is parsed
+	 * @param literal        the literal value
+	 * @return the geometry or null if it isn't cached
+	 */
+	Geometry get(long literalId, long geometryTypeId, String literal) {
+		Entry entry;
+		synchronized (this) {
+			entry = cache.get(literalId);
+		}
+		if (entry != null && entry.geometryTypeId == geometryTypeId && entry.literal.equals(literal)) {
+			hits.incrementAndGet();
+			return entry.geometry;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Caches a geometry parsed from a literal. Geometries larger than the whole cache aren't cached.
+	 *
+	 * @param literalId      entity id of the literal
+	 * @param geometryTypeId the asWKT/asGML predicate that determines how the literal is parsed
+	 * @param literal        the literal value
+	 * @param geometry       the parsed geometry
+	 */
+	void put(long literalId, long geometryTypeId, String literal, Geometry geometry) {
+		Entry entry = new Entry(literal, geometryTypeId, geometry);
+		if (entry.bytes > maxBytes) {
+			return;
+		}
+
+		synchronized (this) {
+			Entry previous = cache.put(literalId, entry);
+			if (previous != null) {
+				bytes -= previous.bytes;
+			}
+			bytes += entry.bytes;
+
+			Iterator<Entry> it = cache.values().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				bytes -= it.next().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached geometry of a literal.
+	 *
+	 * @param literalId entity id of the literal
+	 */
+	synchronized void invalidate(long literalId) {
+		Entry previous = cache.remove(literalId);
+		if (previous != null) {
+			bytes -= previous.bytes;
+		}
+	}
+
+	synchronized void clear() {
+		cache.clear();
+		bytes = 0;
+	}
+
+	synchronized long getEstimatedBytes() {
+		return bytes;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,87 @@
+package com.ontotext.trree.geosparql;
+
+import org.locationtech.jts.geom.*;
+
+/**
+ * Kinds of geometries that have the same DE-9IM matrix with another geometry as long as they lie in the same
+ * part of it, i.e. in its interior or in its exterior. The matrix then depends only on the dimension of the
+ * geometry and of its boundary.
+ *
+ * A proxy of a kind is a simple geometry of that kind that lies within a given envelope. A geometry can be replaced
+ * by a proxy within its envelope when relating it to a geometry whose interior or exterior contains the envelope.
+ */
+public enum GeometryKind {
+	POINT {
+		@Override
+		Geometry createProxy(Envelope envelope, GeometryFactory factory) {
+			return factory.createPoint(envelope.centre());
+		}
+	},
+	OPEN_LINE {
+		@Override
+		Geometry createProxy(Envelope envelope, GeometryFactory factory) {
+			if (envelope.getWidth() == 0 && envelope.getHeight() == 0) {
+				return null;
+			}
+			return factory.createLineString(new Coordinate[]{
+					new Coordinate(envelope.getMinX(), envelope.getMinY()),
+					new Coordinate(envelope.getMaxX(), envelope.getMaxY())});
+		}
+	},
+	CLOSED_LINE {
+		@Override
+		Geometry createProxy(Envelope envelope, GeometryFactory factory) {
+			Coordinate[] ring = triangle(envelope);
+			return ring != null ? factory.createLineString(ring) : null;
+		}
+	},
+	AREA {
+		@Override
+		Geometry createProxy(Envelope envelope, GeometryFactory factory) {
+			Coordinate[] ring = triangle(envelope);
+			return ring != null ? factory.createPolygon(ring) : null;
+		}
+	};
+
+	/**
+	 * @return the kind of the geometry, or null if it is empty or mixes dimensions
+	 */
+	public static GeometryKind of(Geometry geometry) {
+		if (geometry.isEmpty() || geometry.getClass() == GeometryCollection.class) {
+			// The boundary of mixed dimensions isn't defined
+			return null;
+		}
+		switch (geometry.getDimension()) {
+			case Dimension.P:
+				return POINT;
+			case Dimension.L:
+				return geometry.getBoundaryDimension() == Dimension.FALSE ? CLOSED_LINE : OPEN_LINE;
+			case Dimension.A:
+				return AREA;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Creates a proxy of this kind within an envelope.
+	 *
+	 * @return the proxy, or null if the envelope is too thin for a geometry of this kind
+	 */
+	public Geometry proxy(Envelope envelope, GeometryFactory factory) {
+		return envelope.isNull() ? null : createProxy(envelope, factory);
+	}
+
+	abstract Geometry createProxy(Envelope envelope, GeometryFactory factory);
+
+	private static Coordinate[] triangle(Envelope envelope) {
+		if (envelope.getWidth() == 0 || envelope.getHeight() == 0) {
+			return null;
+		}
+		return new Coordinate[]{
+				new Coordinate(envelope.getMinX(), envelope.getMinY()),
+				new Coordinate(envelope.getMaxX(), envelope.getMinY()),
+				new Coordinate(envelope.getMaxX(), envelope.getMaxY()),
+				new Coordinate(envelope.getMinX(), envelope.getMinY())};
+	}
+}
@@ -0,0 +1,250 @@
+package com.ontotext.trree.geosparql;
+
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongProcedure;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the subjects updated by each transaction, written before the index is touched.
+ *
+ * Every transaction that updates the index appends a frame with the subjects it updates and forces it to disk.
+ * The frames are numbered and the index records the number of the last frame it has durably committed. On startup
+ * the subjects of the frames after that number are indexed again from the statements. This brings the index in
+ * line with the repository whether the transaction made it there or not, so a crash never needs a full reindex.
+ *
+ * With group commit the index is committed once for many transactions and the log keeps their changes meanwhile.
+ *
+ * A frame is the number of records, the frame number, the records and a CRC32 of all of them. Each record is
+ * the kind of subject followed by its id. A frame cut short or damaged by a crash is dropped together with
+ * anything after it, the transaction that was writing it hasn't touched the index yet.
+ */
+class IndexWriteAheadLog implements Closeable {
+	// Kinds of logged subjects, a subject with asWKT/asGML or a feature with hasDefaultGeometry
+	static final byte GEOMETRY = 'G';
+	static final byte FEATURE = 'F';
+
+	private static final int RECORD_BYTES = 1 + Long.BYTES;
+	private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+	private static final int FRAME_OVERHEAD = HEADER_BYTES + Integer.BYTES;
+
+	// The log is emptied after a durable index commit only once it grows past this size, so that most
+	// transactions pay for a single write
+	static final long TRUNCATE_SIZE = 1024 * 1024;
+
+	private final Path path;
+	private FileChannel channel;
+
+	// Number of the last frame in the log or the last one committed by the index, whichever is greater
+	private long lastSequence;
+	// Number of the last frame durably committed by the index
+	private long committedSequence;
+	// Size of the complete frames in the log
+	private long validSize;
+	// Records in the frames after the committed one
+	private long pendingRecords;
+
+	IndexWriteAheadLog(Path path) throws IOException {
+		this.path = path;
+		forEachFrame(0, (sequence, buffer, records) -> {
+			lastSequence = sequence;
+			pendingRecords += records;
+		});
+	}
+
+	/**
+	 * Sets the number of the last frame the index has durably committed. Only the frames after it are pending.
+	 *
+	 * @param sequence the frame number recorded by the index
+	 */
+	void setCommittedSequence(long sequence) throws IOException {
+		committedSequence = sequence;
+		lastSequence = Math.max(lastSequence, sequence);
+		pendingRecords = 0;
+		forEachFrame(sequence, (frameSequence, buffer, records) -> pendingRecords += records);
+	}
+
+	/**
+	 * Appends a frame with the subjects updated by a transaction and forces it to disk.
+	 *
+	 * @param geometries subjects with asWKT/asGML
+	 * @param features   subjects with hasDefaultGeometry
+	 * @return the number of the frame, the last one if there was nothing to append
+	 */
+	long append(TLongHashSet geometries, TLongHashSet features) throws IOException {
+		if (geometries.isEmpty() && features.isEmpty()) {
+			return lastSequence;
+		}
+
+		int records = geometries.size() + features.size();
+		ByteBuffer buffer = ByteBuffer.allocate(FRAME_OVERHEAD + records * RECORD_BYTES);
+		buffer.putInt(records);
+		buffer.putLong(lastSequence + 1);
+		putRecords(buffer, GEOMETRY, geometries);
+		putRecords(buffer, FEATURE, features);
+		buffer.putInt(checksum(buffer.array(), buffer.position()));
+		buffer.flip();
+
+		FileChannel channel = getChannel();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+
+		validSize += buffer.limit();
+		pendingRecords += records;
+		return ++lastSequence;
+	}
+
+	private static void putRecords(ByteBuffer buffer, byte kind, TLongHashSet subjects) {
+		subjects.forEach(new TLongProcedure() {
+			@Override
+			public boolean execute(long subject) {
+				buffer.put(kind);
+				buffer.putLong(subject);
+				return true;
+			}
+		});
+	}
+
+	private static int checksum(byte[] bytes, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Reads the subjects of the frames the index hasn't durably committed.
+	 *
+	 * @param geometries receives the subjects with asWKT/asGML
+	 * @param features   receives the subjects with hasDefaultGeometry
+	 */
+	void read(TLongHashSet geometries, TLongHashSet features) throws IOException {
+		forEachFrame(committedSequence, (sequence, buffer, records) -> {
+			for (int i = 0; i < records; i++) {
+				byte kind = buffer.get();
+				long subject = buffer.getLong();
+				if (kind == GEOMETRY) {
+					geometries.add(subject);
+				} else if (kind == FEATURE) {
+					features.add(subject);
+				}
+			}
+		});
+	}
+
+	private interface FrameVisitor {
+		void visit(long sequence, ByteBuffer records, int count);
+	}
+
+	/**
+	 * Visits the complete frames after the given number and records the size of all complete frames.
+	 */
+	private void forEachFrame(long afterSequence, FrameVisitor visitor) throws IOException {
+		validSize = 0;
+		if (!Files.exists(path)) {
+			return;
+		}
+
+		byte[] bytes = Files.readAllBytes(path);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.remaining() >= FRAME_OVERHEAD) {
+			int start = buffer.position();
+			int records = buffer.getInt();
+			long sequence = buffer.getLong();
+			if (records <= 0 || records > (buffer.remaining() - Integer.BYTES) / RECORD_BYTES) {
+				break;
+			}
+			int end = start + HEADER_BYTES + records * RECORD_BYTES;
+			CRC32 crc = new CRC32();
+			crc.update(bytes, start, end - start);
+			if (buffer.getInt(end) != (int) crc.getValue()) {
+				break;
+			}
+
+			if (sequence > afterSequence) {
+				visitor.visit(sequence, buffer.slice(), records);
+			}
+			buffer.position(end + Integer.BYTES);
+			validSize = buffer.position();
+		}
+	}
+
+	/**
+	 * @return number of records after the last durably committed frame, a subject updated by several
+	 * transactions is counted for each
+	 */
+	long size() {
+		return pendingRecords;
+	}
+
+	boolean isEmpty() {
+		return pendingRecords == 0;
+	}
+
+	/**
+	 * @return the number of the last frame
+	 */
+	long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Records that the index durably committed everything up to the given frame and empties the log once it
+	 * grows too large.
+	 *
+	 * @param sequence the frame number the index committed
+	 */
+	void committed(long sequence) throws IOException {
+		committedSequence = sequence;
+		if (sequence >= lastSequence) {
+			pendingRecords = 0;
+			if (validSize >= TRUNCATE_SIZE) {
+				clear();
+			}
+		}
+	}
+
+	/**
+	 * Empties the log, called once all logged changes are durable in the index. Frame numbers keep growing.
+	 */
+	void clear() throws IOException {
+		committedSequence = lastSequence;
+		pendingRecords = 0;
+		if (validSize == 0 && channel == null && !Files.exists(path)) {
+			return;
+		}
+		FileChannel channel = getChannel();
+		channel.truncate(0);
+		channel.force(false);
+		validSize = 0;
+	}
+
+	private FileChannel getChannel() throws IOException {
+		if (channel == null) {
+			Files.createDirectories(path.getParent());
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			// Drop a frame that was cut short so that new frames follow the last complete one
+			if (channel.size() > validSize) {
+				channel.truncate(validSize);
+			}
+		}
+		return channel;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.ontotext.trree.geosparql;
+
+import com.ontotext.trree.geosparql.lucene.DirectionalOperation;
+import com.ontotext.trree.sdk.PluginException;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.apache.lucene.spatial.query.SpatialOperation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Takes an EntityGeometryIterator and looks up each geometry from it in the index with the provided SpatialOperation.
+ *
+ * Several geometries can be looked up with a single query, see {@link #searchBatch(List)}. The hits are kept
+ * without their geometries and each geometry of the batch is then given the hits whose envelopes intersect its
+ * envelope, decoded as they are iterated.
+ */
+public class MultiSearchEntityGeometryIterator implements EntityGeometryIterator {
+	private GeoSparqlIndexer indexer;
+	private SpatialOperation spatialOperation;
+	private EntityGeometryIterator matchIterator;
+	private List<EntityGeometryIterator> iteratorsToClose = new ArrayList<>();
+
+	// Hits of the last batch search
+	private BatchMatches batchMatches;
+
+	private Predicate<Envelope> proxyFilter;
+
+	public MultiSearchEntityGeometryIterator(GeoSparqlIndexer indexer, SpatialOperation spatialOperation) {
+		this.indexer = indexer;
+		this.spatialOperation = spatialOperation;
+	}
+
+	@Override
+	public long getEntityForLastGeometry() {
+		return matchIterator == null ? 0 : matchIterator.getEntityForLastGeometry();
+	}
+
+	@Override
+	public Geometry nextGeometry() {
+		return matchIterator == null ? null : matchIterator.nextGeometry();
+	}
+
+	@Override
+	public Geometry lastGeometry() {
+		return matchIterator == null ? null : matchIterator.lastGeometry();
+	}
+
+	@Override
+	public boolean hasNextGeometry() {
+		return matchIterator != null && matchIterator.hasNextGeometry();
+	}
+
+	@Override
+	public void advanceToNextEntity() {
+		if (matchIterator == null) {
+			return;
+		}
+
+		matchIterator.advanceToNextEntity();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(EntityGeometryIterator itty : iteratorsToClose) {
+			itty.close();
+		}
+		if (batchMatches != null) {
+			batchMatches.close();
+			batchMatches = null;
+		}
+	}
+
+	@Override
+	public void setProxyFilter(Predicate<Envelope> proxyFilter) {
+		this.proxyFilter = proxyFilter;
+	}
+
+	public void search(Geometry geometry) {
+		matchIterator = indexer.getMatchingObjects(geometry, spatialOperation);
+		matchIterator.setProxyFilter(proxyFilter);
+		iteratorsToClose.add(matchIterator);
+	}
+
+	/**
+	 * @return true if the geometries matching a geometry can be told apart from the hits of a batch by their
+	 * envelopes, i.e. the spatial operation requires the geometries to intersect
+	 */
+	public boolean canBatch() {
+		return spatialOperation != SpatialOperation.IsDisjointTo && !(spatialOperation instanceof DirectionalOperation);
+	}
+
+	/**
+	 * Looks up all given geometries with a single query and keeps the hits for {@link #select(Geometry)}.
+	 *
+	 * @param geometries the geometries to look up
+	 */
+	public void searchBatch(List<Geometry> geometries) {
+		matchIterator = null;
+		if (batchMatches != null) {
+			try {
+				batchMatches.close();
+			} catch (IOException e) {
+				throw new PluginException("Unable to release index searcher.", e);
+			}
+			batchMatches = null;
+		}
+		batchMatches = indexer.getBatchMatches(geometries, spatialOperation);
+	}
+
+	/**
+	 * Iterates over the hits of the last batch search that may match a geometry of the batch.
+	 *
+	 * @param geometry a geometry given to the last batch search
+	 */
+	public void select(Geometry geometry) {
+		matchIterator = batchMatches.select(geometry);
+		matchIterator.setProxyFilter(proxyFilter);
+		iteratorsToClose.add(matchIterator);
+	}
+}
@@ -0,0 +1,89 @@
+package com.ontotext.trree.geosparql;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of prepared geometries keyed by entity id.
+ *
+ * Preparing a geometry builds indexes over its segments and is only worth it when the geometry is tested against
+ * many others, which is the case for the known side of a relation. The cache keeps the prepared geometries of
+ * recently used entities so that repeated queries against the same geometries don't prepare them again.
+ *
+ * Cached geometries are validated against the geometry being prepared, so a stale entry is never returned even
+ * if the entity was not invalidated after an update.
+ */
+class PreparedGeometryCache {
+	static final int DEFAULT_MAX_ENTITIES = 1024;
+
+	// Stale geometries of an entity that wasn't invalidated are pushed out by the new ones
+	private final static int MAX_GEOMETRIES_PER_ENTITY = 16;
+
+	private final static PreparedGeometry[] NO_GEOMETRIES = new PreparedGeometry[0];
+
+	private final Map<Long, PreparedGeometry[]> cache;
+
+	PreparedGeometryCache(int maxEntities) {
+		cache = new LinkedHashMap<Long, PreparedGeometry[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, PreparedGeometry[]> eldest) {
+				return size() > maxEntities;
+			}
+		};
+	}
+
+	/**
+	 * Returns the prepared form of a geometry of an entity, preparing and caching it if needed.
+	 *
+	 * @param entityId the entity the geometry belongs to
+	 * @param geometry the geometry to prepare
+	 * @return a prepared geometry equal to the provided geometry
+	 */
+	PreparedGeometry prepare(long entityId, Geometry geometry) {
+		PreparedGeometry[] prepared;
+		synchronized (this) {
+			prepared = cache.getOrDefault(entityId, NO_GEOMETRIES);
+		}
+
+		for (PreparedGeometry p : prepared) {
+			if (p.getGeometry().equalsExact(geometry)) {
+				return p;
+			}
+		}
+
+		PreparedGeometry result = PreparedGeometryFactory.prepare(geometry);
+
+		synchronized (this) {
+			// An entity may have several geometries, append to the ones already cached
+			PreparedGeometry[] current = cache.getOrDefault(entityId, NO_GEOMETRIES);
+			int kept = Math.min(current.length, MAX_GEOMETRIES_PER_ENTITY - 1);
+			PreparedGeometry[] updated = new PreparedGeometry[kept + 1];
+			System.arraycopy(current, current.length - kept, updated, 0, kept);
+			updated[kept] = result;
+			cache.put(entityId, updated);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Drops the cached geometries of an entity.
+	 *
+	 * @param entityId an entity id
+	 */
+	synchronized void invalidate(long entityId) {
+		cache.remove(entityId);
+	}
+
+	synchronized void clear() {
+		cache.clear();
+	}
+
+	synchronized int size() {
+		return cache.size();
+	}
+}
@@ -0,0 +1,209 @@
+package com.ontotext.trree.geosparql;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Persisted progress of a reindex into the rebuild index.
+ *
+ * The reindex scans the statements of each phase in subject order and commits the rebuild index in chunks that end
+ * at a subject boundary. The checkpoint records the last subject of the last committed chunk so that an interrupted
+ * reindex can continue after it.
+ *
+ * The checkpoint file and the index commit can't be written atomically together. Before each commit the checkpoint
+ * records the position the commit will reach along with the number of committed geometries before it. If the
+ * process dies in between, the number of geometries in the rebuild index tells whether the commit made it.
+ */
+class ReindexCheckpoint {
+	/**
+	 * The phases of a reindex, in the order they run.
+	 */
+	enum Phase {
+		AS_WKT("asWKT"),
+		AS_GML("asGML"),
+		HAS_DEFAULT_GEOMETRY("hasDefaultGeometry"),
+		COMPLETE("complete");
+
+		private final String key;
+
+		Phase(String key) {
+			this.key = key;
+		}
+
+		static Phase fromKey(String key) {
+			for (Phase phase : values()) {
+				if (phase.key.equals(key)) {
+					return phase;
+				}
+			}
+			throw new IllegalArgumentException("Unknown reindex phase: " + key);
+		}
+	}
+
+	// Entity ids start from 1, no subject processed yet
+	static final long NO_SUBJECT = 0;
+
+	private final static String PREFIXTREE_KEY = "prefixtree";
+	private final static String PRECISION_KEY = "precision";
+	private final static String PHASE_KEY = "phase";
+	private final static String SUBJECT_KEY = "subject";
+	private final static String PENDING_PHASE_KEY = "pending.phase";
+	private final static String PENDING_SUBJECT_KEY = "pending.subject";
+	private final static String PENDING_COUNT_KEY = "pending.count";
+
+	private final GeoSparqlConfig.PrefixTree prefixTree;
+	private final int precision;
+
+	private Phase phase = Phase.AS_WKT;
+	private long subject = NO_SUBJECT;
+
+	private Phase pendingPhase;
+	private long pendingSubject;
+	private long pendingCount = -1;
+
+	ReindexCheckpoint(GeoSparqlConfig.PrefixTree prefixTree, int precision) {
+		this.prefixTree = prefixTree;
+		this.precision = precision;
+	}
+
+	GeoSparqlConfig.PrefixTree getPrefixTree() {
+		return prefixTree;
+	}
+
+	int getPrecision() {
+		return precision;
+	}
+
+	boolean matches(GeoSparqlConfig.PrefixTree prefixTree, int precision) {
+		return this.prefixTree == prefixTree && this.precision == precision;
+	}
+
+	/**
+	 * @return the phase of the last committed chunk
+	 */
+	Phase getPhase() {
+		return phase;
+	}
+
+	/**
+	 * @return the last subject of the last committed chunk or {@link #NO_SUBJECT}
+	 */
+	long getSubject() {
+		return subject;
+	}
+
+	boolean isComplete() {
+		return phase == Phase.COMPLETE;
+	}
+
+	boolean hasPending() {
+		return pendingCount >= 0;
+	}
+
+	/**
+	 * Records the position a commit is about to reach.
+	 *
+	 * @param phase          phase of the chunk being committed
+	 * @param subject        last subject of the chunk
+	 * @param committedCount number of geometries in the index before the commit
+	 */
+	void setPending(Phase phase, long subject, long committedCount) {
+		this.pendingPhase = phase;
+		this.pendingSubject = subject;
+		this.pendingCount = committedCount;
+	}
+
+	/**
+	 * Moves the position to the pending one if the commit happened, which is known from the number of geometries
+	 * in the index, and discards it otherwise.
+	 *
+	 * @param committedCount number of geometries in the index now
+	 */
+	void resolvePending(long committedCount) {
+		if (hasPending() && committedCount != pendingCount) {
+			phase = pendingPhase;
+			subject = pendingSubject;
+		}
+		pendingPhase = null;
+		pendingSubject = NO_SUBJECT;
+		pendingCount = -1;
+	}
+
+	/**
+	 * Moves the position to the pending one after a successful commit.
+	 */
+	void committed() {
+		if (hasPending()) {
+			phase = pendingPhase;
+			subject = pendingSubject;
+		}
+		pendingPhase = null;
+		pendingSubject = NO_SUBJECT;
+		pendingCount = -1;
+	}
+
+	/**
+	 * Reads a checkpoint.
+	 *
+	 * @param path checkpoint file
+	 * @return the checkpoint or null if there is none or it can't be read
+	 */
+	static ReindexCheckpoint load(Path path) {
+		if (!Files.isReadable(path)) {
+			return null;
+		}
+
+		try (InputStream in = Files.newInputStream(path)) {
+			Properties properties = new Properties();
+			properties.load(in);
+
+			ReindexCheckpoint checkpoint = new ReindexCheckpoint(
+					GeoSparqlConfig.PrefixTree.valueOf(properties.getProperty(PREFIXTREE_KEY)),
+					Integer.parseInt(properties.getProperty(PRECISION_KEY)));
+			checkpoint.phase = Phase.fromKey(properties.getProperty(PHASE_KEY));
+			checkpoint.subject = Long.parseLong(properties.getProperty(SUBJECT_KEY));
+			if (properties.containsKey(PENDING_COUNT_KEY)) {
+				checkpoint.pendingPhase = Phase.fromKey(properties.getProperty(PENDING_PHASE_KEY));
+				checkpoint.pendingSubject = Long.parseLong(properties.getProperty(PENDING_SUBJECT_KEY));
+				checkpoint.pendingCount = Long.parseLong(properties.getProperty(PENDING_COUNT_KEY));
+			}
+			return checkpoint;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the checkpoint. The file is replaced atomically so that a crash never leaves a partial checkpoint.
+	 *
+	 * @param path checkpoint file
+	 */
+	void save(Path path) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(PREFIXTREE_KEY, prefixTree.name());
+		properties.setProperty(PRECISION_KEY, Integer.toString(precision));
+		properties.setProperty(PHASE_KEY, phase.key);
+		properties.setProperty(SUBJECT_KEY, Long.toString(subject));
+		if (hasPending()) {
+			properties.setProperty(PENDING_PHASE_KEY, pendingPhase.key);
+			properties.setProperty(PENDING_SUBJECT_KEY, Long.toString(pendingSubject));
+			properties.setProperty(PENDING_COUNT_KEY, Long.toString(pendingCount));
+		}
+
+		Files.createDirectories(path.getParent());
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (OutputStream os = Files.newOutputStream(tmp)) {
+			properties.store(os, "GeoSPARQL reindex checkpoint");
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static void delete(Path path) throws IOException {
+		Files.deleteIfExists(path);
+	}
+}
@@ -19,26 +19,46 @@ import java.io.StringWriter;
  * Utility class for converting GML literals to JTS Geometry objects.
  *
  * Any known coordinate systems will be converted to CRS84.
+ *
+ * The converter may be used from multiple threads. JAXB marshallers and unmarshallers aren't thread-safe, so each
+ * thread gets its own.
  */
 public class GmlConverter {
-	private Unmarshaller unmarshaller;
-	private Marshaller marshaller;
+	private final JAXBContext context;
+	private final ThreadLocal<Unmarshaller> unmarshaller = new ThreadLocal<>();
+	private final ThreadLocal<Marshaller> marshaller = new ThreadLocal<>();
 
 	public GmlConverter() throws JAXBException {
 		try {
 			ClassLoader cl = ObjectFactory.class.getClassLoader();
-			JAXBContext context = JAXBContext.newInstance("org.jvnet.ogc.gml.v_3_1_1.jts", cl);
-			unmarshaller = context.createUnmarshaller();
-			marshaller = context.createMarshaller();
+			context = JAXBContext.newInstance("org.jvnet.ogc.gml.v_3_1_1.jts", cl);
 		} catch (Throwable e) {
 			e.printStackTrace();
 			throw new RuntimeException(e);
 		}
 	}
 
+	private Unmarshaller getUnmarshaller() throws JAXBException {
+		Unmarshaller u = unmarshaller.get();
+		if (u == null) {
+			u = context.createUnmarshaller();
+			unmarshaller.set(u);
+		}
+		return u;
+	}
+
+	private Marshaller getMarshaller() throws JAXBException {
+		Marshaller m = marshaller.get();
+		if (m == null) {
+			m = context.createMarshaller();
+			marshaller.set(m);
+		}
+		return m;
+	}
+
 	public Geometry gmlToGeometry(String literalValue) throws InvalidGeometryException {
 		try {
-			Geometry g = (Geometry) unmarshaller.unmarshal(new StringReader(literalValue));
+			Geometry g = (Geometry) getUnmarshaller().unmarshal(new StringReader(literalValue));
 			String srsName = (String) g.getUserData();
 			if (srsName != null) {
 				String shortId = CRSUtil.crsUriToShortId(srsName);
@@ -64,7 +84,7 @@ public class GmlConverter {
 	public String geometryToGml(Geometry g) {
 		try {
 			StringWriter sw = new StringWriter();
-			marshaller.marshal(g, sw);
+			getMarshaller().marshal(g, sw);
 			return sw.toString();
 		} catch (JAXBException e) {
 			throw new RuntimeException("Unable to serialize to GML", e);
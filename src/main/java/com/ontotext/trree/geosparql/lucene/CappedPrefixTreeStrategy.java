@@ -0,0 +1,189 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.Cell;
+import org.apache.lucene.spatial.prefix.tree.CellCanPrune;
+import org.apache.lucene.spatial.prefix.tree.CellIterator;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.locationtech.spatial4j.shape.Rectangle;
+import org.locationtech.spatial4j.shape.Shape;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A recursive prefix tree strategy that bounds the number of cells indexed for a single shape.
+ *
+ * The detail level of a shape already follows its size, it is the level whose cells match the distance error
+ * allowed for the shape (a share of its bounding box diagonal). Shapes with long and detailed boundaries may still
+ * need a lot of cells at that level. Such shapes are indexed at the finest level that fits in the bound. The
+ * coarser cells only match more candidates for Intersects and Contains, the exact geometries filter them out.
+ *
+ * The cells of a level are collected only as long as they may still fit, so a large shape never has its cells at
+ * the detail level listed. The search starts at the level whose cells are about as large as the shape would need
+ * if it filled its bounding box with the bound, and moves a level finer or coarser until it finds the finest level
+ * that fits.
+ *
+ * The cells only find candidates, the exact geometries decide which of them are in a relation. Within is answered
+ * as Intersects: the prefix tree query for it drops any shape with a leaf cell outside the query shape, and a
+ * coarsened leaf may reach outside the query shape although the shape itself is inside.
+ *
+ * The strategy is shared by the indexing threads, it keeps only counters.
+ */
+class CappedPrefixTreeStrategy extends RecursivePrefixTreeStrategy {
+	// Distance error of query shapes as a share of their size
+	private final static double QUERY_DIST_ERR_PCT = 0.10;
+
+	private final int maxCells;
+
+	private final LongAdder indexedCells = new LongAdder();
+	private final LongAdder coarsenedShapes = new LongAdder();
+
+	/**
+	 * @param maxCells the maximum number of cells indexed for a shape unless the shape needs more at the top level
+	 */
+	CappedPrefixTreeStrategy(SpatialPrefixTree grid, String fieldName, int maxCells) {
+		super(grid, fieldName);
+		this.maxCells = maxCells;
+		// Cells whose children would all be leaves are indexed as a single leaf
+		setPruneLeafyBranches(true);
+	}
+
+	@Override
+	protected Iterator<Cell> createCellIteratorToIndex(Shape shape, int detailLevel, Iterator<Cell> reuse) {
+		if (!pruneLeafyBranches || isGridAlignedShape(shape)) {
+			// A cell per level, there is nothing to cap
+			return super.createCellIteratorToIndex(shape, detailLevel, reuse);
+		}
+
+		Rectangle bounds = shape.getBoundingBox();
+		double cellSize = Math.max(bounds.getWidth(), bounds.getHeight()) / Math.sqrt(maxCells);
+		int level = Math.max(1, Math.min(detailLevel, grid.getLevelForDistance(cellSize)));
+		List<Cell> cells = collectCells(shape, level);
+		if (cells != null) {
+			for (List<Cell> finer; level < detailLevel && (finer = collectCells(shape, level + 1)) != null; level++) {
+				cells = finer;
+			}
+		} else {
+			while (cells == null && level > 1) {
+				// Roughly a quarter of the cells with each level less
+				level--;
+				cells = collectCells(shape, level);
+			}
+			if (cells == null) {
+				// The top level is indexed whatever its size
+				cells = toList(super.createCellIteratorToIndex(shape, level, null));
+			}
+		}
+
+		if (level < detailLevel) {
+			coarsenedShapes.increment();
+		}
+		indexedCells.add(cells.size());
+		return cells.iterator();
+	}
+
+	/**
+	 * Collects the cells of a shape down to a level the same way as the strategy does with pruning, unless there
+	 * are more than the bound.
+	 *
+	 * @return the cells or null if they don't fit in the bound
+	 */
+	private List<Cell> collectCells(Shape shape, int level) {
+		// Pruning removes at most the children of the cells on the current path, so the traversal stops only when
+		// the cells can't fit anymore
+		Cell worldCell = grid.getWorldCell();
+		int subCells = worldCell instanceof CellCanPrune ? ((CellCanPrune) worldCell).getSubCellsSize() : 0;
+		List<Cell> cells = new ArrayList<>();
+		if (collectCells(worldCell, shape, level, cells, maxCells + level * subCells) < 0
+				|| cells.size() > maxCells) {
+			return null;
+		}
+		return cells;
+	}
+
+	/**
+	 * Adds the cell and its descendants down to the level, replacing the children with the cell itself when they
+	 * are all leaves.
+	 *
+	 * @return 1 if the cell is a leaf, 0 if it isn't, -1 if more than the limit of cells were collected
+	 */
+	private static int collectCells(Cell cell, Shape shape, int level, List<Cell> cells, int limit) {
+		if (cells.size() > limit) {
+			return -1;
+		}
+		if (cell.getLevel() == level) {
+			cell.setLeaf();
+		}
+		if (cell.isLeaf()) {
+			cells.add(cell);
+			return 1;
+		}
+		if (cell.getLevel() != 0) {
+			cells.add(cell);
+		}
+
+		int leaves = 0;
+		for (CellIterator children = cell.getNextLevelCells(shape); children.hasNext(); ) {
+			int leaf = collectCells(children.next(), shape, level, cells, limit);
+			if (leaf < 0) {
+				return -1;
+			}
+			leaves += leaf;
+		}
+		if (cell instanceof CellCanPrune && leaves == ((CellCanPrune) cell).getSubCellsSize()
+				&& cell.getLevel() != 0) {
+			// The children are the last cells added
+			cells.subList(cells.size() - leaves, cells.size()).clear();
+			cell.setLeaf();
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Makes a query for the candidates of the operation, a superset of the shapes in the relation. Contains is
+	 * answered by the cells that cover the query shape, all other operations as Intersects.
+	 */
+	@Override
+	public Query makeQuery(SpatialArgs args) {
+		SpatialArgs indexArgs = args;
+		if (args.getOperation() != SpatialOperation.Contains) {
+			indexArgs = new SpatialArgs(SpatialOperation.Intersects, args.getShape());
+			indexArgs.setDistErr(args.getDistErr());
+			indexArgs.setDistErrPct(args.getDistErrPct());
+		}
+		if (indexArgs.getDistErr() == null && indexArgs.getDistErrPct() == null) {
+			// The candidates are verified anyway, a coarse query shape needs fewer terms
+			indexArgs.setDistErrPct(QUERY_DIST_ERR_PCT);
+		}
+		return super.makeQuery(indexArgs);
+	}
+
+	private static List<Cell> toList(Iterator<Cell> cells) {
+		List<Cell> list = new ArrayList<>();
+		while (cells.hasNext()) {
+			list.add(cells.next());
+		}
+		return list;
+	}
+
+	/**
+	 * @return the number of cells indexed since the strategy was created
+	 */
+	long getIndexedCells() {
+		return indexedCells.sum();
+	}
+
+	/**
+	 * @return the number of shapes indexed coarser than their size calls for since the strategy was created
+	 */
+	long getCoarsenedShapes() {
+		return coarsenedShapes.sum();
+	}
+}
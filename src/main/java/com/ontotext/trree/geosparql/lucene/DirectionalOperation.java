@@ -0,0 +1,105 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.spatial4j.shape.Rectangle;
+import org.locationtech.spatial4j.shape.Shape;
+
+/**
+ * The stSPARQL directional relations, which compare the bounding boxes of two geometries only.
+ *
+ * Each geometry is indexed with the bounds of its envelope as one-dimensional points. A directional relation is a
+ * single range query on one of the bounds, its matches are exact and need only the envelopes of the geometries.
+ */
+public abstract class DirectionalOperation extends SpatialOperation {
+	// Bounds of the envelope of the indexed geometry
+	final static String MIN_X_FIELD = "minX";
+	final static String MIN_Y_FIELD = "minY";
+	final static String MAX_X_FIELD = "maxX";
+	final static String MAX_Y_FIELD = "maxY";
+
+	/**
+	 * The indexed geometry is strictly above the query geometry.
+	 */
+	public static final DirectionalOperation IsAbove = new DirectionalOperation("IsAbove") {
+		@Override
+		Query makeQuery(Envelope query) {
+			return DoublePoint.newRangeQuery(MIN_Y_FIELD, Math.nextUp(query.getMaxY()), Double.POSITIVE_INFINITY);
+		}
+
+		@Override
+		public boolean evaluate(Envelope indexed, Envelope query) {
+			return indexed.getMinY() > query.getMaxY();
+		}
+	};
+
+	/**
+	 * The indexed geometry is strictly below the query geometry.
+	 */
+	public static final DirectionalOperation IsBelow = new DirectionalOperation("IsBelow") {
+		@Override
+		Query makeQuery(Envelope query) {
+			return DoublePoint.newRangeQuery(MAX_Y_FIELD, Double.NEGATIVE_INFINITY, Math.nextDown(query.getMinY()));
+		}
+
+		@Override
+		public boolean evaluate(Envelope indexed, Envelope query) {
+			return indexed.getMaxY() < query.getMinY();
+		}
+	};
+
+	/**
+	 * The indexed geometry is strictly on the left of the query geometry.
+	 */
+	public static final DirectionalOperation IsLeftOf = new DirectionalOperation("IsLeftOf") {
+		@Override
+		Query makeQuery(Envelope query) {
+			return DoublePoint.newRangeQuery(MAX_X_FIELD, Double.NEGATIVE_INFINITY, Math.nextDown(query.getMinX()));
+		}
+
+		@Override
+		public boolean evaluate(Envelope indexed, Envelope query) {
+			return indexed.getMaxX() < query.getMinX();
+		}
+	};
+
+	/**
+	 * The indexed geometry is strictly on the right of the query geometry.
+	 */
+	public static final DirectionalOperation IsRightOf = new DirectionalOperation("IsRightOf") {
+		@Override
+		Query makeQuery(Envelope query) {
+			return DoublePoint.newRangeQuery(MIN_X_FIELD, Math.nextUp(query.getMaxX()), Double.POSITIVE_INFINITY);
+		}
+
+		@Override
+		public boolean evaluate(Envelope indexed, Envelope query) {
+			return indexed.getMinX() > query.getMaxX();
+		}
+	};
+
+	private DirectionalOperation(String name) {
+		super(name);
+	}
+
+	/**
+	 * @return a query for the geometries in this relation to a geometry with the given non-empty envelope
+	 */
+	abstract Query makeQuery(Envelope query);
+
+	/**
+	 * @return true if an indexed geometry with the first envelope is in this relation to one with the second
+	 */
+	public abstract boolean evaluate(Envelope indexed, Envelope query);
+
+	@Override
+	public boolean evaluate(Shape indexedShape, Shape queryShape) {
+		return evaluate(toEnvelope(indexedShape.getBoundingBox()), toEnvelope(queryShape.getBoundingBox()));
+	}
+
+	private static Envelope toEnvelope(Rectangle rectangle) {
+		return new Envelope(rectangle.getMinX(), rectangle.getMaxX(), rectangle.getMinY(), rectangle.getMaxY());
+	}
+}
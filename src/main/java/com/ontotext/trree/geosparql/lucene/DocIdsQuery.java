@@ -0,0 +1,117 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.util.Arrays;
+
+/**
+ * Matches the documents with the given ids. The ids are those of the top-level reader of a single searcher, so
+ * the query must only be run with that searcher.
+ */
+final class DocIdsQuery extends Query {
+	// Sorted ids of the documents in the top-level reader
+	private final int[] docs;
+
+	DocIdsQuery(int[] docs) {
+		this.docs = docs;
+	}
+
+	@Override
+	public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) {
+		return new ConstantScoreWeight(this, boost) {
+			@Override
+			public Scorer scorer(LeafReaderContext context) {
+				int from = lowerBound(context.docBase);
+				int to = lowerBound(context.docBase + context.reader().maxDoc());
+				if (from == to) {
+					return null;
+				}
+				return new ConstantScoreScorer(this, score(), scoreMode, new SliceIterator(context.docBase, from, to));
+			}
+
+			@Override
+			public boolean isCacheable(LeafReaderContext context) {
+				// Used once per searcher
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the index of the first document id that is not less than the given one
+	 */
+	private int lowerBound(int doc) {
+		int idx = Arrays.binarySearch(docs, doc);
+		return idx >= 0 ? idx : -idx - 1;
+	}
+
+	/**
+	 * Iterates over the document ids of a segment.
+	 */
+	private class SliceIterator extends DocIdSetIterator {
+		private final int docBase;
+		private final int from;
+		private final int to;
+		private int idx;
+		private int doc = -1;
+
+		SliceIterator(int docBase, int from, int to) {
+			this.docBase = docBase;
+			this.from = from;
+			this.to = to;
+			this.idx = from;
+		}
+
+		@Override
+		public int docID() {
+			return doc;
+		}
+
+		@Override
+		public int nextDoc() {
+			return doc = idx < to ? docs[idx++] - docBase : NO_MORE_DOCS;
+		}
+
+		@Override
+		public int advance(int target) {
+			while (idx < to && docs[idx] - docBase < target) {
+				idx++;
+			}
+			return nextDoc();
+		}
+
+		@Override
+		public long cost() {
+			return to - from;
+		}
+	}
+
+	@Override
+	public void visit(QueryVisitor visitor) {
+		visitor.visitLeaf(this);
+	}
+
+	@Override
+	public String toString(String field) {
+		return "DocIdsQuery(" + docs.length + " documents)";
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return sameClassAs(other) && Arrays.equals(docs, ((DocIdsQuery) other).docs);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * classHash() + Arrays.hashCode(docs);
+	}
+}
@@ -0,0 +1,271 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Links between features and the geometries they point to with hasDefaultGeometry.
+ *
+ * A feature isn't indexed with a copy of its geometries. Instead each link is a small document in the same index,
+ * so links are committed and rolled back together with the geometries. A link document has the feature and the
+ * geometry packed in two keyword terms, one starting with the geometry and one with the feature. The linked
+ * entities of either side are found by seeking to the 8 bytes of the known id and reading the rest of the terms.
+ *
+ * An instance reads the links visible to one index reader. The features of geometries are looked up for every hit
+ * of a search, so the links of each segment are read into arrays once and kept until the segment is closed. Deletes
+ * don't change a segment's terms, the arrays are filtered by the live documents of the reader.
+ */
+class FeatureLinks {
+	// Keyword form of the feature id, the term the links of a feature are replaced by
+	final static String FEATURE_KEY_FIELD = "featureKey";
+	// Geometry id followed by feature id
+	final static String GEOMETRY_LINK_FIELD = "geometryLink";
+	// Feature id followed by geometry id
+	final static String FEATURE_LINK_FIELD = "featureLink";
+
+	private final static long[] NONE = new long[0];
+
+	// Links of the segments by geometry, shared by the readers of a segment until it is closed
+	private final static Map<IndexReader.CacheKey, SegmentLinks> SEGMENT_LINKS = new ConcurrentHashMap<>();
+
+	private final List<LeafReaderContext> leaves;
+	// Links of each leaf, read on the first lookup of features
+	private SegmentLinks[] segmentLinks;
+
+	FeatureLinks(IndexReader reader) {
+		this.leaves = reader.leaves();
+	}
+
+	/**
+	 * @param geometry a geometry id
+	 * @return the features linked to the geometry
+	 */
+	long[] featuresOf(long geometry) throws IOException {
+		if (segmentLinks == null) {
+			segmentLinks = new SegmentLinks[leaves.size()];
+			for (int i = 0; i < segmentLinks.length; i++) {
+				segmentLinks[i] = segmentLinks(leaves.get(i).reader());
+			}
+		}
+		TLongArrayList result = null;
+		for (int i = 0; i < segmentLinks.length; i++) {
+			SegmentLinks links = segmentLinks[i];
+			Bits liveDocs = leaves.get(i).reader().getLiveDocs();
+			int added = -1;
+			for (int idx = links.first(geometry); idx < links.geometries.length && links.geometries[idx] == geometry;
+				 idx++) {
+				// The documents of a link are next to each other, a replaced link may have several
+				if (liveDocs != null && !liveDocs.get(links.docs[idx])
+						|| added >= 0 && links.features[added] == links.features[idx]) {
+					continue;
+				}
+				if (result == null) {
+					result = new TLongArrayList(1);
+				}
+				result.add(links.features[idx]);
+				added = idx;
+			}
+		}
+		return result == null ? NONE : result.toNativeArray();
+	}
+
+	private static SegmentLinks segmentLinks(LeafReader reader) throws IOException {
+		IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+		if (cacheHelper == null) {
+			return SegmentLinks.of(reader);
+		}
+		IndexReader.CacheKey key = cacheHelper.getKey();
+		SegmentLinks links = SEGMENT_LINKS.get(key);
+		if (links == null) {
+			links = SegmentLinks.of(reader);
+			if (SEGMENT_LINKS.putIfAbsent(key, links) == null) {
+				cacheHelper.addClosedListener(SEGMENT_LINKS::remove);
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * @param feature a feature id
+	 * @return the geometries the feature is linked to
+	 */
+	long[] geometriesOf(long feature) throws IOException {
+		return linked(FEATURE_LINK_FIELD, feature);
+	}
+
+	private long[] linked(String field, long id) throws IOException {
+		TLongArrayList result = null;
+		BytesRef prefix = new BytesRef(encode(id));
+		PostingsEnum postings = null;
+		for (LeafReaderContext leaf : leaves) {
+			Terms terms = leaf.reader().terms(field);
+			if (terms == null) {
+				continue;
+			}
+			TermsEnum termsEnum = terms.iterator();
+			if (termsEnum.seekCeil(prefix) == TermsEnum.SeekStatus.END) {
+				continue;
+			}
+			Bits liveDocs = leaf.reader().getLiveDocs();
+			for (BytesRef term = termsEnum.term(); term != null && hasPrefix(term, id); term = termsEnum.next()) {
+				postings = termsEnum.postings(postings, PostingsEnum.NONE);
+				if (hasLiveDoc(postings, liveDocs)) {
+					if (result == null) {
+						result = new TLongArrayList(1);
+					}
+					result.add(decode(term.bytes, term.offset + Long.BYTES));
+				}
+			}
+		}
+		return result == null ? NONE : result.toNativeArray();
+	}
+
+	/**
+	 * The links of a segment in term order, one entry for each document of a link.
+	 */
+	private static final class SegmentLinks {
+		private final long[] geometries;
+		private final long[] features;
+		private final int[] docs;
+
+		private SegmentLinks(long[] geometries, long[] features, int[] docs) {
+			this.geometries = geometries;
+			this.features = features;
+			this.docs = docs;
+		}
+
+		static SegmentLinks of(LeafReader reader) throws IOException {
+			TLongArrayList geometries = new TLongArrayList();
+			TLongArrayList features = new TLongArrayList();
+			TIntArrayList docs = new TIntArrayList();
+			Terms terms = reader.terms(GEOMETRY_LINK_FIELD);
+			if (terms != null) {
+				TermsEnum termsEnum = terms.iterator();
+				PostingsEnum postings = null;
+				for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+					long geometry = decode(term.bytes, term.offset);
+					long feature = decode(term.bytes, term.offset + Long.BYTES);
+					postings = termsEnum.postings(postings, PostingsEnum.NONE);
+					for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+						geometries.add(geometry);
+						features.add(feature);
+						docs.add(doc);
+					}
+				}
+			}
+			return new SegmentLinks(geometries.toNativeArray(), features.toNativeArray(), docs.toNativeArray());
+		}
+
+		/**
+		 * @return the index of the first link of the geometry or of the next geometry in term order
+		 */
+		int first(long geometry) {
+			// Big-endian terms are in unsigned order
+			int low = 0;
+			int high = geometries.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (Long.compareUnsigned(geometries[mid], geometry) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	private static boolean hasLiveDoc(PostingsEnum postings, Bits liveDocs) throws IOException {
+		for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+			if (liveDocs == null || liveDocs.get(doc)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasPrefix(BytesRef term, long id) {
+		return term.length == 2 * Long.BYTES && decode(term.bytes, term.offset) == id;
+	}
+
+	/**
+	 * Creates the document of a link.
+	 */
+	static Document newLinkDocument(long feature, long geometry) {
+		Document doc = new Document();
+		doc.add(new StringField(FEATURE_KEY_FIELD, featureKey(feature).bytes(), Field.Store.NO));
+		doc.add(new StringField(GEOMETRY_LINK_FIELD, new BytesRef(encode(geometry, feature)), Field.Store.NO));
+		doc.add(new StringField(FEATURE_LINK_FIELD, new BytesRef(encode(feature, geometry)), Field.Store.NO));
+		return doc;
+	}
+
+	/**
+	 * @return the term that identifies all links of a feature
+	 */
+	static Term featureKey(long feature) {
+		return new Term(FEATURE_KEY_FIELD, new BytesRef(encode(feature)));
+	}
+
+	/**
+	 * @return the term that identifies a single link
+	 */
+	static Term linkKey(long feature, long geometry) {
+		return new Term(GEOMETRY_LINK_FIELD, new BytesRef(encode(geometry, feature)));
+	}
+
+	/**
+	 * Adds the live links of a segment to a writer.
+	 *
+	 * @return the number of links added
+	 */
+	static long copyLinks(LeafReader reader, IndexWriter writer) throws IOException {
+		Terms terms = reader.terms(FEATURE_LINK_FIELD);
+		if (terms == null) {
+			return 0;
+		}
+		long count = 0;
+		Bits liveDocs = reader.getLiveDocs();
+		TermsEnum termsEnum = terms.iterator();
+		PostingsEnum postings = null;
+		for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+			postings = termsEnum.postings(postings, PostingsEnum.NONE);
+			if (hasLiveDoc(postings, liveDocs)) {
+				writer.addDocument(newLinkDocument(decode(term.bytes, term.offset),
+						decode(term.bytes, term.offset + Long.BYTES)));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Big-endian so that the terms of an id are next to each other in term order
+	private static byte[] encode(long... ids) {
+		byte[] bytes = new byte[ids.length * Long.BYTES];
+		for (int i = 0; i < ids.length; i++) {
+			for (int b = 0; b < Long.BYTES; b++) {
+				bytes[i * Long.BYTES + b] = (byte) (ids[i] >>> (8 * (Long.BYTES - 1 - b)));
+			}
+		}
+		return bytes;
+	}
+
+	private static long decode(byte[] bytes, int offset) {
+		long value = 0;
+		for (int b = 0; b < Long.BYTES; b++) {
+			value = (value << 8) | (bytes[offset + b] & 0xff);
+		}
+		return value;
+	}
+}
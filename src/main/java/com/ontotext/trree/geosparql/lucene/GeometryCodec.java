@@ -0,0 +1,136 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import com.useekm.indexing.GeoFactory;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.InStream;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.*;
+
+/**
+ * Binary encodings for the geometries stored in the Lucene index.
+ *
+ * The codec used to write an index is recorded in the index commit data so that indexes written with a different
+ * codec can be detected and migrated when the indexer is initialized.
+ */
+public enum GeometryCodec {
+	/**
+	 * Plain Java serialization of the JTS object graph. This is how the geometries were stored before the codec
+	 * was recorded in the index and is kept only so that such indexes can be read and migrated.
+	 */
+	JAVA_SERIALIZATION {
+		@Override
+		public byte[] encode(Geometry geometry) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+				oos.writeObject(geometry);
+			}
+			return bos.toByteArray();
+		}
+
+		@Override
+		public Geometry decode(byte[] bytes, int offset, int length) throws IOException {
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+				return (Geometry) ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+	},
+
+	/**
+	 * OGC Well-Known Binary, with Z values if the geometry has any and with the SRID if it is set. Compact and
+	 * decodes without reflection or object stream overhead. M values aren't kept, JTS reads and writes none.
+	 */
+	WKB {
+		@Override
+		public byte[] encode(Geometry geometry) {
+			// WKBWriter keeps internal buffers and isn't thread-safe, it's cheap to create one per call
+			return new WKBWriter(hasZ(geometry) ? 3 : 2, geometry.getSRID() != 0).write(geometry);
+		}
+
+		@Override
+		public Geometry decode(byte[] bytes, int offset, int length) throws IOException {
+			try {
+				return new WKBReader(GeoFactory.getDefaultGeometryFactory()).read(new RangeInStream(bytes, offset, length));
+			} catch (ParseException e) {
+				throw new IOException(e);
+			}
+		}
+	};
+
+	/**
+	 * @return true if any coordinate of the geometry has a Z value
+	 */
+	private static boolean hasZ(Geometry geometry) {
+		boolean[] found = new boolean[1];
+		geometry.apply(new CoordinateSequenceFilter() {
+			@Override
+			public void filter(CoordinateSequence sequence, int i) {
+				found[0] = sequence.getDimension() > 2 && !Double.isNaN(sequence.getOrdinate(i, CoordinateSequence.Z));
+			}
+
+			@Override
+			public boolean isDone() {
+				return found[0];
+			}
+
+			@Override
+			public boolean isGeometryChanged() {
+				return false;
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * Reads a range of a byte array, so that geometries are decoded in place from the index buffers.
+	 */
+	private static class RangeInStream implements InStream {
+		private final byte[] bytes;
+		private final int end;
+		private int position;
+
+		RangeInStream(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		@Override
+		public void read(byte[] buf) throws IOException {
+			if (buf.length > end - position) {
+				throw new EOFException("Truncated WKB geometry");
+			}
+			System.arraycopy(bytes, position, buf, 0, buf.length);
+			position += buf.length;
+		}
+	}
+
+	/**
+	 * The codec used for newly written indexes.
+	 */
+	public static final GeometryCodec DEFAULT = WKB;
+
+	/**
+	 * Encodes a geometry to bytes.
+	 *
+	 * @param geometry the geometry to encode
+	 * @return the encoded geometry
+	 */
+	public abstract byte[] encode(Geometry geometry) throws IOException;
+
+	/**
+	 * Decodes a geometry from a range of bytes.
+	 *
+	 * @param bytes  a byte array holding the encoded geometry
+	 * @param offset start of the encoded geometry in the array
+	 * @param length length of the encoded geometry
+	 * @return the decoded geometry
+	 */
+	public abstract Geometry decode(byte[] bytes, int offset, int length) throws IOException;
+}
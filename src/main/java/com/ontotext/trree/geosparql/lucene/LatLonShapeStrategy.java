@@ -0,0 +1,243 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonShape;
+import org.apache.lucene.document.ShapeField;
+import org.apache.lucene.geo.Line;
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.DoubleValues;
+import org.apache.lucene.search.DoubleValuesSource;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.SpatialStrategy;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.spatial.query.UnsupportedSpatialOperation;
+import org.locationtech.jts.geom.*;
+import org.locationtech.spatial4j.context.jts.JtsSpatialContext;
+import org.locationtech.spatial4j.distance.DistanceCalculator;
+import org.locationtech.spatial4j.shape.Point;
+import org.locationtech.spatial4j.shape.Shape;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A spatial strategy that indexes shapes as triangles in a BKD tree with Lucene's {@link LatLonShape}.
+ *
+ * Unlike a prefix tree the triangles follow the shape itself, so there is no precision to choose and the size of
+ * the index grows with the number of vertices instead of the area. The coordinates are encoded as integers though,
+ * which moves them by less than a ten-millionth of a degree. Queries are made with the query shape widened by more
+ * than that, so that they match every shape that intersects it and some that are a little away. The exact
+ * geometries filter them out.
+ *
+ * Polygons the tessellator can't handle, i.e. some invalid ones, are indexed by their envelope.
+ */
+class LatLonShapeStrategy extends SpatialStrategy {
+	// Distance the query shape is widened by, well above the error of the encoded coordinates
+	private final static double ENCODING_TOLERANCE = 1e-6;
+
+	LatLonShapeStrategy(JtsSpatialContext ctx, String fieldName) {
+		super(ctx, fieldName);
+	}
+
+	@Override
+	public Field[] createIndexableFields(Shape shape) {
+		List<Field> fields = new ArrayList<>();
+		addFields(toGeometry(shape), fields);
+		return fields.toArray(new Field[0]);
+	}
+
+	private void addFields(Geometry geometry, List<Field> fields) {
+		if (geometry.isEmpty()) {
+			return;
+		}
+		if (geometry instanceof GeometryCollection) {
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				addFields(geometry.getGeometryN(i), fields);
+			}
+		} else if (geometry instanceof org.locationtech.jts.geom.Point) {
+			Coordinate coordinate = geometry.getCoordinate();
+			Collections.addAll(fields, LatLonShape.createIndexableFields(getFieldName(), coordinate.y, coordinate.x));
+		} else if (geometry instanceof LineString) {
+			Collections.addAll(fields, LatLonShape.createIndexableFields(getFieldName(),
+					toLine(geometry.getCoordinates())));
+		} else {
+			try {
+				Collections.addAll(fields, LatLonShape.createIndexableFields(getFieldName(),
+						toPolygon((org.locationtech.jts.geom.Polygon) geometry)));
+			} catch (IllegalArgumentException e) {
+				if (geometry.isRectangle()) {
+					throw e;
+				}
+				// The envelope only matches more candidates
+				addFields(geometry.getFactory().toGeometry(geometry.getEnvelopeInternal()), fields);
+			}
+		}
+	}
+
+	/**
+	 * Makes a query for the candidates of the operation. The query matches all indexed shapes that intersect the
+	 * query shape, which are a superset of the shapes in any relation but disjoint.
+	 */
+	@Override
+	public Query makeQuery(SpatialArgs args) {
+		if (args.getOperation() == SpatialOperation.IsDisjointTo) {
+			throw new UnsupportedSpatialOperation(args.getOperation());
+		}
+		Geometry geometry = toGeometry(args.getShape());
+		if (geometry.isEmpty()) {
+			return new MatchNoDocsQuery();
+		}
+
+		// Buffers with a single segment per quadrant are within 0.7 of the distance at the corners
+		Geometry widened = geometry.isValid() ?
+				geometry.buffer(2 * ENCODING_TOLERANCE, 1) :
+				geometry.getFactory().toGeometry(expand(geometry.getEnvelopeInternal()));
+		List<Polygon> polygons = new ArrayList<>();
+		for (int i = 0; i < widened.getNumGeometries(); i++) {
+			Geometry part = widened.getGeometryN(i);
+			if (part instanceof org.locationtech.jts.geom.Polygon && !part.isEmpty()) {
+				polygons.add(toPolygon((org.locationtech.jts.geom.Polygon) part));
+			}
+		}
+		return LatLonShape.newPolygonQuery(getFieldName(), ShapeField.QueryRelation.INTERSECTS,
+				polygons.toArray(new Polygon[0]));
+	}
+
+	/**
+	 * Makes a source of the distances from the query point to the centres of the envelopes of the indexed shapes,
+	 * read from the bounds that LuceneGeoIndexer adds to every document. The triangles can't be read back.
+	 */
+	@Override
+	public DoubleValuesSource makeDistanceValueSource(Point queryPoint, double multiplier) {
+		return new CentreDistanceValueSource(getSpatialContext().getDistCalc(), queryPoint, multiplier);
+	}
+
+	private static final class CentreDistanceValueSource extends DoubleValuesSource {
+		private final DistanceCalculator calculator;
+		private final Point queryPoint;
+		private final double multiplier;
+
+		CentreDistanceValueSource(DistanceCalculator calculator, Point queryPoint, double multiplier) {
+			this.calculator = calculator;
+			this.queryPoint = queryPoint;
+			this.multiplier = multiplier;
+		}
+
+		@Override
+		public DoubleValues getValues(LeafReaderContext ctx, DoubleValues scores) throws IOException {
+			LeafReader reader = ctx.reader();
+			NumericDocValues minXs = DocValues.getNumeric(reader, DirectionalOperation.MIN_X_FIELD);
+			NumericDocValues minYs = DocValues.getNumeric(reader, DirectionalOperation.MIN_Y_FIELD);
+			NumericDocValues maxXs = DocValues.getNumeric(reader, DirectionalOperation.MAX_X_FIELD);
+			NumericDocValues maxYs = DocValues.getNumeric(reader, DirectionalOperation.MAX_Y_FIELD);
+			return new DoubleValues() {
+				private double distance;
+
+				@Override
+				public double doubleValue() {
+					return distance;
+				}
+
+				@Override
+				public boolean advanceExact(int doc) throws IOException {
+					// Empty shapes have no bounds
+					if (!minXs.advanceExact(doc) || !minYs.advanceExact(doc) || !maxXs.advanceExact(doc)
+							|| !maxYs.advanceExact(doc)) {
+						return false;
+					}
+					double x = (Double.longBitsToDouble(minXs.longValue())
+							+ Double.longBitsToDouble(maxXs.longValue())) / 2;
+					double y = (Double.longBitsToDouble(minYs.longValue())
+							+ Double.longBitsToDouble(maxYs.longValue())) / 2;
+					distance = calculator.distance(queryPoint, x, y) * multiplier;
+					return true;
+				}
+			};
+		}
+
+		@Override
+		public boolean needsScores() {
+			return false;
+		}
+
+		@Override
+		public DoubleValuesSource rewrite(IndexSearcher reader) {
+			return this;
+		}
+
+		@Override
+		public boolean isCacheable(LeafReaderContext ctx) {
+			return DocValues.isCacheable(ctx, DirectionalOperation.MIN_X_FIELD, DirectionalOperation.MIN_Y_FIELD,
+					DirectionalOperation.MAX_X_FIELD, DirectionalOperation.MAX_Y_FIELD);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CentreDistanceValueSource)) {
+				return false;
+			}
+			CentreDistanceValueSource other = (CentreDistanceValueSource) o;
+			return calculator.equals(other.calculator) && queryPoint.equals(other.queryPoint)
+					&& multiplier == other.multiplier;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(calculator, queryPoint, multiplier);
+		}
+
+		@Override
+		public String toString() {
+			return "distance from " + queryPoint + " to the centres of the bounds";
+		}
+	}
+
+	private Geometry toGeometry(Shape shape) {
+		return ((JtsSpatialContext) getSpatialContext()).getShapeFactory().getGeometryFrom(shape);
+	}
+
+	private static Envelope expand(Envelope envelope) {
+		Envelope expanded = new Envelope(envelope);
+		expanded.expandBy(2 * ENCODING_TOLERANCE);
+		return expanded;
+	}
+
+	private static Line toLine(Coordinate[] coordinates) {
+		double[] lats = new double[coordinates.length];
+		double[] lons = new double[coordinates.length];
+		for (int i = 0; i < coordinates.length; i++) {
+			lats[i] = coordinates[i].y;
+			lons[i] = coordinates[i].x;
+		}
+		return new Line(lats, lons);
+	}
+
+	private static Polygon toPolygon(org.locationtech.jts.geom.Polygon polygon) {
+		Polygon[] holes = new Polygon[polygon.getNumInteriorRing()];
+		for (int i = 0; i < holes.length; i++) {
+			holes[i] = toPolygon(polygon.getInteriorRingN(i).getCoordinates());
+		}
+		return toPolygon(polygon.getExteriorRing().getCoordinates(), holes);
+	}
+
+	private static Polygon toPolygon(Coordinate[] ring, Polygon... holes) {
+		double[] lats = new double[ring.length];
+		double[] lons = new double[ring.length];
+		for (int i = 0; i < ring.length; i++) {
+			// Widened query shapes may reach past the poles and the dateline
+			lats[i] = Math.max(-90, Math.min(90, ring[i].y));
+			lons[i] = Math.max(-180, Math.min(180, ring[i].x));
+		}
+		return new Polygon(lats, lons, holes);
+	}
+}
@@ -0,0 +1,119 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import com.ontotext.trree.geosparql.BatchMatches;
+import com.ontotext.trree.geosparql.EntityGeometryIterator;
+import com.ontotext.trree.sdk.PluginException;
+import gnu.trove.TDoubleArrayList;
+import gnu.trove.TIntArrayList;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+
+import java.io.IOException;
+
+/**
+ * Hits of a Lucene query for several geometries. Only the ids of the matching documents and the envelopes read
+ * from their bounds doc values are kept. Each selection streams the documents whose envelopes intersect the
+ * selected geometry through a {@link LuceneEntityGeometryIterator} on the same searcher, which decodes them as
+ * they are iterated.
+ */
+class LuceneBatchMatches implements BatchMatches {
+	private final SearcherManager searcherManager;
+	private final IndexSearcher searcher;
+	private final GeometryCodec geometryCodec;
+	private boolean closed;
+
+	// Ids of the matching documents in the top-level reader, in index order
+	private final TIntArrayList docs = new TIntArrayList();
+	// Envelopes of the matching documents as minX, maxX, minY and maxY
+	private final TDoubleArrayList envelopes = new TDoubleArrayList();
+
+	/**
+	 * Runs the query on a searcher acquired from the provided SearcherManager. The searcher is released once the
+	 * hits and all iterators over them are closed.
+	 */
+	LuceneBatchMatches(SearcherManager searcherManager, IndexSearcher searcher, Query query,
+					   GeometryCodec geometryCodec) throws IOException {
+		this.searcherManager = searcherManager;
+		this.searcher = searcher;
+		this.geometryCodec = geometryCodec;
+
+		Weight weight = searcher.createWeight(searcher.rewrite(new ConstantScoreQuery(query)),
+				ScoreMode.COMPLETE_NO_SCORES, 1f);
+		for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+			Scorer scorer = weight.scorer(leaf);
+			if (scorer == null) {
+				continue;
+			}
+			LeafReader reader = leaf.reader();
+			Bits liveDocs = reader.getLiveDocs();
+			NumericDocValues minXs = DocValues.getNumeric(reader, DirectionalOperation.MIN_X_FIELD);
+			NumericDocValues minYs = DocValues.getNumeric(reader, DirectionalOperation.MIN_Y_FIELD);
+			NumericDocValues maxXs = DocValues.getNumeric(reader, DirectionalOperation.MAX_X_FIELD);
+			NumericDocValues maxYs = DocValues.getNumeric(reader, DirectionalOperation.MAX_Y_FIELD);
+			TwoPhaseIterator twoPhase = scorer.twoPhaseIterator();
+			DocIdSetIterator iterator = twoPhase != null ? twoPhase.approximation() : scorer.iterator();
+			for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+				// Geometries without bounds are empty and match nothing, feature links have no geometry
+				if ((liveDocs == null || liveDocs.get(doc)) && minXs.advanceExact(doc) && minYs.advanceExact(doc)
+						&& maxXs.advanceExact(doc) && maxYs.advanceExact(doc)
+						&& (twoPhase == null || twoPhase.matches())) {
+					docs.add(leaf.docBase + doc);
+					envelopes.add(Double.longBitsToDouble(minXs.longValue()));
+					envelopes.add(Double.longBitsToDouble(maxXs.longValue()));
+					envelopes.add(Double.longBitsToDouble(minYs.longValue()));
+					envelopes.add(Double.longBitsToDouble(maxYs.longValue()));
+				}
+			}
+		}
+	}
+
+	@Override
+	public EntityGeometryIterator select(Geometry geometry) {
+		Envelope envelope = geometry.getEnvelopeInternal();
+		TIntArrayList selected = new TIntArrayList();
+		for (int i = 0; i < docs.size(); i++) {
+			int offset = 4 * i;
+			if (envelopes.get(offset) <= envelope.getMaxX() && envelopes.get(offset + 1) >= envelope.getMinX()
+					&& envelopes.get(offset + 2) <= envelope.getMaxY() && envelopes.get(offset + 3) >= envelope.getMinY()) {
+				selected.add(docs.get(i));
+			}
+		}
+
+		// The iterator releases its own reference to the searcher when it is closed
+		searcher.getIndexReader().incRef();
+		try {
+			return new LuceneEntityGeometryIterator(searcherManager, searcher,
+					new DocIdsQuery(selected.toNativeArray()), 0, geometryCodec,
+					LuceneEntityGeometryIterator.Mode.GEOMETRIES);
+		} catch (Exception e) {
+			try {
+				searcherManager.release(searcher);
+			} catch (IOException x) {
+				// ignore
+			}
+			throw new PluginException("Unable to execute Lucene query.", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			searcherManager.release(searcher);
+		}
+	}
+}
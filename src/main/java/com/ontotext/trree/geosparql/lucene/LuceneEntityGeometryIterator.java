@@ -1,41 +1,130 @@
 package com.ontotext.trree.geosparql.lucene;
 
 import com.ontotext.trree.geosparql.EntityGeometryIterator;
+import com.ontotext.trree.geosparql.GeometryKind;
+import com.useekm.indexing.GeoFactory;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
-import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
 
 /**
  * An EntityGeometryIterator implementation that returns all Geometries matching a Lucene query.
+ *
+ * Spatial queries are pure filters, so the matching documents are streamed segment by segment in index order
+ * without scoring. The query runs once and only as far as the consumer iterates, a document is matched only when
+ * the previous one was consumed. The id and the geometry of each document are read from doc values, which are
+ * read sequentially as the documents come in order. Points aren't encoded, they are read from their bounds.
+ *
+ * For relations that need only the envelopes of the geometries, the iterator can return the envelopes read from
+ * the doc values of their bounds instead of decoding the geometries. With a proxy filter, geometries whose envelopes
+ * it accepts are returned as proxies instead of being decoded.
+ *
+ * For disjoint relations the iterator returns all geometries and the query matches those whose envelopes
+ * overlap the envelope of the searched geometry. The matching documents are collected per segment in a bit set,
+ * only their geometries are decoded. The others are disjoint from the searched geometry and are returned as a
+ * proxy of the same {@link GeometryKind} within their envelope, which has the same DE-9IM matrix with it.
+ *
+ * Features share the documents of the geometries they are linked to. Each geometry is returned for its own entity
+ * and then for every feature linked to it, or only for a given entity when the geometries of that entity are
+ * requested.
  */
 class LuceneEntityGeometryIterator implements EntityGeometryIterator {
-	private final static int PAGE_SIZE = 1000;
+	/**
+	 * What is returned for the documents.
+	 */
+	enum Mode {
+		// The geometries of the matching documents
+		GEOMETRIES,
+		// The envelopes of the matching documents, documents without an envelope are skipped
+		ENVELOPES,
+		// The geometries of the matching documents and proxies of the geometries of all other documents
+		DISJOINT
+	}
+
+	private final static long[] NO_FEATURES = new long[0];
+	private final static GeometryKind[] KINDS = GeometryKind.values();
 
-	private int page;
-	private TopDocs topDocs;
+	private final SearcherManager searcherManager;
 	private final IndexSearcher searcher;
-	private Query query;
+	private boolean closed;
+	private final Weight weight;
+	private final List<LeafReaderContext> leaves;
+	private final GeometryCodec geometryCodec;
+	private final Mode mode;
+	// The entity all geometries are returned for or 0 to return them for their own entities and linked features
+	private final long entity;
+	private final FeatureLinks featureLinks;
+	private Predicate<Envelope> proxyFilter;
+
+	// Current segment and the matching documents in it
+	private int leafIndex = -1;
+	private Bits liveDocs;
+	private DocIdSetIterator approximation;
+	private TwoPhaseIterator twoPhase;
+	private NumericDocValues ids;
+	private BinaryDocValues geoDatas;
+	private NumericDocValues minXs, minYs, maxXs, maxYs;
+	private NumericDocValues kinds;
+	// Whether the current document has an encoded geometry
+	private boolean encoded;
+	// Matching documents of the segment in disjoint mode, null if there are none
+	private FixedBitSet overlapping;
 
-	private int idx = -1;
-	private int geoDatasIndex = 0;
-	private BytesRef[] geoDatas;
+	// Features the last geometry is still to be returned for
+	private long[] features = NO_FEATURES;
+	private int featureIdx;
+
+	// Whether the next matching document was looked up and, if so, whether there is one
+	private boolean docPending;
+	private boolean hasNextDoc;
 
 	private long entityId;
 	private Geometry geometry;
 
-	LuceneEntityGeometryIterator(IndexSearcher searcher, Query query) throws IOException {
+	/**
+	 * Creates an iterator over a searcher acquired from the provided SearcherManager. The searcher is released
+	 * when the iterator is closed.
+	 *
+	 * @param entity the entity to return all geometries for, matched by the query or linked to the entity if it is
+	 *               a feature, or 0 to return the geometries matched by the query for their entities
+	 * @param mode   what to return for the documents
+	 */
+	LuceneEntityGeometryIterator(SearcherManager searcherManager, IndexSearcher searcher, Query query, long entity,
+								 GeometryCodec geometryCodec, Mode mode) throws IOException {
+		this.searcherManager = searcherManager;
 		this.searcher = searcher;
-		this.query = query;
-
-		// Get initial page
-		// Note that PAGE_SIZE is currently 1000 and Lucene will track total hits up to 1000+1 by default so it's ok
-		// to just use the searcher like this. If page size goes > 1000 or Lucene's total hits tracking default changes
-		// we'll need to use a TopDocsCollector.
-		topDocs = searcher.search(query, PAGE_SIZE);
-		page = 1;
+		this.geometryCodec = geometryCodec;
+		this.mode = mode;
+		this.entity = entity;
+		this.featureLinks = new FeatureLinks(searcher.getIndexReader());
+
+		if (entity != 0) {
+			long[] geometries = featureLinks.geometriesOf(entity);
+			if (geometries.length > 0) {
+				query = new BooleanQuery.Builder()
+						.add(query, BooleanClause.Occur.SHOULD)
+						.add(new TermInSetQuery(LuceneGeoIndexer.ID_KEY_FIELD, idKeys(geometries)),
+								BooleanClause.Occur.SHOULD)
+						.build();
+			}
+		}
+
+		Query constantScoreQuery = searcher.rewrite(new ConstantScoreQuery(query));
+		this.weight = searcher.createWeight(constantScoreQuery, ScoreMode.COMPLETE_NO_SCORES, 1f);
+		this.leaves = searcher.getIndexReader().leaves();
 	}
 
 	@Override
@@ -49,24 +138,86 @@ class LuceneEntityGeometryIterator implements EntityGeometryIterator {
 			return null;
 		}
 
+		if (featureIdx < features.length) {
+			// the same geometry for the next linked feature
+			entityId = features[featureIdx++];
+			return geometry;
+		}
+
+		docPending = false;
 		try {
-			if (geoDatas != null && geoDatasIndex + 1 < geoDatas.length) {
-				// next geometry
-				geoDatasIndex++;
-			} else if (idx + 1 < topDocs.scoreDocs.length) {
-				// next doc
-				advanceLuceneDocument();
+			int doc = approximation.docID();
+			if (!ids.advanceExact(doc)) {
+				throw new IllegalStateException("Missing id for document " + doc);
+			}
+			if (entity != 0) {
+				entityId = entity;
 			} else {
-				// next page
-				advanceLucenePage();
+				entityId = ids.longValue();
+				features = featureLinks.featuresOf(entityId);
+				featureIdx = 0;
+			}
+
+			if (mode == Mode.ENVELOPES) {
+				return geometry = GeoFactory.getDefaultGeometryFactory().toGeometry(readEnvelope(doc));
+			}
+			if (mode == Mode.DISJOINT && (overlapping == null || !overlapping.get(doc))) {
+				Geometry proxy = readProxy(doc, null);
+				if (proxy != null) {
+					return geometry = proxy;
+				}
 			}
 
-			return geometry = LuceneGeoIndexer.fieldValueToGeometry(geoDatas[geoDatasIndex].bytes);
+			if (!encoded) {
+				// Read from the bounds as cheaply as a proxy
+				return geometry = LuceneGeoIndexer.readPoint(minXs, minYs, doc);
+			}
+			if (proxyFilter != null) {
+				Geometry proxy = readProxy(doc, proxyFilter);
+				if (proxy != null) {
+					return geometry = proxy;
+				}
+			}
+			// Decoded in place, the bytes are only valid until the doc values move on
+			BytesRef geoData = geoDatas.binaryValue();
+			return geometry = geometryCodec.decode(geoData.bytes, geoData.offset, geoData.length);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * @return the envelope of the geometry of the document or null if it has none
+	 */
+	private Envelope readEnvelope(int doc) throws IOException {
+		if (!minXs.advanceExact(doc) || !minYs.advanceExact(doc) || !maxXs.advanceExact(doc)
+				|| !maxYs.advanceExact(doc)) {
+			return null;
+		}
+		return new Envelope(
+				Double.longBitsToDouble(minXs.longValue()), Double.longBitsToDouble(maxXs.longValue()),
+				Double.longBitsToDouble(minYs.longValue()), Double.longBitsToDouble(maxYs.longValue()));
+	}
+
+	/**
+	 * @param filter accepts the envelopes of the geometries that may be replaced by a proxy or null to accept all
+	 * @return a proxy of the geometry of the document or null if the geometry must be decoded
+	 */
+	private Geometry readProxy(int doc, Predicate<Envelope> filter) throws IOException {
+		if (!kinds.advanceExact(doc)) {
+			return null;
+		}
+		Envelope envelope = readEnvelope(doc);
+		return envelope != null && (filter == null || filter.test(envelope)) ?
+				KINDS[(int) kinds.longValue()].proxy(envelope, GeoFactory.getDefaultGeometryFactory()) :
+				null;
+	}
+
+	@Override
+	public void setProxyFilter(Predicate<Envelope> proxyFilter) {
+		this.proxyFilter = proxyFilter;
+	}
+
 	@Override
 	public Geometry lastGeometry() {
 		return geometry;
@@ -74,43 +225,115 @@ class LuceneEntityGeometryIterator implements EntityGeometryIterator {
 
 	@Override
 	public boolean hasNextGeometry() {
-		return  // There are more geometries in this document
-				(geoDatas != null && geoDatasIndex + 1 < geoDatas.length)
-				// There are more documents in this page
-				|| idx + 1 < topDocs.scoreDocs.length
-				// Lucene has more pages
-				|| page * PAGE_SIZE < topDocs.totalHits.value;
+		if (featureIdx < features.length) {
+			return true;
+		}
+		if (!docPending) {
+			try {
+				hasNextDoc = advanceLuceneDocument();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			docPending = true;
+		}
+		return hasNextDoc;
 	}
 
 	@Override
 	public void advanceToNextEntity() {
-		geoDatas = null;
+		// Each document holds a single geometry and each linked feature is another entity
 	}
 
 	@Override
 	public void close() throws IOException {
-		searcher.getIndexReader().close();
+		if (!closed) {
+			closed = true;
+			searcherManager.release(searcher);
+		}
 	}
 
-	private boolean advanceLucenePage() throws IOException {
-		if (page * PAGE_SIZE < topDocs.totalHits.value) {
-			// Still more results to collect
-			topDocs = searcher.searchAfter(topDocs.scoreDocs[topDocs.scoreDocs.length - 1], query, PAGE_SIZE);
-			page++;
-			idx = -1;
-			advanceLuceneDocument();
-			return true;
+	private boolean hasGeometry(int doc) throws IOException {
+		if (mode == Mode.ENVELOPES) {
+			return readEnvelope(doc) != null;
+		}
+		encoded = geoDatas.advanceExact(doc);
+		// Points have bounds only
+		return encoded || minXs.advanceExact(doc);
+	}
+
+	/**
+	 * Moves to the next live document that matches the query, moving on to the next segments as needed.
+	 *
+	 * @return false if there are no more matching documents
+	 */
+	private boolean advanceLuceneDocument() throws IOException {
+		while (true) {
+			if (approximation != null) {
+				for (int doc = approximation.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+					 doc = approximation.nextDoc()) {
+					// The deleted check is cheap, the exact spatial match may not be. Feature links have no geometry.
+					if ((liveDocs == null || liveDocs.get(doc)) && hasGeometry(doc)
+							&& (twoPhase == null || twoPhase.matches())) {
+						return true;
+					}
+				}
+				approximation = null;
+			}
+
+			if (++leafIndex >= leaves.size()) {
+				return false;
+			}
+			LeafReaderContext leaf = leaves.get(leafIndex);
+			LeafReader reader = leaf.reader();
+			Scorer scorer = weight.scorer(leaf);
+			if (mode == Mode.DISJOINT) {
+				// All documents, the matching ones are only the ones to decode
+				overlapping = collect(scorer, reader.maxDoc());
+				twoPhase = null;
+				approximation = DocIdSetIterator.all(reader.maxDoc());
+			} else if (scorer != null) {
+				twoPhase = scorer.twoPhaseIterator();
+				approximation = twoPhase != null ? twoPhase.approximation() : scorer.iterator();
+			} else {
+				continue;
+			}
+
+			// Scorers don't skip deleted documents
+			liveDocs = reader.getLiveDocs();
+			ids = DocValues.getNumeric(reader, "id");
+			geoDatas = DocValues.getBinary(reader, "geoData");
+			minXs = DocValues.getNumeric(reader, DirectionalOperation.MIN_X_FIELD);
+			minYs = DocValues.getNumeric(reader, DirectionalOperation.MIN_Y_FIELD);
+			// Also read for proxies in any mode
+			maxXs = DocValues.getNumeric(reader, DirectionalOperation.MAX_X_FIELD);
+			maxYs = DocValues.getNumeric(reader, DirectionalOperation.MAX_Y_FIELD);
+			kinds = DocValues.getNumeric(reader, LuceneGeoIndexer.KIND_FIELD);
 		}
-		return false;
 	}
 
-	private void advanceLuceneDocument() throws IOException {
-		idx++;
-		geoDatasIndex = 0;
-		ScoreDoc d = topDocs.scoreDocs[idx];
-		Document doc = searcher.doc(d.doc);
+	private static List<BytesRef> idKeys(long[] ids) {
+		List<BytesRef> idKeys = new ArrayList<>(ids.length);
+		for (long id : ids) {
+			idKeys.add(new BytesRef(Long.toString(id)));
+		}
+		return idKeys;
+	}
 
-		entityId = (Long) doc.getField("id").numericValue();
-		geoDatas = doc.getBinaryValues("geoData");
+	/**
+	 * @return the documents matched by the scorer in a bit set or null if there are none
+	 */
+	private static FixedBitSet collect(Scorer scorer, int maxDoc) throws IOException {
+		if (scorer == null) {
+			return null;
+		}
+		FixedBitSet bits = new FixedBitSet(maxDoc);
+		TwoPhaseIterator twoPhase = scorer.twoPhaseIterator();
+		DocIdSetIterator iterator = twoPhase != null ? twoPhase.approximation() : scorer.iterator();
+		for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+			if (twoPhase == null || twoPhase.matches()) {
+				bits.set(doc);
+			}
+		}
+		return bits;
 	}
 }
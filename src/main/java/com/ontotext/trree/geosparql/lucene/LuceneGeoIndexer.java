@@ -1,62 +1,147 @@
 package com.ontotext.trree.geosparql.lucene;
 
+import com.ontotext.trree.geosparql.BatchMatches;
 import com.ontotext.trree.geosparql.EntityGeometryIterator;
 import com.ontotext.trree.geosparql.GeoSparqlConfig;
 import com.ontotext.trree.geosparql.GeoSparqlIndexer;
 import com.ontotext.trree.geosparql.GeoSparqlPlugin;
+import com.ontotext.trree.geosparql.GeometryKind;
 import com.ontotext.trree.sdk.PluginException;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.spatial.SpatialStrategy;
-import org.apache.lucene.spatial.composite.CompositeSpatialStrategy;
-import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
 import org.apache.lucene.spatial.prefix.tree.GeohashPrefixTree;
 import org.apache.lucene.spatial.prefix.tree.QuadPrefixTree;
 import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
 import org.apache.lucene.spatial.query.SpatialArgs;
 import org.apache.lucene.spatial.query.SpatialOperation;
-import org.apache.lucene.spatial.serialized.SerializedDVStrategy;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import com.useekm.indexing.GeoFactory;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
 import org.locationtech.spatial4j.context.jts.JtsSpatialContext;
 import org.locationtech.spatial4j.shape.jts.JtsGeometry;
 import org.slf4j.Logger;
+import gnu.trove.TLongHashSet;
 
 import java.io.*;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 /**
  * Lucene implementation of the GeoSPARQL indexer.
  */
 public class LuceneGeoIndexer implements GeoSparqlIndexer {
+	// Keys in the Lucene commit user data that describe how the index was written
+	final static String INDEX_FORMAT_KEY = "geosparql.indexFormat";
+	final static String GEOMETRY_CODEC_KEY = "geosparql.geometryCodec";
+	// Key in the Lucene commit user data of the last index log frame the commit contains
+	final static String LOG_SEQUENCE_KEY = "geosparql.logSequence";
+	// Key in the Lucene commit user data set while features have copies of their geometries, see hasFeatureCopies()
+	final static String FEATURE_COPIES_KEY = "geosparql.featureCopies";
+
+	// Bump whenever the document layout changes in a way that requires existing indexes to be rewritten.
+	// Indexes without a format marker are format 1 and store geometries with Java serialization.
+	// Format 3 adds the keyword id and the geometry hash.
+	// Format 4 keeps the id and the geometry in doc values, the geometry isn't a stored field anymore.
+	// Format 5 links features to their geometries instead of indexing copies of the geometries for them. The
+	// copies in older indexes can't be told apart from geometries, they are rewritten as geometries of the features
+	// and replaced by links from the statements, see hasFeatureCopies().
+	// Format 6 adds the bounds of the envelope, format 7 the kind of the geometry. Format 8 indexes points by their
+	// coordinates only. Format 9 drops the serialized copy of the geometry and keeps the id only as a term and in doc
+	// values. Indexes of all formats are rewritten.
+	final static int INDEX_FORMAT = 9;
+	private final static int LEGACY_INDEX_FORMAT = 1;
+	// Oldest format with the id and the geometry in doc values, older ones have them in stored fields
+	private final static int DOC_VALUES_INDEX_FORMAT = 4;
+	private final static int FEATURE_LINKS_INDEX_FORMAT = 5;
+
+	// Keyword form of the subject id, the term documents of a subject are replaced by
+	final static String ID_KEY_FIELD = "idKey";
+	// Hash of the encoded geometry of the document, used to detect updates that don't change anything
+	private final static String GEO_HASH_FIELD = "geoHash";
+	// GeometryKind ordinal of the geometry, missing for empty and mixed geometries
+	final static String KIND_FIELD = "kind";
+	// Two-dimensional coordinates of a point, points have neither prefix tree cells nor an encoded geometry
+	private final static String POINT_FIELD = "point";
+
+	// Upper bound of the prefix tree cells, i.e. terms, indexed for a single geometry
+	final static int MAX_CELLS_PER_GEOMETRY = 4096;
 
-	private final static FieldType GEO_DATA_FIELD_TYPE = new FieldType();
+	private GeoSparqlPlugin parent;
 
-	static {
-		GEO_DATA_FIELD_TYPE.setStored(true);
-		GEO_DATA_FIELD_TYPE.setIndexOptions(IndexOptions.NONE);
-		GEO_DATA_FIELD_TYPE.freeze();
-	}
+	private final GeometryCodec geometryCodec;
 
-	private GeoSparqlPlugin parent;
+	// Settings of the index, the current settings in the plugin config if not given
+	private final GeoSparqlConfig.PrefixTree prefixTree;
+	private final int precision;
 
 	private JtsSpatialContext ctx;
 
     private SpatialStrategy strategy;
+    private CappedPrefixTreeStrategy rptStrategy;
     private Path indexDir;
 
     private Directory directory;
 
-    private IndexWriterConfig iwConfig;
     private IndexWriter indexWriter;
+    private SearcherManager searcherManager;
     private Logger logger;
 
+	// Subjects and features written since begin(), their documents in the last commit may be outdated
+	private final TLongHashSet updatedSubjects = new TLongHashSet();
+	private final TLongHashSet updatedFeatures = new TLongHashSet();
+	// Whether all documents were deleted since begin(), the last commit is outdated as a whole
+	private boolean cleared;
+
+	// Statistics of the geometries seen by the searcher, summed from the histograms of its segments
+	private volatile SpatialHistogram histogram = new SpatialHistogram();
+	private final Map<IndexReader.CacheKey, SpatialHistogram> segmentHistograms = new HashMap<>();
+
+	// Format and codec of the open index, older than the current ones only if the index must be reindexed
+	private int indexFormat = INDEX_FORMAT;
+	private GeometryCodec indexCodec;
+	// Whether the index was migrated from a format that indexed copies of the geometries for the features
+	private boolean featureCopies;
+
+	// Index log frame recorded by the last commit and the one the next commit records
+	private long committedLogSequence;
+	private long logSequence;
+
 	public LuceneGeoIndexer(GeoSparqlPlugin parent) {
+		this(parent, GeometryCodec.DEFAULT);
+	}
+
+	public LuceneGeoIndexer(GeoSparqlPlugin parent, GeometryCodec geometryCodec) {
+		this(parent, geometryCodec, null, null, 0);
+	}
+
+	/**
+	 * @param indexDir   directory of the index, null for the default index directory of the plugin
+	 * @param prefixTree prefix tree of the index, null for the current prefix tree in the plugin config
+	 * @param precision  precision of the index, ignored without a prefix tree
+	 */
+	public LuceneGeoIndexer(GeoSparqlPlugin parent, GeometryCodec geometryCodec, Path indexDir,
+							GeoSparqlConfig.PrefixTree prefixTree, int precision) {
 		this.parent = parent;
+		this.geometryCodec = geometryCodec;
+		this.indexCodec = geometryCodec;
+		this.indexDir = indexDir;
+		this.prefixTree = prefixTree;
+		this.precision = precision;
 	}
 
 
@@ -66,36 +151,179 @@ public class LuceneGeoIndexer implements GeoSparqlIndexer {
 
 		this.ctx = JtsSpatialContext.GEO;
 
-        this.indexDir = GeoSparqlConfig.resolveIndexPath(parent.getDataDir().toPath());
+		if (indexDir == null) {
+			this.indexDir = GeoSparqlConfig.resolveIndexPath(parent.getDataDir().toPath());
+		}
 
 		this.directory = FSDirectory.open(indexDir);
 
 		initSettings();
+
+		if (DirectoryReader.indexExists(directory)) {
+			Map<String, String> commitData = SegmentInfos.readLatestCommit(directory).getUserData();
+			committedLogSequence = Long.parseLong(commitData.getOrDefault(LOG_SEQUENCE_KEY, "0"));
+			logSequence = committedLogSequence;
+			featureCopies = Boolean.parseBoolean(commitData.get(FEATURE_COPIES_KEY));
+		}
+
+		migrateIndexFormat();
+
+		openIndexWriter();
+	}
+
+	/**
+	 * Opens the writer that is kept open between transactions. Merges triggered by a commit keep running in the
+	 * background after the transaction is over.
+	 *
+	 * Queries share a near-real-time searcher on the writer. It is refreshed only on commit() and refresh(), so
+	 * queries never see the changes of a transaction in progress.
+	 */
+	private void openIndexWriter() throws IOException {
+		indexWriter = new IndexWriter(directory, newIndexWriterConfig());
+		indexWriter.setLiveCommitData(indexFormatCommitData().entrySet());
+
+		SearcherManager previous = searcherManager;
+		searcherManager = new SearcherManager(indexWriter, true, false, null);
+		searcherManager.addListener(new ReferenceManager.RefreshListener() {
+			@Override
+			public void beforeRefresh() {
+			}
+
+			@Override
+			public void afterRefresh(boolean didRefresh) throws IOException {
+				if (didRefresh) {
+					updateHistogram();
+				}
+			}
+		});
+		updateHistogram();
+		if (previous != null) {
+			// Searchers acquired before stay usable until released
+			previous.close();
+		}
+	}
+
+	/**
+	 * Sums the histograms of the segments of the current searcher. Only segments that weren't seen before are
+	 * read, deleted documents are accounted for by the share of live documents in each segment.
+	 */
+	private synchronized void updateHistogram() throws IOException {
+		IndexSearcher indexSearcher = searcherManager.acquire();
+		try {
+			SpatialHistogram sum = new SpatialHistogram();
+			Map<IndexReader.CacheKey, SpatialHistogram> seen = new HashMap<>();
+			for (LeafReaderContext leaf : indexSearcher.getIndexReader().leaves()) {
+				LeafReader reader = leaf.reader();
+				if (reader.maxDoc() == 0) {
+					continue;
+				}
+				IndexReader.CacheHelper cacheHelper = reader.getCoreCacheHelper();
+				SpatialHistogram segment = cacheHelper != null ? segmentHistograms.get(cacheHelper.getKey()) : null;
+				if (segment == null) {
+					segment = SpatialHistogram.of(reader);
+				}
+				if (cacheHelper != null) {
+					seen.put(cacheHelper.getKey(), segment);
+				}
+				sum.add(segment, (double) reader.numDocs() / reader.maxDoc());
+			}
+			// Forget merged away segments
+			segmentHistograms.keySet().retainAll(seen.keySet());
+			segmentHistograms.putAll(seen);
+			histogram = sum;
+		} finally {
+			searcherManager.release(indexSearcher);
+		}
 	}
 
 	private Document newGeoDocument(long id, Geometry geometry) {
-		final Document doc = new Document();
-		doc.add(new LongPoint("id", id));
-		doc.add(new StoredField("id", id));
+		return newGeoDocument(id, geometry, encodeGeometry(geometry));
+	}
 
-        JtsGeometry shape = new JtsGeometry(geometry, ctx, true, true);
-		// Adds an index to JtsGeometry class internally to compute spatial relations faster.
-        shape.index();
+	private Document newGeoDocument(long id, Geometry geometry, byte[] geoData) {
+		final Document doc = new Document();
+		// Documents are looked up and replaced by the term, the iterators read the id of a hit from the doc values
+		doc.add(new NumericDocValuesField("id", id));
+		doc.add(new StringField(ID_KEY_FIELD, Long.toString(id), Field.Store.NO));
+
+		if (isPoint(geometry)) {
+			// Matched exactly by a range query on the coordinates and read back from the bounds
+			Point point = (Point) geometry;
+			// Rejects coordinates out of range like the spatial strategy does
+			ctx.getShapeFactory().pointXY(point.getX(), point.getY());
+			doc.add(new DoublePoint(POINT_FIELD, point.getX(), point.getY()));
+		} else {
+			JtsGeometry shape = new JtsGeometry(geometry, ctx, true, true);
+			// Adds an index to JtsGeometry class internally to compute spatial relations faster.
+			shape.index();
 
-        for (Field f : strategy.createIndexableFields(shape)) {
-            doc.add(f);
-        }
+			for (Field f : strategy.createIndexableFields(shape)) {
+				doc.add(f);
+			}
 
-        doc.add(geometryToField(geometry));
+			// The iterators read the exact geometry from these doc values
+			doc.add(new BinaryDocValuesField("geoData", new BytesRef(geoData)));
+		}
+		doc.add(new StoredField(GEO_HASH_FIELD, geometryHash(geoData)));
+
+		// Directional relations are range queries on the bounds, their matches need only the bounds
+		Envelope envelope = geometry.getEnvelopeInternal();
+		if (!envelope.isNull()) {
+			addBound(doc, DirectionalOperation.MIN_X_FIELD, envelope.getMinX());
+			addBound(doc, DirectionalOperation.MIN_Y_FIELD, envelope.getMinY());
+			addBound(doc, DirectionalOperation.MAX_X_FIELD, envelope.getMaxX());
+			addBound(doc, DirectionalOperation.MAX_Y_FIELD, envelope.getMaxY());
+		}
+		GeometryKind kind = GeometryKind.of(geometry);
+		if (kind != null) {
+			doc.add(new NumericDocValuesField(KIND_FIELD, kind.ordinal()));
+		}
 
 		return doc;
 	}
 
+	private static boolean isPoint(Geometry geometry) {
+		return geometry instanceof Point && !geometry.isEmpty();
+	}
+
+	/**
+	 * Reads a point from the bounds of its document.
+	 *
+	 * @return the point or null if the document has no bounds
+	 */
+	static Point readPoint(NumericDocValues minXs, NumericDocValues minYs, int doc) throws IOException {
+		if (!minXs.advanceExact(doc) || !minYs.advanceExact(doc)) {
+			return null;
+		}
+		return GeoFactory.getDefaultGeometryFactory().createPoint(new Coordinate(
+				Double.longBitsToDouble(minXs.longValue()), Double.longBitsToDouble(minYs.longValue())));
+	}
+
+	private static void addBound(Document doc, String field, double value) {
+		doc.add(new DoublePoint(field, value));
+		doc.add(new DoubleDocValuesField(field, value));
+	}
+
+	private static long geometryHash(byte[] geoData) {
+		return ((long) StringHelper.murmurhash3_x86_32(geoData, 0, geoData.length, 0) << 32)
+				| (StringHelper.murmurhash3_x86_32(geoData, 0, geoData.length, 1) & 0xffffffffL);
+	}
+
 	@Override
 	public void initSettings() {
 		SpatialPrefixTree grid;
-		GeoSparqlConfig.PrefixTree prefixTree = parent.getConfig().getCurrentPrefixTree();
-		int precision = parent.getConfig().getCurrentPrecision();
+		GeoSparqlConfig.PrefixTree prefixTree = this.prefixTree;
+		int precision = this.precision;
+		if (prefixTree == null) {
+			prefixTree = parent.getConfig().getCurrentPrefixTree();
+			precision = parent.getConfig().getCurrentPrecision();
+		}
+		if (prefixTree == GeoSparqlConfig.PrefixTree.SHAPE) {
+			// No cells, the candidates are verified against the geoData doc values like those of the prefix trees
+			rptStrategy = null;
+			this.strategy = new LatLonShapeStrategy(ctx, "geoShape");
+			return;
+		}
 		if (prefixTree == GeoSparqlConfig.PrefixTree.QUAD) {
 			grid = new QuadPrefixTree(ctx, precision);
 		} else if (prefixTree == GeoSparqlConfig.PrefixTree.GEOHASH) {
@@ -104,14 +332,28 @@ public class LuceneGeoIndexer implements GeoSparqlIndexer {
 			throw new PluginException("Unexpected prefix tree type: " + prefixTree);
 		}
 
-		RecursivePrefixTreeStrategy rptStrategy = new RecursivePrefixTreeStrategy(grid, "geoData1");
-		SerializedDVStrategy sdvStrategy = new SerializedDVStrategy(ctx, "geoData2");
-		this.strategy = new CompositeSpatialStrategy("geoData", rptStrategy, sdvStrategy);
+		// The precision is the finest level, each geometry is indexed at the level that matches its size
+		rptStrategy = new CappedPrefixTreeStrategy(grid, "geoCells", MAX_CELLS_PER_GEOMETRY);
+		this.strategy = rptStrategy;
 	}
 
 	@Override
 	public void begin() throws Exception {
-		iwConfig = new IndexWriterConfig();
+		updatedSubjects.clear();
+		updatedFeatures.clear();
+		cleared = false;
+		if (indexWriter == null || !indexWriter.isOpen()) {
+			// Closed by a failed rollback or a tragic error
+			openIndexWriter();
+		} else {
+			// Buffer settings may have changed since the writer was opened
+			indexWriter.getConfig().setMaxBufferedDocs(parent.getConfig().getMaxBufferedDocs());
+			indexWriter.getConfig().setRAMBufferSizeMB(parent.getConfig().getRamBufferSizeMb());
+		}
+	}
+
+	private IndexWriterConfig newIndexWriterConfig() {
+		IndexWriterConfig iwConfig = new IndexWriterConfig();
 		// Turn off compound file format.
 		// Building the compound file format takes time during indexing (7-33%)
 		iwConfig.setUseCompoundFile(false);
@@ -119,41 +361,276 @@ public class LuceneGeoIndexer implements GeoSparqlIndexer {
 		iwConfig.setMaxBufferedDocs(parent.getConfig().getMaxBufferedDocs());
 		//More RAM before flushing means Lucene writes larger segments to begin with which means less merging later.
 		iwConfig.setRAMBufferSizeMB(parent.getConfig().getRamBufferSizeMb());
-		indexWriter = new IndexWriter(directory, iwConfig);
+		return iwConfig;
+	}
+
+	private Map<String, String> indexFormatCommitData() {
+		Map<String, String> commitData = new HashMap<>();
+		commitData.put(INDEX_FORMAT_KEY, Integer.toString(indexFormat));
+		commitData.put(GEOMETRY_CODEC_KEY, indexCodec.name());
+		commitData.put(LOG_SEQUENCE_KEY, Long.toString(logSequence));
+		if (featureCopies) {
+			commitData.put(FEATURE_COPIES_KEY, Boolean.TRUE.toString());
+		}
+		return commitData;
+	}
+
+	/**
+	 * Rewrites an existing index whose geometry codec or format differs from the current one. This is done once,
+	 * the rewritten index records the current codec and format in its commit data. The geometries of indexes older
+	 * than format 4 are read from their stored fields.
+	 */
+	private void migrateIndexFormat() throws IOException {
+		if (!DirectoryReader.indexExists(directory)) {
+			// Start with an empty commit so that there is always something to search
+			try (IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig())) {
+				writer.setLiveCommitData(indexFormatCommitData().entrySet());
+				writer.commit();
+			}
+			return;
+		}
+
+		Map<String, String> commitData = SegmentInfos.readLatestCommit(directory).getUserData();
+		int indexFormat = Integer.parseInt(commitData.getOrDefault(INDEX_FORMAT_KEY,
+				Integer.toString(LEGACY_INDEX_FORMAT)));
+		GeometryCodec indexCodec = indexFormat == LEGACY_INDEX_FORMAT ? GeometryCodec.JAVA_SERIALIZATION
+				: GeometryCodec.valueOf(commitData.get(GEOMETRY_CODEC_KEY));
+		if (indexFormat == INDEX_FORMAT && indexCodec == geometryCodec) {
+			return;
+		}
+		if (indexFormat < FEATURE_LINKS_INDEX_FORMAT) {
+			// Recorded with the rewritten index, so that the links replace the copies even after a crash
+			featureCopies = true;
+		}
+
+		logger.info(">>>>>>>> GeoSPARQL: Migrating index from format {} with codec {} to format {} with codec {}...",
+				indexFormat, indexCodec, INDEX_FORMAT, geometryCodec);
+		long count = 0;
+		long links = 0;
+		// The reader keeps seeing the old commit while the writer replaces all documents
+		try (IndexReader reader = DirectoryReader.open(directory);
+			 IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig())) {
+			writer.deleteAll();
+			for (LeafReaderContext leaf : reader.leaves()) {
+				LeafReader leafReader = leaf.reader();
+				Bits liveDocs = leafReader.getLiveDocs();
+				if (indexFormat < DOC_VALUES_INDEX_FORMAT) {
+					count += copyStoredGeometries(leafReader, indexCodec, writer);
+					continue;
+				}
+				NumericDocValues ids = DocValues.getNumeric(leafReader, "id");
+				BinaryDocValues geoDatas = DocValues.getBinary(leafReader, "geoData");
+				NumericDocValues minXs = DocValues.getNumeric(leafReader, DirectionalOperation.MIN_X_FIELD);
+				NumericDocValues minYs = DocValues.getNumeric(leafReader, DirectionalOperation.MIN_Y_FIELD);
+				// Feature links have no id
+				for (int docId = ids.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS; docId = ids.nextDoc()) {
+					if (liveDocs != null && !liveDocs.get(docId)) {
+						continue;
+					}
+					Geometry geometry;
+					if (geoDatas.advanceExact(docId)) {
+						BytesRef geoData = geoDatas.binaryValue();
+						geometry = indexCodec.decode(geoData.bytes, geoData.offset, geoData.length);
+					} else {
+						geometry = readPoint(minXs, minYs, docId);
+					}
+					if (geometry != null) {
+						writer.addDocument(newGeoDocument(ids.longValue(), geometry));
+						count++;
+					}
+				}
+				links += FeatureLinks.copyLinks(leafReader, writer);
+			}
+			writer.setLiveCommitData(indexFormatCommitData().entrySet());
+			writer.commit();
+		}
+		logger.info(">>>>>>>> GeoSPARQL: Migrated {} geometries and {} feature links!", count, links);
+	}
+
+	/**
+	 * Adds documents of the current layout for the geometries in the stored fields of a segment of an index older
+	 * than format 4, where a document may hold several geometries of its subject.
+	 *
+	 * @return the number of geometries added
+	 */
+	private long copyStoredGeometries(LeafReader leafReader, GeometryCodec indexCodec, IndexWriter writer)
+			throws IOException {
+		long count = 0;
+		Bits liveDocs = leafReader.getLiveDocs();
+		for (int docId = 0; docId < leafReader.maxDoc(); docId++) {
+			if (liveDocs != null && !liveDocs.get(docId)) {
+				continue;
+			}
+			Document doc = leafReader.document(docId);
+			IndexableField id = doc.getField("id");
+			if (id == null) {
+				continue;
+			}
+			for (BytesRef geoData : doc.getBinaryValues("geoData")) {
+				Geometry geometry = indexCodec.decode(geoData.bytes, geoData.offset, geoData.length);
+				writer.addDocument(newGeoDocument(id.numericValue().longValue(), geometry));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public boolean needsReindex() {
+		return indexFormat < INDEX_FORMAT;
+	}
+
+	@Override
+	public boolean hasFeatureCopies() {
+		return featureCopies;
+	}
+
+	@Override
+	public void clearFeatureCopies() {
+		featureCopies = false;
+		indexWriter.setLiveCommitData(indexFormatCommitData().entrySet());
 	}
 
 	@Override
 	public void commit() throws Exception {
-		indexWriter.close(); // also commits
+		if (logSequence != committedLogSequence) {
+			indexWriter.setLiveCommitData(indexFormatCommitData().entrySet());
+		}
+		if (indexWriter.hasUncommittedChanges()) {
+			indexWriter.commit();
+		}
+		committedLogSequence = logSequence;
+		searcherManager.maybeRefresh();
+	}
+
+	@Override
+	public void refresh() throws Exception {
+		searcherManager.maybeRefresh();
 	}
 
 	@Override
 	public void rollback() throws Exception {
-		indexWriter.rollback();
+		// Discards everything since the last commit but also closes the writer
+		if (indexWriter != null && indexWriter.isOpen()) {
+			indexWriter.rollback();
+			logSequence = committedLogSequence;
+			openIndexWriter();
+		}
+	}
+
+	@Override
+	public long getCommittedLogSequence() {
+		return committedLogSequence;
+	}
+
+	@Override
+	public void setLogSequence(long sequence) {
+		this.logSequence = sequence;
 	}
 
 	@Override
 	public void freshIndex() throws Exception {
+		updatedSubjects.clear();
+		updatedFeatures.clear();
+		cleared = true;
 		indexWriter.deleteAll();
+		if (featureCopies) {
+			// Features are indexed with links from now on
+			clearFeatureCopies();
+		}
 	}
 
 	@Override
-	public void indexGeometryList(long subject, Function<Long, String> subjectMapper, List<Geometry> geometries) {
+	public void closeWriter() throws IOException {
+		if (indexWriter != null && indexWriter.isOpen()) {
+			// Releases the write lock, searchers opened from the writer stay usable
+			indexWriter.rollback();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (indexWriter != null && indexWriter.isOpen()) {
+			indexWriter.rollback();
+		}
+		if (searcherManager != null) {
+			searcherManager.close();
+		}
+		directory.close();
+	}
+
+	@Override
+	public boolean indexGeometryList(long subject, Function<Long, String> subjectMapper, List<Geometry> geometries) {
 		//logger.info("Indexing literal for {}; {}", parent.getEntities().get(subject), geometries.size());
 		try {
-			indexWriter.deleteDocuments(LongPoint.newExactQuery("id", subject));
-			if (!geometries.isEmpty()) {
-				for (Geometry geometry : geometries) {
-					indexWriter.addDocument(newGeoDocument(subject, geometry));
+			List<byte[]> geoData = new ArrayList<>(geometries.size());
+			long hash = 0;
+			for (Geometry geometry : geometries) {
+				byte[] data = encodeGeometry(geometry);
+				geoData.add(data);
+				// Order independent, the statements of a subject may be listed in any order
+				hash += geometryHash(data);
+			}
+
+			if (!cleared) {
+				if (!updatedSubjects.contains(subject) && isIndexed(subject, geometries.size(), hash)) {
+					return false;
 				}
+				updatedSubjects.add(subject);
+			}
+
+			Term idKey = new Term(ID_KEY_FIELD, Long.toString(subject));
+			if (geometries.isEmpty()) {
+				indexWriter.deleteDocuments(idKey);
+			} else {
+				List<Document> docs = new ArrayList<>(geometries.size());
+				for (int i = 0; i < geometries.size(); i++) {
+					docs.add(newGeoDocument(subject, geometries.get(i), geoData.get(i)));
+				}
+				indexWriter.updateDocuments(idKey, docs);
 			}
 		} catch (Exception e) {
 			handleCreateDocumentUnhandledException(subject, subjectMapper, e);
 		}
+		return true;
+	}
+
+	/**
+	 * Checks if the last commit has exactly the given geometries for a subject.
+	 *
+	 * @param count number of geometries
+	 * @param hash  sum of the hashes of the encoded geometries
+	 */
+	private boolean isIndexed(long subject, int count, long hash) throws IOException {
+		IndexSearcher indexSearcher = searcherManager.acquire();
+		try {
+			TopDocs topDocs = indexSearcher.search(new TermQuery(new Term(ID_KEY_FIELD, Long.toString(subject))),
+					count + 1);
+			if (topDocs.scoreDocs.length != count) {
+				return false;
+			}
+			long indexedHash = 0;
+			for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+				IndexableField field = indexSearcher.doc(scoreDoc.doc, Collections.singleton(GEO_HASH_FIELD))
+						.getField(GEO_HASH_FIELD);
+				if (field == null) {
+					return false;
+				}
+				indexedHash += field.numericValue().longValue();
+			}
+			return indexedHash == hash;
+		} finally {
+			searcherManager.release(indexSearcher);
+		}
 	}
 
 	@Override
 	public void indexGeometry(long subject, Function<Long, String> subjectMapper, Geometry geometry) {
+		if (!cleared) {
+			synchronized (updatedSubjects) {
+				updatedSubjects.add(subject);
+			}
+		}
 		try {
 			indexWriter.addDocument(newGeoDocument(subject, geometry));
 		} catch (Exception e) {
@@ -161,58 +638,240 @@ public class LuceneGeoIndexer implements GeoSparqlIndexer {
 		}
 	}
 
+	@Override
+	public boolean indexFeatureGeometryList(long feature, long[] geometries) {
+		try {
+			if (!cleared) {
+				if (!updatedFeatures.contains(feature) && isLinked(feature, geometries)) {
+					return false;
+				}
+				updatedFeatures.add(feature);
+			}
+
+			Term featureKey = FeatureLinks.featureKey(feature);
+			if (geometries.length == 0) {
+				indexWriter.deleteDocuments(featureKey);
+			} else {
+				List<Document> docs = new ArrayList<>(geometries.length);
+				for (long geometry : geometries) {
+					docs.add(FeatureLinks.newLinkDocument(feature, geometry));
+				}
+				indexWriter.updateDocuments(featureKey, docs);
+			}
+		} catch (IOException e) {
+			throw new PluginException("Unable to index feature geometries.", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if the last commit links a feature to exactly the given geometries.
+	 */
+	private boolean isLinked(long feature, long[] geometries) throws IOException {
+		IndexSearcher indexSearcher = searcherManager.acquire();
+		try {
+			long[] linked = new FeatureLinks(indexSearcher.getIndexReader()).geometriesOf(feature);
+			long[] expected = geometries.clone();
+			Arrays.sort(linked);
+			Arrays.sort(expected);
+			return Arrays.equals(linked, expected);
+		} finally {
+			searcherManager.release(indexSearcher);
+		}
+	}
+
+	@Override
+	public void indexFeatureGeometry(long feature, long geometry) {
+		if (!cleared) {
+			synchronized (updatedFeatures) {
+				updatedFeatures.add(feature);
+			}
+		}
+		try {
+			// Replaces the same link added by an interrupted reindex
+			indexWriter.updateDocument(FeatureLinks.linkKey(feature, geometry),
+					FeatureLinks.newLinkDocument(feature, geometry));
+		} catch (IOException e) {
+			throw new PluginException("Unable to index feature geometry.", e);
+		}
+	}
+
+	/**
+	 * Finds the geometries disjoint from the given one. Only the geometries whose envelopes overlap the envelope of
+	 * the given geometry are decoded, the rest are disjoint and returned as proxies.
+	 */
 	private EntityGeometryIterator getDisjointObjects(Geometry geometry) {
-		JtsGeometry shape = new JtsGeometry(geometry, ctx, true, true);
-		// Adds an index to JtsGeometry class internally to compute spatial relations faster.
-		shape.index();
-		final SpatialArgs args = new SpatialArgs(SpatialOperation.Intersects, shape);
+		Envelope envelope = geometry.getEnvelopeInternal();
+		// Nothing is decided by the envelope of an empty geometry
+		Query overlapping = envelope.isNull() ? new MatchAllDocsQuery() : makeOverlappingQuery(envelope);
+		return getIteratorForQuery(overlapping, 0, LuceneEntityGeometryIterator.Mode.DISJOINT);
+	}
+
+	/**
+	 * Finds the geometries whose envelopes intersect the envelope of the given geometry, which are exactly the
+	 * documents whose bounds overlap it.
+	 */
+	private EntityGeometryIterator getOverlappingObjects(Geometry geometry) {
+		Envelope envelope = geometry.getEnvelopeInternal();
+		// Nothing intersects an empty geometry
+		return getIteratorForQuery(envelope.isNull() ? new MatchNoDocsQuery() : makeOverlappingQuery(envelope));
+	}
 
-		Query query = new BooleanQuery.Builder()
-				.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
-				.add(strategy.makeQuery(args), BooleanClause.Occur.MUST_NOT).build();
+	/**
+	 * @return a query for the documents whose bounds overlap the given non-empty envelope
+	 */
+	private static Query makeOverlappingQuery(Envelope envelope) {
+		return new BooleanQuery.Builder()
+				.add(DoublePoint.newRangeQuery(DirectionalOperation.MIN_X_FIELD, Double.NEGATIVE_INFINITY,
+						envelope.getMaxX()), BooleanClause.Occur.FILTER)
+				.add(DoublePoint.newRangeQuery(DirectionalOperation.MAX_X_FIELD, envelope.getMinX(),
+						Double.POSITIVE_INFINITY), BooleanClause.Occur.FILTER)
+				.add(DoublePoint.newRangeQuery(DirectionalOperation.MIN_Y_FIELD, Double.NEGATIVE_INFINITY,
+						envelope.getMaxY()), BooleanClause.Occur.FILTER)
+				.add(DoublePoint.newRangeQuery(DirectionalOperation.MAX_Y_FIELD, envelope.getMinY(),
+						Double.POSITIVE_INFINITY), BooleanClause.Occur.FILTER)
+				.build();
+	}
 
-		return getIteratorForQuery(query);
+	/**
+	 * Finds the geometries in a directional relation to the given one. The matches are exact, the iterator returns
+	 * their envelopes without decoding them.
+	 */
+	private EntityGeometryIterator getDirectionalObjects(Geometry geometry, DirectionalOperation operation) {
+		Envelope envelope = geometry.getEnvelopeInternal();
+		if (envelope.isNull()) {
+			// Nothing is in a direction of an empty geometry
+			return getIteratorForQuery(new MatchNoDocsQuery(), 0, LuceneEntityGeometryIterator.Mode.ENVELOPES);
+		}
+		return getIteratorForQuery(operation.makeQuery(envelope), 0, LuceneEntityGeometryIterator.Mode.ENVELOPES);
 	}
 
 	@Override
 	public EntityGeometryIterator getMatchingObjects(Geometry geometry, SpatialOperation spatialOperation) {
 		if (spatialOperation == SpatialOperation.IsDisjointTo) {
 			return getDisjointObjects(geometry);
+		} else if (spatialOperation instanceof DirectionalOperation) {
+			return getDirectionalObjects(geometry, (DirectionalOperation) spatialOperation);
+		} else if (spatialOperation == SpatialOperation.BBoxIntersects) {
+			return getOverlappingObjects(geometry);
 		} else {
-			JtsGeometry shape = new JtsGeometry(geometry, ctx, true, true);
-			// Adds an index to JtsGeometry class internally to compute spatial relations faster.
-			shape.index();
-			final SpatialArgs args = new SpatialArgs(spatialOperation, shape);
+			return getIteratorForQuery(makeSpatialQuery(geometry, spatialOperation));
+		}
+	}
+
+	@Override
+	public BatchMatches getBatchMatches(List<Geometry> geometries, SpatialOperation spatialOperation) {
+		if (spatialOperation == SpatialOperation.IsDisjointTo || spatialOperation instanceof DirectionalOperation) {
+			throw new IllegalArgumentException("Spatial operation can't be searched for in a batch: "
+					+ spatialOperation);
+		}
+		BooleanQuery.Builder query = new BooleanQuery.Builder();
+		for (Geometry geometry : geometries) {
+			query.add(makeSpatialQuery(geometry, spatialOperation), BooleanClause.Occur.SHOULD);
+		}
+
+		IndexSearcher indexSearcher = null;
+		try {
+			indexSearcher = searcherManager.acquire();
 
-			Query query = strategy.makeQuery(args);
+			return new LuceneBatchMatches(searcherManager, indexSearcher, query.build(), geometryCodec);
+		} catch (Exception e) {
+			if (indexSearcher != null) {
+				try {
+					searcherManager.release(indexSearcher);
+				} catch (IOException x) {
+					// ignore
+				}
+			}
+			throw new PluginException("Unable to execute Lucene query.", e);
+		}
+	}
+
+	/**
+	 * Makes a query for the geometries in a relation that requires them to intersect the given geometry. Points
+	 * are matched by their coordinates within the envelope of the geometry.
+	 */
+	private Query makeSpatialQuery(Geometry geometry, SpatialOperation spatialOperation) {
+		JtsGeometry shape = new JtsGeometry(geometry, ctx, true, true);
+		// Adds an index to JtsGeometry class internally to compute spatial relations faster.
+		shape.index();
+		final SpatialArgs args = new SpatialArgs(spatialOperation, shape);
 
-			return getIteratorForQuery(query);
+		Envelope envelope = geometry.getEnvelopeInternal();
+		if (envelope.isNull()) {
+			return strategy.makeQuery(args);
 		}
+		return new BooleanQuery.Builder()
+				.add(strategy.makeQuery(args), BooleanClause.Occur.SHOULD)
+				.add(DoublePoint.newRangeQuery(POINT_FIELD,
+						new double[]{envelope.getMinX(), envelope.getMinY()},
+						new double[]{envelope.getMaxX(), envelope.getMaxY()}), BooleanClause.Occur.SHOULD)
+				.build();
 	}
 
 	@Override
 	public EntityGeometryIterator getGeometriesFor(long subject) {
-		final Query query;
 		if (subject > 0) {
-			query = LongPoint.newExactQuery("id", subject);
+			// A feature gets the geometries it is linked to as well
+			return getIteratorForQuery(new TermQuery(new Term(ID_KEY_FIELD, Long.toString(subject))), subject);
 		} else {
-			query = new MatchAllDocsQuery();
+			return getIteratorForQuery(new MatchAllDocsQuery());
 		}
+	}
 
-		return getIteratorForQuery(query);
+	@Override
+	public long getGeometryCount() {
+		try {
+			IndexSearcher indexSearcher = searcherManager.acquire();
+			try {
+				return indexSearcher.getIndexReader().numDocs();
+			} finally {
+				searcherManager.release(indexSearcher);
+			}
+		} catch (IOException e) {
+			throw new PluginException("Unable to read Lucene index.", e);
+		}
+	}
+
+	@Override
+	public double estimateMatchingObjects(Geometry geometry, SpatialOperation spatialOperation) {
+		SpatialHistogram histogram = this.histogram;
+		if (histogram.getTotal() == 0) {
+			return 0;
+		}
+		// Features are returned with the geometries they link to, as often as there are links
+		double entitiesPerGeometry = Math.max(1, getGeometryCount() / histogram.getTotal());
+		return histogram.estimate(spatialOperation, geometry.getEnvelopeInternal()) * entitiesPerGeometry;
+	}
+
+	@Override
+	public long getIndexedCellCount() {
+		return rptStrategy != null ? rptStrategy.getIndexedCells() : 0;
+	}
+
+	@Override
+	public long getCoarsenedGeometryCount() {
+		return rptStrategy != null ? rptStrategy.getCoarsenedShapes() : 0;
 	}
 
 	private EntityGeometryIterator getIteratorForQuery(Query query) {
-		IndexReader indexReader = null;
+		return getIteratorForQuery(query, 0, LuceneEntityGeometryIterator.Mode.GEOMETRIES);
+	}
+
+	private EntityGeometryIterator getIteratorForQuery(Query query, long entity) {
+		return getIteratorForQuery(query, entity, LuceneEntityGeometryIterator.Mode.GEOMETRIES);
+	}
+
+	private EntityGeometryIterator getIteratorForQuery(Query query, long entity, LuceneEntityGeometryIterator.Mode mode) {
+		IndexSearcher indexSearcher = null;
 		try {
-			indexReader = DirectoryReader.open(directory);
-			IndexSearcher indexSearcher = new IndexSearcher(indexReader);
+			indexSearcher = searcherManager.acquire();
 
-			return new LuceneEntityGeometryIterator(indexSearcher, query);
+			return new LuceneEntityGeometryIterator(searcherManager, indexSearcher, query, entity, geometryCodec, mode);
 		} catch (Exception e) {
-			if (indexReader != null) {
+			if (indexSearcher != null) {
 				try {
-					indexReader.close();
+					searcherManager.release(indexSearcher);
 				} catch (IOException x) {
 					// ignore
 				}
@@ -222,13 +881,9 @@ public class LuceneGeoIndexer implements GeoSparqlIndexer {
 
 	}
 
-    private static Field geometryToField(Geometry geometry) {
+    private byte[] encodeGeometry(Geometry geometry) {
 		try {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(geometry);
-			oos.close();
-			return new Field("geoData", bos.toByteArray(), GEO_DATA_FIELD_TYPE);
+			return geometryCodec.encode(geometry);
 		} catch (Exception e) {
 			throw new PluginException("Unable to create field from geometry.", e);
 		}
@@ -244,14 +899,4 @@ public class LuceneGeoIndexer implements GeoSparqlIndexer {
 					"\nIf you want to ignore this message and still build the index configure ignoreErrors = true (refer to documentation) and rebuild the index", e);
 		}
 	}
-
-	static Geometry fieldValueToGeometry(byte[] fieldValue) {
-		try {
-			ByteArrayInputStream bis = new ByteArrayInputStream(fieldValue);
-			ObjectInputStream ois = new ObjectInputStream(bis);
-			return (Geometry) ois.readObject();
-		} catch (Exception e) {
-			throw new PluginException("Unable to create geometry from field value.", e);
-		}
-	}
 }
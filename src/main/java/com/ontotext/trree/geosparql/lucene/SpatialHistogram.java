@@ -0,0 +1,175 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Statistics of the envelopes of the indexed geometries, used to estimate how many geometries a query matches.
+ *
+ * The world is split into a grid of equal cells, as large as the cells of a quad prefix tree at level 9. Each cell
+ * counts the geometries whose envelope centres fall in it and sums the widths and heights of their envelopes, only
+ * cells with geometries are kept. The centres are assumed to spread evenly over a cell, so the geometries of a cell
+ * that intersect a query envelope are the share of the cell within the query envelope widened by half the average
+ * envelope of the cell.
+ *
+ * A histogram is built from the bounds doc values of a segment. Segments never change, so the histogram of the
+ * index is the sum of the histograms of its segments and only new segments need to be read after a refresh.
+ */
+public class SpatialHistogram {
+	final static int COLUMNS = 512;
+	final static int ROWS = 256;
+
+	private final static double MIN_X = -180;
+	private final static double MIN_Y = -90;
+	private final static double CELL_WIDTH = 360.0 / COLUMNS;
+	private final static double CELL_HEIGHT = 180.0 / ROWS;
+
+	private final Map<Integer, Cell> cells = new HashMap<>();
+	private double total;
+
+	/**
+	 * Builds the histogram of all documents of a segment, including the deleted ones.
+	 */
+	static SpatialHistogram of(LeafReader reader) throws IOException {
+		SpatialHistogram histogram = new SpatialHistogram();
+		NumericDocValues minXs = DocValues.getNumeric(reader, DirectionalOperation.MIN_X_FIELD);
+		NumericDocValues minYs = DocValues.getNumeric(reader, DirectionalOperation.MIN_Y_FIELD);
+		NumericDocValues maxXs = DocValues.getNumeric(reader, DirectionalOperation.MAX_X_FIELD);
+		NumericDocValues maxYs = DocValues.getNumeric(reader, DirectionalOperation.MAX_Y_FIELD);
+		for (int doc = minXs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = minXs.nextDoc()) {
+			if (minYs.advanceExact(doc) && maxXs.advanceExact(doc) && maxYs.advanceExact(doc)) {
+				histogram.add(new Envelope(
+						Double.longBitsToDouble(minXs.longValue()), Double.longBitsToDouble(maxXs.longValue()),
+						Double.longBitsToDouble(minYs.longValue()), Double.longBitsToDouble(maxYs.longValue())));
+			}
+		}
+		return histogram;
+	}
+
+	public void add(Envelope envelope) {
+		add(cellOf(envelope), 1, envelope.getWidth(), envelope.getHeight());
+	}
+
+	/**
+	 * Adds geometries counted in a cell, see {@link #cellOf(Envelope)}, by the sums of their widths and heights.
+	 * Negative sums take geometries out.
+	 */
+	public void add(int index, double count, double widths, double heights) {
+		Cell cell = cells.computeIfAbsent(index, key -> new Cell());
+		cell.count += count;
+		cell.widths += widths;
+		cell.heights += heights;
+		total += count;
+	}
+
+	/**
+	 * Adds another histogram, each of its geometries counted with the given weight.
+	 */
+	public void add(SpatialHistogram other, double weight) {
+		for (Map.Entry<Integer, Cell> entry : other.cells.entrySet()) {
+			Cell cell = cells.computeIfAbsent(entry.getKey(), index -> new Cell());
+			cell.count += entry.getValue().count * weight;
+			cell.widths += entry.getValue().widths * weight;
+			cell.heights += entry.getValue().heights * weight;
+		}
+		total += other.total * weight;
+	}
+
+	/**
+	 * @return the number of geometries in the histogram
+	 */
+	public double getTotal() {
+		return total;
+	}
+
+	/**
+	 * Estimates the number of geometries in a relation to a query geometry. Relations other than the disjoint and
+	 * directional ones are estimated by the geometries whose envelopes intersect the query envelope, which is the
+	 * most any of them can match.
+	 *
+	 * @param operation the spatial operation of the relation
+	 * @param query     the envelope of the query geometry
+	 */
+	public double estimate(SpatialOperation operation, Envelope query) {
+		if (query.isNull()) {
+			return operation == SpatialOperation.IsDisjointTo ? total : 0;
+		}
+		if (operation == SpatialOperation.IsDisjointTo) {
+			return Math.max(0, total - estimateIntersecting(query));
+		}
+		double estimate = 0;
+		for (Map.Entry<Integer, Cell> entry : cells.entrySet()) {
+			int index = entry.getKey();
+			Cell cell = entry.getValue();
+			// The centres of the matching geometries are within half a geometry from the bounds
+			double halfWidth = cell.widths / cell.count / 2;
+			double halfHeight = cell.heights / cell.count / 2;
+			double share;
+			if (operation == DirectionalOperation.IsAbove) {
+				share = shareOf(index, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+						query.getMaxY() + halfHeight, Double.POSITIVE_INFINITY);
+			} else if (operation == DirectionalOperation.IsBelow) {
+				share = shareOf(index, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+						Double.NEGATIVE_INFINITY, query.getMinY() - halfHeight);
+			} else if (operation == DirectionalOperation.IsLeftOf) {
+				share = shareOf(index, Double.NEGATIVE_INFINITY, query.getMinX() - halfWidth,
+						Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+			} else if (operation == DirectionalOperation.IsRightOf) {
+				share = shareOf(index, query.getMaxX() + halfWidth, Double.POSITIVE_INFINITY,
+						Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+			} else {
+				share = shareOf(index, query.getMinX() - halfWidth, query.getMaxX() + halfWidth,
+						query.getMinY() - halfHeight, query.getMaxY() + halfHeight);
+			}
+			estimate += cell.count * share;
+		}
+		return estimate;
+	}
+
+	private double estimateIntersecting(Envelope query) {
+		return estimate(SpatialOperation.Intersects, query);
+	}
+
+	/**
+	 * @return the share of a cell within the given bounds
+	 */
+	private static double shareOf(int cell, double minX, double maxX, double minY, double maxY) {
+		double cellMinX = MIN_X + (cell % COLUMNS) * CELL_WIDTH;
+		double cellMinY = MIN_Y + (cell / COLUMNS) * CELL_HEIGHT;
+		return overlap(cellMinX, cellMinX + CELL_WIDTH, minX, maxX) / CELL_WIDTH
+				* overlap(cellMinY, cellMinY + CELL_HEIGHT, minY, maxY) / CELL_HEIGHT;
+	}
+
+	private static double overlap(double min1, double max1, double min2, double max2) {
+		return Math.max(0, Math.min(max1, max2) - Math.max(min1, min2));
+	}
+
+	/**
+	 * @return the cell a geometry with the given envelope is counted in
+	 */
+	public static int cellOf(Envelope envelope) {
+		return cellOf(envelope.centre().x, envelope.centre().y);
+	}
+
+	private static int cellOf(double x, double y) {
+		// Geometries outside of the world are counted in the nearest cell
+		int column = Math.max(0, Math.min(COLUMNS - 1, (int) Math.floor((x - MIN_X) / CELL_WIDTH)));
+		int row = Math.max(0, Math.min(ROWS - 1, (int) Math.floor((y - MIN_Y) / CELL_HEIGHT)));
+		return row * COLUMNS + column;
+	}
+
+	private static class Cell {
+		// Weighted by the share of live documents of the segments
+		private double count;
+		private double widths;
+		private double heights;
+	}
+}
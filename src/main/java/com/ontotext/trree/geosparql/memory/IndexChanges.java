@@ -0,0 +1,81 @@
+package com.ontotext.trree.geosparql.memory;
+
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TLongObjectIterator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Changes made to the index since the last commit. Each updated subject and feature maps to all of its geometries
+ * or links, an empty array removes it. The changes of a commit are written to the journal in this form and a
+ * snapshot is written as the changes that clear the index and then add everything in it.
+ *
+ * The arrays are never modified once they are put in the maps, versions of the index share them.
+ */
+final class IndexChanges {
+	// Whether everything committed before was removed
+	boolean cleared;
+	final TLongObjectHashMap<IndexedGeometry[]> geometries = new TLongObjectHashMap<>();
+	final TLongObjectHashMap<long[]> links = new TLongObjectHashMap<>();
+
+	boolean isEmpty() {
+		return !cleared && geometries.isEmpty() && links.isEmpty();
+	}
+
+	void clear() {
+		cleared = false;
+		geometries.clear();
+		links.clear();
+	}
+
+	void write(DataOutput out) throws IOException {
+		write(out, cleared, geometries, links);
+	}
+
+	static void write(DataOutput out, boolean cleared, TLongObjectHashMap<IndexedGeometry[]> geometries,
+					  TLongObjectHashMap<long[]> links) throws IOException {
+		out.writeBoolean(cleared);
+		out.writeInt(geometries.size());
+		for (TLongObjectIterator<IndexedGeometry[]> it = geometries.iterator(); it.hasNext(); ) {
+			it.advance();
+			out.writeLong(it.key());
+			out.writeInt(it.value().length);
+			for (IndexedGeometry geometry : it.value()) {
+				geometry.write(out);
+			}
+		}
+		out.writeInt(links.size());
+		for (TLongObjectIterator<long[]> it = links.iterator(); it.hasNext(); ) {
+			it.advance();
+			out.writeLong(it.key());
+			out.writeInt(it.value().length);
+			for (long geometry : it.value()) {
+				out.writeLong(geometry);
+			}
+		}
+	}
+
+	static IndexChanges read(DataInput in) throws IOException {
+		IndexChanges changes = new IndexChanges();
+		changes.cleared = in.readBoolean();
+		for (int i = in.readInt(); i > 0; i--) {
+			long subject = in.readLong();
+			IndexedGeometry[] geometries = new IndexedGeometry[in.readInt()];
+			for (int j = 0; j < geometries.length; j++) {
+				geometries[j] = IndexedGeometry.read(in);
+			}
+			changes.geometries.put(subject, geometries);
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			long feature = in.readLong();
+			long[] geometries = new long[in.readInt()];
+			for (int j = 0; j < geometries.length; j++) {
+				geometries[j] = in.readLong();
+			}
+			changes.links.put(feature, geometries);
+		}
+		return changes;
+	}
+}
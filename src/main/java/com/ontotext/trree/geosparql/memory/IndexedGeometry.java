@@ -0,0 +1,121 @@
+package com.ontotext.trree.geosparql.memory;
+
+import com.ontotext.trree.geosparql.GeometryKind;
+import com.ontotext.trree.geosparql.lucene.GeometryCodec;
+import com.useekm.indexing.GeoFactory;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A geometry of a subject as kept in memory: its envelope, its {@link GeometryKind} and the geometry encoded with
+ * the default codec. Points aren't encoded, they are their envelope.
+ *
+ * Instances are immutable and shared by all versions of the index that contain them.
+ */
+final class IndexedGeometry {
+	private final static GeometryKind[] KINDS = GeometryKind.values();
+
+	final long subject;
+	// Null for empty geometries
+	final Envelope envelope;
+	// Null for empty and mixed geometries
+	final GeometryKind kind;
+	// Null for points
+	private final byte[] data;
+
+	private IndexedGeometry(long subject, Envelope envelope, GeometryKind kind, byte[] data) {
+		this.subject = subject;
+		this.envelope = envelope;
+		this.kind = kind;
+		this.data = data;
+	}
+
+	static IndexedGeometry of(long subject, Geometry geometry) throws IOException {
+		Envelope envelope = geometry.getEnvelopeInternal();
+		return new IndexedGeometry(subject, envelope.isNull() ? null : new Envelope(envelope),
+				GeometryKind.of(geometry), isPoint(geometry) ? null : GeometryCodec.DEFAULT.encode(geometry));
+	}
+
+	private static boolean isPoint(Geometry geometry) {
+		return geometry instanceof Point && !geometry.isEmpty();
+	}
+
+	Geometry decode() {
+		if (data == null) {
+			return GeoFactory.getDefaultGeometryFactory().createPoint(
+					new Coordinate(envelope.getMinX(), envelope.getMinY()));
+		}
+		try {
+			return GeometryCodec.DEFAULT.decode(data, 0, data.length);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the envelope as a geometry or null if the geometry is empty
+	 */
+	Geometry envelopeGeometry() {
+		return envelope != null ? GeoFactory.getDefaultGeometryFactory().toGeometry(envelope) : null;
+	}
+
+	/**
+	 * @return a geometry of the same kind within the envelope or null if there is none, see
+	 * {@link GeometryKind#proxy}
+	 */
+	Geometry proxy() {
+		return kind != null && envelope != null ? kind.proxy(envelope, GeoFactory.getDefaultGeometryFactory()) : null;
+	}
+
+	/**
+	 * @return true if both are the same geometry of the same subject
+	 */
+	boolean sameAs(IndexedGeometry other) {
+		return subject == other.subject && Arrays.equals(data, other.data)
+				&& (data != null || envelope.equals(other.envelope));
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeLong(subject);
+		if (data == null) {
+			out.writeInt(-1);
+			out.writeDouble(envelope.getMinX());
+			out.writeDouble(envelope.getMinY());
+			return;
+		}
+		out.writeInt(data.length);
+		out.write(data);
+		out.writeByte(kind != null ? kind.ordinal() : -1);
+		out.writeBoolean(envelope != null);
+		if (envelope != null) {
+			out.writeDouble(envelope.getMinX());
+			out.writeDouble(envelope.getMaxX());
+			out.writeDouble(envelope.getMinY());
+			out.writeDouble(envelope.getMaxY());
+		}
+	}
+
+	static IndexedGeometry read(DataInput in) throws IOException {
+		long subject = in.readLong();
+		int length = in.readInt();
+		if (length < 0) {
+			double x = in.readDouble();
+			double y = in.readDouble();
+			return new IndexedGeometry(subject, new Envelope(x, x, y, y), GeometryKind.POINT, null);
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		byte kind = in.readByte();
+		Envelope envelope = in.readBoolean() ?
+				new Envelope(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble()) :
+				null;
+		return new IndexedGeometry(subject, envelope, kind >= 0 ? KINDS[kind] : null, data);
+	}
+}
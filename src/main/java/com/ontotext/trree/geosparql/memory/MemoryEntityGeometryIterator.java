@@ -0,0 +1,117 @@
+package com.ontotext.trree.geosparql.memory;
+
+import com.ontotext.trree.geosparql.EntityGeometryIterator;
+import com.ontotext.trree.geosparql.GeometryKind;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+
+import java.util.Iterator;
+
+/**
+ * An EntityGeometryIterator implementation over geometries of a version of the in-memory index. The geometries are
+ * decoded only as they are iterated.
+ *
+ * As with the Lucene index, relations that need only the envelopes of the geometries get their envelopes, and for
+ * disjoint relations the geometries whose envelopes don't overlap the envelope of the searched geometry are
+ * returned as a proxy of the same {@link GeometryKind} within their envelope.
+ *
+ * Each geometry is returned for its own entity and then for every feature linked to it, or only for a given entity
+ * when the geometries of that entity are requested.
+ */
+class MemoryEntityGeometryIterator implements EntityGeometryIterator {
+	/**
+	 * What is returned for the geometries.
+	 */
+	enum Mode {
+		// The geometries
+		GEOMETRIES,
+		// The envelopes of the geometries, which all have one
+		ENVELOPES,
+		// The geometries that overlap the envelope and proxies of the others
+		DISJOINT
+	}
+
+	private final static long[] NO_FEATURES = new long[0];
+
+	private final MemoryIndex index;
+	private final Iterator<IndexedGeometry> geometries;
+	private final Mode mode;
+	// The entity all geometries are returned for or 0 to return them for their own entities and linked features
+	private final long entity;
+	// Envelope of the searched geometry in disjoint mode, null to decode all geometries
+	private final Envelope overlapping;
+
+	// Features the last geometry is still to be returned for
+	private long[] features = NO_FEATURES;
+	private int featureIdx;
+
+	private long entityId;
+	private Geometry geometry;
+
+	MemoryEntityGeometryIterator(MemoryIndex index, Iterator<IndexedGeometry> geometries, long entity, Mode mode,
+								 Envelope overlapping) {
+		this.index = index;
+		this.geometries = geometries;
+		this.entity = entity;
+		this.mode = mode;
+		this.overlapping = overlapping;
+	}
+
+	@Override
+	public long getEntityForLastGeometry() {
+		return entityId;
+	}
+
+	@Override
+	public Geometry nextGeometry() {
+		if (!hasNextGeometry()) {
+			return null;
+		}
+
+		if (featureIdx < features.length) {
+			// the same geometry for the next linked feature
+			entityId = features[featureIdx++];
+			return geometry;
+		}
+
+		IndexedGeometry next = geometries.next();
+		if (entity != 0) {
+			entityId = entity;
+		} else {
+			entityId = next.subject;
+			features = index.featuresOf(entityId);
+			featureIdx = 0;
+		}
+
+		if (mode == Mode.ENVELOPES) {
+			return geometry = next.envelopeGeometry();
+		}
+		if (mode == Mode.DISJOINT && overlapping != null && next.envelope != null
+				&& !overlapping.intersects(next.envelope)) {
+			Geometry proxy = next.proxy();
+			if (proxy != null) {
+				return geometry = proxy;
+			}
+		}
+		return geometry = next.decode();
+	}
+
+	@Override
+	public Geometry lastGeometry() {
+		return geometry;
+	}
+
+	@Override
+	public boolean hasNextGeometry() {
+		return featureIdx < features.length || geometries.hasNext();
+	}
+
+	@Override
+	public void advanceToNextEntity() {
+		// Each geometry is returned once for each entity
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,447 @@
+package com.ontotext.trree.geosparql.memory;
+
+import com.ontotext.trree.geosparql.BatchMatches;
+import com.ontotext.trree.geosparql.EntityGeometryIterator;
+import com.ontotext.trree.geosparql.GeoSparqlConfig;
+import com.ontotext.trree.geosparql.GeoSparqlIndexer;
+import com.ontotext.trree.geosparql.GeoSparqlPlugin;
+import com.ontotext.trree.geosparql.lucene.DirectionalOperation;
+import com.ontotext.trree.geosparql.lucene.SpatialHistogram;
+import com.ontotext.trree.sdk.PluginException;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * In-memory implementation of the GeoSPARQL indexer for repositories whose geometries fit in the heap.
+ *
+ * All geometries are kept in memory in a {@link MemoryIndex}, an STR-packed R-tree of their envelopes with the
+ * encoded geometries and a small delta of the changes since it was packed. Searches don't open readers or decode
+ * stored fields, they walk the tree and decode only the candidates that are iterated. Queries use the version of
+ * the index of the last commit or refresh, each commit creates a new version.
+ *
+ * The index is persisted as a snapshot and a journal of the changes committed since, see {@link MemoryIndexFiles}.
+ * A commit appends its changes to the journal. Once the delta or the journal grows large, the commit merges the
+ * delta into a new tree and writes a new snapshot instead. On startup the snapshot is read and the journal is
+ * applied to it.
+ */
+public class MemoryGeoIndexer implements GeoSparqlIndexer {
+	private final static IndexedGeometry[] NO_GEOMETRIES = new IndexedGeometry[0];
+
+	private final GeoSparqlPlugin parent;
+	private Path indexDir;
+	private Logger logger;
+	private MemoryIndexFiles files;
+
+	// The version of the last commit and the one queries use, which has the refreshed changes as well
+	private MemoryIndex committed;
+	private volatile MemoryIndex visible;
+
+	// Changes since the last commit, the reindexing threads index geometries concurrently
+	private final IndexChanges changes = new IndexChanges();
+
+	// Index log frame the next commit records
+	private long logSequence;
+
+	/**
+	 * @param indexDir directory of the index, null for the default index directory of the plugin
+	 */
+	public MemoryGeoIndexer(GeoSparqlPlugin parent, Path indexDir) {
+		this.parent = parent;
+		this.indexDir = indexDir;
+	}
+
+	@Override
+	public void initialize() throws Exception {
+		this.logger = parent.getLogger();
+
+		if (indexDir == null) {
+			this.indexDir = GeoSparqlConfig.resolveIndexPath(parent.getDataDir().toPath());
+		}
+		Files.createDirectories(indexDir);
+
+		files = new MemoryIndexFiles(indexDir);
+		committed = visible = files.load();
+		logSequence = committed.getLogSequence();
+		if (files.needsReindex()) {
+			logger.info(">>>>>>>> GeoSPARQL: In-memory index format is older than format {} and must be reindexed",
+					MemoryIndexFiles.FORMAT);
+		} else {
+			logger.info(">>>>>>>> GeoSPARQL: Loaded {} geometries and feature links in memory", committed.getCount());
+		}
+	}
+
+	@Override
+	public void initSettings() {
+		// There is no prefix tree
+	}
+
+	@Override
+	public void begin() {
+		// Changes accumulate until they are committed or rolled back
+	}
+
+	@Override
+	public void commit() throws Exception {
+		synchronized (changes) {
+			if (changes.isEmpty() && logSequence == committed.getLogSequence()) {
+				return;
+			}
+			MemoryIndex next = committed.apply(changes, logSequence);
+			if (next.shouldMerge() || files.isJournalLarge()) {
+				next = next.merge();
+				files.writeSnapshot(next);
+			} else {
+				files.append(changes, logSequence);
+			}
+			committed = visible = next;
+			changes.clear();
+		}
+	}
+
+	@Override
+	public void refresh() {
+		synchronized (changes) {
+			visible = committed.apply(changes, logSequence);
+		}
+	}
+
+	@Override
+	public void rollback() {
+		synchronized (changes) {
+			changes.clear();
+			logSequence = committed.getLogSequence();
+			visible = committed;
+		}
+	}
+
+	@Override
+	public long getCommittedLogSequence() {
+		return committed.getLogSequence();
+	}
+
+	@Override
+	public void setLogSequence(long sequence) {
+		this.logSequence = sequence;
+	}
+
+	@Override
+	public void freshIndex() {
+		synchronized (changes) {
+			changes.clear();
+			changes.cleared = true;
+		}
+	}
+
+	@Override
+	public boolean needsReindex() {
+		return files.needsReindex();
+	}
+
+	@Override
+	public boolean hasFeatureCopies() {
+		// Features were always linked
+		return false;
+	}
+
+	@Override
+	public void clearFeatureCopies() {
+		// There are no copies
+	}
+
+	@Override
+	public void closeWriter() throws IOException {
+		rollback();
+		// Queries search the versions in memory, only the journal is open
+		close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (files != null) {
+			files.close();
+		}
+	}
+
+	@Override
+	public boolean indexGeometryList(long subject, Function<Long, String> subjectMapper, List<Geometry> geometries) {
+		IndexedGeometry[] indexed = new IndexedGeometry[geometries.size()];
+		try {
+			for (int i = 0; i < indexed.length; i++) {
+				indexed[i] = IndexedGeometry.of(subject, geometries.get(i));
+			}
+		} catch (Exception e) {
+			handleCreateDocumentUnhandledException(subject, subjectMapper, e);
+			return true;
+		}
+
+		synchronized (changes) {
+			if (isSame(geometriesOf(subject), indexed)) {
+				return false;
+			}
+			changes.geometries.put(subject, indexed);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if both have the same geometries in any order
+	 */
+	private static boolean isSame(IndexedGeometry[] current, IndexedGeometry[] indexed) {
+		if (current.length != indexed.length) {
+			return false;
+		}
+		boolean[] matched = new boolean[current.length];
+		for (IndexedGeometry geometry : indexed) {
+			int i = 0;
+			while (i < current.length && (matched[i] || !current[i].sameAs(geometry))) {
+				i++;
+			}
+			if (i == current.length) {
+				return false;
+			}
+			matched[i] = true;
+		}
+		return true;
+	}
+
+	@Override
+	public void indexGeometry(long subject, Function<Long, String> subjectMapper, Geometry geometry) {
+		IndexedGeometry indexed;
+		try {
+			indexed = IndexedGeometry.of(subject, geometry);
+		} catch (Exception e) {
+			handleCreateDocumentUnhandledException(subject, subjectMapper, e);
+			return;
+		}
+
+		synchronized (changes) {
+			IndexedGeometry[] current = geometriesOf(subject);
+			IndexedGeometry[] updated = Arrays.copyOf(current, current.length + 1);
+			updated[current.length] = indexed;
+			changes.geometries.put(subject, updated);
+		}
+	}
+
+	/**
+	 * @return the geometries of the subject with the changes since the last commit
+	 */
+	private IndexedGeometry[] geometriesOf(long subject) {
+		IndexedGeometry[] geometries = changes.geometries.get(subject);
+		if (geometries != null) {
+			return geometries;
+		}
+		return changes.cleared ? NO_GEOMETRIES : committed.geometriesOf(subject);
+	}
+
+	@Override
+	public boolean indexFeatureGeometryList(long feature, long[] geometries) {
+		synchronized (changes) {
+			long[] linked = linkedGeometries(feature).clone();
+			long[] expected = geometries.clone();
+			Arrays.sort(linked);
+			Arrays.sort(expected);
+			if (Arrays.equals(linked, expected)) {
+				return false;
+			}
+			changes.links.put(feature, expected);
+		}
+		return true;
+	}
+
+	@Override
+	public void indexFeatureGeometry(long feature, long geometry) {
+		synchronized (changes) {
+			long[] linked = linkedGeometries(feature);
+			for (long g : linked) {
+				if (g == geometry) {
+					// Already added by an interrupted reindex
+					return;
+				}
+			}
+			long[] updated = Arrays.copyOf(linked, linked.length + 1);
+			updated[linked.length] = geometry;
+			changes.links.put(feature, updated);
+		}
+	}
+
+	/**
+	 * @return the geometries the feature is linked to with the changes since the last commit
+	 */
+	private long[] linkedGeometries(long feature) {
+		long[] geometries = changes.links.get(feature);
+		if (geometries != null) {
+			return geometries;
+		}
+		return changes.cleared ? new long[0] : committed.linkedGeometries(feature);
+	}
+
+	@Override
+	public EntityGeometryIterator getMatchingObjects(Geometry geometry, SpatialOperation spatialOperation) {
+		MemoryIndex index = visible;
+		Envelope envelope = geometry.getEnvelopeInternal();
+		if (spatialOperation == SpatialOperation.IsDisjointTo) {
+			// Only the geometries whose envelopes overlap the envelope of the given one are decoded
+			return new MemoryEntityGeometryIterator(index, index.all(), 0, MemoryEntityGeometryIterator.Mode.DISJOINT,
+					envelope.isNull() ? null : envelope);
+		}
+
+		List<IndexedGeometry> matches = new ArrayList<>();
+		if (spatialOperation instanceof DirectionalOperation) {
+			search(index, envelope, (DirectionalOperation) spatialOperation, matches);
+			return new MemoryEntityGeometryIterator(index, matches.iterator(), 0,
+					MemoryEntityGeometryIterator.Mode.ENVELOPES, null);
+		}
+		search(index, envelope, spatialOperation, matches);
+		return new MemoryEntityGeometryIterator(index, matches.iterator(), 0,
+				MemoryEntityGeometryIterator.Mode.GEOMETRIES, null);
+	}
+
+	@Override
+	public BatchMatches getBatchMatches(List<Geometry> geometries, SpatialOperation spatialOperation) {
+		if (spatialOperation == SpatialOperation.IsDisjointTo || spatialOperation instanceof DirectionalOperation) {
+			throw new IllegalArgumentException("Spatial operation can't be searched for in a batch: "
+					+ spatialOperation);
+		}
+		MemoryIndex index = visible;
+		Set<IndexedGeometry> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		List<IndexedGeometry> matches = new ArrayList<>();
+		List<IndexedGeometry> found = new ArrayList<>();
+		for (Geometry geometry : geometries) {
+			found.clear();
+			search(index, geometry.getEnvelopeInternal(), spatialOperation, found);
+			for (IndexedGeometry match : found) {
+				if (seen.add(match)) {
+					matches.add(match);
+				}
+			}
+		}
+		return new BatchMatches() {
+			@Override
+			public EntityGeometryIterator select(Geometry geometry) {
+				Envelope envelope = geometry.getEnvelopeInternal();
+				return new MemoryEntityGeometryIterator(index, matches.stream()
+						.filter(match -> envelope.intersects(match.envelope)).iterator(), 0,
+						MemoryEntityGeometryIterator.Mode.GEOMETRIES, null);
+			}
+
+			@Override
+			public void close() {
+				// The matches are kept by the version of the index they were found in
+			}
+		};
+	}
+
+	/**
+	 * Finds the candidates of a relation that requires the geometries to intersect a geometry with the given
+	 * envelope, which for BBoxIntersects are its matches. The relations that require one geometry to cover the
+	 * other or both to be equal are narrowed down by the envelopes further.
+	 */
+	private static void search(MemoryIndex index, Envelope envelope, SpatialOperation spatialOperation,
+							   List<IndexedGeometry> result) {
+		if (envelope.isNull()) {
+			// Nothing intersects an empty geometry
+			return;
+		}
+		index.search(envelope, result);
+		if (spatialOperation == SpatialOperation.IsWithin) {
+			result.removeIf(candidate -> !envelope.covers(candidate.envelope));
+		} else if (spatialOperation == SpatialOperation.Contains) {
+			result.removeIf(candidate -> !candidate.envelope.covers(envelope));
+		} else if (spatialOperation == SpatialOperation.IsEqualTo) {
+			result.removeIf(candidate -> !candidate.envelope.equals(envelope));
+		}
+	}
+
+	/**
+	 * Finds the geometries in a directional relation to a geometry with the given envelope. The matches are exact.
+	 */
+	private static void search(MemoryIndex index, Envelope envelope, DirectionalOperation operation,
+							   List<IndexedGeometry> result) {
+		if (envelope.isNull()) {
+			// Nothing is in a direction of an empty geometry
+			return;
+		}
+		double max = Double.MAX_VALUE;
+		Envelope halfPlane;
+		if (operation == DirectionalOperation.IsAbove) {
+			halfPlane = new Envelope(-max, max, envelope.getMaxY(), max);
+		} else if (operation == DirectionalOperation.IsBelow) {
+			halfPlane = new Envelope(-max, max, -max, envelope.getMinY());
+		} else if (operation == DirectionalOperation.IsLeftOf) {
+			halfPlane = new Envelope(-max, envelope.getMinX(), -max, max);
+		} else {
+			halfPlane = new Envelope(envelope.getMaxX(), max, -max, max);
+		}
+		index.search(halfPlane, result);
+		result.removeIf(candidate -> !operation.evaluate(candidate.envelope, envelope));
+	}
+
+	@Override
+	public EntityGeometryIterator getGeometriesFor(long subject) {
+		MemoryIndex index = visible;
+		if (subject <= 0) {
+			return new MemoryEntityGeometryIterator(index, index.all(), 0,
+					MemoryEntityGeometryIterator.Mode.GEOMETRIES, null);
+		}
+		// A feature gets the geometries it is linked to as well
+		List<IndexedGeometry> geometries = new ArrayList<>(Arrays.asList(index.geometriesOf(subject)));
+		for (long geometry : index.linkedGeometries(subject)) {
+			if (geometry != subject) {
+				geometries.addAll(Arrays.asList(index.geometriesOf(geometry)));
+			}
+		}
+		return new MemoryEntityGeometryIterator(index, geometries.iterator(), subject,
+				MemoryEntityGeometryIterator.Mode.GEOMETRIES, null);
+	}
+
+	@Override
+	public long getGeometryCount() {
+		return visible.getCount();
+	}
+
+	@Override
+	public double estimateMatchingObjects(Geometry geometry, SpatialOperation spatialOperation) {
+		MemoryIndex index = visible;
+		SpatialHistogram histogram = index.getHistogram();
+		if (histogram.getTotal() == 0) {
+			return 0;
+		}
+		// Features are returned with the geometries they link to, as often as there are links
+		double entitiesPerGeometry = Math.max(1, index.getCount() / histogram.getTotal());
+		return histogram.estimate(spatialOperation, geometry.getEnvelopeInternal()) * entitiesPerGeometry;
+	}
+
+	@Override
+	public long getIndexedCellCount() {
+		return 0;
+	}
+
+	@Override
+	public long getCoarsenedGeometryCount() {
+		return 0;
+	}
+
+	private void handleCreateDocumentUnhandledException(long subject, Function<Long, String> subjectMapper, Exception e) {
+		String subjectIri = subjectMapper.apply(subject);
+
+		if (parent.getConfig().isIgnoreErrors()) {
+			logger.warn("Could not index geometry for subject " + subjectIri, e);
+		} else {
+			throw new PluginException("Could not index geometry for subject " + subjectIri +
+					"\nIf you want to ignore this message and still build the index configure ignoreErrors = true (refer to documentation) and rebuild the index", e);
+		}
+	}
+}
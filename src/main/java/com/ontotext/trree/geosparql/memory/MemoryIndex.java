@@ -0,0 +1,469 @@
+package com.ontotext.trree.geosparql.memory;
+
+import com.ontotext.trree.geosparql.lucene.SpatialHistogram;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TLongObjectIterator;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A version of the in-memory index, immutable once created.
+ *
+ * Most geometries are in the packed part, an STR-packed R-tree of their envelopes built once and never changed.
+ * The subjects and features changed since the tree was packed are in the delta, which replaces them in the packed
+ * part as a whole. The delta is in persistent maps, a version shares them with the one it was created from except for
+ * the keys it changed, and the counts, feature links and histogram cells of the delta are updated by the changes
+ * alone. The geometries of the delta are in a small quadtree that is shared by the versions until the next
+ * merge, so a commit only adds the geometries it changed. The quadtree may hold geometries that were replaced or
+ * rolled back since, they are told apart from the current ones by their identity.
+ *
+ * Once the delta grows large, a merge packs all geometries of the version into a new tree.
+ */
+final class MemoryIndex {
+	private final static IndexedGeometry[] NO_GEOMETRIES = new IndexedGeometry[0];
+	private final static long[] NO_LINKS = new long[0];
+
+	// The delta is merged once it has more subjects and features than this or than a share of the packed part
+	private final static int MIN_MERGE_SIZE = 16384;
+	private final static int MERGE_RATIO = 16;
+
+	private final Packed packed;
+	private final PersistentLongMap<IndexedGeometry[]> deltaGeometries;
+	private final PersistentLongMap<long[]> deltaLinks;
+	// Features of each geometry that are linked to it in the delta
+	private final PersistentLongMap<long[]> deltaFeatures;
+	// The histogram cells of the delta geometries as their count and the sums of their widths and heights
+	private final PersistentLongMap<double[]> deltaCells;
+	private final DeltaTree deltaTree;
+	private final long logSequence;
+
+	private final long geometryCount;
+	private final long linkCount;
+	// The packed geometries of the subjects in the delta
+	private final long replacedGeometries;
+	// Built from the packed and delta histograms when it's needed first
+	private volatile SpatialHistogram histogram;
+
+	/**
+	 * Creates a version with the given packed part and an empty delta.
+	 */
+	private MemoryIndex(Packed packed, long logSequence) {
+		this.packed = packed;
+		this.deltaGeometries = PersistentLongMap.empty();
+		this.deltaLinks = PersistentLongMap.empty();
+		this.deltaFeatures = PersistentLongMap.empty();
+		this.deltaCells = PersistentLongMap.empty();
+		this.deltaTree = new DeltaTree();
+		this.logSequence = logSequence;
+		this.geometryCount = packed.geometryCount;
+		this.linkCount = packed.linkCount;
+		this.replacedGeometries = 0;
+	}
+
+	/**
+	 * Creates a version with the changes applied to the delta of a base version. Only what the changes touch is
+	 * updated, everything else is shared with the base.
+	 */
+	private MemoryIndex(MemoryIndex base, IndexChanges changes, long logSequence) {
+		this.packed = base.packed;
+		this.deltaTree = base.deltaTree;
+		this.logSequence = logSequence;
+
+		PersistentLongMap<IndexedGeometry[]> deltaGeometries = base.deltaGeometries;
+		PersistentLongMap<double[]> deltaCells = base.deltaCells;
+		long geometryCount = base.geometryCount;
+		long replacedGeometries = base.replacedGeometries;
+		for (TLongObjectIterator<IndexedGeometry[]> it = changes.geometries.iterator(); it.hasNext(); ) {
+			it.advance();
+			IndexedGeometry[] previous = base.deltaGeometries.get(it.key());
+			if (previous == null) {
+				previous = packed.geometries.get(it.key());
+				replacedGeometries += previous != null ? previous.length : 0;
+			} else {
+				// Only the geometries of the delta are in its histogram
+				deltaCells = addCells(deltaCells, previous, -1);
+			}
+			geometryCount += it.value().length - (previous != null ? previous.length : 0);
+			deltaCells = addCells(deltaCells, it.value(), 1);
+			deltaGeometries = deltaGeometries.put(it.key(), it.value());
+			for (IndexedGeometry geometry : it.value()) {
+				deltaTree.insert(geometry);
+			}
+		}
+
+		PersistentLongMap<long[]> deltaLinks = base.deltaLinks;
+		PersistentLongMap<long[]> deltaFeatures = base.deltaFeatures;
+		long linkCount = base.linkCount;
+		for (TLongObjectIterator<long[]> it = changes.links.iterator(); it.hasNext(); ) {
+			it.advance();
+			long feature = it.key();
+			long[] previous = base.deltaLinks.get(feature);
+			if (previous != null) {
+				for (long geometry : previous) {
+					deltaFeatures = deltaFeatures.put(geometry, without(deltaFeatures.get(geometry), feature));
+				}
+			} else {
+				previous = packed.links.get(feature);
+			}
+			linkCount += it.value().length - (previous != null ? previous.length : 0);
+			for (long geometry : it.value()) {
+				deltaFeatures = deltaFeatures.put(geometry, with(deltaFeatures.get(geometry), feature));
+			}
+			deltaLinks = deltaLinks.put(feature, it.value());
+		}
+
+		this.deltaGeometries = deltaGeometries;
+		this.deltaLinks = deltaLinks;
+		this.deltaFeatures = deltaFeatures;
+		this.deltaCells = deltaCells;
+		this.geometryCount = geometryCount;
+		this.linkCount = linkCount;
+		this.replacedGeometries = replacedGeometries;
+	}
+
+	/**
+	 * @return an empty index with its own delta
+	 */
+	static MemoryIndex empty() {
+		return new MemoryIndex(new Packed(new TLongObjectHashMap<>(), new TLongObjectHashMap<>()), 0);
+	}
+
+	/**
+	 * @return a merged index with the geometries and links of a snapshot, which it takes over
+	 */
+	static MemoryIndex of(IndexChanges snapshot, long logSequence) {
+		return new MemoryIndex(new Packed(snapshot.geometries, snapshot.links), logSequence);
+	}
+
+	/**
+	 * @return a new version with the changes applied and the given log sequence
+	 */
+	MemoryIndex apply(IndexChanges changes, long logSequence) {
+		// A cleared index starts over with a new delta, the old one may still be searched by older versions
+		return new MemoryIndex(changes.cleared ? empty() : this, changes, logSequence);
+	}
+
+	/**
+	 * @return true if the delta is large enough to be merged
+	 */
+	boolean shouldMerge() {
+		int threshold = Math.max(MIN_MERGE_SIZE, packed.geometries.size() / MERGE_RATIO);
+		return deltaGeometries.size() + deltaLinks.size() > threshold || deltaTree.size() > threshold;
+	}
+
+	/**
+	 * @return the same version with all geometries and links packed and an empty delta
+	 */
+	MemoryIndex merge() {
+		TLongObjectHashMap<IndexedGeometry[]> geometries = packed.geometries.clone();
+		for (PersistentLongMap.Cursor<IndexedGeometry[]> it = deltaGeometries.iterator(); it.hasNext(); ) {
+			it.advance();
+			if (it.value().length > 0) {
+				geometries.put(it.key(), it.value());
+			} else {
+				geometries.remove(it.key());
+			}
+		}
+		TLongObjectHashMap<long[]> links = packed.links.clone();
+		for (PersistentLongMap.Cursor<long[]> it = deltaLinks.iterator(); it.hasNext(); ) {
+			it.advance();
+			if (it.value().length > 0) {
+				links.put(it.key(), it.value());
+			} else {
+				links.remove(it.key());
+			}
+		}
+		return new MemoryIndex(new Packed(geometries, links), logSequence);
+	}
+
+	/**
+	 * Writes all geometries and links as changes that replace everything, see {@link IndexChanges#read}. Only a
+	 * merged version can be written.
+	 */
+	void write(DataOutput out) throws IOException {
+		if (!deltaGeometries.isEmpty() || !deltaLinks.isEmpty()) {
+			throw new IllegalStateException("Only a merged index can be written");
+		}
+		IndexChanges.write(out, true, packed.geometries, packed.links);
+	}
+
+	long getLogSequence() {
+		return logSequence;
+	}
+
+	/**
+	 * @return the number of geometries and feature links
+	 */
+	long getCount() {
+		return geometryCount + linkCount;
+	}
+
+	SpatialHistogram getHistogram() {
+		SpatialHistogram histogram = this.histogram;
+		if (histogram == null) {
+			// Like deleted documents, replaced packed geometries are accounted for by the share of live ones
+			histogram = new SpatialHistogram();
+			if (packed.geometryCount > 0) {
+				histogram.add(packed.histogram,
+						(double) (packed.geometryCount - replacedGeometries) / packed.geometryCount);
+			}
+			for (PersistentLongMap.Cursor<double[]> it = deltaCells.iterator(); it.hasNext(); ) {
+				it.advance();
+				// Cells whose geometries were all replaced again are left out
+				if (it.value()[0] > 0) {
+					histogram.add((int) it.key(), it.value()[0], it.value()[1], it.value()[2]);
+				}
+			}
+			this.histogram = histogram;
+		}
+		return histogram;
+	}
+
+	IndexedGeometry[] geometriesOf(long subject) {
+		IndexedGeometry[] geometries = deltaGeometries.get(subject);
+		if (geometries == null) {
+			geometries = packed.geometries.get(subject);
+		}
+		return geometries != null ? geometries : NO_GEOMETRIES;
+	}
+
+	/**
+	 * @return the geometries the feature is linked to
+	 */
+	long[] linkedGeometries(long feature) {
+		long[] geometries = deltaLinks.get(feature);
+		if (geometries == null) {
+			geometries = packed.links.get(feature);
+		}
+		return geometries != null ? geometries : NO_LINKS;
+	}
+
+	/**
+	 * @return the features linked to the geometry
+	 */
+	long[] featuresOf(long geometry) {
+		long[] packedFeatures = packed.features.get(geometry);
+		long[] features = deltaFeatures.get(geometry);
+		if (packedFeatures == null) {
+			return features != null ? features : NO_LINKS;
+		}
+		TLongArrayList result = new TLongArrayList(packedFeatures.length);
+		for (long feature : packedFeatures) {
+			// The links of a feature in the delta replace its packed links
+			if (!deltaLinks.containsKey(feature)) {
+				result.add(feature);
+			}
+		}
+		if (features != null) {
+			result.add(features);
+		}
+		return result.toNativeArray();
+	}
+
+	/**
+	 * Finds the geometries whose envelopes intersect the given envelope.
+	 */
+	void search(Envelope envelope, List<IndexedGeometry> result) {
+		packed.tree.query(envelope, item -> {
+			IndexedGeometry geometry = (IndexedGeometry) item;
+			if (!deltaGeometries.containsKey(geometry.subject)) {
+				result.add(geometry);
+			}
+		});
+		deltaTree.query(envelope, geometry -> {
+			if (geometry.envelope.intersects(envelope) && isCurrent(geometry)) {
+				result.add(geometry);
+			}
+		});
+	}
+
+	private boolean isCurrent(IndexedGeometry deltaGeometry) {
+		for (IndexedGeometry geometry : geometriesOf(deltaGeometry.subject)) {
+			if (geometry == deltaGeometry) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return all geometries, including the empty ones
+	 */
+	Iterator<IndexedGeometry> all() {
+		return new Iterator<IndexedGeometry>() {
+			private final TLongObjectIterator<IndexedGeometry[]> packedIterator = packed.geometries.iterator();
+			private final PersistentLongMap.Cursor<IndexedGeometry[]> deltaIterator = deltaGeometries.iterator();
+			private IndexedGeometry[] geometries = NO_GEOMETRIES;
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				while (index == geometries.length) {
+					if (packedIterator.hasNext()) {
+						packedIterator.advance();
+						if (deltaGeometries.containsKey(packedIterator.key())) {
+							continue;
+						}
+						geometries = packedIterator.value();
+					} else if (deltaIterator.hasNext()) {
+						deltaIterator.advance();
+						geometries = deltaIterator.value();
+					} else {
+						return false;
+					}
+					index = 0;
+				}
+				return true;
+			}
+
+			@Override
+			public IndexedGeometry next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return geometries[index++];
+			}
+		};
+	}
+
+	private static TLongObjectHashMap<long[]> featuresOf(TLongObjectHashMap<long[]> links) {
+		TLongObjectHashMap<TLongArrayList> features = new TLongObjectHashMap<>();
+		for (TLongObjectIterator<long[]> it = links.iterator(); it.hasNext(); ) {
+			it.advance();
+			for (long geometry : it.value()) {
+				TLongArrayList list = features.get(geometry);
+				if (list == null) {
+					features.put(geometry, list = new TLongArrayList(1));
+				}
+				list.add(it.key());
+			}
+		}
+		TLongObjectHashMap<long[]> result = new TLongObjectHashMap<>(features.size());
+		for (TLongObjectIterator<TLongArrayList> it = features.iterator(); it.hasNext(); ) {
+			it.advance();
+			result.put(it.key(), it.value().toNativeArray());
+		}
+		return result;
+	}
+
+	private static long[] with(long[] features, long feature) {
+		if (features == null) {
+			return new long[]{feature};
+		}
+		long[] result = Arrays.copyOf(features, features.length + 1);
+		result[features.length] = feature;
+		return result;
+	}
+
+	private static long[] without(long[] features, long feature) {
+		TLongArrayList result = new TLongArrayList(features.length);
+		for (long other : features) {
+			if (other != feature) {
+				result.add(other);
+			}
+		}
+		return result.toNativeArray();
+	}
+
+	/**
+	 * @return the histogram cells with the non-empty geometries added with the given sign
+	 */
+	private static PersistentLongMap<double[]> addCells(PersistentLongMap<double[]> cells, IndexedGeometry[] geometries,
+														int sign) {
+		for (IndexedGeometry geometry : geometries) {
+			if (geometry.envelope != null) {
+				int index = SpatialHistogram.cellOf(geometry.envelope);
+				double[] cell = cells.get(index);
+				cells = cells.put(index, cell == null
+						? new double[]{sign, sign * geometry.envelope.getWidth(), sign * geometry.envelope.getHeight()}
+						: new double[]{cell[0] + sign, cell[1] + sign * geometry.envelope.getWidth(),
+								cell[2] + sign * geometry.envelope.getHeight()});
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * The packed geometries and links, the tree is built at once.
+	 */
+	private static final class Packed {
+		private final TLongObjectHashMap<IndexedGeometry[]> geometries;
+		private final TLongObjectHashMap<long[]> links;
+		private final TLongObjectHashMap<long[]> features;
+		private final STRtree tree = new STRtree();
+		private final SpatialHistogram histogram = new SpatialHistogram();
+		private long geometryCount;
+		private long linkCount;
+
+		private Packed(TLongObjectHashMap<IndexedGeometry[]> geometries, TLongObjectHashMap<long[]> links) {
+			this.geometries = geometries;
+			this.links = links;
+			this.features = featuresOf(links);
+			for (TLongObjectIterator<IndexedGeometry[]> it = geometries.iterator(); it.hasNext(); ) {
+				it.advance();
+				for (IndexedGeometry geometry : it.value()) {
+					// Empty geometries are only ever disjoint
+					if (geometry.envelope != null) {
+						tree.insert(geometry.envelope, geometry);
+						histogram.add(geometry.envelope);
+					}
+					geometryCount++;
+				}
+			}
+			for (TLongObjectIterator<long[]> it = links.iterator(); it.hasNext(); ) {
+				it.advance();
+				linkCount += it.value().length;
+			}
+			// Built before the tree is shared, the queries never modify it afterwards
+			tree.build();
+		}
+	}
+
+	/**
+	 * Geometries added since the last merge, in a quadtree that grows without being rebuilt. Geometries are only
+	 * added, each at most once.
+	 */
+	private static final class DeltaTree {
+		private final Quadtree tree = new Quadtree();
+		private final Set<IndexedGeometry> inserted = Collections.newSetFromMap(new IdentityHashMap<>());
+
+		synchronized void insert(IndexedGeometry geometry) {
+			if (geometry.envelope != null && inserted.add(geometry)) {
+				tree.insert(geometry.envelope, geometry);
+			}
+		}
+
+		/**
+		 * Visits the geometries in the quadrants the envelope intersects, a superset of the ones it intersects.
+		 */
+		void query(Envelope envelope, GeometryVisitor visitor) {
+			List<?> candidates;
+			synchronized (this) {
+				candidates = tree.query(envelope);
+			}
+			for (Object candidate : candidates) {
+				visitor.visit((IndexedGeometry) candidate);
+			}
+		}
+
+		synchronized int size() {
+			return inserted.size();
+		}
+	}
+
+	private interface GeometryVisitor {
+		void visit(IndexedGeometry geometry);
+	}
+}
@@ -0,0 +1,229 @@
+package com.ontotext.trree.geosparql.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Files of the in-memory index: a snapshot of the whole index and a journal of the changes committed since.
+ *
+ * The snapshot is the format, the journal generation, the log sequence, all geometries and links as
+ * {@link IndexChanges} that clear the index, and a CRC32 of all of them. It is written to a temporary file that
+ * replaces the previous snapshot, after which the journal is emptied. Each snapshot starts a new generation of the
+ * journal and only frames of the generation of the snapshot are applied to it. A crash before the journal is emptied
+ * leaves frames of the previous generation, which are older than the snapshot and are dropped.
+ *
+ * A journal frame is the length of the changes, the generation, the log sequence and the changes of a commit, and a
+ * CRC32 of them. Like in the index log, a frame cut short or damaged by a crash is dropped together with anything
+ * after it, the commit that was writing it never completed.
+ */
+final class MemoryIndexFiles implements Closeable {
+	// Bump whenever the format of the files changes, older snapshots are reindexed
+	// Format 2 adds the journal generation.
+	final static int FORMAT = 2;
+
+	private final static String SNAPSHOT_FILENAME = "geometries.snapshot";
+	private final static String JOURNAL_FILENAME = "geometries.journal";
+
+	private final static int HEADER_BYTES = Integer.BYTES + 2 * Long.BYTES;
+	// The journal is folded into a new snapshot once it is larger than this and half of the snapshot
+	private final static long MIN_JOURNAL_SIZE = 64 * 1024 * 1024;
+
+	private final Path snapshotPath;
+	private final Path journalPath;
+	private FileChannel journal;
+
+	// Format of the snapshot, older than the current one only if the index must be reindexed
+	private int format = FORMAT;
+	private long snapshotSize;
+	// Generation of the journal frames that follow the snapshot
+	private long generation;
+	// Size of the complete frames in the journal
+	private long journalSize;
+
+	MemoryIndexFiles(Path directory) {
+		this.snapshotPath = directory.resolve(SNAPSHOT_FILENAME);
+		this.journalPath = directory.resolve(JOURNAL_FILENAME);
+	}
+
+	/**
+	 * Reads the snapshot and applies the changes in the journal to it.
+	 *
+	 * @return the index as of the last commit, empty if there is none or it has an older format
+	 */
+	MemoryIndex load() throws IOException {
+		MemoryIndex index = MemoryIndex.empty();
+		if (Files.exists(snapshotPath)) {
+			snapshotSize = Files.size(snapshotPath);
+			try (InputStream stream = new BufferedInputStream(Files.newInputStream(snapshotPath))) {
+				CheckedInputStream checked = new CheckedInputStream(stream, new CRC32());
+				DataInputStream in = new DataInputStream(checked);
+				format = in.readInt();
+				if (format != FORMAT) {
+					return index;
+				}
+				generation = in.readLong();
+				long logSequence = in.readLong();
+				IndexChanges changes = IndexChanges.read(in);
+				int checksum = (int) checked.getChecksum().getValue();
+				if (in.readInt() != checksum) {
+					throw new IOException("Damaged GeoSPARQL index snapshot " + snapshotPath);
+				}
+				index = MemoryIndex.of(changes, logSequence);
+			}
+		}
+		if (!Files.exists(journalPath)) {
+			return index;
+		}
+
+		byte[] bytes = Files.readAllBytes(journalPath);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.remaining() >= HEADER_BYTES + Integer.BYTES) {
+			int start = buffer.position();
+			int length = buffer.getInt();
+			long frameGeneration = buffer.getLong();
+			long logSequence = buffer.getLong();
+			if (length < 0 || length > buffer.remaining() - Integer.BYTES) {
+				break;
+			}
+			int end = start + HEADER_BYTES + length;
+			if (buffer.getInt(end) != checksum(bytes, start, end - start)) {
+				break;
+			}
+			if (frameGeneration != generation) {
+				// Left by a crash after the snapshot replaced the frames, they are truncated with the next append
+				break;
+			}
+			IndexChanges changes = IndexChanges.read(new DataInputStream(
+					new ByteArrayInputStream(bytes, start + HEADER_BYTES, length)));
+			index = index.apply(changes, logSequence);
+			buffer.position(end + Integer.BYTES);
+			journalSize = buffer.position();
+		}
+		return index;
+	}
+
+	/**
+	 * @return true if the snapshot has an older format, the index must be reindexed
+	 */
+	boolean needsReindex() {
+		return format < FORMAT;
+	}
+
+	/**
+	 * Appends the changes of a commit to the journal and forces them to disk.
+	 */
+	void append(IndexChanges changes, long logSequence) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeLong(generation);
+		out.writeLong(logSequence);
+		changes.write(out);
+		out.writeInt(0);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		int end = buffer.limit() - Integer.BYTES;
+		buffer.putInt(0, end - HEADER_BYTES);
+		buffer.putInt(end, checksum(buffer.array(), 0, end));
+
+		FileChannel journal = getJournal();
+		while (buffer.hasRemaining()) {
+			journal.write(buffer);
+		}
+		journal.force(false);
+		journalSize += buffer.limit();
+	}
+
+	/**
+	 * @return true if the journal is large enough to be folded into a new snapshot
+	 */
+	boolean isJournalLarge() {
+		return journalSize > Math.max(MIN_JOURNAL_SIZE, snapshotSize / 2);
+	}
+
+	/**
+	 * Replaces the snapshot with a merged index and empties the journal.
+	 */
+	void writeSnapshot(MemoryIndex index) throws IOException {
+		Files.createDirectories(snapshotPath.getParent());
+		Path temporary = snapshotPath.resolveSibling(SNAPSHOT_FILENAME + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(FORMAT);
+			out.writeLong(generation + 1);
+			out.writeLong(index.getLogSequence());
+			index.write(out);
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(temporary, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		// The rename must be durable before the journal it replaces is emptied
+		syncDirectory(snapshotPath.getParent());
+		format = FORMAT;
+		generation++;
+		snapshotSize = Files.size(snapshotPath);
+
+		FileChannel journal = getJournal();
+		journal.truncate(0);
+		journal.force(false);
+		journalSize = 0;
+	}
+
+	private static void syncDirectory(Path directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			// Directories can't be opened on some platforms, e.g. Windows, where renames are durable already
+			return;
+		}
+		try (FileChannel ignored = channel) {
+			channel.force(true);
+		}
+	}
+
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private FileChannel getJournal() throws IOException {
+		if (journal == null) {
+			Files.createDirectories(journalPath.getParent());
+			journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			// Drop a frame that was cut short so that new frames follow the last complete one
+			if (journal.size() > journalSize) {
+				journal.truncate(journalSize);
+			}
+		}
+		return journal;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.ontotext.trree.geosparql.memory;
+
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable map with long keys, a hash array mapped trie. Putting a key returns a new map that shares everything
+ * with the old one except the nodes on the path to the key, so versions of the index can each have their own delta
+ * without copying it.
+ *
+ * The keys are spread by a bijective hash, so distinct keys always part within the 64 bits of the hash and the trie
+ * needs no collision nodes. There is no removal, the delta keeps removed subjects as empty arrays.
+ */
+final class PersistentLongMap<V> {
+	private final static int BITS = 5;
+	private final static int MASK = (1 << BITS) - 1;
+
+	private final static PersistentLongMap<?> EMPTY = new PersistentLongMap<>(new Node(0, new Object[0]), 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentLongMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> PersistentLongMap<V> empty() {
+		return (PersistentLongMap<V>) EMPTY;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	boolean containsKey(long key) {
+		return find(key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		Entry entry = find(key);
+		return entry != null ? (V) entry.value : null;
+	}
+
+	private Entry find(long key) {
+		long hash = hash(key);
+		Node node = root;
+		for (int shift = 0; ; shift += BITS) {
+			int bit = 1 << ((int) (hash >>> shift) & MASK);
+			if ((node.bitmap & bit) == 0) {
+				return null;
+			}
+			Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+			if (slot instanceof Entry) {
+				return ((Entry) slot).key == key ? (Entry) slot : null;
+			}
+			node = (Node) slot;
+		}
+	}
+
+	/**
+	 * @return a map with the key mapped to the value, this map is left as it is
+	 */
+	PersistentLongMap<V> put(long key, V value) {
+		int newSize = containsKey(key) ? size : size + 1;
+		return new PersistentLongMap<>(put(root, 0, new Entry(key, value)), newSize);
+	}
+
+	private static Node put(Node node, int shift, Entry entry) {
+		int bit = 1 << ((int) (hash(entry.key) >>> shift) & MASK);
+		int index = Integer.bitCount(node.bitmap & (bit - 1));
+		if ((node.bitmap & bit) == 0) {
+			Object[] slots = new Object[node.slots.length + 1];
+			System.arraycopy(node.slots, 0, slots, 0, index);
+			slots[index] = entry;
+			System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+			return new Node(node.bitmap | bit, slots);
+		}
+
+		Object slot = node.slots[index];
+		Object replacement;
+		if (slot instanceof Node) {
+			replacement = put((Node) slot, shift + BITS, entry);
+		} else if (((Entry) slot).key == entry.key) {
+			replacement = entry;
+		} else {
+			// Both entries move a level down, where their hashes may still share the bits
+			Node child = put(new Node(0, new Object[0]), shift + BITS, (Entry) slot);
+			replacement = put(child, shift + BITS, entry);
+		}
+		Object[] slots = node.slots.clone();
+		slots[index] = replacement;
+		return new Node(node.bitmap, slots);
+	}
+
+	/**
+	 * @return an iterator over the entries in no particular order
+	 */
+	Cursor<V> iterator() {
+		return new Cursor<>(root);
+	}
+
+	private static long hash(long key) {
+		// The finalizer of MurmurHash3, each step can be inverted
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private static final class Node {
+		private final int bitmap;
+		// An entry or a node for each bit set in the bitmap, in the order of the bits
+		private final Object[] slots;
+
+		private Node(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+	}
+
+	private static final class Entry {
+		private final long key;
+		private final Object value;
+
+		private Entry(long key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Iterates the entries like a Trove iterator: {@link #advance()} moves to the next entry.
+	 */
+	static final class Cursor<V> {
+		// The nodes on the path to the next entry and the position in each of them
+		private final Node[] nodes = new Node[Long.SIZE / BITS + 1];
+		private final int[] positions = new int[nodes.length];
+		private int depth;
+		private Entry next;
+		private Entry current;
+
+		private Cursor(Node root) {
+			nodes[0] = root;
+			findNext();
+		}
+
+		boolean hasNext() {
+			return next != null;
+		}
+
+		void advance() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			current = next;
+			findNext();
+		}
+
+		long key() {
+			return current.key;
+		}
+
+		@SuppressWarnings("unchecked")
+		V value() {
+			return (V) current.value;
+		}
+
+		private void findNext() {
+			next = null;
+			while (depth >= 0) {
+				Node node = nodes[depth];
+				if (positions[depth] == node.slots.length) {
+					depth--;
+					continue;
+				}
+				Object slot = node.slots[positions[depth]++];
+				if (slot instanceof Entry) {
+					next = (Entry) slot;
+					return;
+				}
+				depth++;
+				nodes[depth] = (Node) slot;
+				positions[depth] = 0;
+			}
+		}
+	}
+}
@@ -11,7 +11,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
 import java.util.Properties;
+import java.util.stream.Stream;
 
 /**
  * A basic utils class responsible for handling common operations regarding the initialization and configuration
@@ -78,6 +81,38 @@ public class GeoSparqlUtils {
         }
     }
 
+    /**
+     * Replaces the index with the rebuilt index. Each step is a directory rename, so the swap can be repeated
+     * after a crash at any point and completes where the previous attempt stopped. The replaced index is moved
+     * to the old index directory, it is up to the caller to delete it once it is no longer open.
+     *
+     * @param pluginDataDir the plugin data directory
+     */
+    public static void swapRebuiltIndex(Path pluginDataDir) throws IOException {
+        Path indexPath = GeoSparqlConfig.resolveIndexPath(pluginDataDir);
+        Path rebuildPath = GeoSparqlConfig.resolveRebuildIndexPath(pluginDataDir);
+        Path oldPath = GeoSparqlConfig.resolveOldIndexPath(pluginDataDir);
+
+        if (Files.exists(rebuildPath)) {
+            if (Files.exists(indexPath)) {
+                deleteDirectory(oldPath);
+                Files.move(indexPath, oldPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(rebuildPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    public static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
     public static void validateParams(GeoSparqlConfig.PrefixTree prefixTree, int precision) {
         switch (prefixTree) {
             case GEOHASH:
@@ -89,6 +124,13 @@ public class GeoSparqlUtils {
                 if (precision <= 0 || precision > QuadPrefixTree.MAX_LEVELS_POSSIBLE) {
                     throw new PluginException(constructExceptionMessage(prefixTree));
                 }
+                break;
+            case SHAPE:
+                // Shapes are indexed as triangles, the precision doesn't apply
+                break;
+            case MEMORY:
+                // Geometries are kept in an in-memory R-tree, the precision doesn't apply
+                break;
         }
     }
 
@@ -27,8 +27,9 @@ public class Above extends AbstractBooleanBinaryFunction {
      * @return a boolean Literal that is true if the minumum bounding box of geom1 is strictly above the minimum bounding box of geom2.
      */
     @Override protected boolean accept(ValueFactory valueFactory, Geometry geom1, Geometry geom2, Value... originals) {
-        var minY1 = geom1.getEnvelope().getCoordinates()[0].y;
-        var maxY2 = geom2.getEnvelope().getCoordinates()[1].y;
-        return minY1 > maxY2;
+        if (geom1.isEmpty() || geom2.isEmpty())
+            return false;
+        // Envelopes of points and axis-parallel lines are not polygons, compare the bounds directly
+        return geom1.getEnvelopeInternal().getMinY() > geom2.getEnvelopeInternal().getMaxY();
     }
 }
@@ -15,6 +15,7 @@ package com.useekm.geosparql;
 
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.query.algebra.evaluation.ValueExprEvaluationException;
@@ -28,6 +29,22 @@ public abstract class AbstractBooleanBinaryFunction extends AbstractBooleanFunct
         return accept(VALUE_FACTORY, geom1, geom2);
     }
 
+    /**
+     * Evaluates the function with a prepared first argument. Functions that have no optimized prepared evaluation
+     * evaluate on the underlying geometry.
+     */
+    public boolean evaluate(PreparedGeometry geom1, Geometry geom2) {
+        return evaluate(geom1.getGeometry(), geom2);
+    }
+
+    /**
+     * Evaluates the function with a prepared second argument. Functions that have no optimized prepared evaluation
+     * evaluate on the underlying geometry.
+     */
+    public boolean evaluate(Geometry geom1, PreparedGeometry geom2) {
+        return evaluate(geom1, geom2.getGeometry());
+    }
+
     @Override public boolean accept(ValueFactory valueFactory, Value... args) throws ValueExprEvaluationException {
         if (args.length < 2)
             throw new ValueExprEvaluationException(getURI() + " function expects 2+ arguments, found " + args.length);
@@ -27,8 +27,9 @@ public class Below extends AbstractBooleanBinaryFunction {
      * @return a boolean Literal that is true if the minumum bounding box of geom1 is strictly below the minimum bounding box of geom2.
      */
     @Override protected boolean accept(ValueFactory valueFactory, Geometry geom1, Geometry geom2, Value... originals) {
-        var maxY1 = geom1.getEnvelope().getCoordinates()[1].y;
-        var minY2 = geom2.getEnvelope().getCoordinates()[0].y;
-        return maxY1 < minY2;
+        if (geom1.isEmpty() || geom2.isEmpty())
+            return false;
+        // Envelopes of points and axis-parallel lines are not polygons, compare the bounds directly
+        return geom1.getEnvelopeInternal().getMaxY() < geom2.getEnvelopeInternal().getMinY();
     }
 }
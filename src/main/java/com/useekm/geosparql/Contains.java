@@ -15,6 +15,7 @@ package com.useekm.geosparql;
 
 import com.useekm.indexing.GeoConstants;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.ValueFactory;
 
@@ -35,4 +36,8 @@ public class Contains extends AbstractBooleanBinaryFunction {
     @Override protected boolean accept(ValueFactory valueFactory, Geometry geom1, Geometry geom2, Value... allArgs) {
         return geom1.contains(geom2);
     }
+
+    @Override public boolean evaluate(PreparedGeometry geom1, Geometry geom2) {
+        return geom1.contains(geom2);
+    }
 }
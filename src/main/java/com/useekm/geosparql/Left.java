@@ -27,8 +27,9 @@ public class Left extends AbstractBooleanBinaryFunction {
      * @return a boolean Literal that is true if the minumum bounding box of geom1 is strictly on the left of the minimum bounding box of geom2.
      */
     @Override protected boolean accept(ValueFactory valueFactory, Geometry geom1, Geometry geom2, Value... originals) {
-        var maxX1 = geom1.getEnvelope().getCoordinates()[2].x;
-        var minX2 = geom2.getEnvelope().getCoordinates()[0].x;
-        return minX2 > maxX1;
+        if (geom1.isEmpty() || geom2.isEmpty())
+            return false;
+        // Envelopes of points and axis-parallel lines are not polygons, compare the bounds directly
+        return geom1.getEnvelopeInternal().getMaxX() < geom2.getEnvelopeInternal().getMinX();
     }
 }
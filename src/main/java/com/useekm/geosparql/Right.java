@@ -27,8 +27,9 @@ public class Right extends AbstractBooleanBinaryFunction {
      * @return a boolean Literal that is true if the minumum bounding box of geom1 is strictly on the right of the minimum bounding box of geom2.
      */
     @Override protected boolean accept(ValueFactory valueFactory, Geometry geom1, Geometry geom2, Value... originals) {
-        var minX1 = geom1.getEnvelope().getCoordinates()[0].x;
-        var maxX2 = geom2.getEnvelope().getCoordinates()[2].x;
-        return minX1 > maxX2;
+        if (geom1.isEmpty() || geom2.isEmpty())
+            return false;
+        // Envelopes of points and axis-parallel lines are not polygons, compare the bounds directly
+        return geom1.getEnvelopeInternal().getMinX() > geom2.getEnvelopeInternal().getMaxX();
     }
 }
@@ -15,6 +15,7 @@ package com.useekm.geosparql;
 
 import com.useekm.indexing.GeoConstants;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.ValueFactory;
 
@@ -35,4 +36,11 @@ public class Within extends AbstractBooleanBinaryFunction {
     @Override protected boolean accept(ValueFactory valueFactory, Geometry geom1, Geometry geom2, Value... originals) {
         return geom1.within(geom2);
     }
+
+    /**
+     * geom1 is within geom2 exactly when geom2 contains geom1, which prepared geometries evaluate efficiently.
+     */
+    @Override public boolean evaluate(Geometry geom1, PreparedGeometry geom2) {
+        return geom2.contains(geom1);
+    }
 }
@@ -0,0 +1,155 @@
+package com.ontotext.trree.geosparql;
+
+import com.useekm.indexing.GeoFactory;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CellClassifierTest {
+	private final GeometryFactory factory = GeoFactory.getDefaultGeometryFactory();
+	private final WKTReader reader = new WKTReader(factory);
+
+	@Test
+	public void testClassifiedCandidatesMatchRefinement() throws ParseException {
+		// A ring shaped area with a detailed boundary
+		Geometry area = reader.read("POINT(0 0)").buffer(10, 64).difference(reader.read("POINT(1 1)").buffer(3, 64));
+		PreparedGeometry prepared = PreparedGeometryFactory.prepare(area);
+		CellClassifier classifier = new CellClassifier(prepared);
+
+		Random random = new Random(42);
+		List<Geometry> candidates = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			double x = random.nextDouble() * 30 - 15;
+			double y = random.nextDouble() * 30 - 15;
+			double d = random.nextDouble();
+			Coordinate[] ring = new Coordinate[]{new Coordinate(x, y), new Coordinate(x + d, y),
+					new Coordinate(x + d, y + d), new Coordinate(x, y)};
+			candidates.add(factory.createPoint(new Coordinate(x, y)));
+			candidates.add(factory.createLineString(new Coordinate[]{new Coordinate(x, y), new Coordinate(x + d, y + d)}));
+			candidates.add(factory.createLineString(ring));
+			candidates.add(factory.createPolygon(ring));
+			candidates.add(factory.createMultiPointFromCoords(new Coordinate[]{new Coordinate(x, y),
+					new Coordinate(x + d, y)}));
+		}
+
+		int classified = 0;
+		for (Geometry candidate : candidates) {
+			CellClassifier.Location location = classifier.locate(candidate);
+			if (location == CellClassifier.Location.BOUNDARY) {
+				continue;
+			}
+			classified++;
+			for (GeoSparqlFunction function : GeoSparqlFunction.values()) {
+				if (!function.isTopological()) {
+					continue;
+				}
+				assertEquals(function + " " + candidate, function.evaluate(candidate, area),
+						CellClassifier.evaluate(function, location, candidate, true));
+				assertEquals(function + " " + candidate, function.evaluate(area, candidate),
+						CellClassifier.evaluate(function, location, candidate, false));
+			}
+		}
+		// Most candidates are away from the boundary
+		assertTrue(classified > candidates.size() / 2);
+	}
+
+	@Test
+	public void testProxiesMatchRefinement() throws ParseException {
+		Geometry area = reader.read("POINT(0 0)").buffer(10, 64).difference(reader.read("POINT(1 1)").buffer(3, 64));
+		CellClassifier classifier = new CellClassifier(PreparedGeometryFactory.prepare(area));
+
+		Random random = new Random(7);
+		int classified = 0;
+		for (int i = 0; i < 1000; i++) {
+			double x = random.nextDouble() * 30 - 15;
+			double y = random.nextDouble() * 30 - 15;
+			double d = random.nextDouble();
+			Geometry candidate = random.nextBoolean() ?
+					reader.read("POINT(" + x + " " + y + ")").buffer(d, 8) :
+					factory.createLineString(new Coordinate[]{new Coordinate(x, y), new Coordinate(x + d, y + d / 2),
+							new Coordinate(x + d / 3, y + d)});
+			// The location of the envelope alone decides the proxy, as the bounds doc values do in the index
+			Envelope envelope = candidate.getEnvelopeInternal();
+			CellClassifier.Location location = classifier.locate(envelope);
+			if (location == CellClassifier.Location.BOUNDARY) {
+				continue;
+			}
+			classified++;
+			Geometry proxy = GeometryKind.of(candidate).proxy(envelope, factory);
+			assertEquals(location, classifier.locate(proxy));
+			for (GeoSparqlFunction function : GeoSparqlFunction.values()) {
+				if (!function.isTopological()) {
+					continue;
+				}
+				assertEquals(function + " " + candidate, function.evaluate(candidate, area),
+						CellClassifier.evaluate(function, location, proxy, true));
+				assertEquals(function + " " + candidate, function.evaluate(area, candidate),
+						CellClassifier.evaluate(function, location, proxy, false));
+			}
+		}
+		assertTrue(classified > 500);
+	}
+
+	@Test
+	public void testPointsInRectangleMatchRefinement() throws ParseException {
+		Geometry rectangle = reader.read("POLYGON((0 0, 10 0, 10 5, 0 5, 0 0))");
+		Envelope envelope = rectangle.getEnvelopeInternal();
+
+		Random random = new Random(42);
+		int classified = 0;
+		for (int i = 0; i < 2000; i++) {
+			// Coordinates on a grid so that some points are on the edges
+			double x = random.nextInt(60) * 0.25 - 2;
+			double y = random.nextInt(40) * 0.25 - 2;
+			Geometry candidate = factory.createPoint(new Coordinate(x, y));
+			CellClassifier.Location location = CellClassifier.locateInRectangle(envelope, candidate);
+			if (location == CellClassifier.Location.BOUNDARY) {
+				assertTrue(candidate.toString(), rectangle.getBoundary().intersects(candidate));
+				continue;
+			}
+			classified++;
+			for (GeoSparqlFunction function : GeoSparqlFunction.values()) {
+				if (!function.isTopological()) {
+					continue;
+				}
+				assertEquals(function + " " + candidate, function.evaluate(candidate, rectangle),
+						CellClassifier.evaluate(function, location, candidate, true));
+				assertEquals(function + " " + candidate, function.evaluate(rectangle, candidate),
+						CellClassifier.evaluate(function, location, candidate, false));
+			}
+		}
+		assertTrue(classified > 1500);
+	}
+
+	@Test
+	public void testUnsupportedGeometries() throws ParseException {
+		assertTrue(CellClassifier.canClassify(reader.read("MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0)), ((2 2, 3 2, 3 3, 2 2)))")));
+		assertFalse(CellClassifier.canClassify(reader.read("LINESTRING(0 0, 1 1)")));
+		assertFalse(CellClassifier.canClassify(reader.read("GEOMETRYCOLLECTION(POLYGON((0 0, 1 0, 1 1, 0 0)))")));
+		assertFalse(CellClassifier.canClassify(reader.read("POLYGON EMPTY")));
+
+		CellClassifier classifier = new CellClassifier(PreparedGeometryFactory.prepare(
+				reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))")));
+		// Mixed dimensions are always related to the area
+		assertEquals(CellClassifier.Location.BOUNDARY,
+				classifier.locate(reader.read("GEOMETRYCOLLECTION(POINT(2 2), LINESTRING(2 2, 3 3))")));
+		assertEquals(CellClassifier.Location.EXTERIOR, classifier.locate(reader.read("POINT(20 20)")));
+		assertEquals(CellClassifier.Location.INTERIOR, classifier.locate(reader.read("POINT(2.1 2.1)")));
+		// On the boundary
+		assertEquals(CellClassifier.Location.BOUNDARY, classifier.locate(reader.read("POINT(0 5)")));
+	}
+}
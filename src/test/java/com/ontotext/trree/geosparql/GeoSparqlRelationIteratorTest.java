@@ -0,0 +1,151 @@
+package com.ontotext.trree.geosparql;
+
+import com.ontotext.test.TemporaryLocalFolder;
+import com.ontotext.trree.geosparql.lucene.GeometryCodec;
+import com.ontotext.trree.geosparql.lucene.LuceneGeoIndexer;
+import com.ontotext.trree.sdk.Entities;
+import com.useekm.types.GeoConvert;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class GeoSparqlRelationIteratorTest {
+	private static final Logger LOG = LoggerFactory.getLogger(GeoSparqlRelationIteratorTest.class);
+
+	// Every entity is an IRI, so its geometries are looked up in the index
+	private static final Entities ENTITIES = (Entities) Proxy.newProxyInstance(Entities.class.getClassLoader(),
+			new Class<?>[]{Entities.class}, (proxy, method, args) -> {
+				if (method.getName().equals("get")) {
+					return SimpleValueFactory.getInstance().createIRI("urn:entity:" + args[0]);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			});
+
+	@Rule
+	public TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
+
+	private GeoSparqlPlugin parent;
+
+	@Before
+	public void init() throws Exception {
+		parent = new GeoSparqlPlugin();
+		parent.setConfig(new GeoSparqlConfig());
+		parent.setLogger(LOG);
+		parent.setDataDir(tmpFolder.getRoot());
+
+		GeoSparqlIndexer indexer = new LuceneGeoIndexer(parent, GeometryCodec.DEFAULT,
+				tmpFolder.getRoot().toPath().resolve("index"), GeoSparqlConfig.PrefixTree.QUAD, 11);
+		indexer.initialize();
+		indexer.begin();
+		index(indexer, 1, "POINT(10 10)");
+		index(indexer, 2, "POINT(55 55)");
+		// On the edge of geometry 5 and inside of it
+		index(indexer, 3, "POINT(50 55)");
+		index(indexer, 4, "POINT(52 58)");
+		index(indexer, 5, "POLYGON((50 50, 60 50, 60 60, 50 60, 50 50))");
+		// Feature 100 has two geometries, only the second one intersects geometry 5
+		indexer.indexFeatureGeometryList(100, new long[]{1, 2});
+		indexer.commit();
+		parent.indexer = indexer;
+	}
+
+	@After
+	public void close() throws IOException {
+		parent.indexer.close();
+	}
+
+	@Test
+	public void testMatchesOfLaterGeometriesOfKnownFeature() {
+		GeoSparqlRelationIterator iterator = new GeoSparqlRelationIterator(parent, GeoSparqlFunction.SF_INTERSECTS,
+				100, 42, 0, ENTITIES);
+		Set<Long> objects = new HashSet<>();
+		while (iterator.next()) {
+			assertEquals(100, iterator.subject);
+			objects.add(iterator.object);
+		}
+		iterator.close();
+
+		assertEquals(new HashSet<>(Arrays.asList(1L, 2L, 5L, 100L)), objects);
+	}
+
+	@Test
+	public void testPointsInRectangle() {
+		// The interior points are decided by their coordinates, the one on the edge is related to the rectangle
+		assertEquals(new HashSet<>(Arrays.asList(2L, 4L, 5L, 100L)), subjectsOf(GeoSparqlFunction.SF_WITHIN, 5));
+		assertEquals(new HashSet<>(Collections.singletonList(3L)), subjectsOf(GeoSparqlFunction.SF_TOUCHES, 5));
+		assertEquals(new HashSet<>(Arrays.asList(2L, 3L, 4L, 5L, 100L)),
+				subjectsOf(GeoSparqlFunction.SF_INTERSECTS, 5));
+	}
+
+	@Test
+	public void testCandidatesOfDetailedArea() throws Exception {
+		// Enough points for the area to be classified, the candidates in its interior or exterior aren't decoded
+		Geometry area = GeoConvert.wktToGeometry("POINT(30 30)").buffer(8, 64);
+		Map<Long, Geometry> candidates = new HashMap<>();
+		Random random = new Random(42);
+		for (long subject = 200; subject < 400; subject++) {
+			double x = random.nextDouble() * 24 + 18;
+			double y = random.nextDouble() * 24 + 18;
+			double d = random.nextDouble() * 2;
+			candidates.put(subject, subject % 2 == 0 ?
+					GeoConvert.wktToGeometry("POINT(" + x + " " + y + ")").buffer(d, 4) :
+					GeoConvert.wktToGeometry("LINESTRING(" + x + " " + y + ", " + (x + d) + " " + (y + d / 2) + ", "
+							+ (x + d / 3) + " " + (y + d) + ")"));
+		}
+		parent.indexer.begin();
+		index(parent.indexer, 6, area.toText());
+		for (Map.Entry<Long, Geometry> candidate : candidates.entrySet()) {
+			index(parent.indexer, candidate.getKey(), candidate.getValue().toText());
+		}
+		parent.indexer.commit();
+
+		for (GeoSparqlFunction function : GeoSparqlFunction.values()) {
+			if (!function.isTopological() || function.getSpatialOperation() == SpatialOperation.IsDisjointTo) {
+				continue;
+			}
+			Set<Long> expected = new HashSet<>();
+			for (Map.Entry<Long, Geometry> candidate : candidates.entrySet()) {
+				if (function.evaluate(candidate.getValue(), area)) {
+					expected.add(candidate.getKey());
+				}
+			}
+			Set<Long> subjects = subjectsOf(function, 6);
+			subjects.removeIf(subject -> subject < 200);
+			assertEquals(function.toString(), expected, subjects);
+		}
+	}
+
+	private Set<Long> subjectsOf(GeoSparqlFunction function, long object) {
+		GeoSparqlRelationIterator iterator = new GeoSparqlRelationIterator(parent, function, 0, 42, object, ENTITIES);
+		Set<Long> subjects = new HashSet<>();
+		while (iterator.next()) {
+			assertEquals(object, iterator.object);
+			subjects.add(iterator.subject);
+		}
+		iterator.close();
+		return subjects;
+	}
+
+	private static void index(GeoSparqlIndexer indexer, long subject, String wkt) throws Exception {
+		indexer.indexGeometryList(subject, id -> "Subject " + id,
+				Collections.singletonList(GeoConvert.wktToGeometry(wkt)));
+	}
+}
@@ -0,0 +1,195 @@
+package com.ontotext.trree.geosparql;
+
+import com.ontotext.test.TemporaryLocalFolder;
+import com.ontotext.trree.geosparql.lucene.GeometryCodec;
+import com.ontotext.trree.geosparql.lucene.LuceneGeoIndexer;
+import com.ontotext.trree.geosparql.memory.MemoryGeoIndexer;
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.StatementIterator;
+import com.useekm.indexing.GeoFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKTReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeoSparqlSpatialJoinIteratorTest {
+	private static final Logger LOG = LoggerFactory.getLogger(GeoSparqlSpatialJoinIteratorTest.class);
+
+	// Every entity is an IRI, so its geometries are looked up in the index
+	private static final Entities ENTITIES = (Entities) Proxy.newProxyInstance(Entities.class.getClassLoader(),
+			new Class<?>[]{Entities.class}, (proxy, method, args) -> {
+				if (method.getName().equals("get")) {
+					return SimpleValueFactory.getInstance().createIRI("urn:entity:" + args[0]);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			});
+
+	@Rule
+	public TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
+
+	private final List<Long> ids = new ArrayList<>();
+	private final List<Geometry> geometries = new ArrayList<>();
+	private final Map<Long, long[]> featureLinks = new LinkedHashMap<>();
+
+	private GeoSparqlPlugin parent;
+
+	@Before
+	public void init() throws Exception {
+		WKTReader reader = new WKTReader(GeoFactory.getDefaultGeometryFactory());
+		add(1, reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"));
+		add(2, reader.read("POLYGON((5 5, 15 5, 15 15, 5 15, 5 5))"));
+		add(3, reader.read("POINT(2 2)"));
+		add(4, reader.read("LINESTRING(-5 5, 20 5)"));
+		add(5, reader.read("POLYGON((100 50, 110 50, 110 60, 100 60, 100 50))"));
+		// entity 6 has two geometries, only the second one touches entity 5
+		add(6, reader.read("POINT(50 50)"));
+		add(6, reader.read("POINT(110 55)"));
+		add(7, reader.read("POLYGON((10 0, 20 0, 20 -10, 10 -10, 10 0))"));
+
+		parent = new GeoSparqlPlugin();
+		parent.setConfig(new GeoSparqlConfig());
+		parent.setLogger(LOG);
+		parent.setDataDir(tmpFolder.getRoot());
+
+		parent.indexer = new LuceneGeoIndexer(parent, GeometryCodec.DEFAULT,
+				tmpFolder.getRoot().toPath().resolve("index"), GeoSparqlConfig.PrefixTree.QUAD, 11);
+		parent.indexer.initialize();
+		index();
+	}
+
+	private void index() throws Exception {
+		GeoSparqlIndexer indexer = parent.indexer;
+		indexer.begin();
+		Map<Long, List<Geometry>> byEntity = new LinkedHashMap<>();
+		for (int i = 0; i < ids.size(); i++) {
+			if (!featureLinks.containsKey(ids.get(i))) {
+				byEntity.computeIfAbsent(ids.get(i), id -> new ArrayList<>()).add(geometries.get(i));
+			}
+		}
+		for (Map.Entry<Long, List<Geometry>> entry : byEntity.entrySet()) {
+			indexer.indexGeometryList(entry.getKey(), id -> "Subject " + id, entry.getValue());
+		}
+		for (Map.Entry<Long, long[]> entry : featureLinks.entrySet()) {
+			indexer.indexFeatureGeometryList(entry.getKey(), entry.getValue());
+		}
+		indexer.commit();
+	}
+
+	@After
+	public void close() throws IOException {
+		parent.indexer.close();
+	}
+
+	private void add(long id, Geometry geometry) {
+		ids.add(id);
+		geometries.add(geometry);
+	}
+
+	@Test
+	public void testJoinMatchesNestedLoop() {
+		for (GeoSparqlFunction function : GeoSparqlFunction.values()) {
+			assertEquals(function.name(), nestedLoop(function), join(function));
+		}
+	}
+
+	@Test
+	public void testPartitionedJoinMatchesNestedLoop() throws Exception {
+		addRandomGeometries();
+		index();
+		assertPartitionedJoinMatchesNestedLoop();
+	}
+
+	@Test
+	public void testPartitionedJoinInMemory() throws Exception {
+		addRandomGeometries();
+		parent.indexer.close();
+		parent.indexer = new MemoryGeoIndexer(parent, tmpFolder.getRoot().toPath().resolve("memory"));
+		parent.indexer.initialize();
+		index();
+		assertPartitionedJoinMatchesNestedLoop();
+	}
+
+	private void addRandomGeometries() {
+		Random random = new Random(42);
+		for (long id = 100; id < 400; id++) {
+			double x = random.nextDouble() * 100;
+			double y = random.nextDouble() * 80;
+			double size = random.nextDouble() * 10;
+			add(id, random.nextBoolean() ?
+					GeoFactory.getDefaultGeometryFactory().createPoint(new Coordinate(x, y)) :
+					GeoFactory.getDefaultGeometryFactory().toGeometry(new Envelope(x, x + size, y, y + size)));
+		}
+		// A feature with the geometries of two entities, which may both match the same object
+		featureLinks.put(500L, new long[]{100, 101});
+		add(500, geometries.get(ids.indexOf(100L)));
+		add(500, geometries.get(ids.indexOf(101L)));
+	}
+
+	private void assertPartitionedJoinMatchesNestedLoop() {
+		for (GeoSparqlFunction function : GeoSparqlFunction.values()) {
+			if (GeoSparqlSpatialJoinIterator.canPartition(function)) {
+				// Small enough to split the extent into many tiles
+				assertEquals(function.name(), nestedLoop(function),
+						join(new GeoSparqlSpatialJoinIterator(parent, function, 42, 16)));
+			}
+		}
+	}
+
+	@Test
+	public void testEachPairIsReturnedOnce() {
+		Set<String> pairs = join(GeoSparqlFunction.SF_INTERSECTS);
+		assertTrue(pairs.contains("6 5"));
+		assertTrue(pairs.contains("6 6"));
+		assertFalse(pairs.contains("5 1"));
+	}
+
+	private Set<String> join(GeoSparqlFunction function) {
+		return join(GeoSparqlSpatialJoinIterator.create(parent, function, 42, ENTITIES));
+	}
+
+	private Set<String> join(StatementIterator iterator) {
+		List<String> result = new ArrayList<>();
+		while (iterator.next()) {
+			assertEquals(42, iterator.predicate);
+			result.add(iterator.subject + " " + iterator.object);
+		}
+		iterator.close();
+
+		Set<String> unique = new LinkedHashSet<>(result);
+		assertEquals("duplicate pairs", unique.size(), result.size());
+		return unique;
+	}
+
+	private Set<String> nestedLoop(GeoSparqlFunction function) {
+		Set<String> result = new LinkedHashSet<>();
+		for (int i = 0; i < geometries.size(); i++) {
+			for (int j = 0; j < geometries.size(); j++) {
+				if (function.evaluate(geometries.get(i), geometries.get(j))) {
+					result.add(ids.get(i) + " " + ids.get(j));
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,196 @@
+package com.ontotext.trree.geosparql;
+
+import com.ontotext.test.TemporaryLocalFolder;
+import com.ontotext.trree.geosparql.lucene.GeometryCodec;
+import com.ontotext.trree.geosparql.lucene.LuceneGeoIndexer;
+import com.ontotext.trree.sdk.Entities;
+import com.ontotext.trree.sdk.PluginConnection;
+import com.ontotext.trree.sdk.StatementIterator;
+import com.ontotext.trree.sdk.Statements;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeoSparqlUpdateListenerTest {
+	private static final Logger LOG = LoggerFactory.getLogger(GeoSparqlUpdateListenerTest.class);
+
+	private static final long AS_WKT = 1000;
+	private static final long AS_GML = 1001;
+	private static final long HAS_DEFAULT_GEOMETRY = 1002;
+
+	@Rule
+	public TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
+
+	// The statements in the repository and the values of the entities
+	private final List<long[]> statements = new ArrayList<>();
+	private final Map<Long, Value> values = new HashMap<>();
+
+	private GeoSparqlPlugin parent;
+	private GeoSparqlUpdateListener listener;
+	private PluginConnection connection;
+
+	@Before
+	public void init() throws Exception {
+		GeoSparqlConfig config = new GeoSparqlConfig();
+		config.setEnabled(true);
+		// Nothing becomes durable within the test
+		config.setGroupCommitInterval(600000);
+
+		parent = new GeoSparqlPlugin();
+		parent.setConfig(config);
+		parent.setLogger(LOG);
+		parent.setDataDir(tmpFolder.getRoot());
+		parent.asWKT = AS_WKT;
+		parent.asGML = AS_GML;
+		parent.hasDefaultGeometry = HAS_DEFAULT_GEOMETRY;
+		parent.writeAheadLog = new IndexWriteAheadLog(
+				GeoSparqlConfig.resolveWriteAheadLogPath(tmpFolder.getRoot().toPath()));
+		parent.indexer = new LuceneGeoIndexer(parent, GeometryCodec.DEFAULT,
+				tmpFolder.getRoot().toPath().resolve("index"), GeoSparqlConfig.PrefixTree.QUAD, 11);
+		parent.indexer.initialize();
+
+		listener = new GeoSparqlUpdateListener(parent, AS_WKT, AS_GML, HAS_DEFAULT_GEOMETRY);
+		Entities entities = (Entities) Proxy.newProxyInstance(Entities.class.getClassLoader(),
+				new Class<?>[]{Entities.class}, (proxy, method, args) -> {
+					if (method.getName().equals("get")) {
+						return values.get((Long) args[0]);
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+		Statements repository = (Statements) Proxy.newProxyInstance(Statements.class.getClassLoader(),
+				new Class<?>[]{Statements.class}, (proxy, method, args) -> {
+					if (method.getName().equals("get")) {
+						return find((Long) args[0], (Long) args[1], (Long) args[2]);
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+		connection = (PluginConnection) Proxy.newProxyInstance(PluginConnection.class.getClassLoader(),
+				new Class<?>[]{PluginConnection.class}, (proxy, method, args) -> {
+					if (method.getName().equals("getEntities")) {
+						return entities;
+					} else if (method.getName().equals("getStatements")) {
+						return repository;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+
+	@After
+	public void close() throws IOException {
+		listener.close();
+		if (parent.indexer != null) {
+			parent.indexer.close();
+		}
+		if (parent.writeAheadLog != null) {
+			parent.writeAheadLog.close();
+		}
+	}
+
+	@Test
+	public void testAbortKeepsChangesOfEarlierTransactions() throws Exception {
+		// Kept back by group commit
+		addGeometry(1, 11, "POINT(1 1)");
+		listener.transactionStarted(connection);
+		listener.statementAdded(1, AS_WKT, 11, 0, true, connection);
+		listener.transactionCommit(connection);
+		assertEquals(1, count(1));
+
+		// Indexed, then aborted after the plugin committed
+		long[] aborted = addGeometry(2, 12, "POINT(2 2)");
+		listener.transactionStarted(connection);
+		listener.statementAdded(2, AS_WKT, 12, 0, true, connection);
+		listener.transactionCommit(connection);
+		assertEquals(1, count(2));
+		statements.remove(aborted);
+		listener.transactionAborted(connection);
+
+		assertEquals(1, count(1));
+		assertEquals(0, count(2));
+	}
+
+	@Test
+	public void testIdleRepositoryFlushesKeptBackChanges() throws Exception {
+		parent.getConfig().setGroupCommitInterval(1000);
+		addGeometry(1, 11, "POINT(1 1)");
+		listener.transactionStarted(connection);
+		listener.statementAdded(1, AS_WKT, 11, 0, true, connection);
+		listener.transactionCommit(connection);
+		assertFalse(parent.writeAheadLog.isEmpty());
+		listener.transactionCompleted(connection);
+
+		// The flush waits for the index while a transaction is using it
+		listener.transactionStarted(connection);
+		Thread.sleep(1500);
+		assertFalse(parent.writeAheadLog.isEmpty());
+		listener.transactionAborted(connection);
+
+		// The interval passed, no other transaction comes
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!parent.writeAheadLog.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(parent.writeAheadLog.isEmpty());
+		assertEquals(parent.writeAheadLog.getLastSequence(), parent.indexer.getCommittedLogSequence());
+		assertEquals(1, count(1));
+	}
+
+	private long[] addGeometry(long subject, long literal, String wkt) {
+		values.put(subject, SimpleValueFactory.getInstance().createIRI("urn:geometry:" + subject));
+		values.put(literal, SimpleValueFactory.getInstance().createLiteral(wkt));
+		long[] statement = {subject, AS_WKT, literal};
+		statements.add(statement);
+		return statement;
+	}
+
+	private StatementIterator find(long subject, long predicate, long object) {
+		Iterator<long[]> matches = statements.stream()
+				.filter(s -> (subject == 0 || s[0] == subject) && (predicate == 0 || s[1] == predicate)
+						&& (object == 0 || s[2] == object))
+				.iterator();
+		return new StatementIterator() {
+			@Override
+			public boolean next() {
+				if (!matches.hasNext()) {
+					return false;
+				}
+				long[] statement = matches.next();
+				this.subject = statement[0];
+				this.predicate = statement[1];
+				this.object = statement[2];
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private int count(long subject) throws IOException {
+		int count = 0;
+		try (EntityGeometryIterator iterator = parent.indexer.getGeometriesFor(subject)) {
+			while (iterator.hasNextGeometry()) {
+				iterator.nextGeometry();
+				count++;
+			}
+		}
+		return count;
+	}
+}
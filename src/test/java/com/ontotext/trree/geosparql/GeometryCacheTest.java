@@ -0,0 +1,64 @@
+package com.ontotext.trree.geosparql;
+
+import com.useekm.indexing.GeoFactory;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class GeometryCacheTest {
+	private static final long AS_WKT = 10;
+	private static final long AS_GML = 11;
+
+	private final WKTReader reader = new WKTReader(GeoFactory.getDefaultGeometryFactory());
+
+	@Test
+	public void testHitsAndMisses() throws ParseException {
+		GeometryCache cache = new GeometryCache(GeometryCache.DEFAULT_MAX_BYTES);
+		String wkt = "POINT(1 2)";
+		Geometry g = reader.read(wkt);
+
+		assertNull(cache.get(1, AS_WKT, wkt));
+		cache.put(1, AS_WKT, wkt, g);
+		assertSame(g, cache.get(1, AS_WKT, wkt));
+		// same id but a different literal, e.g. a reused request scoped id
+		assertNull(cache.get(1, AS_WKT, "POINT(3 4)"));
+		// same literal parsed as a different type
+		assertNull(cache.get(1, AS_GML, wkt));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(3, cache.getMisses());
+
+		cache.invalidate(1);
+		assertNull(cache.get(1, AS_WKT, wkt));
+		assertEquals(0, cache.getEstimatedBytes());
+	}
+
+	@Test
+	public void testBoundedByBytes() throws ParseException {
+		String small = "POINT(1 2)";
+		String large = "LINESTRING(0 0, 1 1, 2 2, 3 3, 4 4, 5 5, 6 6, 7 7, 8 8, 9 9)";
+		GeometryCache cache = new GeometryCache(1000);
+
+		cache.put(1, AS_WKT, small, reader.read(small));
+		cache.put(2, AS_WKT, small, reader.read(small));
+		cache.put(3, AS_WKT, small, reader.read(small));
+		// touch 1 so that 2 is the least recently used
+		cache.get(1, AS_WKT, small);
+		cache.put(4, AS_WKT, large, reader.read(large));
+
+		assertTrue(cache.getEstimatedBytes() <= 1000);
+		assertNull(cache.get(2, AS_WKT, small));
+		assertSame(cache.get(4, AS_WKT, large), cache.get(4, AS_WKT, large));
+
+		// larger than the whole cache, not cached at all
+		GeometryCache tiny = new GeometryCache(100);
+		tiny.put(1, AS_WKT, large, reader.read(large));
+		assertEquals(0, tiny.getEstimatedBytes());
+	}
+}
@@ -0,0 +1,132 @@
+package com.ontotext.trree.geosparql;
+
+import gnu.trove.TLongHashSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexWriteAheadLogTest {
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	private static TLongHashSet set(long... values) {
+		TLongHashSet set = new TLongHashSet();
+		set.addAll(values);
+		return set;
+	}
+
+	private static TLongHashSet readGeometries(IndexWriteAheadLog log) throws IOException {
+		TLongHashSet geometries = new TLongHashSet();
+		log.read(geometries, new TLongHashSet());
+		return geometries;
+	}
+
+	@Test
+	public void testAppendReadClear() throws IOException {
+		Path path = GeoSparqlConfig.resolveWriteAheadLogPath(tmpFolder.getRoot().toPath());
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			assertTrue(log.isEmpty());
+			assertEquals(1, log.append(set(1, 2), set(10)));
+			assertEquals(2, log.append(set(2, 3), set()));
+			// nothing to log
+			assertEquals(2, log.append(set(), set()));
+			assertEquals(5, log.size());
+		}
+
+		// reopened after a restart
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			assertEquals(5, log.size());
+			assertEquals(2, log.getLastSequence());
+			TLongHashSet geometries = new TLongHashSet();
+			TLongHashSet features = new TLongHashSet();
+			log.read(geometries, features);
+			assertEquals(set(1, 2, 3), geometries);
+			assertEquals(set(10), features);
+
+			log.clear();
+			assertTrue(log.isEmpty());
+			assertEquals(0, Files.size(path));
+			// frame numbers keep growing
+			assertEquals(3, log.append(set(4), set()));
+		}
+	}
+
+	@Test
+	public void testCommittedFramesAreNotPending() throws IOException {
+		Path path = GeoSparqlConfig.resolveWriteAheadLogPath(tmpFolder.getRoot().toPath());
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			log.append(set(1), set());
+			long sequence = log.append(set(2), set());
+			log.committed(sequence);
+			assertTrue(log.isEmpty());
+			log.append(set(3), set());
+			assertEquals(set(3), readGeometries(log));
+		}
+
+		// the index committed up to frame 2 before the restart
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			log.setCommittedSequence(2);
+			assertEquals(1, log.size());
+			assertEquals(set(3), readGeometries(log));
+		}
+
+		// the index lost the commit of frame 2
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			log.setCommittedSequence(1);
+			assertEquals(set(2, 3), readGeometries(log));
+		}
+
+		// the log was emptied after the last commit
+		Files.write(path, new byte[0]);
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			log.setCommittedSequence(3);
+			assertTrue(log.isEmpty());
+			assertEquals(4, log.append(set(4), set()));
+		}
+	}
+
+	@Test
+	public void testTornFrameIsIgnored() throws IOException {
+		Path path = GeoSparqlConfig.resolveWriteAheadLogPath(tmpFolder.getRoot().toPath());
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			log.append(set(1), set());
+		}
+		long validSize = Files.size(path);
+		// a crash in the middle of the next frame
+		Files.write(path, new byte[]{0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 2, IndexWriteAheadLog.GEOMETRY, 0, 0},
+				StandardOpenOption.APPEND);
+
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			assertEquals(1, log.size());
+			assertEquals(2, log.append(set(2), set()));
+			assertEquals(set(1, 2), readGeometries(log));
+		}
+		assertEquals(2 * validSize, Files.size(path));
+	}
+
+	@Test
+	public void testDamagedFrameIsIgnored() throws IOException {
+		Path path = GeoSparqlConfig.resolveWriteAheadLogPath(tmpFolder.getRoot().toPath());
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			log.append(set(1), set());
+			log.append(set(2), set());
+		}
+		// flip a bit in the subject of the second frame
+		byte[] bytes = Files.readAllBytes(path);
+		bytes[bytes.length - Integer.BYTES - 1] ^= 1;
+		Files.write(path, bytes);
+
+		try (IndexWriteAheadLog log = new IndexWriteAheadLog(path)) {
+			assertEquals(1, log.getLastSequence());
+			assertEquals(set(1), readGeometries(log));
+		}
+	}
+}
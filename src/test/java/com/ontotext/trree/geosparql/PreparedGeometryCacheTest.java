@@ -0,0 +1,80 @@
+package com.ontotext.trree.geosparql;
+
+import com.useekm.indexing.GeoFactory;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PreparedGeometryCacheTest {
+	private final WKTReader reader = new WKTReader(GeoFactory.getDefaultGeometryFactory());
+
+	@Test
+	public void testReusesPreparedGeometry() throws ParseException {
+		PreparedGeometryCache cache = new PreparedGeometryCache(10);
+		PreparedGeometry p1 = cache.prepare(1, reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"));
+		// an equal geometry decoded again must hit the cache
+		PreparedGeometry p2 = cache.prepare(1, reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"));
+		assertSame(p1, p2);
+
+		// a second geometry of the same entity is cached next to the first one
+		PreparedGeometry p3 = cache.prepare(1, reader.read("POINT(20 20)"));
+		assertNotSame(p1, p3);
+		assertSame(p1, cache.prepare(1, reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))")));
+		assertSame(p3, cache.prepare(1, reader.read("POINT(20 20)")));
+	}
+
+	@Test
+	public void testInvalidateAndEvict() throws ParseException {
+		PreparedGeometryCache cache = new PreparedGeometryCache(2);
+		Geometry g = reader.read("POINT(1 1)");
+		PreparedGeometry p1 = cache.prepare(1, g);
+		cache.invalidate(1);
+		assertNotSame(p1, cache.prepare(1, g));
+
+		cache.prepare(2, g);
+		cache.prepare(3, g);
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testPreparedEvaluationMatchesPlain() throws ParseException {
+		List<Geometry> geometries = new ArrayList<>();
+		geometries.add(reader.read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"));
+		geometries.add(reader.read("POLYGON((5 5, 15 5, 15 15, 5 15, 5 5))"));
+		geometries.add(reader.read("POLYGON((2 2, 4 2, 4 4, 2 4, 2 2))"));
+		geometries.add(reader.read("POINT(2 2)"));
+		geometries.add(reader.read("POINT(0 5)"));
+		geometries.add(reader.read("POINT(50 50)"));
+		geometries.add(reader.read("LINESTRING(-5 5, 20 5)"));
+		geometries.add(reader.read("LINESTRING(1 1, 3 3)"));
+
+		int evaluations = 0;
+		for (GeoSparqlFunction function : GeoSparqlFunction.values()) {
+			if (function.name().startsWith("STRDF_")) {
+				// the directional relations only support geometries with non-degenerate envelopes
+				continue;
+			}
+			for (Geometry g1 : geometries) {
+				PreparedGeometry p1 = new PreparedGeometryCache(1).prepare(1, g1);
+				for (Geometry g2 : geometries) {
+					PreparedGeometry p2 = new PreparedGeometryCache(1).prepare(2, g2);
+					boolean expected = function.evaluate(g1, g2);
+					assertEquals(function + " " + g1 + " " + g2, expected, function.evaluate(p1, g2));
+					assertEquals(function + " " + g1 + " " + g2, expected, function.evaluate(g1, p2));
+					evaluations++;
+				}
+			}
+		}
+		assertTrue(evaluations > 0);
+	}
+}
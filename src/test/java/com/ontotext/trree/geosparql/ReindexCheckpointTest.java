@@ -0,0 +1,81 @@
+package com.ontotext.trree.geosparql;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexCheckpointTest {
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		Path path = GeoSparqlConfig.resolveReindexCheckpointPath(tmpFolder.getRoot().toPath());
+		assertNull(ReindexCheckpoint.load(path));
+
+		ReindexCheckpoint checkpoint = new ReindexCheckpoint(GeoSparqlConfig.PrefixTree.GEOHASH, 9);
+		checkpoint.setPending(ReindexCheckpoint.Phase.AS_GML, 42, 1000);
+		checkpoint.committed();
+		checkpoint.save(path);
+
+		ReindexCheckpoint loaded = ReindexCheckpoint.load(path);
+		assertTrue(loaded.matches(GeoSparqlConfig.PrefixTree.GEOHASH, 9));
+		assertFalse(loaded.matches(GeoSparqlConfig.PrefixTree.QUAD, 9));
+		assertEquals(ReindexCheckpoint.Phase.AS_GML, loaded.getPhase());
+		assertEquals(42, loaded.getSubject());
+		assertFalse(loaded.hasPending());
+		assertFalse(loaded.isComplete());
+
+		ReindexCheckpoint.delete(path);
+		assertNull(ReindexCheckpoint.load(path));
+	}
+
+	@Test
+	public void testPendingCommitHappened() throws IOException {
+		Path path = GeoSparqlConfig.resolveReindexCheckpointPath(tmpFolder.getRoot().toPath());
+		ReindexCheckpoint checkpoint = new ReindexCheckpoint(GeoSparqlConfig.PrefixTree.QUAD, 11);
+		checkpoint.setPending(ReindexCheckpoint.Phase.AS_WKT, 100, 0);
+		checkpoint.save(path);
+
+		// the index has more geometries than before the commit, so the commit made it
+		ReindexCheckpoint loaded = ReindexCheckpoint.load(path);
+		assertTrue(loaded.hasPending());
+		loaded.resolvePending(250);
+		assertFalse(loaded.hasPending());
+		assertEquals(ReindexCheckpoint.Phase.AS_WKT, loaded.getPhase());
+		assertEquals(100, loaded.getSubject());
+	}
+
+	@Test
+	public void testPendingCommitLost() throws IOException {
+		Path path = GeoSparqlConfig.resolveReindexCheckpointPath(tmpFolder.getRoot().toPath());
+		ReindexCheckpoint checkpoint = new ReindexCheckpoint(GeoSparqlConfig.PrefixTree.QUAD, 11);
+		checkpoint.setPending(ReindexCheckpoint.Phase.AS_WKT, 100, 0);
+		checkpoint.committed();
+		checkpoint.setPending(ReindexCheckpoint.Phase.COMPLETE, ReindexCheckpoint.NO_SUBJECT, 250);
+		checkpoint.save(path);
+
+		ReindexCheckpoint loaded = ReindexCheckpoint.load(path);
+		loaded.resolvePending(250);
+		assertFalse(loaded.isComplete());
+		assertEquals(ReindexCheckpoint.Phase.AS_WKT, loaded.getPhase());
+		assertEquals(100, loaded.getSubject());
+	}
+
+	@Test
+	public void testUnreadableCheckpointIsIgnored() throws IOException {
+		Path path = GeoSparqlConfig.resolveReindexCheckpointPath(tmpFolder.getRoot().toPath());
+		Files.createDirectories(path.getParent());
+		Files.write(path, "phase=unknown\n".getBytes());
+		assertNull(ReindexCheckpoint.load(path));
+	}
+}
@@ -91,6 +91,10 @@ public class TestChangeSettings extends AbstractGeoSparqlPluginTest {
 		}
 	}
 
+    private boolean existsInDataDir(String name) {
+        return Files.exists(Paths.get(((OwlimSchemaRepository)((SailRepository)repository).getSail()).getStorageFolder(), "GeoSPARQL", "v3", name));
+    }
+
     private long getIndexSizeOnDisk() throws IOException {
         Path indexDir = Paths.get(((OwlimSchemaRepository)((SailRepository)repository).getSail()).getStorageFolder(), "GeoSPARQL", "v3", "index");
         AtomicLong size = new AtomicLong(0);
@@ -225,6 +229,11 @@ public class TestChangeSettings extends AbstractGeoSparqlPluginTest {
         assertQuery();
         assertSetting("prefixTree", "prefixtree", "geohash");
         assertSetting("currentPrefixTree", "prefixtree.current", "geohash");
+        // The index was rebuilt on the side and swapped in
+        assertTrue(existsInDataDir("index"));
+        assertFalse(existsInDataDir("index.rebuild"));
+        assertFalse(existsInDataDir("index.old"));
+        assertFalse(existsInDataDir("reindex.checkpoint"));
 
         restartRepository();
         assertQuery();
@@ -281,6 +290,29 @@ public class TestChangeSettings extends AbstractGeoSparqlPluginTest {
                 sizeWith15 < sizeWith20);
     }
 
+    @Test
+    public void testChangePrecisionTwice() throws Exception {
+        enablePlugin();
+        assertQuery();
+
+        // Each reindex swaps the rebuilt index in place of the one the previous swap opened
+        setSetting("precision", "15");
+        forceReindex();
+        assertQuery();
+        assertSetting("currentPrecision", "precision.current", "15");
+
+        setSetting("precision", "18");
+        forceReindex();
+        assertQuery();
+        assertSetting("currentPrecision", "precision.current", "18");
+        assertFalse(existsInDataDir("index.rebuild"));
+        assertFalse(existsInDataDir("index.old"));
+
+        restartRepository();
+        assertQuery();
+        assertSetting("currentPrecision", "precision.current", "18");
+    }
+
     @Test
     public void testThrowPluginExceptionOnInvalidPrecisionAndGEOHASHPrefixTree() {
 		setSetting("prefixTree", "geohash");
@@ -72,7 +72,7 @@ public class TestPluginControl extends AbstractGeoSparqlPluginTest {
                 result.put(s.getPredicate(), s.getObject());
             }
         }
-        assertEquals(8, result.size());
+        assertEquals(16, result.size());
         assertEquals(VF.createLiteral(GeoSparqlConfig.ENABLED_DEFAULT), result.get(GeoSparqlPlugin.ENABLED_PREDICATE_IRI));
         assertEquals(GeoSparqlConfig.PREFIXTREE_DEFAULT.toLiteral(), result.get(GeoSparqlPlugin.PREFIXTREE_PREDICATE_IRI));
         assertEquals(VF.createLiteral(GeoSparqlConfig.PRECISION_DEFAULT), result.get(GeoSparqlPlugin.PRECISION_PREDICATE_IRI));
@@ -81,6 +81,14 @@ public class TestPluginControl extends AbstractGeoSparqlPluginTest {
         assertEquals(VF.createLiteral(GeoSparqlConfig.MAX_BUFFERED_DOCS_DEFAULT), result.get(GeoSparqlPlugin.MAX_BUFFERED_DOCS_PREDICATE_IRI));
         assertEquals(VF.createLiteral(GeoSparqlConfig.RAM_BUFFER_SIZE_MB_DEFAULT), result.get(GeoSparqlPlugin.RAM_BUFFER_SIZE_MB_PREDICATE_IRI));
         assertEquals(VF.createLiteral(GeoSparqlConfig.IGNORE_ERRORS_DEFAULT), result.get(GeoSparqlPlugin.IGNORE_ERRORS_PREDICATE_IRI));
+        assertEquals(VF.createLiteral(GeoSparqlConfig.REFINEMENT_PARALLELISM_DEFAULT), result.get(GeoSparqlPlugin.REFINEMENT_PARALLELISM_PREDICATE_IRI));
+        assertEquals(VF.createLiteral(GeoSparqlConfig.REINDEX_THREADS_DEFAULT), result.get(GeoSparqlPlugin.REINDEX_THREADS_PREDICATE_IRI));
+        assertEquals(VF.createLiteral(GeoSparqlConfig.GROUP_COMMIT_INTERVAL_DEFAULT), result.get(GeoSparqlPlugin.GROUP_COMMIT_INTERVAL_PREDICATE_IRI));
+        assertEquals(VF.createLiteral(GeoSparqlConfig.GROUP_COMMIT_MAX_SUBJECTS_DEFAULT), result.get(GeoSparqlPlugin.GROUP_COMMIT_MAX_SUBJECTS_PREDICATE_IRI));
+        assertTrue(result.containsKey(GeoSparqlPlugin.GEOMETRY_CACHE_HITS_PREDICATE_IRI));
+        assertTrue(result.containsKey(GeoSparqlPlugin.GEOMETRY_CACHE_MISSES_PREDICATE_IRI));
+        assertTrue(result.containsKey(GeoSparqlPlugin.INDEXED_CELLS_PREDICATE_IRI));
+        assertTrue(result.containsKey(GeoSparqlPlugin.COARSENED_GEOMETRIES_PREDICATE_IRI));
     }
 
     @Test
@@ -156,6 +164,51 @@ public class TestPluginControl extends AbstractGeoSparqlPluginTest {
         checkCommand(GeoSparqlPlugin.RAM_BUFFER_SIZE_MB_PREDICATE_IRI, VF.createLiteral(newValue));
     }
 
+    @Test
+    public void testRefinementParallelism() {
+        // Check default value
+        checkCommand(GeoSparqlPlugin.REFINEMENT_PARALLELISM_PREDICATE_IRI, VF.createLiteral(GeoSparqlConfig.REFINEMENT_PARALLELISM_DEFAULT));
+        // Set and check new value
+        int newValue = GeoSparqlConfig.REFINEMENT_PARALLELISM_DEFAULT + 3;
+        executePluginControl(GeoSparqlPlugin.REFINEMENT_PARALLELISM_PREDICATE_IRI, VF.createLiteral(newValue));
+        checkCommand(GeoSparqlPlugin.REFINEMENT_PARALLELISM_PREDICATE_IRI, VF.createLiteral(newValue));
+        // Reindex, new value should be stored into config
+        enablePlugin();
+        forceReindex();
+        checkCommand(GeoSparqlPlugin.REFINEMENT_PARALLELISM_PREDICATE_IRI, VF.createLiteral(newValue));
+    }
+
+    @Test
+    public void testReindexThreads() {
+        // Check default value
+        checkCommand(GeoSparqlPlugin.REINDEX_THREADS_PREDICATE_IRI, VF.createLiteral(GeoSparqlConfig.REINDEX_THREADS_DEFAULT));
+        // Set and check new value
+        int newValue = GeoSparqlConfig.REINDEX_THREADS_DEFAULT + 3;
+        executePluginControl(GeoSparqlPlugin.REINDEX_THREADS_PREDICATE_IRI, VF.createLiteral(newValue));
+        checkCommand(GeoSparqlPlugin.REINDEX_THREADS_PREDICATE_IRI, VF.createLiteral(newValue));
+        // Reindex with the new value, it should be stored into config
+        enablePlugin();
+        forceReindex();
+        checkCommand(GeoSparqlPlugin.REINDEX_THREADS_PREDICATE_IRI, VF.createLiteral(newValue));
+    }
+
+    @Test
+    public void testGroupCommit() {
+        // Check default values
+        checkCommand(GeoSparqlPlugin.GROUP_COMMIT_INTERVAL_PREDICATE_IRI, VF.createLiteral(GeoSparqlConfig.GROUP_COMMIT_INTERVAL_DEFAULT));
+        checkCommand(GeoSparqlPlugin.GROUP_COMMIT_MAX_SUBJECTS_PREDICATE_IRI, VF.createLiteral(GeoSparqlConfig.GROUP_COMMIT_MAX_SUBJECTS_DEFAULT));
+        // Set and check new values
+        executePluginControl(GeoSparqlPlugin.GROUP_COMMIT_INTERVAL_PREDICATE_IRI, VF.createLiteral(1000));
+        executePluginControl(GeoSparqlPlugin.GROUP_COMMIT_MAX_SUBJECTS_PREDICATE_IRI, VF.createLiteral(500));
+        checkCommand(GeoSparqlPlugin.GROUP_COMMIT_INTERVAL_PREDICATE_IRI, VF.createLiteral(1000));
+        checkCommand(GeoSparqlPlugin.GROUP_COMMIT_MAX_SUBJECTS_PREDICATE_IRI, VF.createLiteral(500));
+        // Index with group commit, the values should be stored into config
+        enablePlugin();
+        forceReindex();
+        checkCommand(GeoSparqlPlugin.GROUP_COMMIT_INTERVAL_PREDICATE_IRI, VF.createLiteral(1000));
+        checkCommand(GeoSparqlPlugin.GROUP_COMMIT_MAX_SUBJECTS_PREDICATE_IRI, VF.createLiteral(500));
+    }
+
     private void checkCommand(IRI command, Value expected) {
         TupleQuery q = connection.prepareTupleQuery(QueryLanguage.SPARQL, "SELECT ?status { ?s ?command ?status }");
         q.setBinding("command", command);
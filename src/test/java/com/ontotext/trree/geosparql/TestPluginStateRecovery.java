@@ -1,11 +1,19 @@
 package com.ontotext.trree.geosparql;
 
 import com.ontotext.trree.geosparql.util.GeoSparqlUtils;
+import org.eclipse.rdf4j.common.io.FileUtil;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.rio.RDFFormat;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -38,4 +46,50 @@ public class TestPluginStateRecovery extends AbstractGeoSparqlPluginTest {
         assertTrue(Files.isReadable(GeoSparqlConfig.resolveConfigPath(getGeoSparqlStorageDir().toPath())));
         assertFalse(isPluginEnabled(getGeoSparqlStorageDir()));
     }
+
+    @Test
+    public void testIndexLogReplayedAfterLostCommit() throws Exception {
+        enablePlugin();
+
+        // Keep a copy of the index before the data is added
+        connection.close();
+        repository.shutDown();
+        Path indexDir = GeoSparqlConfig.resolveIndexPath(getGeoSparqlStorageDir().toPath());
+        Path indexCopy = new File(repository.getDataDir(), "geosparql-index.copy").toPath();
+        copyIndex(indexDir, indexCopy);
+        repository.init();
+        connection = repository.getConnection();
+
+        connection.begin();
+        importData("geosparql-example.rdf", RDFFormat.RDFXML);
+        connection.commit();
+        assertExample5Results();
+
+        // Bring back the old index as if the process died before the index commit
+        connection.close();
+        repository.shutDown();
+        FileUtil.deleteDir(indexDir.toFile());
+        Files.move(indexCopy, indexDir);
+        repository.init();
+        connection = repository.getConnection();
+
+        // Only the logged subjects are indexed again, no reindex
+        assertExample5Results();
+    }
+
+    private static void copyIndex(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+    }
+
+    private void assertExample5Results() throws Exception {
+        List<Value> values = executeSparqlQueryWithResultFromFile("example5", "f");
+        assertEquals(2, values.size());
+        assertTrue(values.contains(VF.createIRI("http://example.org/ApplicationSchema#D")));
+        assertTrue(values.contains(VF.createIRI("http://example.org/ApplicationSchema#DExactGeom")));
+    }
 }
@@ -68,6 +68,16 @@ public class TestReindex extends AbstractGeoSparqlPluginTest {
 
     }
 
+    @Test
+    public void testParallelReindex() throws Exception {
+        assertSparqlSelectExample5Results();
+
+        executePluginControl(GeoSparqlPlugin.REINDEX_THREADS_PREDICATE_IRI, VF.createLiteral(4));
+        forceReindex();
+
+        assertSparqlSelectExample5Results();
+    }
+
     @Test
     public void testNoReindexThroughRepositoryReinit() throws Exception {
         FileUtil.deleteDir(getGeoSparqlStorageDir());
@@ -0,0 +1,143 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.spatial.composite.CompositeSpatialStrategy;
+import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.Cell;
+import org.apache.lucene.spatial.prefix.tree.QuadPrefixTree;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.spatial.serialized.SerializedDVStrategy;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.spatial4j.context.jts.JtsSpatialContext;
+import org.locationtech.spatial4j.shape.Shape;
+import org.locationtech.spatial4j.shape.jts.JtsGeometry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CappedPrefixTreeStrategyTest {
+    private final JtsSpatialContext ctx = JtsSpatialContext.GEO;
+
+    @Test
+    public void testLargeShapesAreCoarsened() {
+        CappedPrefixTreeStrategy strategy = new CappedPrefixTreeStrategy(new QuadPrefixTree(ctx, 20), "geo", 1024);
+
+        // A small shape fits in the bound at the level that matches its size
+        strategy.createIndexableFields(ctx.getShapeFactory().circle(10, 10, 0.01));
+        assertEquals(0, strategy.getCoarsenedShapes());
+        long smallCells = strategy.getIndexedCells();
+        assertTrue(smallCells > 0 && smallCells <= 1024);
+
+        // A precise error for a large shape needs far more cells than the bound
+        Shape large = ctx.getShapeFactory().circle(0, 0, 40);
+        strategy.createIndexableFields(large, 0.05);
+        assertEquals(1, strategy.getCoarsenedShapes());
+        assertTrue(strategy.getIndexedCells() - smallCells <= 1024);
+    }
+
+    @Test
+    public void testCellsMatchFinestLevelThatFits() {
+        SpatialPrefixTree grid = new QuadPrefixTree(ctx, 20);
+        CappedPrefixTreeStrategy strategy = new CappedPrefixTreeStrategy(grid, "geo", 256);
+        PruningStrategy reference = new PruningStrategy(grid);
+
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random(42);
+        int coarsened = 0;
+        for (int i = 0; i < 100; i++) {
+            double x = random.nextDouble() * 300 - 150;
+            double y = random.nextDouble() * 140 - 70;
+            double radius = Math.pow(10, random.nextDouble() * 3 - 2);
+            // Areas need fewer levels than lines to fill the bound
+            Geometry geometry = i % 2 == 0 ?
+                    factory.createPoint(new Coordinate(x, y)).buffer(radius, 16) :
+                    factory.createLineString(new Coordinate[]{new Coordinate(x, y),
+                            new Coordinate(x + radius, y + radius / 2), new Coordinate(x + 2 * radius, y)});
+            Shape shape = new JtsGeometry(geometry, ctx, false, false);
+            int detailLevel = grid.getLevelForDistance(2 * radius) + random.nextInt(10);
+
+            // The cells of the finest level with no more than the bound, looked for from the detail level down
+            List<String> expected = null;
+            for (int level = detailLevel; level > 0 && expected == null; level--) {
+                List<String> cells = reference.tokens(shape, level);
+                if (cells.size() <= 256 || level == 1) {
+                    expected = cells;
+                    coarsened += level < detailLevel ? 1 : 0;
+                }
+            }
+            assertEquals(expected, tokens(strategy.createCellIteratorToIndex(shape, detailLevel, null)));
+        }
+        assertEquals(coarsened, strategy.getCoarsenedShapes());
+        assertTrue(coarsened > 0 && coarsened < 100);
+    }
+
+    private static List<String> tokens(Iterator<Cell> cells) {
+        List<String> tokens = new ArrayList<>();
+        while (cells.hasNext()) {
+            tokens.add(cells.next().getTokenBytesWithLeaf(null).utf8ToString());
+        }
+        return tokens;
+    }
+
+    /**
+     * The strategy the capped one extends, with pruning of leafy branches as it does.
+     */
+    private static class PruningStrategy extends RecursivePrefixTreeStrategy {
+        PruningStrategy(SpatialPrefixTree grid) {
+            super(grid, "reference");
+            setPruneLeafyBranches(true);
+        }
+
+        List<String> tokens(Shape shape, int level) {
+            return CappedPrefixTreeStrategyTest.tokens(createCellIteratorToIndex(shape, level, null));
+        }
+    }
+
+    @Test
+    public void testCoarsenedShapeWithinQueryShape() throws IOException {
+        CappedPrefixTreeStrategy strategy = new CappedPrefixTreeStrategy(new QuadPrefixTree(ctx, 20), "geo1", 64);
+        CompositeSpatialStrategy composite = new CompositeSpatialStrategy("geo", strategy,
+                new SerializedDVStrategy(ctx, "geo2"));
+
+        // A detailed shape coarsened to leaves much larger than the margin to the query shape around it
+        GeometryFactory factory = new GeometryFactory();
+        Shape large = new JtsGeometry(factory.createPoint(new Coordinate(0, 0)).buffer(40, 64), ctx, false, false);
+        Shape around = new JtsGeometry(factory.createPoint(new Coordinate(0, 0)).buffer(41, 64), ctx, false, false);
+
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                Document document = new Document();
+                for (Field field : composite.createIndexableFields(large)) {
+                    document.add(field);
+                }
+                writer.addDocument(document);
+            }
+            assertEquals(1, strategy.getCoarsenedShapes());
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                SpatialArgs args = new SpatialArgs(SpatialOperation.IsWithin, around);
+                assertEquals(1, searcher.count(strategy.makeQuery(args)));
+                assertEquals(1, searcher.count(composite.makeQuery(args)));
+            }
+        }
+    }
+}
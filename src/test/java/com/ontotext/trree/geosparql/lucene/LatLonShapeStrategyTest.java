@@ -0,0 +1,208 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import com.ontotext.test.TemporaryLocalFolder;
+import com.ontotext.trree.geosparql.EntityGeometryIterator;
+import com.ontotext.trree.geosparql.GeoSparqlConfig;
+import com.ontotext.trree.geosparql.GeoSparqlPlugin;
+import com.useekm.types.GeoConvert;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.DoubleValues;
+import org.apache.lucene.search.DoubleValuesSource;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.util.GeometricShapeFactory;
+import org.locationtech.spatial4j.context.jts.JtsSpatialContext;
+import org.locationtech.spatial4j.distance.DistanceUtils;
+import org.locationtech.spatial4j.shape.Point;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatLonShapeStrategyTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LatLonShapeStrategyTest.class);
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    @Rule
+    public TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
+
+    private final Random random = new Random(42);
+
+    private LuceneGeoIndexer quadIndexer;
+
+    private LuceneGeoIndexer shapeIndexer;
+
+    @Before
+    public void init() throws Exception {
+        GeoSparqlPlugin parent = new GeoSparqlPlugin();
+        parent.setConfig(new GeoSparqlConfig());
+        parent.setLogger(LOG);
+        parent.setDataDir(tmpFolder.getRoot());
+
+        quadIndexer = new LuceneGeoIndexer(parent, GeometryCodec.DEFAULT, tmpFolder.getRoot().toPath().resolve("quad"),
+                GeoSparqlConfig.PrefixTree.QUAD, 11);
+        shapeIndexer = new LuceneGeoIndexer(parent, GeometryCodec.DEFAULT, tmpFolder.getRoot().toPath().resolve("shape"),
+                GeoSparqlConfig.PrefixTree.SHAPE, 0);
+        quadIndexer.initialize();
+        shapeIndexer.initialize();
+    }
+
+    @After
+    public void close() throws IOException {
+        quadIndexer.close();
+        shapeIndexer.close();
+    }
+
+    @Test
+    public void testShapeIndexMatchesPrefixTreeIndex() throws Exception {
+        List<Geometry> geometries = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            geometries.add(randomGeometry(i % 3));
+        }
+        // A self-intersecting polygon the tessellator rejects and one that is split at the dateline
+        geometries.add(GeoConvert.wktToGeometry("POLYGON((0 0, 10 10, 10 0, 0 10, 0 0))"));
+        geometries.add(GeoConvert.wktToGeometry("POLYGON((170 -10, -170 -10, -170 10, 170 10, 170 -10))"));
+
+        index(quadIndexer, geometries);
+        index(shapeIndexer, geometries);
+
+        List<Geometry> queries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            queries.add(randomPolygon(random.nextDouble() * 20));
+        }
+        queries.add(GeoConvert.wktToGeometry("POLYGON((4 4, 6 4, 6 6, 4 6, 4 4))"));
+        queries.add(GeoConvert.wktToGeometry("LINESTRING(175 0, 179 5)"));
+        for (SpatialOperation operation : new SpatialOperation[]{SpatialOperation.Intersects,
+                SpatialOperation.IsWithin}) {
+            for (Geometry query : queries) {
+                Set<Long> quadMatches = new HashSet<>();
+                matches(quadIndexer, query, operation, quadMatches);
+
+                Set<Long> shapeMatches = new HashSet<>();
+                matches(shapeIndexer, query, operation, shapeMatches);
+
+                assertEquals(operation + " " + query, quadMatches, shapeMatches);
+            }
+        }
+    }
+
+    @Test
+    public void testQueriesMatchAcrossEncodingError() throws Exception {
+        // Shapes that only touch the query, the encoded coordinates may move them apart
+        List<Geometry> geometries = new ArrayList<>();
+        geometries.add(GeoConvert.wktToGeometry("POLYGON((10 10, 10.1234567 10, 10.1234567 11, 10 11, 10 10))"));
+        geometries.add(GeoConvert.wktToGeometry("LINESTRING(9 10.3333333, 10 10.3333333)"));
+        index(shapeIndexer, geometries);
+
+        Geometry query = GeoConvert.wktToGeometry(
+                "POLYGON((10.1234567 10, 11 10, 11 11, 10.1234567 11, 10.1234567 10))");
+        Set<Long> touching = new HashSet<>();
+        matches(shapeIndexer, query, SpatialOperation.Intersects, touching);
+        assertEquals(1, touching.size());
+
+        query = GeoConvert.wktToGeometry("POINT(10 10.3333333)");
+        touching.clear();
+        matches(shapeIndexer, query, SpatialOperation.Intersects, touching);
+        assertEquals(2, touching.size());
+    }
+
+    @Test
+    public void testDistancesToCentres() throws Exception {
+        List<Geometry> geometries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            geometries.add(randomGeometry(i % 3));
+        }
+        geometries.add(GeoConvert.wktToGeometry("POINT(12 34)"));
+        index(shapeIndexer, geometries);
+
+        LatLonShapeStrategy strategy = new LatLonShapeStrategy(JtsSpatialContext.GEO, "geoShape");
+        Point queryPoint = JtsSpatialContext.GEO.getShapeFactory().pointXY(10, 20);
+        DoubleValuesSource distances = strategy.makeDistanceValueSource(queryPoint, DistanceUtils.DEG_TO_KM);
+        int count = 0;
+        try (Directory directory = FSDirectory.open(tmpFolder.getRoot().toPath().resolve("shape"));
+             DirectoryReader reader = DirectoryReader.open(directory)) {
+            for (LeafReaderContext leaf : reader.leaves()) {
+                NumericDocValues ids = DocValues.getNumeric(leaf.reader(), "id");
+                DoubleValues values = distances.getValues(leaf, null);
+                for (int doc = ids.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = ids.nextDoc()) {
+                    Coordinate centre = geometries.get((int) ids.longValue() - 1).getEnvelopeInternal().centre();
+                    double expected = JtsSpatialContext.GEO.getDistCalc().distance(queryPoint, centre.x, centre.y)
+                            * DistanceUtils.DEG_TO_KM;
+                    assertTrue(values.advanceExact(doc));
+                    assertEquals(expected, values.doubleValue(), 1e-9);
+                    count++;
+                }
+            }
+        }
+        assertEquals(geometries.size(), count);
+    }
+
+    private static void index(LuceneGeoIndexer indexer, List<Geometry> geometries) throws Exception {
+        indexer.begin();
+        for (int i = 0; i < geometries.size(); i++) {
+            indexer.indexGeometryList(i + 1, (subject) -> "Subject " + subject, geometries.subList(i, i + 1));
+        }
+        indexer.commit();
+    }
+
+    private static void matches(LuceneGeoIndexer indexer, Geometry query, SpatialOperation operation,
+                                Set<Long> matches) throws Exception {
+        try (EntityGeometryIterator iterator = indexer.getMatchingObjects(query, operation)) {
+            while (iterator.hasNextGeometry()) {
+                Geometry geometry = iterator.nextGeometry();
+                if (operation == SpatialOperation.Intersects ? geometry.intersects(query) : geometry.within(query)) {
+                    matches.add(iterator.getEntityForLastGeometry());
+                }
+            }
+        }
+    }
+
+    private Geometry randomGeometry(int type) {
+        switch (type) {
+            case 0:
+                return randomPolygon(random.nextDouble() * 2);
+            case 1:
+                Coordinate[] coordinates = new Coordinate[2 + random.nextInt(10)];
+                coordinates[0] = new Coordinate(random.nextDouble() * 300 - 150, random.nextDouble() * 140 - 70);
+                for (int i = 1; i < coordinates.length; i++) {
+                    coordinates[i] = new Coordinate(coordinates[i - 1].x + random.nextDouble() - 0.5,
+                            coordinates[i - 1].y + random.nextDouble() - 0.5);
+                }
+                return FACTORY.createLineString(coordinates);
+            default:
+                return FACTORY.createMultiPolygon(new org.locationtech.jts.geom.Polygon[]{
+                        (org.locationtech.jts.geom.Polygon) randomPolygon(random.nextDouble()),
+                        (org.locationtech.jts.geom.Polygon) randomPolygon(random.nextDouble())});
+        }
+    }
+
+    private Geometry randomPolygon(double size) {
+        GeometricShapeFactory shapeFactory = new GeometricShapeFactory(FACTORY);
+        shapeFactory.setCentre(new Coordinate(random.nextDouble() * 300 - 150, random.nextDouble() * 140 - 70));
+        shapeFactory.setSize(size + 0.01);
+        shapeFactory.setNumPoints(8 + random.nextInt(32));
+        return shapeFactory.createCircle();
+    }
+}
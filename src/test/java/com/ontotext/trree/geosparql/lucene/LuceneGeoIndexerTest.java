@@ -1,19 +1,45 @@
 package com.ontotext.trree.geosparql.lucene;
 
 import com.ontotext.test.TemporaryLocalFolder;
+import com.ontotext.trree.geosparql.EntityGeometryIterator;
 import com.ontotext.trree.geosparql.GeoSparqlConfig;
+import com.ontotext.trree.geosparql.GeoSparqlFunction;
 import com.ontotext.trree.geosparql.GeoSparqlPlugin;
+import com.ontotext.trree.geosparql.GeometryKind;
+import com.ontotext.trree.geosparql.MultiSearchEntityGeometryIterator;
 import com.useekm.types.GeoConvert;
 import com.useekm.types.exception.InvalidGeometryException;
+import com.useekm.indexing.GeoFactory;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.WKTReader;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.spatial.query.SpatialOperation;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -22,12 +48,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Tsvetan Dimitrov <tsvetan.dimitrov@ontotext.com>
@@ -40,6 +73,8 @@ public class LuceneGeoIndexerTest {
     @Rule
     public TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
 
+    private GeoSparqlPlugin parent;
+
     private LuceneGeoIndexer luceneGeoIndexer;
 
     private List<Geometry> geometries;
@@ -52,7 +87,7 @@ public class LuceneGeoIndexerTest {
 
     @Before
     public void init() throws Exception {
-        initIndexer();
+        initIndexer(GeometryCodec.DEFAULT);
 
         geometries = new ArrayList<>();
 
@@ -60,6 +95,10 @@ public class LuceneGeoIndexerTest {
 
         indexGeometries();
 
+        openIndex();
+    }
+
+    private void openIndex() throws IOException {
         FSDirectory dir = FSDirectory.open(GeoSparqlConfig.resolveIndexPath(tmpFolder.getRoot().toPath()));
         indexReader = DirectoryReader.open(dir);
         indexSearcher = new IndexSearcher(indexReader);
@@ -76,13 +115,13 @@ public class LuceneGeoIndexerTest {
         luceneGeoIndexer.commit();
     }
 
-    private void initIndexer() throws Exception {
-        final GeoSparqlPlugin parent = new GeoSparqlPlugin();
+    private void initIndexer(GeometryCodec geometryCodec) throws Exception {
+        parent = new GeoSparqlPlugin();
         parent.setConfig(new GeoSparqlConfig());
         parent.setLogger(LOG);
         parent.setDataDir(tmpFolder.getRoot());
 
-        luceneGeoIndexer = new LuceneGeoIndexer(parent);
+        luceneGeoIndexer = new LuceneGeoIndexer(parent, geometryCodec);
         luceneGeoIndexer.initialize();
         luceneGeoIndexer.begin();
     }
@@ -101,6 +140,7 @@ public class LuceneGeoIndexerTest {
         if (indexReader != null) {
             indexReader.close();
         }
+        luceneGeoIndexer.close();
     }
 
     @Test
@@ -115,6 +155,668 @@ public class LuceneGeoIndexerTest {
     }
 
     private long getDocId(ScoreDoc docs) throws IOException {
-        return indexReader.document(docs.doc).getField("id").numericValue().longValue();
+        NumericDocValues ids = MultiDocValues.getNumericValues(indexReader, "id");
+        assertTrue(ids.advanceExact(docs.doc));
+        return ids.longValue();
+    }
+
+    @Test
+    public void testIndexFormatIsRecorded() throws Exception {
+        Map<String, String> commitData = ((DirectoryReader) indexReader).getIndexCommit().getUserData();
+
+        assertEquals(Integer.toString(LuceneGeoIndexer.INDEX_FORMAT), commitData.get(LuceneGeoIndexer.INDEX_FORMAT_KEY));
+        assertEquals(GeometryCodec.DEFAULT.name(), commitData.get(LuceneGeoIndexer.GEOMETRY_CODEC_KEY));
+    }
+
+    @Test
+    public void testGeometryIsInDocValuesOnly() throws Exception {
+        TopDocs docs = indexSearcher.search(new MatchAllDocsQuery(), 1);
+        assertEquals(null, indexReader.document(docs.scoreDocs[0].doc).getField("geoData"));
+        // The id is a term and a doc value only, there is no serialized copy of the geometry
+        assertEquals(null, indexReader.document(docs.scoreDocs[0].doc).getField("id"));
+        assertEquals(null, indexReader.leaves().get(0).reader().getPointValues("id"));
+        assertEquals(null, indexReader.leaves().get(0).reader().getBinaryDocValues("geoData2"));
+
+        LeafReader leafReader = indexReader.leaves().get(0).reader();
+        BinaryDocValues geoDatas = DocValues.getBinary(leafReader, "geoData");
+        assertTrue(geoDatas.advanceExact(docs.scoreDocs[0].doc));
+        BytesRef geoData = geoDatas.binaryValue();
+        assertTrue(geometries.get(0).equalsExact(
+                GeometryCodec.DEFAULT.decode(geoData.bytes, geoData.offset, geoData.length)));
+    }
+
+    @Test
+    public void testMigrateGeometryCodec() throws Exception {
+        // Rebuild the index with the legacy codec
+        indexReader.close();
+        luceneGeoIndexer.close();
+        initIndexer(GeometryCodec.JAVA_SERIALIZATION);
+        luceneGeoIndexer.freshIndex();
+        indexGeometries();
+
+        // A new indexer with the default codec must migrate it on initialization
+        luceneGeoIndexer.close();
+        luceneGeoIndexer = new LuceneGeoIndexer(parent);
+        luceneGeoIndexer.initialize();
+        openIndex();
+
+        Map<String, String> commitData = ((DirectoryReader) indexReader).getIndexCommit().getUserData();
+        assertEquals(GeometryCodec.DEFAULT.name(), commitData.get(LuceneGeoIndexer.GEOMETRY_CODEC_KEY));
+
+        testDocumentIds();
+
+        int count = 0;
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getGeometriesFor(1)) {
+            while (iterator.hasNextGeometry()) {
+                Geometry geometry = iterator.nextGeometry();
+                assertTrue(geometries.get(count).equalsExact(geometry));
+                count++;
+            }
+        }
+        assertEquals(geometries.size(), count);
+    }
+
+    @Test
+    public void testMigrateLegacyIndexInPlace() throws Exception {
+        testMigrateOldIndexInPlace(1, GeometryCodec.JAVA_SERIALIZATION);
+    }
+
+    @Test
+    public void testMigrateDocValuesIndexInPlace() throws Exception {
+        testMigrateOldIndexInPlace(4, GeometryCodec.WKB);
+    }
+
+    private void testMigrateOldIndexInPlace(int format, GeometryCodec codec) throws Exception {
+        indexReader.close();
+        indexReader = null;
+        luceneGeoIndexer.close();
+        writeOldIndex(format, codec);
+
+        initIndexer(GeometryCodec.DEFAULT);
+        assertFalse(luceneGeoIndexer.needsReindex());
+        assertTrue(luceneGeoIndexer.hasFeatureCopies());
+        for (long subject = 1; subject <= 3; subject++) {
+            try (EntityGeometryIterator iterator = luceneGeoIndexer.getGeometriesFor(subject)) {
+                assertTrue(geometries.get((int) subject).equalsExact(iterator.nextGeometry()));
+                assertFalse(iterator.hasNextGeometry());
+            }
+        }
+        // Until it is linked, the feature has its copy as a geometry of its own
+        assertEquals(1, countGeometries(200));
+        assertEquals(set(200L), matchingEntities(geometries.get(1), SpatialOperation.IsEqualTo));
+
+        // What the plugin does with the features in the statements
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(200, (subject) -> "Subject " + subject, Collections.emptyList());
+        luceneGeoIndexer.indexFeatureGeometryList(200, new long[]{1});
+        luceneGeoIndexer.clearFeatureCopies();
+        luceneGeoIndexer.commit();
+        luceneGeoIndexer.close();
+
+        initIndexer(GeometryCodec.DEFAULT);
+        assertFalse(luceneGeoIndexer.hasFeatureCopies());
+        assertEquals(1, countGeometries(200));
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(1, (subject) -> "Subject " + subject, geometries.subList(4, 6));
+        luceneGeoIndexer.commit();
+        assertEquals(2, countGeometries(200));
+    }
+
+    /**
+     * Writes an index with the document layout of a format older than 5, where feature 200 has a copy of the
+     * geometry of subject 1.
+     */
+    private void writeOldIndex(int format, GeometryCodec codec) throws Exception {
+        Path indexPath = GeoSparqlConfig.resolveIndexPath(tmpFolder.getRoot().toPath());
+        try (FSDirectory dir = FSDirectory.open(indexPath);
+             IndexWriter writer = new IndexWriter(dir,
+                     new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE))) {
+            for (long subject = 1; subject <= 3; subject++) {
+                writer.addDocument(oldDocument(format, codec, subject, geometries.get((int) subject)));
+            }
+            writer.addDocument(oldDocument(format, codec, 200, geometries.get(1)));
+            // Legacy indexes have no commit data
+            Map<String, String> commitData = new HashMap<>();
+            if (format > 1) {
+                commitData.put(LuceneGeoIndexer.INDEX_FORMAT_KEY, Integer.toString(format));
+                commitData.put(LuceneGeoIndexer.GEOMETRY_CODEC_KEY, codec.name());
+            }
+            writer.setLiveCommitData(commitData.entrySet());
+            writer.commit();
+        }
+    }
+
+    private static Document oldDocument(int format, GeometryCodec codec, long id, Geometry geometry)
+            throws IOException {
+        Document doc = new Document();
+        doc.add(new LongPoint("id", id));
+        byte[] geoData = codec.encode(geometry);
+        if (format < 4) {
+            doc.add(new StoredField("id", id));
+            doc.add(new StoredField("geoData", geoData));
+        } else {
+            doc.add(new NumericDocValuesField("id", id));
+            doc.add(new BinaryDocValuesField("geoData", new BytesRef(geoData)));
+        }
+        return doc;
+    }
+
+    @Test
+    public void testCodecKeepsZAndSrid() throws Exception {
+        WKTReader reader = new WKTReader(GeoFactory.getDefaultGeometryFactory());
+        for (String wkt : new String[]{"POINT Z(1 2 3)", "LINESTRING Z(0 0 1, 1 1 2)",
+                "POLYGON Z((0 0 5, 1 0 5, 1 1 6, 0 0 5))", "POINT(1 2)"}) {
+            Geometry geometry = reader.read(wkt);
+            geometry.setSRID(4326);
+            Geometry decoded = decode(GeometryCodec.WKB, geometry);
+            assertTrue(wkt, geometry.equalsExact(decoded));
+            assertEquals(wkt, 4326, decoded.getSRID());
+            Coordinate[] expectedCoordinates = geometry.getCoordinates();
+            Coordinate[] decodedCoordinates = decoded.getCoordinates();
+            for (int i = 0; i < expectedCoordinates.length; i++) {
+                assertTrue(wkt, expectedCoordinates[i].equals3D(decodedCoordinates[i]));
+            }
+        }
+        // Without an SRID only the coordinates are written
+        Geometry geometry = reader.read("POINT(1 2)");
+        geometry.setSRID(0);
+        assertEquals(21, GeometryCodec.WKB.encode(geometry).length);
+    }
+
+    private static Geometry decode(GeometryCodec codec, Geometry geometry) throws IOException {
+        byte[] bytes = codec.encode(geometry);
+        return codec.decode(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testUpdateSkipsUnchangedGeometries() throws Exception {
+        luceneGeoIndexer.begin();
+        // same geometries in a different order
+        List<Geometry> reversed = new ArrayList<>(geometries);
+        Collections.reverse(reversed);
+        assertFalse(luceneGeoIndexer.indexGeometryList(1, (subject) -> "Subject " + subject, reversed));
+
+        assertTrue(luceneGeoIndexer.indexGeometryList(2, (subject) -> "Subject " + subject, geometries.subList(0, 3)));
+        // written in this transaction already, must not be compared against the last commit
+        assertTrue(luceneGeoIndexer.indexGeometryList(2, (subject) -> "Subject " + subject, geometries));
+        assertTrue(luceneGeoIndexer.indexGeometryList(3, (subject) -> "Subject " + subject, geometries.subList(0, 3)));
+        luceneGeoIndexer.commit();
+
+        assertEquals(geometries.size(), countGeometries(1));
+        assertEquals(geometries.size(), countGeometries(2));
+        assertEquals(3, countGeometries(3));
+
+        luceneGeoIndexer.begin();
+        assertFalse(luceneGeoIndexer.indexGeometryList(3, (subject) -> "Subject " + subject, geometries.subList(0, 3)));
+        assertTrue(luceneGeoIndexer.indexGeometryList(3, (subject) -> "Subject " + subject, new ArrayList<>()));
+        luceneGeoIndexer.commit();
+
+        assertEquals(0, countGeometries(3));
+    }
+
+    @Test
+    public void testWriterSurvivesCommitAndRollback() throws Exception {
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject, geometries.subList(0, 2));
+        luceneGeoIndexer.commit();
+        assertEquals(2, countGeometries(100));
+
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(101, (subject) -> "Subject " + subject, geometries.subList(0, 2));
+        luceneGeoIndexer.rollback();
+        assertEquals(0, countGeometries(101));
+
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(102, (subject) -> "Subject " + subject, geometries.subList(0, 1));
+        luceneGeoIndexer.commit();
+        assertEquals(2, countGeometries(100));
+        assertEquals(0, countGeometries(101));
+        assertEquals(1, countGeometries(102));
+    }
+
+    @Test
+    public void testRefreshMakesChangesVisibleUntilRollback() throws Exception {
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject, geometries.subList(0, 2));
+        assertEquals(0, countGeometries(100));
+        luceneGeoIndexer.refresh();
+        assertEquals(2, countGeometries(100));
+
+        // the refreshed changes were never committed
+        luceneGeoIndexer.rollback();
+        assertEquals(0, countGeometries(100));
+    }
+
+    @Test
+    public void testLogSequenceIsCommitted() throws Exception {
+        assertEquals(0, luceneGeoIndexer.getCommittedLogSequence());
+
+        // a commit without index changes still records the log sequence
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.setLogSequence(5);
+        luceneGeoIndexer.commit();
+        assertEquals(5, luceneGeoIndexer.getCommittedLogSequence());
+
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject, geometries.subList(0, 1));
+        luceneGeoIndexer.setLogSequence(6);
+        luceneGeoIndexer.rollback();
+        assertEquals(5, luceneGeoIndexer.getCommittedLogSequence());
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.setLogSequence(7);
+        luceneGeoIndexer.commit();
+
+        luceneGeoIndexer.close();
+        initIndexer(GeometryCodec.DEFAULT);
+        assertEquals(7, luceneGeoIndexer.getCommittedLogSequence());
+    }
+
+    @Test
+    public void testIteratorStreamsAllSegments() throws Exception {
+        // Several segments with deleted documents and more hits than fit in a page
+        int expectedCount = geometries.size() * (geometries.size() - 1);
+        luceneGeoIndexer.begin();
+        for (long subject = 1000; subject < 3500; subject++) {
+            luceneGeoIndexer.indexGeometryList(subject, (s) -> "Subject " + s, geometries.subList(0, 1));
+            expectedCount++;
+            if (subject % 1000 == 0) {
+                luceneGeoIndexer.commit();
+                luceneGeoIndexer.begin();
+            }
+        }
+        for (long subject = 1000; subject < 3500; subject += 3) {
+            luceneGeoIndexer.indexGeometryList(subject, (s) -> "Subject " + s, new ArrayList<>());
+            expectedCount--;
+        }
+        luceneGeoIndexer.commit();
+
+        int count = 0;
+        long lastSubject = 0;
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getGeometriesFor(0)) {
+            while (iterator.hasNextGeometry()) {
+                assertTrue(iterator.hasNextGeometry());
+                iterator.nextGeometry();
+                long subject = iterator.getEntityForLastGeometry();
+                assertFalse(subject >= 1000 && subject % 3 == 1);
+                lastSubject = subject;
+                count++;
+            }
+            assertEquals(null, iterator.nextGeometry());
+        }
+        assertEquals(expectedCount, count);
+        assertTrue(lastSubject >= 1000);
+
+        // Every live subject has the first geometry
+        Set<Long> subjects = new HashSet<>();
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getMatchingObjects(geometries.get(0),
+                SpatialOperation.Intersects)) {
+            while (iterator.hasNextGeometry()) {
+                iterator.nextGeometry();
+                subjects.add(iterator.getEntityForLastGeometry());
+            }
+        }
+        assertEquals(geometries.size() - 1 + 2500 - 834, subjects.size());
+
+        // Stopping early releases the searcher
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getGeometriesFor(0)) {
+            assertTrue(iterator.nextGeometry() != null);
+        }
+    }
+
+    @Test
+    public void testFeaturesShareGeometryDocuments() throws Exception {
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject, geometries.subList(0, 1));
+        luceneGeoIndexer.indexGeometryList(101, (subject) -> "Subject " + subject, geometries.subList(1, 3));
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(200, new long[]{100, 101}));
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(201, new long[]{100}));
+        luceneGeoIndexer.commit();
+        long documents = luceneGeoIndexer.getGeometryCount();
+
+        assertEquals(3, countGeometries(200));
+        assertEquals(1, countGeometries(201));
+        assertEquals(1, countGeometries(100));
+
+        // Each geometry is matched for its own subject and every linked feature, the candidates of other
+        // geometries are left to the refinement
+        Map<Long, Integer> matches = new HashMap<>();
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getMatchingObjects(geometries.get(1),
+                SpatialOperation.IsEqualTo)) {
+            while (iterator.hasNextGeometry()) {
+                if (iterator.nextGeometry().equalsExact(geometries.get(1))) {
+                    matches.merge(iterator.getEntityForLastGeometry(), 1, Integer::sum);
+                }
+            }
+        }
+        assertEquals(Integer.valueOf(1), matches.get(101L));
+        assertEquals(Integer.valueOf(1), matches.get(200L));
+        assertFalse(matches.containsKey(201L));
+
+        // Linking the same geometries again changes nothing
+        luceneGeoIndexer.begin();
+        assertFalse(luceneGeoIndexer.indexFeatureGeometryList(200, new long[]{101, 100}));
+        luceneGeoIndexer.commit();
+        assertEquals(documents, luceneGeoIndexer.getGeometryCount());
+
+        // Features follow the geometries they are linked to
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject, geometries.subList(0, 2));
+        luceneGeoIndexer.commit();
+        assertEquals(4, countGeometries(200));
+        assertEquals(2, countGeometries(201));
+
+        luceneGeoIndexer.begin();
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(200, new long[]{101}));
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(201, new long[0]));
+        luceneGeoIndexer.commit();
+        assertEquals(2, countGeometries(200));
+        assertEquals(0, countGeometries(201));
+    }
+
+    @Test
+    public void testFeaturesOfHitsAcrossSegments() throws Exception {
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject,
+                Collections.singletonList(GeoConvert.wktToGeometry("POINT(40 40)")));
+        luceneGeoIndexer.indexGeometryList(101, (subject) -> "Subject " + subject,
+                Collections.singletonList(GeoConvert.wktToGeometry("POINT(41 41)")));
+        luceneGeoIndexer.commit();
+        // Each commit adds a segment with the links
+        luceneGeoIndexer.begin();
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(200, new long[]{100}));
+        luceneGeoIndexer.commit();
+        luceneGeoIndexer.begin();
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(201, new long[]{101, 100}));
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(202, new long[]{100}));
+        luceneGeoIndexer.commit();
+
+        Geometry first = GeoConvert.wktToGeometry("POINT(40 40)");
+        Geometry second = GeoConvert.wktToGeometry("POINT(41 41)");
+        assertEquals(set(100L, 200L, 201L, 202L), matchingEntities(first, SpatialOperation.Intersects));
+        assertEquals(set(101L, 201L), matchingEntities(second, SpatialOperation.Intersects));
+
+        // Deleted links are left out of the segments read before
+        luceneGeoIndexer.begin();
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(201, new long[]{101}));
+        luceneGeoIndexer.commit();
+        assertEquals(set(100L, 200L, 202L), matchingEntities(first, SpatialOperation.Intersects));
+        assertEquals(set(101L, 201L), matchingEntities(second, SpatialOperation.Intersects));
+    }
+
+    @Test
+    public void testFeatureLinksRollBackAndMigrate() throws Exception {
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexFeatureGeometry(200, 1);
+        luceneGeoIndexer.commit();
+
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexFeatureGeometry(200, 2);
+        luceneGeoIndexer.indexFeatureGeometryList(201, new long[]{1});
+        luceneGeoIndexer.rollback();
+        assertEquals(geometries.size(), countGeometries(200));
+        assertEquals(0, countGeometries(201));
+
+        // Links are kept when the geometries are rewritten with another codec
+        indexReader.close();
+        luceneGeoIndexer.close();
+        initIndexer(GeometryCodec.JAVA_SERIALIZATION);
+        luceneGeoIndexer.close();
+        initIndexer(GeometryCodec.DEFAULT);
+        indexReader = null;
+        assertFalse(luceneGeoIndexer.needsReindex());
+        assertEquals(geometries.size(), countGeometries(200));
+    }
+
+    @Test
+    public void testDirectionalRelationsUseBounds() throws Exception {
+        // Points and axis-parallel lines have degenerate envelopes
+        List<Geometry> shapes = new ArrayList<>();
+        shapes.add(GeoConvert.wktToGeometry("POINT(10 10)"));
+        shapes.add(GeoConvert.wktToGeometry("POINT(30 -20)"));
+        shapes.add(GeoConvert.wktToGeometry("LINESTRING(-40 5, -20 5)"));
+        shapes.add(GeoConvert.wktToGeometry("POLYGON((0 30, 20 30, 20 50, 0 50, 0 30))"));
+        luceneGeoIndexer.begin();
+        for (int i = 0; i < shapes.size(); i++) {
+            luceneGeoIndexer.indexGeometryList(100 + i, (subject) -> "Subject " + subject, shapes.subList(i, i + 1));
+        }
+        assertTrue(luceneGeoIndexer.indexFeatureGeometryList(200, new long[]{100}));
+        luceneGeoIndexer.commit();
+
+        Geometry query = GeoConvert.wktToGeometry("POLYGON((0 0, 20 0, 20 20, 0 20, 0 0))");
+        assertEquals(set(103L), matchingEntities(query, DirectionalOperation.IsAbove));
+        assertEquals(set(101L), matchingEntities(query, DirectionalOperation.IsBelow));
+        assertEquals(set(102L), matchingEntities(query, DirectionalOperation.IsLeftOf));
+        assertEquals(set(101L), matchingEntities(query, DirectionalOperation.IsRightOf));
+
+        // Strictly, touching bounds don't count. The feature follows its geometry.
+        Geometry line = GeoConvert.wktToGeometry("LINESTRING(0 10, 30 10)");
+        assertEquals(set(101L, 102L), matchingEntities(line, DirectionalOperation.IsBelow));
+        assertEquals(set(103L), matchingEntities(line, DirectionalOperation.IsAbove));
+        assertTrue(matchingEntities(GeoConvert.wktToGeometry("POINT(10 0)"), DirectionalOperation.IsAbove)
+                .containsAll(set(100L, 200L, 103L)));
+    }
+
+    @Test
+    public void testDisjointRelationsDecodeOverlappingEnvelopesOnly() throws Exception {
+        List<Geometry> shapes = new ArrayList<>();
+        shapes.add(GeoConvert.wktToGeometry("POINT(50 50)"));
+        shapes.add(GeoConvert.wktToGeometry("MULTIPOINT((60 60), (70 65))"));
+        shapes.add(GeoConvert.wktToGeometry("LINESTRING(-40 5, -20 8, -30 15)"));
+        shapes.add(GeoConvert.wktToGeometry("LINESTRING(40 -40, 60 -40, 50 -30, 40 -40)"));
+        shapes.add(GeoConvert.wktToGeometry("POLYGON((0 30, 20 30, 20 50, 0 50, 0 30))"));
+        // Envelopes overlapping the query envelope
+        shapes.add(GeoConvert.wktToGeometry("POLYGON((15 15, 40 15, 40 40, 15 40, 15 15))"));
+        shapes.add(GeoConvert.wktToGeometry("LINESTRING(19 1, 25 -5)"));
+        shapes.add(GeoConvert.wktToGeometry("POINT(20 20)"));
+        shapes.add(GeoConvert.wktToGeometry("POLYGON((10 10, 30 10, 30 30, 10 30, 10 10))"));
+        luceneGeoIndexer.begin();
+        for (int i = 0; i < shapes.size(); i++) {
+            luceneGeoIndexer.indexGeometryList(100 + i, (subject) -> "Subject " + subject, shapes.subList(i, i + 1));
+        }
+        luceneGeoIndexer.commit();
+
+        Geometry query = GeoConvert.wktToGeometry("POLYGON((0 0, 20 0, 0 20, 0 0))");
+        Set<Long> entities = new HashSet<>();
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getMatchingObjects(query, SpatialOperation.IsDisjointTo)) {
+            while (iterator.hasNextGeometry()) {
+                Geometry geometry = iterator.nextGeometry();
+                long entity = iterator.getEntityForLastGeometry();
+                if (entity < 100) {
+                    continue;
+                }
+                entities.add(entity);
+                Geometry original = shapes.get((int) (entity - 100));
+                assertTrue(original.getEnvelopeInternal().covers(geometry.getEnvelopeInternal()));
+                for (GeoSparqlFunction function : GeoSparqlFunction.values()) {
+                    if (function.getSpatialOperation() == SpatialOperation.IsDisjointTo) {
+                        assertEquals(function + " " + original, function.evaluate(original, query),
+                                function.evaluate(geometry, query));
+                        assertEquals(function + " " + original, function.evaluate(query, original),
+                                function.evaluate(query, geometry));
+                    }
+                }
+                if (entity >= 105) {
+                    // Overlapping envelopes are decoded
+                    assertTrue(original.equalsExact(geometry));
+                }
+            }
+        }
+        // All geometries are candidates
+        assertEquals(shapes.size(), entities.size());
+    }
+
+    @Test
+    public void testEstimateFollowsCommittedGeometries() throws Exception {
+        Geometry world = GeoConvert.wktToGeometry("POLYGON((-180 -90, 180 -90, 180 90, -180 90, -180 -90))");
+        Geometry area = GeoConvert.wktToGeometry("POLYGON((100 -60, 101 -60, 101 -59, 100 -59, 100 -60))");
+        double all = luceneGeoIndexer.estimateMatchingObjects(world, SpatialOperation.Intersects);
+        assertEquals(luceneGeoIndexer.getGeometryCount(), all, 1e-6);
+        double before = luceneGeoIndexer.estimateMatchingObjects(area, SpatialOperation.Intersects);
+
+        List<Geometry> points = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            points.add(GeoConvert.wktToGeometry("POINT(" + (100 + i / 100.0) + " -59.5)"));
+        }
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject, points);
+        // Not visible before commit
+        assertEquals(before, luceneGeoIndexer.estimateMatchingObjects(area, SpatialOperation.Intersects), 1e-6);
+        luceneGeoIndexer.commit();
+        double after = luceneGeoIndexer.estimateMatchingObjects(area, SpatialOperation.Intersects);
+        assertTrue(after - before > 10);
+        assertEquals(all + 100, luceneGeoIndexer.estimateMatchingObjects(world, SpatialOperation.Intersects), 1e-6);
+        assertEquals(luceneGeoIndexer.getGeometryCount() - after,
+                luceneGeoIndexer.estimateMatchingObjects(area, SpatialOperation.IsDisjointTo), 1e-6);
+
+        // Deleted geometries stop counting
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject, Collections.emptyList());
+        luceneGeoIndexer.commit();
+        assertEquals(all, luceneGeoIndexer.estimateMatchingObjects(world, SpatialOperation.Intersects), 1e-6);
+    }
+
+    @Test
+    public void testBatchSearchMatchesSingleSearches() throws Exception {
+        List<Geometry> known = geometries;
+        for (SpatialOperation operation : new SpatialOperation[]{SpatialOperation.Intersects,
+                SpatialOperation.IsWithin}) {
+            MultiSearchEntityGeometryIterator single =
+                    new MultiSearchEntityGeometryIterator(luceneGeoIndexer, operation);
+            MultiSearchEntityGeometryIterator batch =
+                    new MultiSearchEntityGeometryIterator(luceneGeoIndexer, operation);
+            assertTrue(batch.canBatch());
+            batch.searchBatch(known);
+            for (Geometry geometry : known) {
+                single.search(geometry);
+                batch.select(geometry);
+                // The same matches once refined, the batch may have more candidates
+                List<String> expected = refinedMatches(single, operation, geometry);
+                assertFalse(expected.isEmpty());
+                assertEquals(operation + " " + geometry, expected, refinedMatches(batch, operation, geometry));
+            }
+            single.close();
+            batch.close();
+        }
+        assertFalse(new MultiSearchEntityGeometryIterator(luceneGeoIndexer, SpatialOperation.IsDisjointTo)
+                .canBatch());
+    }
+
+    /**
+     * @return the refined matches, sorted so that a match returned more than once shows
+     */
+    private static List<String> refinedMatches(EntityGeometryIterator iterator, SpatialOperation operation,
+                                               Geometry known) {
+        List<String> matches = new ArrayList<>();
+        while (iterator.hasNextGeometry()) {
+            Geometry geometry = iterator.nextGeometry();
+            if (operation == SpatialOperation.Intersects ? geometry.intersects(known) : geometry.within(known)) {
+                matches.add(iterator.getEntityForLastGeometry() + " " + geometry);
+            }
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+
+    @Test
+    public void testPointsAreIndexedByCoordinates() throws Exception {
+        List<Geometry> points = new ArrayList<>();
+        points.add(GeoConvert.wktToGeometry("POINT(23.3219 42.6977)"));
+        points.add(GeoConvert.wktToGeometry("POINT(-0.1275 51.50722)"));
+        // On the border of the query polygon
+        points.add(GeoConvert.wktToGeometry("POINT(20 40)"));
+        luceneGeoIndexer.begin();
+        for (int i = 0; i < points.size(); i++) {
+            luceneGeoIndexer.indexGeometryList(100 + i, (subject) -> "Subject " + subject, points.subList(i, i + 1));
+        }
+        luceneGeoIndexer.commit();
+
+        // Neither prefix tree cells nor an encoded geometry
+        indexReader.close();
+        openIndex();
+        TopDocs docs = indexSearcher.search(new TermQuery(new Term("idKey", "100")), 1);
+        int doc = docs.scoreDocs[0].doc;
+        LeafReaderContext leaf = indexReader.leaves().get(ReaderUtil.subIndex(doc, indexReader.leaves()));
+        assertFalse(DocValues.getBinary(leaf.reader(), "geoData").advanceExact(doc - leaf.docBase));
+        assertEquals(null, leaf.reader().terms("geoCells"));
+
+        Geometry query = GeoConvert.wktToGeometry("POLYGON((20 40, 30 40, 30 50, 20 50, 20 40))");
+        Set<Long> candidates = new HashSet<>();
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getMatchingObjects(query, SpatialOperation.IsWithin)) {
+            while (iterator.hasNextGeometry()) {
+                Geometry geometry = iterator.nextGeometry();
+                long entity = iterator.getEntityForLastGeometry();
+                if (entity >= 100) {
+                    // The exact coordinates
+                    assertTrue(points.get((int) (entity - 100)).equalsExact(geometry));
+                    candidates.add(entity);
+                }
+            }
+        }
+        assertEquals(set(100L, 102L), candidates);
+
+        // Points survive a migration
+        luceneGeoIndexer.close();
+        initIndexer(GeometryCodec.JAVA_SERIALIZATION);
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getGeometriesFor(101)) {
+            assertTrue(points.get(1).equalsExact(iterator.nextGeometry()));
+            assertFalse(iterator.hasNextGeometry());
+        }
+    }
+
+    private static Set<Long> set(Long... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testProxiesInsteadOfDecodedGeometries() throws Exception {
+        luceneGeoIndexer.begin();
+        luceneGeoIndexer.indexGeometryList(100, (subject) -> "Subject " + subject,
+                Collections.singletonList(GeoConvert.wktToGeometry("POLYGON((40 40, 41 40, 41 41.5, 40 40))")));
+        luceneGeoIndexer.indexGeometryList(101, (subject) -> "Subject " + subject,
+                Collections.singletonList(GeoConvert.wktToGeometry("LINESTRING(42 42, 42.5 43, 43 42)")));
+        luceneGeoIndexer.commit();
+
+        Geometry query = GeoConvert.wktToGeometry("POLYGON((39 39, 44 39, 44 44, 39 44, 39 39))");
+        Envelope proxied = new Envelope(41.9, 43.1, 41.9, 43.1);
+        Map<Long, Geometry> returned = new HashMap<>();
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getMatchingObjects(query,
+                SpatialOperation.Intersects)) {
+            // Only the line is within the envelope the filter accepts
+            iterator.setProxyFilter(proxied::contains);
+            while (iterator.hasNextGeometry()) {
+                Geometry geometry = iterator.nextGeometry();
+                returned.put(iterator.getEntityForLastGeometry(), geometry);
+            }
+        }
+        assertTrue(GeoConvert.wktToGeometry("POLYGON((40 40, 41 40, 41 41.5, 40 40))").equalsExact(returned.get(100L)));
+        Geometry proxy = returned.get(101L);
+        assertFalse(GeoConvert.wktToGeometry("LINESTRING(42 42, 42.5 43, 43 42)").equalsExact(proxy));
+        assertEquals(GeometryKind.OPEN_LINE, GeometryKind.of(proxy));
+        assertTrue(new Envelope(42, 43, 42, 43).contains(proxy.getEnvelopeInternal()));
+    }
+
+    private Set<Long> matchingEntities(Geometry query, SpatialOperation operation) throws Exception {
+        Set<Long> entities = new HashSet<>();
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getMatchingObjects(query, operation)) {
+            while (iterator.hasNextGeometry()) {
+                iterator.nextGeometry();
+                // Only the geometries of this test, the example data is spread all over
+                if (iterator.getEntityForLastGeometry() >= 100) {
+                    entities.add(iterator.getEntityForLastGeometry());
+                }
+            }
+        }
+        return entities;
+    }
+
+    private int countGeometries(long subject) throws Exception {
+        int count = 0;
+        try (EntityGeometryIterator iterator = luceneGeoIndexer.getGeometriesFor(subject)) {
+            while (iterator.hasNextGeometry()) {
+                iterator.nextGeometry();
+                count++;
+            }
+        }
+        return count;
     }
 }
@@ -0,0 +1,73 @@
+package com.ontotext.trree.geosparql.lucene;
+
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpatialHistogramTest {
+    @Test
+    public void testEstimatesFollowTheData() {
+        // Small squares clustered around Europe and spread thinly over the rest of the world
+        Random random = new Random(42);
+        List<Envelope> envelopes = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            double x = i % 4 == 0 ? random.nextDouble() * 360 - 180 : random.nextDouble() * 30 - 5;
+            double y = i % 4 == 0 ? random.nextDouble() * 180 - 90 : random.nextDouble() * 20 + 40;
+            double size = random.nextDouble() * 0.5;
+            envelopes.add(new Envelope(x, x + size, y, y + size));
+        }
+        SpatialHistogram histogram = new SpatialHistogram();
+        envelopes.forEach(histogram::add);
+        assertEquals(envelopes.size(), histogram.getTotal(), 0);
+
+        Envelope[] queries = new Envelope[]{
+                new Envelope(0, 10, 45, 50),
+                new Envelope(100, 120, -30, 0),
+                new Envelope(0, 20, 45, 55),
+                new Envelope(12.3, 12.4, 48.1, 48.2)};
+        SpatialOperation[] operations = new SpatialOperation[]{SpatialOperation.Intersects,
+                SpatialOperation.IsDisjointTo, DirectionalOperation.IsAbove, DirectionalOperation.IsBelow,
+                DirectionalOperation.IsLeftOf, DirectionalOperation.IsRightOf};
+        for (Envelope query : queries) {
+            for (SpatialOperation operation : operations) {
+                long actual = envelopes.stream().filter(envelope -> matches(operation, envelope, query)).count();
+                // Within 10% or 25 geometries
+                assertEquals(operation + " " + query, actual, histogram.estimate(operation, query),
+                        Math.max(25, actual * 0.1));
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentsAddUp() {
+        SpatialHistogram first = new SpatialHistogram();
+        first.add(new Envelope(10, 11, 10, 11));
+        first.add(new Envelope(-50, -40, 0, 5));
+        SpatialHistogram second = new SpatialHistogram();
+        second.add(new Envelope(10.5, 10.6, 10.5, 10.6));
+
+        SpatialHistogram sum = new SpatialHistogram();
+        sum.add(first, 1);
+        // Half of the documents of the segment are deleted
+        sum.add(second, 0.5);
+        assertEquals(2.5, sum.getTotal(), 0);
+        assertEquals(2.5, sum.estimate(SpatialOperation.Intersects, new Envelope(-180, 180, -90, 90)), 1e-9);
+        assertEquals(2.5, sum.estimate(SpatialOperation.IsDisjointTo, new Envelope()), 0);
+        assertEquals(0, sum.estimate(SpatialOperation.Intersects, new Envelope()), 0);
+    }
+
+    private static boolean matches(SpatialOperation operation, Envelope envelope, Envelope query) {
+        if (operation == SpatialOperation.Intersects) {
+            return envelope.intersects(query);
+        } else if (operation == SpatialOperation.IsDisjointTo) {
+            return !envelope.intersects(query);
+        }
+        return ((DirectionalOperation) operation).evaluate(envelope, query);
+    }
+}
@@ -0,0 +1,282 @@
+package com.ontotext.trree.geosparql.memory;
+
+import com.ontotext.test.TemporaryLocalFolder;
+import com.ontotext.trree.geosparql.BatchMatches;
+import com.ontotext.trree.geosparql.EntityGeometryIterator;
+import com.ontotext.trree.geosparql.GeoSparqlConfig;
+import com.ontotext.trree.geosparql.GeoSparqlIndexer;
+import com.ontotext.trree.geosparql.GeoSparqlPlugin;
+import com.ontotext.trree.geosparql.lucene.DirectionalOperation;
+import com.ontotext.trree.geosparql.lucene.GeometryCodec;
+import com.ontotext.trree.geosparql.lucene.LuceneGeoIndexer;
+import com.useekm.types.GeoConvert;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.util.GeometricShapeFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryGeoIndexerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryGeoIndexerTest.class);
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    @Rule
+    public TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
+
+    private final Random random = new Random(42);
+
+    private GeoSparqlPlugin parent;
+
+    private LuceneGeoIndexer luceneIndexer;
+
+    private MemoryGeoIndexer memoryIndexer;
+
+    @Before
+    public void init() throws Exception {
+        parent = new GeoSparqlPlugin();
+        parent.setConfig(new GeoSparqlConfig());
+        parent.setLogger(LOG);
+        parent.setDataDir(tmpFolder.getRoot());
+
+        luceneIndexer = new LuceneGeoIndexer(parent, GeometryCodec.DEFAULT, tmpFolder.getRoot().toPath().resolve("lucene"),
+                GeoSparqlConfig.PrefixTree.QUAD, 11);
+        luceneIndexer.initialize();
+        memoryIndexer = openMemoryIndexer();
+    }
+
+    @After
+    public void close() throws IOException {
+        luceneIndexer.close();
+        memoryIndexer.close();
+    }
+
+    @Test
+    public void testMemoryIndexMatchesLuceneIndex() throws Exception {
+        List<Geometry> geometries = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            geometries.add(randomGeometry(i % 4));
+        }
+
+        index(luceneIndexer, geometries);
+        index(memoryIndexer, geometries);
+        // Features linked to a geometry each and one linked to two
+        for (long feature = 10001; feature <= 10100; feature++) {
+            luceneIndexer.indexFeatureGeometryList(feature, new long[]{feature - 10000});
+            memoryIndexer.indexFeatureGeometryList(feature, new long[]{feature - 10000});
+        }
+        luceneIndexer.indexFeatureGeometryList(20000, new long[]{1, 2});
+        memoryIndexer.indexFeatureGeometryList(20000, new long[]{1, 2});
+        luceneIndexer.commit();
+        memoryIndexer.commit();
+        assertEquals(luceneIndexer.getGeometryCount(), memoryIndexer.getGeometryCount());
+
+        List<Geometry> queries = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            queries.add(randomPolygon(random.nextDouble() * 20));
+        }
+        queries.add(GeoConvert.wktToGeometry("LINESTRING(100 0, 110 5)"));
+        for (SpatialOperation operation : new SpatialOperation[]{SpatialOperation.Intersects,
+                SpatialOperation.IsWithin, SpatialOperation.IsDisjointTo, DirectionalOperation.IsAbove,
+                DirectionalOperation.IsLeftOf}) {
+            long luceneTime = 0;
+            long memoryTime = 0;
+            for (Geometry query : queries) {
+                long start = System.nanoTime();
+                Set<Long> luceneMatches = matches(luceneIndexer.getMatchingObjects(query, operation), query, operation);
+                luceneTime += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                Set<Long> memoryMatches = matches(memoryIndexer.getMatchingObjects(query, operation), query, operation);
+                memoryTime += System.nanoTime() - start;
+
+                assertEquals(operation + " " + query, luceneMatches, memoryMatches);
+            }
+            LOG.info("{}: lucene {} ms, memory {} ms", operation, luceneTime / 1000000, memoryTime / 1000000);
+        }
+
+        // A batch of queries finds what each of them does
+        try (BatchMatches luceneBatch = luceneIndexer.getBatchMatches(queries, SpatialOperation.Intersects);
+             BatchMatches memoryBatch = memoryIndexer.getBatchMatches(queries, SpatialOperation.Intersects)) {
+            for (Geometry query : queries) {
+                Set<Long> luceneMatches = matches(luceneBatch.select(query), query, SpatialOperation.Intersects);
+                assertEquals(query.toString(), matches(luceneIndexer.getMatchingObjects(query,
+                        SpatialOperation.Intersects), query, SpatialOperation.Intersects), luceneMatches);
+                assertEquals(query.toString(), luceneMatches,
+                        matches(memoryBatch.select(query), query, SpatialOperation.Intersects));
+            }
+        }
+
+        assertEquals(entities(luceneIndexer.getGeometriesFor(20000)), entities(memoryIndexer.getGeometriesFor(20000)));
+        assertEquals(2, count(memoryIndexer.getGeometriesFor(20000)));
+        Geometry world = GeoConvert.wktToGeometry("POLYGON((-180 -90, 180 -90, 180 90, -180 90, -180 -90))");
+        assertTrue(memoryIndexer.estimateMatchingObjects(world, SpatialOperation.Intersects) > 1000);
+    }
+
+    @Test
+    public void testChangesSurviveRestart() throws Exception {
+        // Enough points to merge them into a snapshot
+        List<Geometry> geometries = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            geometries.add(FACTORY.createPoint(new Coordinate(random.nextDouble() * 300 - 150,
+                    random.nextDouble() * 140 - 70)));
+        }
+        memoryIndexer.setLogSequence(1);
+        index(memoryIndexer, geometries);
+
+        // Later commits go to the journal
+        memoryIndexer.indexGeometryList(1, subject -> "Subject " + subject,
+                Collections.singletonList(GeoConvert.wktToGeometry("POLYGON((0 0, 1 0, 1 1, 0 1, 0 0))")));
+        memoryIndexer.indexGeometryList(2, subject -> "Subject " + subject, Collections.emptyList());
+        memoryIndexer.indexFeatureGeometryList(30000, new long[]{1, 3});
+        memoryIndexer.setLogSequence(2);
+        memoryIndexer.commit();
+        memoryIndexer.setLogSequence(3);
+        memoryIndexer.commit();
+
+        Geometry query = GeoConvert.wktToGeometry("POLYGON((-10 -10, 10 -10, 10 10, -10 10, -10 -10))");
+        Set<Long> before = matches(memoryIndexer.getMatchingObjects(query, SpatialOperation.Intersects), query,
+                SpatialOperation.Intersects);
+        assertTrue(before.contains(1L));
+        assertTrue(before.contains(30000L));
+        assertFalse(before.contains(2L));
+
+        memoryIndexer.close();
+        memoryIndexer = openMemoryIndexer();
+        assertEquals(3, memoryIndexer.getCommittedLogSequence());
+        assertEquals(20000 - 1 + 2, memoryIndexer.getGeometryCount());
+        assertEquals(before, matches(memoryIndexer.getMatchingObjects(query, SpatialOperation.Intersects), query,
+                SpatialOperation.Intersects));
+        assertEquals(new HashSet<>(Arrays.asList(30000L)), entities(memoryIndexer.getGeometriesFor(30000)));
+        assertEquals(2, count(memoryIndexer.getGeometriesFor(30000)));
+
+        // Unchanged geometries don't need to be indexed again
+        assertFalse(memoryIndexer.indexGeometryList(3, subject -> "Subject " + subject, geometries.subList(2, 3)));
+
+        memoryIndexer.freshIndex();
+        memoryIndexer.commit();
+        memoryIndexer.close();
+        memoryIndexer = openMemoryIndexer();
+        assertEquals(0, memoryIndexer.getGeometryCount());
+    }
+
+    @Test
+    public void testRollbackAfterRefresh() throws Exception {
+        Geometry geometry = GeoConvert.wktToGeometry("POLYGON((0 0, 1 0, 1 1, 0 1, 0 0))");
+        memoryIndexer.begin();
+        memoryIndexer.indexGeometry(1, subject -> "Subject " + subject, geometry);
+        memoryIndexer.refresh();
+        assertEquals(1, count(memoryIndexer.getMatchingObjects(geometry, SpatialOperation.Intersects)));
+
+        memoryIndexer.rollback();
+        assertEquals(0, count(memoryIndexer.getMatchingObjects(geometry, SpatialOperation.Intersects)));
+        assertEquals(0, memoryIndexer.getGeometryCount());
+    }
+
+    private MemoryGeoIndexer openMemoryIndexer() throws Exception {
+        Path indexDir = tmpFolder.getRoot().toPath().resolve("memory");
+        MemoryGeoIndexer indexer = new MemoryGeoIndexer(parent, indexDir);
+        indexer.initialize();
+        return indexer;
+    }
+
+    private static void index(GeoSparqlIndexer indexer, List<Geometry> geometries) throws Exception {
+        indexer.begin();
+        for (int i = 0; i < geometries.size(); i++) {
+            indexer.indexGeometryList(i + 1, subject -> "Subject " + subject, geometries.subList(i, i + 1));
+        }
+        indexer.commit();
+    }
+
+    private static Set<Long> matches(EntityGeometryIterator iterator, Geometry query, SpatialOperation operation)
+            throws Exception {
+        Set<Long> matches = new HashSet<>();
+        try (EntityGeometryIterator it = iterator) {
+            while (it.hasNextGeometry()) {
+                Geometry geometry = it.nextGeometry();
+                if (query == null || matches(geometry, query, operation)) {
+                    matches.add(it.getEntityForLastGeometry());
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static boolean matches(Geometry geometry, Geometry query, SpatialOperation operation) {
+        if (operation instanceof DirectionalOperation) {
+            return ((DirectionalOperation) operation).evaluate(geometry.getEnvelopeInternal(),
+                    query.getEnvelopeInternal());
+        } else if (operation == SpatialOperation.IsWithin) {
+            return geometry.within(query);
+        } else if (operation == SpatialOperation.IsDisjointTo) {
+            return geometry.disjoint(query);
+        }
+        return geometry.intersects(query);
+    }
+
+    private static Set<Long> entities(EntityGeometryIterator iterator) throws Exception {
+        return matches(iterator, null, SpatialOperation.Intersects);
+    }
+
+    private static int count(EntityGeometryIterator iterator) throws Exception {
+        int count = 0;
+        try (EntityGeometryIterator it = iterator) {
+            while (it.hasNextGeometry()) {
+                it.nextGeometry();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Geometry randomGeometry(int type) {
+        switch (type) {
+            case 0:
+                return randomPolygon(random.nextDouble() * 2);
+            case 1:
+                Coordinate[] coordinates = new Coordinate[2 + random.nextInt(10)];
+                coordinates[0] = new Coordinate(random.nextDouble() * 300 - 150, random.nextDouble() * 140 - 70);
+                for (int i = 1; i < coordinates.length; i++) {
+                    coordinates[i] = new Coordinate(coordinates[i - 1].x + random.nextDouble() - 0.5,
+                            coordinates[i - 1].y + random.nextDouble() - 0.5);
+                }
+                return FACTORY.createLineString(coordinates);
+            case 2:
+                return FACTORY.createPoint(new Coordinate(random.nextDouble() * 300 - 150,
+                        random.nextDouble() * 140 - 70));
+            default:
+                return FACTORY.createMultiPolygon(new org.locationtech.jts.geom.Polygon[]{
+                        (org.locationtech.jts.geom.Polygon) randomPolygon(random.nextDouble()),
+                        (org.locationtech.jts.geom.Polygon) randomPolygon(random.nextDouble())});
+        }
+    }
+
+    private Geometry randomPolygon(double size) {
+        GeometricShapeFactory shapeFactory = new GeometricShapeFactory(FACTORY);
+        shapeFactory.setCentre(new Coordinate(random.nextDouble() * 300 - 150, random.nextDouble() * 140 - 70));
+        shapeFactory.setSize(size + 0.01);
+        shapeFactory.setNumPoints(8 + random.nextInt(32));
+        return shapeFactory.createCircle();
+    }
+}
@@ -0,0 +1,72 @@
+package com.ontotext.trree.geosparql.memory;
+
+import com.ontotext.test.TemporaryLocalFolder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryIndexFilesTest {
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    @Rule
+    public TemporaryLocalFolder tmpFolder = new TemporaryLocalFolder();
+
+    @Test
+    public void testJournalOlderThanSnapshotIsDropped() throws Exception {
+        Path directory = tmpFolder.getRoot().toPath();
+        Path journal = directory.resolve("geometries.journal");
+
+        MemoryIndex index;
+        try (MemoryIndexFiles files = new MemoryIndexFiles(directory)) {
+            index = files.load();
+            index = append(files, index, changes(1, point(1, 1, 1)), 1);
+            index = append(files, index, changes(1, point(1, 2, 2)), 2);
+            byte[] oldJournal = Files.readAllBytes(journal);
+
+            // The snapshot removes the geometry of the subject, then a crash keeps the journal from being emptied
+            index = index.apply(changes(1), 3).merge();
+            files.writeSnapshot(index);
+            files.close();
+            Files.write(journal, oldJournal);
+        }
+
+        try (MemoryIndexFiles files = new MemoryIndexFiles(directory)) {
+            index = files.load();
+            assertEquals(3, index.getLogSequence());
+            assertEquals(0, index.geometriesOf(1).length);
+
+            // New frames replace the old ones and are kept
+            append(files, index, changes(2, point(2, 3, 3)), 4);
+        }
+
+        try (MemoryIndexFiles files = new MemoryIndexFiles(directory)) {
+            index = files.load();
+            assertEquals(4, index.getLogSequence());
+            assertEquals(0, index.geometriesOf(1).length);
+            assertEquals(1, index.geometriesOf(2).length);
+        }
+    }
+
+    private static MemoryIndex append(MemoryIndexFiles files, MemoryIndex index, IndexChanges changes,
+                                      long logSequence) throws Exception {
+        files.append(changes, logSequence);
+        return index.apply(changes, logSequence);
+    }
+
+    private static IndexChanges changes(long subject, IndexedGeometry... geometries) {
+        IndexChanges changes = new IndexChanges();
+        changes.geometries.put(subject, geometries);
+        return changes;
+    }
+
+    private static IndexedGeometry point(long subject, double x, double y) throws Exception {
+        return IndexedGeometry.of(subject, FACTORY.createPoint(new Coordinate(x, y)));
+    }
+}
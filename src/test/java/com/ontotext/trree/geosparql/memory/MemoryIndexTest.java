@@ -0,0 +1,104 @@
+package com.ontotext.trree.geosparql.memory;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MemoryIndexTest {
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private static final int SUBJECTS = 300;
+
+    private static final int FEATURES = 100;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testDeltaMatchesMergedIndex() throws Exception {
+        MemoryIndex index = MemoryIndex.empty().apply(randomChanges(SUBJECTS), 1).merge();
+        for (int round = 2; round < 200; round++) {
+            MemoryIndex previous = index;
+            long previousCount = previous.getCount();
+            double previousTotal = previous.getHistogram().getTotal();
+            List<IndexedGeometry> previousMatches = search(previous);
+
+            index = index.apply(randomChanges(random.nextInt(20) + 1), round);
+            assertSame(index.merge(), index);
+
+            // Older versions are still searched and must not see the changes
+            assertEquals(previousCount, previous.getCount());
+            assertEquals(previousTotal, previous.getHistogram().getTotal(), 1e-6);
+            assertEquals(previousMatches, search(previous));
+
+            if (round % 50 == 0) {
+                index = index.merge();
+            }
+        }
+    }
+
+    private static void assertSame(MemoryIndex expected, MemoryIndex actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getHistogram().getTotal(), actual.getHistogram().getTotal(), 1e-6);
+        assertEquals(search(expected).size(), search(actual).size());
+        for (long subject = 1; subject <= SUBJECTS; subject++) {
+            assertEquals(expected.geometriesOf(subject).length, actual.geometriesOf(subject).length);
+            assertArrayEquals(sorted(expected.featuresOf(subject)), sorted(actual.featuresOf(subject)));
+        }
+        for (long feature = SUBJECTS + 1; feature <= SUBJECTS + FEATURES; feature++) {
+            assertArrayEquals(expected.linkedGeometries(feature), actual.linkedGeometries(feature));
+        }
+    }
+
+    private static List<IndexedGeometry> search(MemoryIndex index) {
+        List<IndexedGeometry> result = new ArrayList<>();
+        index.search(new Envelope(-180, 180, -90, 90), result);
+        return result;
+    }
+
+    private static long[] sorted(long[] values) {
+        long[] copy = values.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    private IndexChanges randomChanges(int count) throws Exception {
+        IndexChanges changes = new IndexChanges();
+        for (int i = 0; i < count; i++) {
+            long subject = random.nextInt(SUBJECTS) + 1;
+            IndexedGeometry[] geometries = new IndexedGeometry[random.nextInt(3)];
+            for (int j = 0; j < geometries.length; j++) {
+                geometries[j] = IndexedGeometry.of(subject, randomGeometry());
+            }
+            changes.geometries.put(subject, geometries);
+
+            long feature = SUBJECTS + random.nextInt(FEATURES) + 1;
+            long[] links = new long[random.nextInt(3)];
+            for (int j = 0; j < links.length; j++) {
+                links[j] = random.nextInt(SUBJECTS) + 1;
+            }
+            changes.links.put(feature, links);
+        }
+        return changes;
+    }
+
+    private Geometry randomGeometry() {
+        double x = random.nextDouble() * 340 - 170;
+        double y = random.nextDouble() * 160 - 80;
+        if (random.nextBoolean()) {
+            return FACTORY.createPoint(new Coordinate(x, y));
+        }
+        double size = random.nextDouble() * 10;
+        return FACTORY.toGeometry(new Envelope(x, x + size, y, y + size));
+    }
+}
@@ -5,6 +5,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 import static org.junit.Assert.*;
 
 /**
@@ -48,4 +52,48 @@ public class GeoSparqlUtilsTest {
         assertEquals(currentPrecision, config2.getCurrentPrecision());
         assertEquals(ignoreErrors, config2.isIgnoreErrors());
     }
+
+    @Test
+    public void testSwapRebuiltIndex() throws IOException {
+        Path dataDir = tmpFolder.getRoot().toPath();
+        Path indexPath = GeoSparqlConfig.resolveIndexPath(dataDir);
+        Path rebuildPath = GeoSparqlConfig.resolveRebuildIndexPath(dataDir);
+        Files.createDirectories(indexPath);
+        Files.write(indexPath.resolve("segments_1"), new byte[]{1});
+        Files.createDirectories(rebuildPath);
+        Files.write(rebuildPath.resolve("segments_2"), new byte[]{2});
+
+        GeoSparqlUtils.swapRebuiltIndex(dataDir);
+
+        assertTrue(Files.exists(indexPath.resolve("segments_2")));
+        assertFalse(Files.exists(indexPath.resolve("segments_1")));
+        assertFalse(Files.exists(rebuildPath));
+        Path oldPath = GeoSparqlConfig.resolveOldIndexPath(dataDir);
+        assertTrue(Files.exists(oldPath.resolve("segments_1")));
+        GeoSparqlUtils.deleteDirectory(oldPath);
+        assertFalse(Files.exists(oldPath));
+
+        // nothing left to swap
+        GeoSparqlUtils.swapRebuiltIndex(dataDir);
+        assertTrue(Files.exists(indexPath.resolve("segments_2")));
+    }
+
+    @Test
+    public void testSwapRebuiltIndexAfterInterruptedSwap() throws IOException {
+        Path dataDir = tmpFolder.getRoot().toPath();
+        Path indexPath = GeoSparqlConfig.resolveIndexPath(dataDir);
+        Path oldPath = GeoSparqlConfig.resolveOldIndexPath(dataDir);
+        Path rebuildPath = GeoSparqlConfig.resolveRebuildIndexPath(dataDir);
+        // the previous index was moved aside but the rebuilt one not moved in yet
+        Files.createDirectories(oldPath);
+        Files.write(oldPath.resolve("segments_1"), new byte[]{1});
+        Files.createDirectories(rebuildPath);
+        Files.write(rebuildPath.resolve("segments_2"), new byte[]{2});
+
+        GeoSparqlUtils.swapRebuiltIndex(dataDir);
+
+        assertTrue(Files.exists(indexPath.resolve("segments_2")));
+        assertFalse(Files.exists(rebuildPath));
+        assertTrue(Files.exists(oldPath.resolve("segments_1")));
+    }
 }